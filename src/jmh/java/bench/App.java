@@ -0,0 +1,542 @@
+package bench;
+
+import javazoom.jlgui.basicplayer.BasicController;
+import javazoom.jlgui.basicplayer.BasicPlayerListener;
+
+import javax.sound.sampled.spi.FormatConversionProvider;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.Future;
+
+/**
+ * Bridge from the benchmarks to the shiTunes classes
+ * <p>
+ * JMH does not support benchmarks in the default package, and classes
+ * in the default package can not be referenced from any other package,
+ * so the benchmarks reach ShiBase, Song, MusicTable, PipelinePlayer, the DSP
+ * stages, the crossfade mixer, the MP3 decoder, the tests' Layer III writer,
+ * the HTTP API & the song streaming server through method handles. The
+ * handles are static final, so the JIT inlines them like direct calls.
+ *
+ * @author shiTunes inc.
+ */
+final class App {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    static final Class<?> SHIBASE = load("ShiBase");
+    static final Class<?> SONG = load("Song");
+    static final Class<?> MUSIC_TABLE = load("MusicTable");
+    static final Class<?> PIPELINE_PLAYER = load("PipelinePlayer");
+    static final Class<?> DSP_CHAIN = load("DspChain");
+    static final Class<?> DSP_STAGE = load("DspStage");
+
+    private static final MethodHandle NEW_SHIBASE = constructor(SHIBASE, String.class);
+    private static final MethodHandle INSERT_SONG = method(SHIBASE, "insertSong", Future.class, SONG);
+    private static final MethodHandle GET_ALL_SONGS = method(SHIBASE, "getAllSongs", Object[][].class);
+    private static final MethodHandle GET_PLAYLIST_SONGS =
+            method(SHIBASE, "getPlaylistSongs", Object[][].class, String.class);
+    private static final MethodHandle GET_SONG_ID = method(SHIBASE, "getSongId", int.class, String.class);
+    private static final MethodHandle SONG_EXISTS = method(SHIBASE, "songExists", boolean.class, String.class);
+    private static final MethodHandle DELETE_SONGS = method(SHIBASE, "deleteSongs", Future.class, int[].class);
+    private static final MethodHandle ADD_PLAYLIST = method(SHIBASE, "addPlaylist", Future.class, String.class);
+    private static final MethodHandle GET_PLAYLIST_ID =
+            method(SHIBASE, "getPlaylistId", int.class, String.class);
+    private static final MethodHandle ADD_SONGS_TO_PLAYLIST =
+            method(SHIBASE, "addSongsToPlaylist", Future.class, int.class, int[].class);
+    private static final MethodHandle ADD_RECENT_SONG = method(SHIBASE, "addRecentSong", Future.class, int.class);
+    private static final MethodHandle FLUSH = method(SHIBASE, "flush", void.class);
+    private static final MethodHandle CLOSE = method(SHIBASE, "close", boolean.class);
+
+    private static final MethodHandle PARSE_SONG = constructor(SONG, String.class);
+    private static final MethodHandle NEW_SONG = constructor(SONG, String.class, String.class, String.class,
+            String.class, String.class, String.class, String.class);
+
+    private static final MethodHandle NEW_MUSIC_TABLE = constructor(MUSIC_TABLE);
+    private static final MethodHandle UPDATE_TABLE_MODEL =
+            method(MUSIC_TABLE, "updateTableModel", void.class, String.class);
+
+    private static final MethodHandle NEW_PIPELINE_PLAYER = constructor(PIPELINE_PLAYER,
+            int.class, int.class, int.class, int.class, boolean.class, boolean.class);
+    private static final MethodHandle ADD_PLAYER_LISTENER = method(PIPELINE_PLAYER, "addBasicPlayerListener",
+            void.class, BasicPlayerListener.class);
+
+    private static final MethodHandle NEW_DSP_CHAIN = constructor(DSP_CHAIN);
+    private static final MethodHandle ADD_DSP_STAGE = method(DSP_CHAIN, "add", void.class, DSP_STAGE);
+    private static final MethodHandle CONFIGURE_DSP =
+            method(DSP_CHAIN, "configure", void.class, float.class, int.class, int.class);
+    private static final MethodHandle PROCESS_DSP =
+            method(DSP_CHAIN, "process", void.class, byte[].class, int.class, int.class);
+    private static final MethodHandle NEW_EQUALIZER = constructor(load("EqualizerStage"));
+    private static final MethodHandle SET_BAND_GAIN =
+            method(load("EqualizerStage"), "setBandGain", void.class, int.class, float.class);
+    private static final MethodHandle NEW_GAIN = constructor(load("GainStage"));
+    private static final MethodHandle SET_VOLUME = method(load("GainStage"), "setVolume", void.class, double.class);
+    private static final MethodHandle NEW_LIMITER = constructor(load("LimiterStage"));
+    private static final MethodHandle MIX_CROSSFADE = staticMethod(load("CrossfadeMixer"), "mix",
+            int.class, byte[].class, byte[].class, int.class, int.class, int.class, int.class);
+    private static final MethodHandle NEW_MP3_PROVIDER = constructor(load("Mp3ConversionProvider"));
+    private static final MethodHandle NEW_LAYER3_WRITER = constructor(load("Layer3Writer"),
+            Random.class, int.class, int.class, boolean.class);
+    private static final MethodHandle WRITE_LAYER3 = method(load("Layer3Writer"), "write", byte[].class, int.class);
+
+    private static final MethodHandle NEW_DAEMON = constructor(load("ShiTunesDaemon"),
+            SHIBASE, load("LoudnessAnalyzer"), Path.class);
+    private static final MethodHandle NEW_HTTP_API = constructor(load("ShiHttpApi"),
+            SHIBASE, load("ShiTunesDaemon"), InetSocketAddress.class);
+    private static final MethodHandle START_HTTP_API = method(load("ShiHttpApi"), "start", void.class);
+    private static final MethodHandle STOP_HTTP_API = method(load("ShiHttpApi"), "stop", void.class);
+    private static final MethodHandle GET_HTTP_PORT = method(load("ShiHttpApi"), "getPort", int.class);
+    private static final MethodHandle NEW_STREAM_SERVER = constructor(load("SongStreamServer"),
+            SHIBASE, InetSocketAddress.class);
+    private static final MethodHandle START_STREAM_SERVER = method(load("SongStreamServer"), "start", void.class);
+    private static final MethodHandle STOP_STREAM_SERVER = method(load("SongStreamServer"), "stop", void.class);
+    private static final MethodHandle GET_STREAM_PORT = method(load("SongStreamServer"), "getPort", int.class);
+
+    private App() {
+    }
+
+    /* ******* */
+    /* SHIBASE */
+    /* ******* */
+
+    static Object newShiBase(String dbName) {
+        try {
+            return NEW_SHIBASE.invoke(dbName);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Future<?> insertSong(Object db, Object song) {
+        try {
+            return (Future<?>) INSERT_SONG.invoke(db, song);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object[][] getAllSongs(Object db) {
+        try {
+            return (Object[][]) GET_ALL_SONGS.invoke(db);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object[][] getPlaylistSongs(Object db, String playlistName) {
+        try {
+            return (Object[][]) GET_PLAYLIST_SONGS.invoke(db, playlistName);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int getSongId(Object db, String filePath) {
+        try {
+            return (int) GET_SONG_ID.invoke(db, filePath);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean songExists(Object db, String filePath) {
+        try {
+            return (boolean) SONG_EXISTS.invoke(db, filePath);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Future<?> deleteSongs(Object db, int[] songIds) {
+        try {
+            return (Future<?>) DELETE_SONGS.invoke(db, songIds);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Future<?> addPlaylist(Object db, String playlistName) {
+        try {
+            return (Future<?>) ADD_PLAYLIST.invoke(db, playlistName);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int getPlaylistId(Object db, String playlistName) {
+        try {
+            return (int) GET_PLAYLIST_ID.invoke(db, playlistName);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Future<?> addSongsToPlaylist(Object db, int playlistId, int[] songIds) {
+        try {
+            return (Future<?>) ADD_SONGS_TO_PLAYLIST.invoke(db, playlistId, songIds);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Future<?> addRecentSong(Object db, int songId) {
+        try {
+            return (Future<?>) ADD_RECENT_SONG.invoke(db, songId);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void flush(Object db) {
+        try {
+            FLUSH.invoke(db);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void close(Object db) {
+        try {
+            CLOSE.invoke(db);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Sets the database used by the shiTunes GUI classes
+     *
+     * @param db the ShiBase to set as ShiTunes.db
+     */
+    static void setShiTunesDb(Object db) {
+        try {
+            Field field = load("ShiTunes").getDeclaredField("db");
+            field.setAccessible(true);  // ShiTunes.db is package-private
+            field.set(null, db);
+        } catch (Exception e) {
+            throw rethrow(e);
+        }
+    }
+
+    /* **** */
+    /* SONG */
+    /* **** */
+
+    static Object parseSong(String filePath) {
+        try {
+            return PARSE_SONG.invoke(filePath);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object newSong(String filePath, String title, String artist, String album,
+                          String year, String genre, String comment) {
+        try {
+            return NEW_SONG.invoke(filePath, title, artist, album, year, genre, comment);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /* *********** */
+    /* MUSIC TABLE */
+    /* *********** */
+
+    static Object newMusicTable() {
+        try {
+            return NEW_MUSIC_TABLE.invoke();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void updateTableModel(Object musicTable, String name) {
+        try {
+            UPDATE_TABLE_MODEL.invoke(musicTable, name);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /* *************** */
+    /* PIPELINE PLAYER */
+    /* *************** */
+
+    /**
+     * Creates a PipelinePlayer, which is a BasicController
+     */
+    static BasicController newPipelinePlayer(int bufferMillis, int lineMillis,
+                                                                        boolean reuseLine, boolean nullSink) {
+        try {
+            return (BasicController) NEW_PIPELINE_PLAYER.invoke(bufferMillis,
+                    lineMillis, Thread.NORM_PRIORITY, Thread.MAX_PRIORITY, reuseLine, nullSink);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void addPlayerListener(Object player, BasicPlayerListener listener) {
+        try {
+            ADD_PLAYER_LISTENER.invoke(player, listener);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /* *** */
+    /* DSP */
+    /* *** */
+
+    static Object newDspChain() {
+        try {
+            return NEW_DSP_CHAIN.invoke();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void addDspStage(Object chain, Object stage) {
+        try {
+            ADD_DSP_STAGE.invoke(chain, stage);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void configureDsp(Object chain, float sampleRate, int channels, int maxBytes) {
+        try {
+            CONFIGURE_DSP.invoke(chain, sampleRate, channels, maxBytes);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void processDsp(Object chain, byte[] pcm, int offset, int length) {
+        try {
+            PROCESS_DSP.invoke(chain, pcm, offset, length);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object newEqualizer() {
+        try {
+            return NEW_EQUALIZER.invoke();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void setBandGain(Object equalizer, int band, float gainDb) {
+        try {
+            SET_BAND_GAIN.invoke(equalizer, band, gainDb);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object newGain() {
+        try {
+            return NEW_GAIN.invoke();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void setVolume(Object gain, double volume) {
+        try {
+            SET_VOLUME.invoke(gain, volume);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object newLimiter() {
+        try {
+            return NEW_LIMITER.invoke();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int mixCrossfade(byte[] incoming, byte[] outgoing, int length, int channels,
+                            int position, int fadeFrames) {
+        try {
+            return (int) MIX_CROSSFADE.invokeExact(incoming, outgoing, length, channels, position, fadeFrames);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /* ******* */
+    /* DECODER */
+    /* ******* */
+
+    static FormatConversionProvider newMp3ConversionProvider() {
+        try {
+            return (FormatConversionProvider) NEW_MP3_PROVIDER.invoke();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Returns a 320 kbps, 44.1 kHz stereo MPEG-1 Layer III song of random
+     * spectra, written by the tests' Layer3Writer
+     *
+     * @param seed the seed of the spectra
+     * @param frames the number of frames
+     * @return the song
+     */
+    static byte[] layerThreeSong(long seed, int frames) {
+        try {
+            Object writer = NEW_LAYER3_WRITER.invoke(new Random(seed), 2, 0, false);
+            return (byte[]) WRITE_LAYER3.invoke(writer, frames);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /* **** */
+    /* HTTP */
+    /* **** */
+
+    /**
+     * Starts the HTTP API of a daemon serving the given library, on a
+     * free port of localhost; the daemon's socket is not opened
+     *
+     * @return the ShiHttpApi
+     */
+    static Object startHttpApi(Object db, Path socketPath) {
+        try {
+            Object daemon = NEW_DAEMON.invoke(db, null, socketPath);
+            Object api = NEW_HTTP_API.invoke(db, daemon, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            START_HTTP_API.invoke(api);
+            return api;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int getHttpPort(Object api) {
+        try {
+            return (int) GET_HTTP_PORT.invoke(api);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void stopHttpApi(Object api) {
+        try {
+            STOP_HTTP_API.invoke(api);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Starts serving the song files of the given library, on a free port
+     * of localhost
+     *
+     * @return the SongStreamServer
+     */
+    static Object startStreamServer(Object db) {
+        try {
+            Object server = NEW_STREAM_SERVER.invoke(db, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            START_STREAM_SERVER.invoke(server);
+            return server;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int getStreamPort(Object server) {
+        try {
+            return (int) GET_STREAM_PORT.invoke(server);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void stopStreamServer(Object server) {
+        try {
+            STOP_STREAM_SERVER.invoke(server);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /* ******* */
+    /* HELPERS */
+    /* ******* */
+
+    private static Class<?> load(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> type, Class<?>... parameterTypes) {
+        try {
+            return LOOKUP.findConstructor(type, MethodType.methodType(void.class, parameterTypes))
+                    .asType(MethodType.methodType(Object.class, parameterTypes));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /*
+     * Looks up a public method, widening the receiver to Object and
+     * a returned future to its Future interface
+     */
+    private static MethodHandle method(Class<?> type, String name, Class<?> returnType,
+                                       Class<?>... parameterTypes) {
+        try {
+            for(java.lang.reflect.Method method : type.getMethods()) {
+                if(method.getName().equals(name)
+                        && java.util.Arrays.equals(method.getParameterTypes(), parameterTypes)) {
+                    MethodHandle handle = LOOKUP.unreflect(method);
+                    Class<?>[] erased = new Class<?>[parameterTypes.length + 1];
+                    erased[0] = Object.class;
+                    for(int i = 0; i < parameterTypes.length; i++) {
+                        erased[i + 1] = parameterTypes[i].getClassLoader() == null
+                                || parameterTypes[i].isPrimitive() ? parameterTypes[i] : Object.class;
+                    }
+                    return handle.asType(MethodType.methodType(returnType, erased));
+                }
+            }
+            throw new NoSuchMethodException(type.getName() + "." + name);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle staticMethod(Class<?> type, String name, Class<?> returnType,
+                                             Class<?>... parameterTypes) {
+        try {
+            return LOOKUP.findStatic(type, name, MethodType.methodType(returnType, parameterTypes));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if(t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        if(t instanceof Error) {
+            throw (Error) t;
+        }
+        return new IllegalStateException(t);
+    }
+}
@@ -0,0 +1,75 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the PipelinePlayer's crossfade: samples per second mixed
+ * by the CrossfadeMixer, the work the output thread adds to every buffer
+ * while two songs overlap
+ * <p>
+ * The fade runs over 12 s, the longest crossfade, and restarts when it
+ * ends, so every buffer is mixed at a different point of the curves.
+ *
+ * @author shiTunes inc.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CrossfadeBenchmark {
+
+    private static final float SAMPLE_RATE = 44100;
+    private static final int FRAMES = 882;              // the 20 ms played per buffer
+    private static final int SAMPLES = FRAMES * 2;      // stereo
+    private static final int FADE_FRAMES = (int) SAMPLE_RATE * 12;
+
+    private byte[] incoming;
+    private byte[] outgoing;
+    private byte[] mixed;
+    private int position;
+
+    @Setup(Level.Trial)
+    public void createSongs() {
+        incoming = sine(440);
+        outgoing = sine(330);
+        mixed = new byte[incoming.length];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public byte[] mix() {
+        System.arraycopy(incoming, 0, mixed, 0, mixed.length);     // the mix replaces the incoming PCM
+        position = App.mixCrossfade(mixed, outgoing, mixed.length, 2, position, FADE_FRAMES);
+        if(position >= FADE_FRAMES) {
+            position = 0;
+        }
+        return mixed;
+    }
+
+    private static byte[] sine(double frequency) {
+        byte[] pcm = new byte[SAMPLES * 2];
+        for(int frame = 0; frame < FRAMES; frame++) {
+            int value = (int) (Math.sin(2 * Math.PI * frequency * frame / SAMPLE_RATE) * 30000);
+            for(int b = frame * 4; b < frame * 4 + 4; b += 2) {
+                pcm[b] = (byte) value;
+                pcm[b + 1] = (byte) (value >> 8);
+            }
+        }
+        return pcm;
+    }
+}
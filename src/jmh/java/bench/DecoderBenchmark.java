@@ -0,0 +1,83 @@
+package bench;
+
+import javazoom.spi.mpeg.sampled.convert.MpegFormatConversionProvider;
+import javazoom.spi.mpeg.sampled.file.MpegEncoding;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.spi.FormatConversionProvider;
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of MP3 decoding: samples per second (per channel) decoded
+ * to 16 bit PCM by mp3spi's stream over jl1.0.1 ("jl") and by shiTunes'
+ * DecodedMp3Stream and its Layer3Decoder ("fast")
+ * <p>
+ * The song is held in memory so only the decoding is measured. It is
+ * written by the tests' Layer3Writer: 320 kbps stereo frames of random
+ * spectra with every block type and stereo mode, so each frame runs the
+ * Huffman decoding, requantization, stereo processing, IMDCT and
+ * synthesis filterbank in full, as music does.
+ *
+ * @author shiTunes inc.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecoderBenchmark {
+
+    private static final int FRAMES = 400;      // 10 seconds
+    private static final int SAMPLES = FRAMES * 1152;
+    private static final AudioFormat MP3 = new AudioFormat(MpegEncoding.MPEG1L3, 44100, AudioSystem.NOT_SPECIFIED,
+            2, AudioSystem.NOT_SPECIFIED, AudioSystem.NOT_SPECIFIED, false);
+    private static final AudioFormat PCM = new AudioFormat(44100, 16, 2, true, false);
+
+    /**
+     * jl: mp3spi's MpegFormatConversionProvider, fast: shiTunes' Mp3ConversionProvider
+     */
+    @Param({"jl", "fast"})
+    public String decoder;
+
+    private byte[] song;
+    private byte[] pcm;
+    private FormatConversionProvider provider;
+
+    @Setup(Level.Trial)
+    public void createSong() {
+        song = App.layerThreeSong(47, FRAMES);
+        pcm = new byte[16384];
+        provider = decoder.equals("jl") ? new MpegFormatConversionProvider() : App.newMp3ConversionProvider();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long decode() throws Exception {
+        AudioInputStream encoded = new AudioInputStream(new ByteArrayInputStream(song), MP3, AudioSystem.NOT_SPECIFIED);
+        AudioInputStream decoded = provider.getAudioInputStream(PCM, encoded);
+        long length = 0;
+        int count;
+        while((count = decoded.read(pcm)) != -1) {
+            length += count;
+        }
+        decoded.close();
+        return length;
+    }
+}
@@ -0,0 +1,90 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the PipelinePlayer's DSP stages: samples processed per
+ * second by each stage alone, and by the whole chain
+ * <p>
+ * Every stage runs in a chain of its own, so each result includes the
+ * conversion of 16 bit PCM to floats and back; the equalizer has all
+ * 10 bands boosted or cut, so none is skipped.
+ *
+ * @author shiTunes inc.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DspBenchmark {
+
+    private static final float SAMPLE_RATE = 44100;
+    private static final int FRAMES = 882;              // the 20 ms played per buffer
+    private static final int SAMPLES = FRAMES * 2;      // stereo
+
+    /**
+     * The stage benchmarked: none (conversion only), equalizer, gain, limiter or chain (all three)
+     */
+    @Param({"none", "equalizer", "gain", "limiter", "chain"})
+    public String stage;
+
+    private Object chain;
+    private byte[] pcm;
+
+    @Setup(Level.Trial)
+    public void createChain() {
+        chain = App.newDspChain();
+        if(stage.equals("equalizer") || stage.equals("chain")) {
+            Object equalizer = App.newEqualizer();
+            for(int band = 0; band < 10; band++) {
+                App.setBandGain(equalizer, band, band % 2 == 0 ? 6 : -6);
+            }
+            App.addDspStage(chain, equalizer);
+        }
+        if(stage.equals("gain") || stage.equals("chain")) {
+            Object gain = App.newGain();
+            App.setVolume(gain, 0.8);
+            App.addDspStage(chain, gain);
+        }
+        if(stage.equals("limiter") || stage.equals("chain")) {
+            App.addDspStage(chain, App.newLimiter());
+        }
+        if(stage.equals("none")) {
+            Object gain = App.newGain();    // at unity gain: only the conversion is measured
+            App.addDspStage(chain, gain);
+        }
+        App.configureDsp(chain, SAMPLE_RATE, 2, SAMPLES * 2);
+
+        pcm = new byte[SAMPLES * 2];
+        for(int frame = 0; frame < FRAMES; frame++) {
+            int value = (int) (Math.sin(2 * Math.PI * 440 * frame / SAMPLE_RATE) * 30000);
+            for(int b = frame * 4; b < frame * 4 + 4; b += 2) {
+                pcm[b] = (byte) value;
+                pcm[b + 1] = (byte) (value >> 8);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public byte[] process() {
+        App.processDsp(chain, pcm, 0, pcm.length);
+        return pcm;
+    }
+}
@@ -0,0 +1,56 @@
+package bench;
+
+import java.io.File;
+
+/**
+ * Test data shared by the benchmarks
+ * <p>
+ * Benchmark databases are created under derby.system.home (set by
+ * the jmh Gradle task) and kept between runs, since populating the
+ * 1M row library takes several minutes.
+ *
+ * @author shiTunes inc.
+ */
+final class Fixtures {
+
+    /**
+     * The playlist holding every song of a benchmark library
+     */
+    static final String PLAYLIST = "Benchmark";
+
+    /**
+     * The generator of all benchmark libraries, seeded so every run uses the same songs
+     */
+    static final LibraryGenerator GENERATOR = new LibraryGenerator(new File("/benchmark"), 343, 2, 0, 0);
+
+    private Fixtures() {
+    }
+
+    /**
+     * Returns the file path of the nth song of a benchmark library
+     *
+     * @param index the song index
+     * @return the song's file path
+     */
+    static String songPath(int index) {
+        return GENERATOR.path(index);
+    }
+
+    /**
+     * Opens the benchmark library with the given number of songs,
+     * populating it (and its playlist) on first use
+     * <p>
+     * Only the database is populated, the song files are not written
+     *
+     * @param rows the number of songs in the library
+     * @return the opened ShiBase
+     */
+    static Object openLibrary(int rows) throws Exception {
+        Object db = App.newShiBase("benchmark" + rows);
+        if(!App.songExists(db, songPath(rows - 1))) {
+            System.out.println("Populating benchmark library with " + rows + " songs");
+            GENERATOR.populate(db, rows, PLAYLIST);
+        }
+        return db;
+    }
+}
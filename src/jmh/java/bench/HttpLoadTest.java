@@ -0,0 +1,216 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Load test of the HTTP API
+ * <p>
+ * Starts the API on a benchmark library of the given size (or uses the
+ * one of a running daemon given by --url), then has concurrent clients,
+ * each on a keep-alive connection, request for the given time:
+ * <ul>
+ * <li>page: a page of 500 songs at a random offset, read to the end</li>
+ * <li>search: a search for a word of the generated titles</li>
+ * <li>revalidate: the first page again with its ETag, answered 304</li>
+ * </ul>
+ * and prints the requests per second and the latency of each kind.
+ * It then reads the whole library one page after the other, following
+ * the "next" links, as a client syncing the library would.
+ * <p>
+ * Usage: HttpLoadTest [--songs N] [--clients C] [--seconds S] [--url URL]
+ *
+ * @author shiTunes inc.
+ */
+public final class HttpLoadTest {
+
+    private static final String[] KINDS = {"page", "search", "revalidate"};
+    private static final Pattern NEXT = Pattern.compile("\"next\":\"([^\"]*)\"}$");
+
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private final String url;
+    private final int songs;
+
+    private HttpLoadTest(String url, int songs) {
+        this.url = url;
+        this.songs = songs;
+    }
+
+    /**
+     * Runs the load test from the command line
+     *
+     * @param args see the class documentation
+     */
+    public static void main(String[] args) throws Exception {
+        int songs = 100000;
+        int clients = 16;
+        int seconds = 20;
+        String url = null;
+
+        for(int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if(arg.equals("--songs")) { songs = Integer.parseInt(args[++i]); }
+            else if(arg.equals("--clients")) { clients = Integer.parseInt(args[++i]); }
+            else if(arg.equals("--seconds")) { seconds = Integer.parseInt(args[++i]); }
+            else if(arg.equals("--url")) { url = args[++i]; }
+            else {
+                System.err.println("Unknown argument: " + arg);
+                System.exit(1);
+            }
+        }
+
+        Object db = null;
+        Object api = null;
+        if(url == null) {
+            db = Fixtures.openLibrary(songs);
+            Path socket = Files.createTempDirectory("shiTunes-load").resolve("shiTunes.sock");
+            api = App.startHttpApi(db, socket);
+            url = "http://127.0.0.1:" + App.getHttpPort(api);
+        }
+        System.out.println("Load testing " + url + " with " + clients + " clients for " + seconds + " s");
+
+        HttpLoadTest test = new HttpLoadTest(url, songs);
+        test.run(clients, seconds);
+        test.readLibrary();
+
+        if(api != null) {
+            App.stopHttpApi(api);
+            App.close(db);
+        }
+        System.exit(0);
+    }
+
+    /*
+     * Runs the clients and prints what they measured
+     */
+    private void run(int clients, int seconds) throws Exception {
+        final String etag = get("/api/songs", null).headers().firstValue("ETag").orElse("");
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        final List<List<long[]>> latencies = new ArrayList<List<long[]>>();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int c = 0; c < clients; c++) {
+            final List<long[]> measured = new ArrayList<long[]>();     // kind, nanoseconds
+            latencies.add(measured);
+            final SplittableRandom random = new SplittableRandom(c);
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    while(System.nanoTime() < end) {
+                        int kind = random.nextInt(10) < 6 ? 0 : random.nextInt(2) + 1;
+                        long start = System.nanoTime();
+                        try {
+                            HttpResponse<InputStream> response;
+                            int expected = 200;
+                            if(kind == 0) {
+                                response = get("/api/songs?offset=" + random.nextInt(Math.max(1, songs - 500))
+                                        + "&limit=500", null);
+                            } else if(kind == 1) {
+                                response = get("/api/search?q="
+                                        + LibraryGenerator.WORDS[random.nextInt(LibraryGenerator.WORDS.length)], null);
+                            } else {
+                                response = get("/api/songs", etag);
+                                expected = 304;
+                            }
+                            bytes.addAndGet(drain(response.body()));
+                            if(response.statusCode() != expected) {
+                                errors.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            errors.incrementAndGet();
+                        }
+                        measured.add(new long[] {kind, System.nanoTime() - start});
+                    }
+                }
+            }, "Load-client-" + c);
+            thread.start();
+            threads.add(thread);
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        long requests = 0;
+        for(int kind = 0; kind < KINDS.length; kind++) {
+            List<Long> times = new ArrayList<Long>();
+            for(List<long[]> measured : latencies) {
+                for(long[] m : measured) {
+                    if(m[0] == kind) {
+                        times.add(m[1]);
+                    }
+                }
+            }
+            requests += times.size();
+            long[] sorted = new long[times.size()];
+            for(int i = 0; i < sorted.length; i++) {
+                sorted[i] = times.get(i);
+            }
+            Arrays.sort(sorted);
+            if(sorted.length > 0) {
+                System.out.printf("%-10s %7d requests  p50 %7.2f ms  p99 %7.2f ms  max %7.2f ms%n", KINDS[kind],
+                        sorted.length, sorted[sorted.length / 2] / 1e6, sorted[(int) (sorted.length * 0.99)] / 1e6,
+                        sorted[sorted.length - 1] / 1e6);
+            }
+        }
+        System.out.printf("%d requests/s, %.1f MB/s, %d errors%n", requests / seconds,
+                bytes.get() / 1e6 / seconds, errors.get());
+    }
+
+    /*
+     * Reads every page of the library, following the next links
+     */
+    private void readLibrary() throws Exception {
+        long start = System.nanoTime();
+        String next = "/api/songs?offset=0&limit=5000";
+        int pages = 0;
+        int read = 0;
+        long bytes = 0;
+        while(next != null) {
+            HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(url + next)).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            String page = response.body();
+            bytes += page.length();
+            for(int i = page.indexOf("{\"songId\":"); i != -1; i = page.indexOf("{\"songId\":", i + 1)) {
+                read++;
+            }
+            Matcher matcher = NEXT.matcher(page);
+            next = matcher.find() ? matcher.group(1) : null;
+            pages++;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Read %d songs in %d pages of 5000, %.1f MB in %.1f s (%.0f songs/s)%n", read, pages,
+                bytes / 1e6, elapsed, read / elapsed);
+    }
+
+    private HttpResponse<InputStream> get(String path, String etag) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url + path));
+        if(etag != null) {
+            request.header("If-None-Match", etag);
+        }
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[16384];
+        long total = 0;
+        int count;
+        while((count = in.read(buffer)) != -1) {
+            total += count;
+        }
+        in.close();
+        return total;
+    }
+}
@@ -0,0 +1,474 @@
+package bench;
+
+import com.mpatric.mp3agic.ID3v1Genres;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates synthetic music libraries for scale testing
+ * <p>
+ * Every track is a short, silent but valid MP3 file (MPEG-1 Layer III,
+ * 128 kbit/s, 44.1 kHz) tagged with ID3v1, ID3v2.3 or both. Tags follow
+ * realistic cardinalities: about 10 tracks per album and 3 albums per
+ * artist, with artist genres skewed towards the first ID3v1 genres the
+ * way real libraries are dominated by a few genres. Albums can carry
+ * cover art (an APIC frame), shared by all tracks of the album.
+ * <p>
+ * Each track is derived only from the seed and its index, so the same
+ * seed always produces the same library, however many threads write it.
+ * <p>
+ * Usage: LibraryGenerator --tracks N [--dir DIR] [--seed S] [--threads T]
+ * [--seconds S] [--art-ratio R] [--art-kb K] [--db NAME] [--no-files]
+ *
+ * @author shiTunes inc.
+ */
+public final class LibraryGenerator {
+
+    static final int TRACKS_PER_ALBUM = 10;
+    static final int ALBUMS_PER_ARTIST = 3;
+
+    // MPEG-1 Layer III, 128 kbit/s, 44.1 kHz, no CRC, no padding
+    private static final int FRAME_LENGTH = 417;
+    private static final double FRAMES_PER_SECOND = 44100.0 / 1152;
+    private static final int CHUNK_SIZE = 1000;
+
+    private static final String[] ADJECTIVES = {"Black", "Electric", "Silver", "Velvet", "Broken", "Golden",
+            "Crimson", "Lonely", "Wild", "Midnight", "Burning", "Frozen", "Hollow", "Neon", "Paper", "Quiet",
+            "Restless", "Savage", "Sweet", "Twisted", "Violet", "Wandering", "Young", "Ancient", "Blue", "Cosmic",
+            "Dead", "Distant", "Empty", "Fading", "Glass", "Holy", "Iron", "Lost", "Magic", "Northern"};
+    private static final String[] NOUNS = {"Hearts", "Rivers", "Wolves", "Machines", "Roses", "Shadows",
+            "Echoes", "Horses", "Ghosts", "Satellites", "Kings", "Sparrows", "Mountains", "Strangers", "Lights",
+            "Tigers", "Oceans", "Dreams", "Saints", "Thieves", "Flowers", "Engines", "Stars", "Bones", "Mirrors",
+            "Cities", "Flames", "Waves", "Birds", "Souls", "Storms", "Gardens", "Trains", "Doors", "Moons", "Rain"};
+    private static final String[] SUFFIXES = {"", "Band", "Trio", "Collective", "Orchestra", "Project",
+            "Quartet", "Experience", "Society", "Club", "Brothers", "Sisters", "Revival", "Ensemble", "Union",
+            "Assembly", "Parade", "Machine", "Company", "Syndicate"};
+    static final String[] WORDS = {"love", "night", "road", "home", "fire", "heart", "time", "light",
+            "dance", "rain", "summer", "dream", "city", "river", "gone", "blue", "forever", "tonight", "down",
+            "away", "little", "girl", "boy", "world", "sky", "sun", "moon", "gold", "run", "stay", "wait",
+            "falling", "alone", "again", "wild", "young", "slow", "high", "last", "first", "song", "story"};
+
+    private final File dir;
+    private final long seed;
+    private final double seconds;
+    private final double artRatio;
+    private final int artBytes;
+
+    /**
+     * A generated track: its file path and tag information
+     */
+    static final class Track {
+        final int index;
+        final String path;
+        final String title;
+        final String artist;
+        final String album;
+        final String year;
+        final int genre;            // ID3v1 genre index
+        final String comment;
+        final int trackNumber;
+        final boolean id3v1;
+        final boolean id3v2;
+        final boolean art;
+        final int frames;
+
+        Track(int index, String path, String title, String artist, String album, String year, int genre,
+              String comment, int trackNumber, boolean id3v1, boolean id3v2, boolean art, int frames) {
+            this.index = index;
+            this.path = path;
+            this.title = title;
+            this.artist = artist;
+            this.album = album;
+            this.year = year;
+            this.genre = genre;
+            this.comment = comment;
+            this.trackNumber = trackNumber;
+            this.id3v1 = id3v1;
+            this.id3v2 = id3v2;
+            this.art = art;
+            this.frames = frames;
+        }
+
+        String getGenreDescription() {
+            return ID3v1Genres.GENRES[genre];
+        }
+    }
+
+    /**
+     * Creates a generator
+     *
+     * @param dir the directory tracks are written to
+     * @param seed the seed every track is derived from
+     * @param seconds the length of every track in seconds
+     * @param artRatio the fraction of albums with cover art, 0 to 1
+     * @param artBytes the size of each album's cover art
+     */
+    public LibraryGenerator(File dir, long seed, double seconds, double artRatio, int artBytes) {
+        this.dir = dir;
+        this.seed = seed;
+        this.seconds = seconds;
+        this.artRatio = artRatio;
+        this.artBytes = artBytes;
+    }
+
+    /*
+     * Returns a random number generator for the given entity, which
+     * depends only on the seed, the kind of entity and its index
+     */
+    private SplittableRandom random(long kind, long index) {
+        return new SplittableRandom(seed ^ (kind * 0x9E3779B97F4A7C15L) ^ (index * 0xC2B2AE3D27D4EB4FL));
+    }
+
+    /**
+     * Returns the given track of the library
+     *
+     * @param index the track index
+     * @return the track
+     */
+    Track track(int index) {
+        int albumIndex = index / TRACKS_PER_ALBUM;
+        int artistIndex = albumIndex / ALBUMS_PER_ARTIST;
+        SplittableRandom trackRandom = random(1, index);
+        SplittableRandom albumRandom = random(2, albumIndex);
+        SplittableRandom artistRandom = random(3, artistIndex);
+
+        // genres are skewed towards the first (most common) ID3v1 genres
+        int genre = (int) (-Math.log(1 - artistRandom.nextDouble()) * 10) % ID3v1Genres.GENRES.length;
+        String year = String.valueOf(1955 + albumRandom.nextInt(70));
+        boolean art = albumRandom.nextDouble() < artRatio;
+        String album = capitalize(words(albumRandom, 1 + albumRandom.nextInt(3)));
+
+        int tagKind = trackRandom.nextInt(10);  // 20% ID3v1 only, 50% ID3v2 only, 30% both
+        String comment = trackRandom.nextInt(10) == 0 ? "Generated by shiTunes" : "";
+        int frames = Math.max(2, (int) Math.round(seconds * FRAMES_PER_SECOND * (0.75 + trackRandom.nextDouble() / 2)));
+
+        return new Track(index, path(index), capitalize(words(trackRandom, 1 + trackRandom.nextInt(4))),
+                artistName(artistIndex), album, year, genre, comment, index % TRACKS_PER_ALBUM + 1,
+                tagKind < 2 || tagKind >= 7, tagKind >= 2, art && tagKind >= 2, frames);
+    }
+
+    /**
+     * Returns the file path of the given track
+     *
+     * @param index the track index
+     * @return the track's file path
+     */
+    String path(int index) {
+        int albumIndex = index / TRACKS_PER_ALBUM;
+        return dir.getPath() + File.separator + "a" + (albumIndex / ALBUMS_PER_ARTIST) + File.separator
+                + "b" + albumIndex + File.separator + "t" + index + ".mp3";
+    }
+
+    /*
+     * Returns a unique artist name for up to
+     * ADJECTIVES * NOUNS * SUFFIXES artists
+     */
+    private static String artistName(int artistIndex) {
+        long combinations = (long) ADJECTIVES.length * NOUNS.length * SUFFIXES.length;
+        // spread consecutive artists over the name space (the multiplier is coprime to it)
+        long h = (artistIndex * 7919L) % combinations;
+        String name = ADJECTIVES[(int) (h % ADJECTIVES.length)] + " "
+                + NOUNS[(int) (h / ADJECTIVES.length % NOUNS.length)];
+        String suffix = SUFFIXES[(int) (h / ADJECTIVES.length / NOUNS.length)];
+        if(artistIndex >= combinations) {
+            suffix += " " + (artistIndex / combinations + 1);
+        }
+        return suffix.isEmpty() ? "The " + name : name + " " + suffix;
+    }
+
+    private static String words(SplittableRandom random, int count) {
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < count; i++) {
+            if(i > 0) {
+                builder.append(' ');
+            }
+            builder.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return builder.toString();
+    }
+
+    private static String capitalize(String text) {
+        return Character.toUpperCase(text.charAt(0)) + text.substring(1);
+    }
+
+    /* ***** */
+    /* FILES */
+    /* ***** */
+
+    /**
+     * Writes the given tracks, in parallel
+     *
+     * @param count the number of tracks to write, starting at index 0
+     * @param threads the number of writer threads
+     * @return the number of bytes written
+     */
+    public long writeTracks(final int count, int threads) throws Exception {
+        final AtomicLong bytes = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> chunks = new ArrayList<Future<?>>();
+            for(int start = 0; start < count; start += CHUNK_SIZE) {
+                final int from = start;
+                chunks.add(executor.submit(new java.util.concurrent.Callable<Void>() {
+                    public Void call() throws IOException {
+                        for(int i = from; i < Math.min(count, from + CHUNK_SIZE); i++) {
+                            bytes.addAndGet(writeTrack(track(i)));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for(Future<?> chunk : chunks) {
+                chunk.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return bytes.get();
+    }
+
+    /**
+     * Writes the given track's MP3 file, creating its directory if needed
+     *
+     * @param track the track to write
+     * @return the size of the file
+     */
+    long writeTrack(Track track) throws IOException {
+        File file = new File(track.path);
+        file.getParentFile().mkdirs();
+        long size = 0;
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        try {
+            if(track.id3v2) {
+                byte[] tag = id3v2Tag(track);
+                out.write(tag);
+                size += tag.length;
+            }
+            byte[] frame = silentFrame();
+            for(int i = 0; i < track.frames; i++) {
+                out.write(frame);
+            }
+            size += (long) track.frames * frame.length;
+            if(track.id3v1) {
+                byte[] tag = id3v1Tag(track);
+                out.write(tag);
+                size += tag.length;
+            }
+        } finally {
+            out.close();
+        }
+        return size;
+    }
+
+    /*
+     * Returns a silent frame: a frame header followed by zeroed side
+     * information and main data, which decodes to silence
+     */
+    static byte[] silentFrame() {
+        byte[] frame = new byte[FRAME_LENGTH];
+        frame[0] = (byte) 0xFF;
+        frame[1] = (byte) 0xFB;
+        frame[2] = (byte) 0x90;
+        frame[3] = (byte) 0x64;
+        return frame;
+    }
+
+    /*
+     * Returns the 128 byte ID3v1.1 tag of the given track
+     */
+    static byte[] id3v1Tag(Track track) {
+        byte[] tag = new byte[128];
+        put(tag, 0, "TAG", 3);
+        put(tag, 3, track.title, 30);
+        put(tag, 33, track.artist, 30);
+        put(tag, 63, track.album, 30);
+        put(tag, 93, track.year, 4);
+        put(tag, 97, track.comment, 28);
+        tag[126] = (byte) track.trackNumber;
+        tag[127] = (byte) track.genre;
+        return tag;
+    }
+
+    private static void put(byte[] buffer, int offset, String value, int length) {
+        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        System.arraycopy(bytes, 0, buffer, offset, Math.min(bytes.length, length));
+    }
+
+    /*
+     * Returns the ID3v2.3 tag of the given track
+     */
+    byte[] id3v2Tag(Track track) throws IOException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream(256 + (track.art ? artBytes : 0));
+        textFrame(frames, "TIT2", track.title);
+        textFrame(frames, "TPE1", track.artist);
+        textFrame(frames, "TALB", track.album);
+        textFrame(frames, "TYER", track.year);
+        textFrame(frames, "TCON", "(" + track.genre + ")");
+        textFrame(frames, "TRCK", String.valueOf(track.trackNumber));
+        if(!track.comment.isEmpty()) {
+            frame(frames, "COMM", concat(new byte[]{0, 'e', 'n', 'g', 0}, latin1(track.comment)));
+        }
+        if(track.art) {
+            byte[] header = concat(latin1("\0image/jpeg"), new byte[]{0, 3, 0});  // front cover, no description
+            frame(frames, "APIC", concat(header, albumArt(track.index / TRACKS_PER_ALBUM)));
+        }
+
+        byte[] body = frames.toByteArray();
+        byte[] tag = new byte[10 + body.length];
+        tag[0] = 'I';
+        tag[1] = 'D';
+        tag[2] = '3';
+        tag[3] = 3;     // version 2.3.0, no flags
+        int size = body.length;
+        for(int i = 0; i < 4; i++) {
+            tag[9 - i] = (byte) ((size >> (7 * i)) & 0x7F);    // synchsafe
+        }
+        System.arraycopy(body, 0, tag, 10, body.length);
+        return tag;
+    }
+
+    private static void textFrame(ByteArrayOutputStream out, String id, String text) throws IOException {
+        frame(out, id, concat(new byte[]{0}, latin1(text)));   // ISO-8859-1 encoded
+    }
+
+    private static void frame(ByteArrayOutputStream out, String id, byte[] data) throws IOException {
+        out.write(latin1(id));
+        out.write(new byte[]{(byte) (data.length >> 24), (byte) (data.length >> 16),
+                (byte) (data.length >> 8), (byte) data.length, 0, 0});
+        out.write(data);
+    }
+
+    /*
+     * Returns the cover art of the given album: random bytes
+     * framed by JPEG start and end of image markers
+     */
+    private byte[] albumArt(int albumIndex) {
+        byte[] art = new byte[Math.max(4, artBytes)];
+        SplittableRandom random = random(4, albumIndex);
+        for(int i = 0; i < art.length; i += 4) {
+            int value = random.nextInt();
+            for(int j = 0; j < 4 && i + j < art.length; j++) {
+                art[i + j] = (byte) (value >> (8 * j));
+            }
+        }
+        art[0] = (byte) 0xFF;
+        art[1] = (byte) 0xD8;
+        art[art.length - 2] = (byte) 0xFF;
+        art[art.length - 1] = (byte) 0xD9;
+        return art;
+    }
+
+    private static byte[] latin1(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    /* ******* */
+    /* SHIBASE */
+    /* ******* */
+
+    /**
+     * Inserts the given tracks into a ShiBase database with the tags
+     * they are generated with, without reading their files, and adds
+     * them all to the given playlist
+     *
+     * @param db the ShiBase to populate
+     * @param count the number of tracks to insert, starting at index 0
+     * @param playlistName the playlist to add all tracks to, or null for none
+     */
+    public void populate(Object db, int count, String playlistName) throws Exception {
+        int playlistId = -1;
+        if(playlistName != null) {
+            App.addPlaylist(db, playlistName).get();
+            playlistId = App.getPlaylistId(db, playlistName);
+        }
+        List<Future<?>> inserts = new ArrayList<Future<?>>(CHUNK_SIZE * 10);
+        for(int start = 0; start < count; start += CHUNK_SIZE * 10) {
+            int end = Math.min(count, start + CHUNK_SIZE * 10);
+            inserts.clear();
+            // the writer thread commits queued inserts in batches
+            for(int i = start; i < end; i++) {
+                Track track = track(i);
+                inserts.add(App.insertSong(db, App.newSong(track.path, track.title, track.artist, track.album,
+                        track.year, track.getGenreDescription(), track.comment)));
+            }
+            int[] songIds = new int[end - start];
+            for(int i = 0; i < songIds.length; i++) {
+                songIds[i] = (Integer) inserts.get(i).get();
+            }
+            if(playlistId != -1) {
+                App.addSongsToPlaylist(db, playlistId, songIds).get();
+            }
+        }
+    }
+
+    /**
+     * Generates a library from the command line
+     *
+     * @param args see the class documentation
+     */
+    public static void main(String[] args) throws Exception {
+        int tracks = 1000;
+        File dir = new File("build/library");
+        long seed = 343;
+        int threads = Runtime.getRuntime().availableProcessors();
+        double seconds = 2;
+        double artRatio = 0;
+        int artKb = 200;
+        String dbName = null;
+        boolean files = true;
+
+        for(int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if(arg.equals("--tracks")) { tracks = Integer.parseInt(args[++i]); }
+            else if(arg.equals("--dir")) { dir = new File(args[++i]); }
+            else if(arg.equals("--seed")) { seed = Long.parseLong(args[++i]); }
+            else if(arg.equals("--threads")) { threads = Integer.parseInt(args[++i]); }
+            else if(arg.equals("--seconds")) { seconds = Double.parseDouble(args[++i]); }
+            else if(arg.equals("--art-ratio")) { artRatio = Double.parseDouble(args[++i]); }
+            else if(arg.equals("--art-kb")) { artKb = Integer.parseInt(args[++i]); }
+            else if(arg.equals("--db")) { dbName = args[++i]; }
+            else if(arg.equals("--no-files")) { files = false; }
+            else {
+                System.err.println("Unknown argument: " + arg);
+                System.exit(1);
+            }
+        }
+
+        LibraryGenerator generator = new LibraryGenerator(dir.getAbsoluteFile(), seed, seconds, artRatio,
+                artKb * 1024);
+        if(files) {
+            long start = System.nanoTime();
+            long bytes = generator.writeTracks(tracks, threads);
+            System.out.printf("Wrote %d tracks (%.1f MB) to %s in %.1f s%n", tracks, bytes / 1e6, dir,
+                    (System.nanoTime() - start) / 1e9);
+        }
+        if(dbName != null) {
+            long start = System.nanoTime();
+            Object db = App.newShiBase(dbName);
+            generator.populate(db, tracks, Fixtures.PLAYLIST);
+            App.close(db);
+            System.out.printf("Inserted %d tracks into %s in %.1f s%n", tracks, dbName,
+                    (System.nanoTime() - start) / 1e9);
+        }
+    }
+}
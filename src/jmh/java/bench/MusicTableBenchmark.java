@@ -0,0 +1,65 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of rebuilding a music table with MusicTable.updateTableModel,
+ * which queries the songs and builds a new Swing table model
+ * <p>
+ * The jmh task runs headless: the table is never displayed, so only
+ * the query and model building are measured, not painting.
+ *
+ * @author shiTunes inc.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MusicTableBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int rows;
+
+    private Object db;
+    private Object musicTable;
+
+    @Setup(Level.Trial)
+    public void createTable() throws Exception {
+        db = Fixtures.openLibrary(rows);
+        App.setShiTunesDb(db);
+        musicTable = App.newMusicTable();
+    }
+
+    @TearDown(Level.Trial)
+    public void closeLibrary() {
+        App.close(db);
+    }
+
+    @Benchmark
+    public Object updateLibraryTable() {
+        App.updateTableModel(musicTable, "Library");
+        return musicTable;
+    }
+
+    @Benchmark
+    public Object updatePlaylistTable() {
+        App.updateTableModel(musicTable, Fixtures.PLAYLIST);
+        return musicTable;
+    }
+}
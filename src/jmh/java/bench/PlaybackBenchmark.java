@@ -0,0 +1,119 @@
+package bench;
+
+import javazoom.jlgui.basicplayer.BasicController;
+import javazoom.jlgui.basicplayer.BasicPlayerEvent;
+import javazoom.jlgui.basicplayer.BasicPlayerListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of switching tracks with the PipelinePlayer: the time from
+ * opening the next song, which stops the playing one, to its first
+ * sample being written to the line
+ * <p>
+ * The songs are played to a null sink by default so the benchmark runs
+ * without an audio device; run with -p sink=device on a machine with a
+ * sound card to include the cost of opening the real line.
+ *
+ * @author shiTunes inc.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlaybackBenchmark {
+
+    private static final int FRAMES = 2000;     // 52 seconds
+
+    /**
+     * true to keep the line open between songs of the same format, false to reopen it for every song
+     */
+    @Param({"true", "false"})
+    public boolean reuseLine;
+
+    /**
+     * null: discard the audio, device: play it on the default sound card
+     */
+    @Param({"null"})
+    public String sink;
+
+    private File dir;
+    private File[] songs;
+    private int next;
+    private BasicController player;
+    private volatile CountDownLatch firstSample;
+
+    @Setup(Level.Trial)
+    public void openPlayer() throws Exception {
+        dir = File.createTempFile("benchmark", "");
+        dir.delete();
+        dir.mkdirs();
+        songs = new File[] {new File(dir, "a.mp3"), new File(dir, "b.mp3")};
+        byte[] frame = LibraryGenerator.silentFrame();
+        for(File song : songs) {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(song));
+            try {
+                for(int i = 0; i < FRAMES; i++) {
+                    out.write(frame);
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        player = App.newPipelinePlayer(2000, 100, reuseLine, sink.equals("null"));
+        App.addPlayerListener(player, new BasicPlayerListener() {
+            public void opened(Object stream, Map properties) {
+            }
+
+            public void progress(int bytesread, long microseconds, byte[] pcmdata, Map properties) {
+                firstSample.countDown();
+            }
+
+            public void stateUpdated(BasicPlayerEvent event) {
+            }
+
+            public void setController(BasicController controller) {
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void closePlayer() throws Exception {
+        player.stop();
+        for(File song : songs) {
+            song.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public void trackSwitch() throws Exception {
+        firstSample = new CountDownLatch(1);
+        player.open(songs[next]);
+        player.play();
+        firstSample.await();
+        next = 1 - next;
+    }
+}
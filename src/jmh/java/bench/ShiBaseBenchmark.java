@@ -0,0 +1,103 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the ShiBase queries & writes on the hot paths,
+ * against libraries of 1k, 100k and 1M songs
+ * <p>
+ * Writes are measured end to end: from queueing the write
+ * until its future completes after the commit.
+ *
+ * @author shiTunes inc.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShiBaseBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int rows;
+
+    private Object db;
+    private int next;               // index of the next song looked up
+    private long trial;             // keeps paths inserted by insertSong unique across runs
+    private long insertCount;
+    private int inserted;           // number of songs inserted by insertSong this iteration
+    private int[] insertedIds = new int[1024];
+
+    @Setup(Level.Trial)
+    public void openLibrary() throws Exception {
+        db = Fixtures.openLibrary(rows);
+        trial = System.currentTimeMillis();
+    }
+
+    @TearDown(Level.Trial)
+    public void closeLibrary() {
+        App.close(db);
+    }
+
+    /*
+     * Deletes the songs inserted during the iteration,
+     * so every iteration starts with the same library size
+     */
+    @TearDown(Level.Iteration)
+    public void deleteInsertedSongs() throws Exception {
+        if(inserted > 0) {
+            App.deleteSongs(db, Arrays.copyOf(insertedIds, inserted)).get();
+            inserted = 0;
+        }
+    }
+
+    @Benchmark
+    public Object insertSong() throws Exception {
+        Object song = App.newSong("/benchmark/inserted/" + trial + "/song" + (insertCount++) + ".mp3",
+                "Inserted", "Artist", "Album", "2014", "Rock", "");
+        Object id = App.insertSong(db, song).get();
+        if(inserted == insertedIds.length) {
+            insertedIds = Arrays.copyOf(insertedIds, inserted * 2);
+        }
+        insertedIds[inserted++] = (Integer) id;
+        return id;
+    }
+
+    @Benchmark
+    public Object[][] getAllSongs() {
+        return App.getAllSongs(db);
+    }
+
+    @Benchmark
+    public Object[][] getPlaylistSongs() {
+        return App.getPlaylistSongs(db, Fixtures.PLAYLIST);
+    }
+
+    @Benchmark
+    public int getSongId() {
+        next = (next + 7919) % rows;  // stride through the library rather than hit one cached row
+        return App.getSongId(db, Fixtures.songPath(next));
+    }
+
+    @Benchmark
+    public Object addRecentSong() throws Exception {
+        next = (next + 7919) % rows;
+        return App.addRecentSong(db, next + 1).get();
+    }
+}
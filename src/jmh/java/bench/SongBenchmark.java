@@ -0,0 +1,75 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of reading a song's tag information with new Song(path),
+ * for each kind of tag the library generator writes
+ *
+ * @author shiTunes inc.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SongBenchmark {
+
+    /**
+     * id3v1: ID3v1 tag only, id3v2: ID3v2 tag only, art: ID3v2 tag with 200 KB of cover art
+     */
+    @Param({"id3v1", "id3v2", "art"})
+    public String tag;
+
+    private File dir;
+    private File file;
+    private String path;
+
+    @Setup(Level.Trial)
+    public void writeSong() throws Exception {
+        dir = File.createTempFile("benchmark", "");
+        dir.delete();
+        LibraryGenerator generator = new LibraryGenerator(dir, 343, 180, 1, 200 * 1024);
+        for(int i = 0; ; i++) {
+            LibraryGenerator.Track track = generator.track(i);
+            boolean matches = tag.equals("id3v1") ? track.id3v1 && !track.id3v2
+                    : tag.equals("id3v2") ? track.id3v2 && !track.id3v1 && !track.art
+                    : track.art;
+            if(matches) {
+                generator.writeTrack(track);
+                path = track.path;
+                file = new File(path);
+                return;
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteSong() {
+        // the song and the artist & album directories it was written to
+        for(File f = file; f != null && !f.equals(dir.getParentFile()); f = f.getParentFile()) {
+            f.delete();
+        }
+    }
+
+    @Benchmark
+    public Object parseSong() {
+        return App.parseSong(path);
+    }
+}
@@ -0,0 +1,317 @@
+package bench;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Load test of the song streaming server
+ * <p>
+ * Writes a library of generated tracks and serves it (or uses the
+ * server of a running daemon given by --url, whose songs 1 to --tracks
+ * are requested), then has many listeners, each on a keep-alive
+ * connection of its own, request byte ranges of random songs at random
+ * positions for the given time, as players seeking and buffering would.
+ * Every range is checked to be answered 206 with the bytes asked for.
+ * <p>
+ * With --kbps the listeners play instead: each asks for the rest of a
+ * song from a random position and reads it at the given bitrate, on a
+ * thread of its own, with a 64 KB receive buffer as a phone's would be,
+ * so the server holds every stream open at once and sends each as its
+ * client's socket drains. A listener more than two
+ * seconds behind the bitrate counts a stall.
+ * <p>
+ * Prints the latency of the ranges (the time to the first byte when
+ * playing), the throughput and how many files the server was sending at
+ * once, from its /stats.
+ * <p>
+ * Usage: StreamLoadTest [--streams N] [--tracks T] [--track-seconds L] [--range-kb K] [--kbps K]
+ * [--seconds S] [--url URL]
+ *
+ * @author shiTunes inc.
+ */
+public final class StreamLoadTest {
+
+    private static final Pattern TOTAL = Pattern.compile("/(\\d+)$");
+    private static final Pattern ACTIVE = Pattern.compile("\"active\":(\\d+)");
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+            .executor(executor).build();
+    private final String url;
+    private final int tracks;
+    private final long rangeBytes;
+    private final ConcurrentHashMap<Integer, Long> sizes = new ConcurrentHashMap<Integer, Long>();
+    private final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<Long>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+    private volatile long end;
+
+    private StreamLoadTest(String url, int tracks, long rangeBytes) {
+        this.url = url;
+        this.tracks = tracks;
+        this.rangeBytes = rangeBytes;
+    }
+
+    /**
+     * Runs the load test from the command line
+     *
+     * @param args see the class documentation
+     */
+    public static void main(String[] args) throws Exception {
+        int streams = 500;
+        int tracks = 50;
+        int trackSeconds = 240;
+        int rangeKb = 256;
+        int kbps = 0;
+        int seconds = 20;
+        String url = null;
+
+        for(int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if(arg.equals("--streams")) { streams = Integer.parseInt(args[++i]); }
+            else if(arg.equals("--tracks")) { tracks = Integer.parseInt(args[++i]); }
+            else if(arg.equals("--track-seconds")) { trackSeconds = Integer.parseInt(args[++i]); }
+            else if(arg.equals("--range-kb")) { rangeKb = Integer.parseInt(args[++i]); }
+            else if(arg.equals("--kbps")) { kbps = Integer.parseInt(args[++i]); }
+            else if(arg.equals("--seconds")) { seconds = Integer.parseInt(args[++i]); }
+            else if(arg.equals("--url")) { url = args[++i]; }
+            else {
+                System.err.println("Unknown argument: " + arg);
+                System.exit(1);
+            }
+        }
+
+        Object db = null;
+        Object server = null;
+        if(url == null) {
+            File dir = Files.createTempDirectory("shiTunes-streams").toFile();
+            LibraryGenerator generator = new LibraryGenerator(dir, 1, trackSeconds, 0, 0);
+            long written = generator.writeTracks(tracks, 2);
+            db = App.newShiBase(new File(dir, "db").getPath());
+            generator.populate(db, tracks, null);
+            System.out.printf("Wrote %d tracks, %.1f MB, to %s%n", tracks, written / 1e6, dir);
+            server = App.startStreamServer(db);
+            url = "http://127.0.0.1:" + App.getStreamPort(server);
+        }
+        System.out.println("Load testing " + url + " with " + streams + " streams of "
+                + (kbps > 0 ? kbps + " kbit/s" : rangeKb + " KB ranges") + " for " + seconds + " s");
+
+        new StreamLoadTest(url, tracks, rangeKb * 1024L).run(streams, kbps, seconds);
+
+        if(server != null) {
+            App.stopStreamServer(server);
+            App.close(db);
+        }
+        System.exit(0);
+    }
+
+    /*
+     * Runs the listeners, sampling the server's stats every second, and
+     * prints what they measured
+     */
+    private void run(int streams, final int kbps, int seconds) throws Exception {
+        long start = System.nanoTime();
+        end = start + seconds * 1000000000L;
+        final CountDownLatch done = new CountDownLatch(streams);
+        for(int s = 0; s < streams; s++) {
+            final SplittableRandom random = new SplittableRandom(s);
+            if(kbps == 0) {
+                next(random, done);
+            } else {
+                Thread listener = new Thread(new Runnable() {
+                    public void run() {
+                        play(random, kbps * 1000L / 8);
+                        done.countDown();
+                    }
+                }, "Listener-" + s);
+                listener.setDaemon(true);
+                listener.start();
+            }
+        }
+
+        List<Integer> active = new ArrayList<Integer>();
+        while(System.nanoTime() < end) {
+            Thread.sleep(1000);
+            String stats = client.send(HttpRequest.newBuilder(URI.create(url + "/stats")).build(),
+                    HttpResponse.BodyHandlers.ofString()).body();
+            Matcher matcher = ACTIVE.matcher(stats);
+            if(matcher.find()) {
+                active.add(Integer.parseInt(matcher.group(1)));
+            }
+        }
+        done.await();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long[] sorted = new long[latencies.size()];
+        int i = 0;
+        for(Long latency : latencies) {
+            sorted[i++] = latency;
+        }
+        Arrays.sort(sorted);
+        if(sorted.length > 0) {
+            System.out.printf("%d %s  p50 %7.2f ms  p99 %7.2f ms  max %7.2f ms%n", sorted.length,
+                    kbps == 0 ? "ranges" : "first bytes",
+                    sorted[sorted.length / 2] / 1e6, sorted[(int) (sorted.length * 0.99)] / 1e6,
+                    sorted[sorted.length - 1] / 1e6);
+        }
+        int maxActive = 0;
+        long totalActive = 0;
+        for(int a : active) {
+            maxActive = Math.max(maxActive, a);
+            totalActive += a;
+        }
+        System.out.printf("%.0f ranges/s, %.1f MB/s, %d errors, %d stalls, files being sent: %.0f on average, "
+                + "%d at most%n", sorted.length / elapsed, bytes.get() / 1e6 / elapsed, errors.get(), stalls.get(),
+                active.isEmpty() ? 0.0 : (double) totalActive / active.size(), maxActive);
+    }
+
+    /*
+     * Requests the next range of a listener, once its previous one has
+     * been read, until the time is up
+     */
+    private void next(final SplittableRandom random, final CountDownLatch done) {
+        if(System.nanoTime() >= end) {
+            done.countDown();
+            return;
+        }
+        final int songId = random.nextInt(tracks) + 1;
+        Long size = sizes.get(songId);
+        long first = size == null ? 0 : random.nextLong(Math.max(1, size - rangeBytes));
+        final long expected = size == null ? rangeBytes : Math.min(rangeBytes, size - first);
+        final long start = System.nanoTime();
+        final AtomicLong received = new AtomicLong();
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url + "/songs/" + songId))
+                .header("Range", "bytes=" + first + "-" + (first + expected - 1)).build();
+        CompletableFuture<HttpResponse<Void>> response = client.sendAsync(request,
+                HttpResponse.BodyHandlers.ofByteArrayConsumer(new Consumer<Optional<byte[]>>() {
+                    public void accept(Optional<byte[]> chunk) {
+                        if(chunk.isPresent()) {
+                            received.addAndGet(chunk.get().length);
+                        }
+                    }
+                }));
+        response.whenComplete(new BiConsumer<HttpResponse<Void>, Throwable>() {
+            public void accept(HttpResponse<Void> r, Throwable failure) {
+                latencies.add(System.nanoTime() - start);
+                bytes.addAndGet(received.get());
+                if(failure != null || r.statusCode() != 206) {
+                    errors.incrementAndGet();
+                } else {
+                    Matcher matcher = TOTAL.matcher(r.headers().firstValue("Content-Range").orElse(""));
+                    if(matcher.find()) {
+                        long total = Long.parseLong(matcher.group(1));
+                        sizes.putIfAbsent(songId, total);
+                        if(received.get() != Math.min(expected, total)) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+                next(random, done);
+            }
+        });
+    }
+
+    /*
+     * Plays random songs from random positions, reading them at the
+     * given rate, until the time is up
+     */
+    private void play(SplittableRandom random, long bytesPerSecond) {
+        URI uri = URI.create(url);
+        byte[] buffer = new byte[8192];
+        while(System.nanoTime() < end) {
+            int songId = random.nextInt(tracks) + 1;
+            Long size = sizes.get(songId);
+            long first = size == null ? 0 : random.nextLong(size);
+            long start = System.nanoTime();
+            try {
+                Socket socket = new Socket();
+                try {
+                    socket.setReceiveBufferSize(65536);
+                    socket.connect(new InetSocketAddress(uri.getHost(), uri.getPort()));
+                    socket.setSoTimeout(10000);
+                    OutputStream out = socket.getOutputStream();
+                    out.write(("GET /songs/" + songId + " HTTP/1.1\r\nHost: " + uri.getHost()
+                            + "\r\nRange: bytes=" + first + "-\r\nConnection: close\r\n\r\n")
+                            .getBytes(StandardCharsets.US_ASCII));
+                    InputStream in = new BufferedInputStream(socket.getInputStream());
+                    String head = readHead(in);
+                    int contentRange = head.indexOf("\r\nContent-Range: bytes ");
+                    if(!head.startsWith("HTTP/1.1 206 ") || contentRange == -1) {
+                        errors.incrementAndGet();
+                        continue;
+                    }
+                    latencies.add(System.nanoTime() - start);
+                    Matcher matcher = TOTAL.matcher(head.substring(contentRange, head.indexOf('\r', contentRange + 2)));
+                    long total = matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+                    sizes.putIfAbsent(songId, total);
+
+                    // read at the bitrate, a second ahead as a player's buffer would
+                    long playing = System.nanoTime();
+                    long received = 0;
+                    boolean stalled = false;
+                    int count;
+                    while(System.nanoTime() < end && (count = in.read(buffer)) != -1) {
+                        received += count;
+                        bytes.addAndGet(count);
+                        long played = (System.nanoTime() - playing) * bytesPerSecond / 1000000000L;
+                        if(received - played > bytesPerSecond) {
+                            Thread.sleep((received - played - bytesPerSecond) * 1000 / bytesPerSecond);
+                        } else if(played - received > 2 * bytesPerSecond && !stalled) {
+                            stalls.incrementAndGet();
+                            stalled = true;
+                        }
+                    }
+                    if(System.nanoTime() < end && received != total - first) {
+                        errors.incrementAndGet();
+                    }
+                } finally {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                errors.incrementAndGet();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        int b;
+        while((b = in.read()) != -1) {
+            head.append((char) b);
+            if(b == '\n' && head.length() >= 4 && head.charAt(head.length() - 3) == '\n') {
+                break;
+            }
+        }
+        return head.toString();
+    }
+}
@@ -0,0 +1,505 @@
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The AudioSource class opens song files for playback so that slow
+ * or network storage does not starve the decoder
+ * <p>
+ * Songs are read in one of three ways, chosen by the shiTunes.source
+ * system property:
+ * <ul>
+ * <li>"readahead" (the default): a reader thread keeps the next READ_AHEAD
+ * bytes of the file in CHUNK_SIZE buffers, read asynchronously in large
+ * reads, so a network hiccup shorter than the read-ahead goes unheard</li>
+ * <li>"mmap": the file is memory-mapped, the OS pages it in</li>
+ * <li>"file": a plain FileInputStream, as before</li>
+ * </ul>
+ * Whatever the mode, a song already in the prefetch cache is played from
+ * memory. prefetch() reads the next queued song into the cache in the
+ * background; the cache holds up to CACHE_SIZE bytes and evicts the least
+ * recently played songs first.
+ * <p>
+ * A read that has to wait for the storage while a song plays counts as a
+ * stall: source.stalls counts them and source.stall times them. The
+ * source.read histogram times each chunk read from the storage.
+ *
+ * @author shiTunes inc.
+ */
+public class AudioSource {
+
+    /**
+     * The system property choosing how songs are read: "readahead", "mmap" or "file"
+     */
+    public static final String MODE_PROPERTY = "shiTunes.source";
+    /**
+     * The size of each read from the storage, in bytes
+     */
+    public static final int CHUNK_SIZE = 512 * 1024;
+    /**
+     * The size of the first read, small so playback starts without waiting for a whole chunk
+     */
+    public static final int FIRST_CHUNK_SIZE = 64 * 1024;
+    /**
+     * How far the reader thread reads ahead of the decoder, in bytes
+     */
+    public static final int READ_AHEAD = Integer.getInteger("shiTunes.source.readAheadKB", 4096) * 1024;
+    /**
+     * The most bytes of songs kept in the prefetch cache
+     */
+    public static final long CACHE_SIZE = Long.getLong("shiTunes.source.cacheMB", 64) * 1024 * 1024;
+
+    // A mapped read taking longer than this had to wait for the storage
+    private static final long MAPPED_STALL_NANOS = 2000000L;
+
+    private static final Metrics.Counter STALLS = Metrics.counter("source.stalls");
+    private static final Metrics.Histogram STALL = Metrics.histogram("source.stall");
+    private static final Metrics.Histogram FIRST_READ = Metrics.histogram("source.firstRead");
+    private static final Metrics.Histogram READ = Metrics.histogram("source.read");
+    private static final Metrics.Histogram PREFETCH = Metrics.histogram("source.prefetch");
+    private static final Metrics.Counter CACHE_HITS = Metrics.counter("source.cache.hits");
+    private static final Metrics.Counter CACHE_MISSES = Metrics.counter("source.cache.misses");
+
+    private static final ExecutorService readers = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Audio-read-ahead-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static final ExecutorService prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Audio-prefetch");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    // The prefetch cache, in least recently played order, guarded by itself
+    private static final LinkedHashMap<String, CachedSong> cache = new LinkedHashMap<String, CachedSong>(16, 0.75f, true);
+    private static long cachedBytes;
+    private static final Set<String> prefetching = ConcurrentHashMap.newKeySet();
+
+    static {
+        Metrics.register(new Metrics.Gauge("source.cache.bytes") {
+            public long get() {
+                synchronized(cache) {
+                    return cachedBytes;
+                }
+            }
+        });
+    }
+
+    /*
+     * A song read into memory, with the length and modification
+     * time of the file it was read from
+     */
+    private static class CachedSong {
+        final byte[] data;
+        final long lastModified;
+
+        CachedSong(byte[] data, long lastModified) {
+            this.data = data;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private AudioSource() {
+    }
+
+    /* ******* */
+    /* OPENING */
+    /* ******* */
+
+    /**
+     * Opens a song file from the start
+     *
+     * @param file the song file
+     * @return a stream of the file's bytes, to be closed by the caller
+     * @throws IOException if the file can not be opened
+     */
+    public static InputStream open(File file) throws IOException {
+        return open(file, 0);
+    }
+
+    /**
+     * Opens a song file from the given byte, eg. the frame a seek moves to
+     *
+     * @param file the song file
+     * @param offset the offset of the first byte to read
+     * @return a stream of the file's bytes, to be closed by the caller
+     * @throws IOException if the file can not be opened
+     */
+    public static InputStream open(File file, long offset) throws IOException {
+        byte[] cached = getCached(file);
+        if(cached != null) {
+            CACHE_HITS.increment();
+            int start = (int) Math.min(offset, cached.length);
+            return new ByteArrayInputStream(cached, start, cached.length - start);
+        }
+        CACHE_MISSES.increment();
+
+        String mode = System.getProperty(MODE_PROPERTY, "readahead");
+        if(mode.equals("mmap") && file.length() < Integer.MAX_VALUE) {
+            return new MappedStream(file, offset);
+        } else if(mode.equals("file")) {
+            FileInputStream in = new FileInputStream(file);
+            in.getChannel().position(offset);
+            return in;
+        }
+        return new ReadAheadStream(file, offset);
+    }
+
+    /* ************** */
+    /* PREFETCH CACHE */
+    /* ************** */
+
+    /**
+     * Reads a song into the cache in the background, eg. the song
+     * queued after the one playing, so it plays from memory
+     *
+     * @param filePath the path of the song file
+     */
+    public static void prefetch(String filePath) {
+        if(filePath == null || CACHE_SIZE <= 0) {
+            return;
+        }
+        final File file = new File(filePath);
+        if(getCached(file) != null || file.length() > CACHE_SIZE / 2 || !prefetching.add(file.getPath())) {
+            return;     // already cached, too large to share the cache, or on its way
+        }
+        prefetcher.execute(new Runnable() {
+            public void run() {
+                try {
+                    long start = System.nanoTime();
+                    long lastModified = file.lastModified();
+                    byte[] data = readFully(file);
+                    PREFETCH.recordSince(start);
+                    put(file.getPath(), new CachedSong(data, lastModified));
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                } finally {
+                    prefetching.remove(file.getPath());
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns whether a song is in the prefetch cache
+     *
+     * @param filePath the path of the song file
+     * @return true if the song would be played from memory
+     */
+    public static boolean isCached(String filePath) {
+        return getCached(new File(filePath)) != null;
+    }
+
+    /*
+     * Returns the cached bytes of the file, unless it changed since it was cached
+     */
+    private static byte[] getCached(File file) {
+        CachedSong song;
+        synchronized(cache) {
+            song = cache.get(file.getPath());
+        }
+        if(song == null) {
+            return null;
+        }
+        if(song.data.length != file.length() || song.lastModified != file.lastModified()) {
+            synchronized(cache) {
+                // only this stale song: a newer one may have been cached under the path since
+                if(cache.remove(file.getPath(), song)) {
+                    cachedBytes -= song.data.length;
+                }
+            }
+            return null;
+        }
+        return song.data;
+    }
+
+    /*
+     * Caches a song, evicting the least recently played songs to make room
+     */
+    private static void put(String filePath, CachedSong song) {
+        synchronized(cache) {
+            CachedSong previous = cache.put(filePath, song);
+            if(previous != null) {
+                cachedBytes -= previous.data.length;
+            }
+            cachedBytes += song.data.length;
+            Iterator<Map.Entry<String, CachedSong>> eldest = cache.entrySet().iterator();
+            while(cachedBytes > CACHE_SIZE && eldest.hasNext()) {
+                Map.Entry<String, CachedSong> entry = eldest.next();
+                if(entry.getValue() != song) {
+                    cachedBytes -= entry.getValue().data.length;
+                    eldest.remove();
+                }
+            }
+        }
+    }
+
+    /*
+     * Reads a whole file in CHUNK_SIZE reads
+     */
+    private static byte[] readFully(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if(size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to cache");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while(buffer.hasRemaining()) {
+                int limit = Math.min(buffer.capacity(), buffer.position() + CHUNK_SIZE);
+                buffer.limit(limit);
+                if(channel.read(buffer) == -1) {
+                    throw new IOException(file + " was truncated while cached");
+                }
+                buffer.limit(buffer.capacity());
+            }
+            return buffer.array();
+        } finally {
+            in.close();
+        }
+    }
+
+    /* ******* */
+    /* STREAMS */
+    /* ******* */
+
+    /*
+     * A stream fed by a reader thread keeping up to READ_AHEAD bytes
+     * read, in CHUNK_SIZE buffers passed back and forth through two queues
+     */
+    private static class ReadAheadStream extends InputStream {
+        private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+        private final FileInputStream in;
+        private final FileChannel channel;
+        private final BlockingQueue<ByteBuffer> free;
+        private final BlockingQueue<ByteBuffer> filled;
+        private final Future<?> reader;
+        private final int chunks;
+        private int allocated;              // buffers, allocated as the reader needs them
+        private volatile IOException error;
+        private ByteBuffer current;
+        private boolean started;
+        private boolean ended;
+
+        ReadAheadStream(File file, long offset) throws IOException {
+            in = new FileInputStream(file);
+            channel = in.getChannel();
+            channel.position(offset);
+            chunks = Math.max(2, READ_AHEAD / CHUNK_SIZE);
+            free = new ArrayBlockingQueue<ByteBuffer>(chunks);
+            filled = new ArrayBlockingQueue<ByteBuffer>(chunks + 1);
+            reader = readers.submit(new Runnable() {
+                public void run() {
+                    readAhead();
+                }
+            });
+        }
+
+        /*
+         * Fills free buffers from the file until its end, run by the reader thread
+         */
+        private void readAhead() {
+            try {
+                boolean end = false;
+                boolean first = true;
+                while(!end) {
+                    ByteBuffer buffer = free.poll();
+                    if(buffer == null && allocated < chunks) {
+                        buffer = ByteBuffer.allocate(CHUNK_SIZE);
+                        allocated++;
+                    } else if(buffer == null) {
+                        buffer = free.take();   // READ_AHEAD bytes are waiting to be played
+                    }
+                    buffer.clear();
+                    if(first) {
+                        buffer.limit(FIRST_CHUNK_SIZE);
+                        first = false;
+                    }
+                    long start = System.nanoTime();
+                    while(buffer.hasRemaining()) {
+                        if(channel.read(buffer) == -1) {
+                            end = true;
+                            break;
+                        }
+                    }
+                    READ.recordSince(start);
+                    buffer.flip();
+                    if(buffer.hasRemaining()) {
+                        filled.put(buffer);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;     // closed
+            } catch (IOException ioe) {
+                if(reader != null && reader.isCancelled()) {
+                    return;     // closed while reading
+                }
+                error = ioe;
+            }
+            filled.offer(END);  // room is kept for it
+        }
+
+        public int read() throws IOException {
+            if(!ensureData()) {
+                return -1;
+            }
+            return current.get() & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            if(!ensureData()) {
+                return -1;
+            }
+            int count = Math.min(len, current.remaining());
+            current.get(b, off, count);
+            return count;
+        }
+
+        public int available() {
+            return current == null ? 0 : current.remaining();
+        }
+
+        /*
+         * Moves to the next buffer read once the current one is used up,
+         * waiting for the reader thread if it has not read it yet
+         *
+         * @return false at the end of the file
+         */
+        private boolean ensureData() throws IOException {
+            if(current != null && current.hasRemaining()) {
+                return true;
+            }
+            if(ended) {
+                return false;
+            }
+            if(current != null) {
+                free.offer(current);
+                current = null;
+            }
+            ByteBuffer next = filled.poll();
+            if(next == null) {
+                long start = System.nanoTime();
+                try {
+                    next = filled.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                if(started) {
+                    STALLS.increment();     // the decoder caught up with the reader
+                    STALL.recordSince(start);
+                } else {
+                    FIRST_READ.recordSince(start);
+                }
+            }
+            started = true;
+            if(next == END) {
+                ended = true;
+                if(error != null) {
+                    throw error;
+                }
+                return false;
+            }
+            current = next;
+            return true;
+        }
+
+        public void close() throws IOException {
+            reader.cancel(true);
+            in.close();
+        }
+    }
+
+    /*
+     * A stream reading a memory-mapped file, timing the reads
+     * which had to wait for pages to be read from the storage
+     */
+    private static class MappedStream extends InputStream {
+        private final RandomAccessFile file;
+        private final MappedByteBuffer buffer;
+        private final byte[] one = new byte[1];
+
+        MappedStream(File file, long offset) throws IOException {
+            this.file = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = this.file.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                buffer.position((int) Math.min(offset, buffer.limit()));
+            } catch (IOException ioe) {
+                this.file.close();
+                throw ioe;
+            }
+        }
+
+        public int read() throws IOException {
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            long start = System.nanoTime();
+            buffer.get(b, off, count);
+            long elapsed = System.nanoTime() - start;
+            if(elapsed > MAPPED_STALL_NANOS) {
+                STALLS.increment();
+                STALL.record(elapsed);
+            }
+            return count;
+        }
+
+        public int available() {
+            return buffer.remaining();
+        }
+
+        public boolean markSupported() {
+            return true;
+        }
+
+        public synchronized void mark(int readLimit) {
+            buffer.mark();
+        }
+
+        public synchronized void reset() throws IOException {
+            buffer.reset();
+        }
+
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import javazoom.jlgui.basicplayer.BasicPlayer;
+import javazoom.jlgui.basicplayer.BasicPlayerEvent;
+import javazoom.jlgui.basicplayer.BasicPlayerException;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The BufferedBasicPlayer class is a BasicPlayer reading song files
+ * through an AudioSource, so they are read ahead in large reads or
+ * played from the prefetch cache
+ * <p>
+ * Only the audio is read through the source. The file format, and
+ * with it the song's duration, is still read from the file itself, and
+ * listeners are still given the File, so they see no difference.
+ * <p>
+ * The decoded PCM goes through the same DspChain as with the
+ * PipelinePlayer: a 10 band equalizer, the volume and a limiter. The
+ * volume is set in software by setGain, so it does not depend on the
+ * line having a gain control.
+ *
+ * @author shiTunes inc.
+ */
+public class BufferedBasicPlayer extends BasicPlayer {
+
+    private final EqualizerStage equalizer = new EqualizerStage();
+    private final GainStage gainStage = new GainStage();
+    private final DspChain dsp = DspChain.create(equalizer, gainStage, new LimiterStage());
+
+    /**
+     * Returns the DSP chain the PCM goes through before the line
+     *
+     * @return the chain
+     */
+    public DspChain getDspChain() {
+        return dsp;
+    }
+
+    /**
+     * Returns the equalizer of the DSP chain
+     *
+     * @return the equalizer
+     */
+    public EqualizerStage getEqualizer() {
+        return equalizer;
+    }
+
+    protected void initAudioInputStream(File file) throws UnsupportedAudioFileException, IOException {
+        BufferedInputStream in = new BufferedInputStream(AudioSource.open(file));
+        try {
+            m_audioInputStream = AudioSystem.getAudioInputStream(in);
+        } catch (UnsupportedAudioFileException e) {
+            in.close();
+            throw e;
+        } catch (IOException ioe) {
+            in.close();
+            throw ioe;
+        }
+        m_audioFileFormat = AudioSystem.getAudioFileFormat(file);
+    }
+
+    protected void createLine() throws LineUnavailableException {
+        boolean created = m_line == null;
+        super.createLine();
+        if(created) {
+            m_audioInputStream = process(m_audioInputStream);    // decoded to PCM by super
+        }
+    }
+
+    /*
+     * Returns the given decoded stream run through the DSP chain,
+     * or the stream itself if it is not 16 bit little endian PCM
+     */
+    AudioInputStream process(AudioInputStream decoded) {
+        AudioFormat format = decoded.getFormat();
+        if(format.getSampleSizeInBits() != 16 || format.isBigEndian()
+                || !format.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED)) {
+            return decoded;
+        }
+        return new DspStream(decoded);
+    }
+
+    /**
+     * Sets the volume of the DSP chain, leaving the line's gain alone
+     *
+     * @param gain the volume in [0.0, 1.0]
+     * @throws BasicPlayerException never
+     */
+    public void setGain(double gain) throws BasicPlayerException {
+        gainStage.setVolume(gain);
+        notifyEvent(BasicPlayerEvent.GAIN, -1, gain, null);
+    }
+
+    /*
+     * The decoded stream, run through the DSP chain as the playback
+     * thread reads it
+     */
+    private class DspStream extends AudioInputStream {
+        private final int maxBytes;
+        private boolean configured;
+
+        DspStream(AudioInputStream decoded) {
+            super(decoded, decoded.getFormat(), decoded.getFrameLength());
+            int frameSize = decoded.getFormat().getFrameSize();
+            maxBytes = Math.max(frameSize, EXTERNAL_BUFFER_SIZE / frameSize * frameSize);
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int count = super.read(bytes, offset, length);
+            if(count > 0) {
+                if(!configured) {
+                    // by the thread that processes the song, as DspChain expects
+                    dsp.configure(format.getSampleRate(), format.getChannels(), maxBytes);
+                    configured = true;
+                }
+                for(int done = 0; done < count; done += maxBytes) {
+                    dsp.process(bytes, offset + done, Math.min(maxBytes, count - done));
+                }
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * The ColumnConfig class caches the visibility, width and order
+ * of the music table columns
+ * <p>
+ * A single ColumnConfig is loaded from the database when ShiBase is
+ * created and shared by all windows. Reads never touch the database;
+ * a change is only reported to the change listener when it actually
+ * changes a value, and ShiBase coalesces those reports into one write.
+ *
+ * @author shiTunes inc.
+ */
+public class ColumnConfig {
+
+    /**
+     * The names of the song columns in model order
+     */
+    public static final String[] COLUMN_NAMES = {"ID", "File Path", "Title", "Artist", "Album", "Year",
+            "Genre", "Comment", "Time", "Bitrate", "Sample Rate", "Channels"};
+
+    /**
+     * The width of a visible column that has not been resized
+     */
+    public static final int DEFAULT_WIDTH = 80;
+
+    private final boolean[] visible = new boolean[COLUMN_NAMES.length];
+    private final int[] width = new int[COLUMN_NAMES.length];
+    private final int[] viewIndex = new int[COLUMN_NAMES.length];
+    private final Runnable changeListener;
+
+    /**
+     * Creates a column configuration with the default layout:
+     * all tag columns and Time visible, in model order
+     *
+     * @param changeListener called after every change to the configuration
+     */
+    public ColumnConfig(Runnable changeListener) {
+        this.changeListener = changeListener;
+        for(int i = 0; i < COLUMN_NAMES.length; i++) {
+            visible[i] = isVisibleByDefault(COLUMN_NAMES[i]);
+            width[i] = DEFAULT_WIDTH;
+            viewIndex[i] = i;
+        }
+    }
+
+    /**
+     * Checks if the given column is visible by default
+     *
+     * @param columnName the column name
+     * @return false for ID, File Path, Bitrate, Sample Rate & Channels,
+     *         true for all other columns
+     */
+    public static boolean isVisibleByDefault(String columnName) {
+        return !columnName.equals("ID") && !columnName.equals("File Path")
+                && !columnName.equals("Bitrate") && !columnName.equals("Sample Rate")
+                && !columnName.equals("Channels");
+    }
+
+    /*
+     * Returns the model index of the given column
+     *
+     * @param columnName the column name
+     * @return the model index of the column
+     * @throws IllegalArgumentException if there is no such column
+     */
+    private static int indexOf(String columnName) {
+        for(int i = 0; i < COLUMN_NAMES.length; i++) {
+            if(COLUMN_NAMES[i].equals(columnName)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown column: " + columnName);
+    }
+
+    /*
+     * Notifies the change listener, outside of the lock
+     */
+    private void changed() {
+        if(changeListener != null) {
+            changeListener.run();
+        }
+    }
+
+    /**
+     * Accessor method to get a column's visibility
+     *
+     * @param columnName the column name
+     * @return true if the column is visible
+     */
+    public synchronized boolean isVisible(String columnName) {
+        return visible[indexOf(columnName)];
+    }
+
+    /**
+     * Mutator method to set a column's visibility
+     *
+     * @param columnName the column name
+     * @param columnVisible the visibility to set for the column
+     */
+    public void setVisible(String columnName, boolean columnVisible) {
+        int index = indexOf(columnName);
+        synchronized(this) {
+            if(visible[index] == columnVisible) {
+                return;
+            }
+            visible[index] = columnVisible;
+        }
+        changed();
+    }
+
+    /**
+     * Accessor method to get a column's width while visible
+     *
+     * @param columnName the column name
+     * @return the width of the column in pixels
+     */
+    public synchronized int getWidth(String columnName) {
+        return width[indexOf(columnName)];
+    }
+
+    /**
+     * Mutator method to set a column's width while visible
+     *
+     * @param columnName the column name
+     * @param columnWidth the width of the column in pixels
+     */
+    public void setWidth(String columnName, int columnWidth) {
+        int index = indexOf(columnName);
+        synchronized(this) {
+            if(width[index] == columnWidth) {
+                return;
+            }
+            width[index] = columnWidth;
+        }
+        changed();
+    }
+
+    /**
+     * Accessor method to get a column's position in the table view
+     *
+     * @param columnName the column name
+     * @return the view index of the column
+     */
+    public synchronized int getViewIndex(String columnName) {
+        return viewIndex[indexOf(columnName)];
+    }
+
+    /**
+     * Returns the column names in the order they are displayed
+     *
+     * @return the column names in view order
+     */
+    public synchronized String[] getColumnOrder() {
+        String[] order = new String[COLUMN_NAMES.length];
+        for(int i = 0; i < COLUMN_NAMES.length; i++) {
+            order[viewIndex[i]] = COLUMN_NAMES[i];
+        }
+        return order;
+    }
+
+    /**
+     * Sets the order the columns are displayed in
+     *
+     * @param order all column names in view order
+     */
+    public void setColumnOrder(String[] order) {
+        if(order.length != COLUMN_NAMES.length) {
+            throw new IllegalArgumentException("Expected " + COLUMN_NAMES.length + " columns");
+        }
+        boolean orderChanged = false;
+        synchronized(this) {
+            for(int i = 0; i < order.length; i++) {
+                int index = indexOf(order[i]);
+                if(viewIndex[index] != i) {
+                    viewIndex[index] = i;
+                    orderChanged = true;
+                }
+            }
+        }
+        if(orderChanged) {
+            changed();
+        }
+    }
+
+    /**
+     * Sets the whole layout of a column as loaded from the
+     * database, without notifying the change listener
+     *
+     * @param columnName the column name
+     * @param columnVisible the visibility of the column
+     * @param columnWidth the width of the column, ignored if not positive
+     * @param columnIndex the view index of the column
+     */
+    synchronized void load(String columnName, boolean columnVisible, int columnWidth, int columnIndex) {
+        int index = indexOf(columnName);
+        visible[index] = columnVisible;
+        if(columnWidth > 0) {
+            width[index] = columnWidth;
+        }
+        viewIndex[index] = columnIndex;
+    }
+
+    /**
+     * Falls back to model order if the loaded view indexes
+     * are not a permutation of the columns (eg. from a table
+     * created before the column order was saved)
+     */
+    synchronized void validateColumnOrder() {
+        boolean[] seen = new boolean[COLUMN_NAMES.length];
+        for(int index : viewIndex) {
+            if(index < 0 || index >= seen.length || seen[index]) {
+                for(int i = 0; i < viewIndex.length; i++) {
+                    viewIndex[i] = i;
+                }
+                return;
+            }
+            seen[index] = true;
+        }
+    }
+}
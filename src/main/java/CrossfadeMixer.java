@@ -0,0 +1,78 @@
+/**
+ * The CrossfadeMixer class mixes the end of one song into the start
+ * of the next with equal-power curves, and applies each song's own gain
+ * <p>
+ * The incoming song rises along a quarter sine and the outgoing one
+ * falls along a quarter cosine, so the sum of their powers, and the
+ * loudness of uncorrelated music, stays constant through the fade. The
+ * curve is read from a table computed once, so mixing a buffer costs
+ * two multiplications per sample and allocates nothing.
+ *
+ * @author shiTunes inc.
+ */
+public class CrossfadeMixer {
+
+    // sin(x * PI / 2) for x in [0, 1]; the cosine is the same table read backwards
+    private static final int CURVE_STEPS = 1024;
+    private static final float[] CURVE = new float[CURVE_STEPS + 1];
+
+    static {
+        for(int i = 0; i <= CURVE_STEPS; i++) {
+            CURVE[i] = (float) Math.sin(Math.PI / 2 * i / CURVE_STEPS);
+        }
+    }
+
+    /**
+     * Mixes a buffer of the outgoing song into the same length of the
+     * incoming song, both 16 bit signed little endian PCM
+     *
+     * @param incoming the incoming song's PCM, replaced by the mix
+     * @param outgoing the outgoing song's PCM
+     * @param length the number of bytes, a whole number of frames
+     * @param channels the number of interleaved channels
+     * @param position the frames of the fade already mixed
+     * @param fadeFrames the length of the fade in frames
+     * @return the position after the mixed frames
+     */
+    public static int mix(byte[] incoming, byte[] outgoing, int length, int channels,
+                          int position, int fadeFrames) {
+        int frameSize = channels * 2;
+        for(int frame = 0; frame < length; frame += frameSize, position++) {
+            float in;
+            float out;
+            if(position >= fadeFrames) {
+                in = 1.0f;
+                out = 0.0f;
+            } else {
+                int step = (int) ((long) position * CURVE_STEPS / fadeFrames);
+                in = CURVE[step];
+                out = CURVE[CURVE_STEPS - step];
+            }
+            for(int b = frame, end = frame + frameSize; b < end; b += 2) {
+                int a = (short) ((incoming[b + 1] << 8) | (incoming[b] & 0xFF));
+                int o = (short) ((outgoing[b + 1] << 8) | (outgoing[b] & 0xFF));
+                float sample = a * in + o * out;
+                int value = sample >= 32767 ? 32767 : sample <= -32768 ? -32768 : Math.round(sample);
+                incoming[b] = (byte) value;
+                incoming[b + 1] = (byte) (value >> 8);
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Applies a gain to a buffer of 16 bit signed little endian PCM, in place
+     *
+     * @param pcm the PCM bytes
+     * @param length the number of bytes, an even number
+     * @param gain the linear gain
+     */
+    public static void scale(byte[] pcm, int length, float gain) {
+        for(int b = 0; b < length; b += 2) {
+            float sample = (short) ((pcm[b + 1] << 8) | (pcm[b] & 0xFF)) * gain;
+            int value = sample >= 32767 ? 32767 : sample <= -32768 ? -32768 : Math.round(sample);
+            pcm[b] = (byte) value;
+            pcm[b + 1] = (byte) (value >> 8);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+import javazoom.jl.decoder.Bitstream;
+import javazoom.jl.decoder.BitstreamException;
+import javazoom.jl.decoder.Decoder;
+import javazoom.jl.decoder.DecoderException;
+import javazoom.jl.decoder.Header;
+import javazoom.jl.decoder.Obuffer;
+import javazoom.spi.PropertiesContainer;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The DecodedMp3Stream class is the 16 bit PCM of an MPEG audio stream,
+ * decoded a frame at a time as it is read
+ * <p>
+ * MPEG-1 Layer III streams, nearly all MP3s, are decoded by a
+ * Layer3Decoder, chosen by the stream's first frame; the others (MPEG-2
+ * and 2.5, Layers I and II) by the JavaLayer decoder. Both produce
+ * exactly jl1.0.1's samples.
+ * <p>
+ * The synthesis filterbank hands its output over 32 samples
+ * at a time. Where mp3spi's stream takes them one by one, checking the
+ * byte order of each and then copying them through a circular buffer,
+ * the PcmBuffer here writes each block of 32 straight into the bytes of
+ * the frame in one loop striding over the interleaved channels, and
+ * read() copies them out once.
+ * The samples are clipped and rounded exactly as jl1.0.1 does, so the
+ * PCM is identical to mp3spi's.
+ * <p>
+ * Frames the decoder rejects are skipped and counted by decoder.errors;
+ * decoder.frame times the decoding of each frame.
+ *
+ * @author shiTunes inc.
+ */
+public class DecodedMp3Stream extends AudioInputStream implements PropertiesContainer {
+
+    private static final Metrics.Histogram DECODE = Metrics.histogram("decoder.frame");
+    private static final Metrics.Counter ERRORS = Metrics.counter("decoder.errors");
+
+    private final InputStream encoded;
+    private final Bitstream bitstream;
+    private final Decoder decoder;
+    private final PcmBuffer buffer;
+    private Layer3Decoder layer3;       // MPEG-1 Layer III streams, from their first frame
+    private final int frameSize;
+    private final HashMap<String, Object> properties = new HashMap<String, Object>();
+    private int position;       // the next byte of the decoded frame read
+    private boolean ended;
+
+    // the position in the stream, as reported by properties()
+    private long frame;
+    private int bitrate;
+    private int frameBytes;
+    private long bytes;
+    private long microseconds;
+
+    /**
+     * Creates a stream decoding the given MPEG audio stream
+     *
+     * @param pcm the 16 bit signed PCM format to decode to, of the encoded stream's sample rate and channels
+     * @param encoded the MPEG audio stream
+     */
+    public DecodedMp3Stream(AudioFormat pcm, AudioInputStream encoded) {
+        super(encoded, pcm, AudioSystem.NOT_SPECIFIED);
+        this.encoded = encoded;
+        frameSize = pcm.getFrameSize();
+        bitstream = new Bitstream(encoded);
+        decoder = new Decoder();
+        buffer = new PcmBuffer(pcm.getChannels(), pcm.isBigEndian());
+        decoder.setOutputBuffer(buffer);
+    }
+
+    /*
+     * Decodes the next frame into the buffer
+     *
+     * @return false at the end of the stream
+     */
+    private boolean decodeFrame() throws IOException {
+        while(!ended) {
+            Header header;
+            try {
+                header = bitstream.readFrame();
+            } catch(BitstreamException e) {
+                throw new IOException("Cannot read MPEG frame " + frame, e);
+            }
+            if(header == null) {
+                ended = true;
+                break;
+            }
+            long start = System.nanoTime();
+            boolean decoded = true;
+            if(frame == 0 && header.layer() == 3 && header.version() == Header.MPEG1) {
+                layer3 = new Layer3Decoder(header, bitstream, buffer);
+            }
+            try {
+                if(layer3 != null) {
+                    layer3.decodeFrame(header);
+                } else {
+                    decoder.decodeFrame(header, bitstream);
+                }
+            } catch(DecoderException e) {
+                ERRORS.increment();
+                decoded = false;
+            } catch(RuntimeException e) {
+                // a corrupt frame can overrun the decoder's tables
+                ERRORS.increment();
+                decoded = false;
+            }
+            bitstream.closeFrame();
+
+            frame++;
+            bitrate = header.bitrate_instant();
+            frameBytes = header.calculate_framesize();
+            bytes += frameBytes;
+            microseconds = (long) (frame * header.ms_per_frame() * 1000.0f);
+            DECODE.recordSince(start);
+            position = 0;
+            if(decoded && buffer.length > 0) {
+                return true;
+            }
+            buffer.length = 0;
+        }
+        return false;
+    }
+
+    public int read() throws IOException {
+        if(frameSize != 1) {
+            throw new IOException("cannot read a single byte of " + frameSize + " byte frames");
+        }
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+    }
+
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        len -= len % frameSize;
+        int total = 0;
+        while(total < len) {
+            if(position == buffer.length && !decodeFrame()) {
+                break;
+            }
+            int count = Math.min(len - total, buffer.length - position);
+            System.arraycopy(buffer.data, position, b, off + total, count);
+            position += count;
+            total += count;
+        }
+        return total == 0 && len > 0 ? -1 : total;
+    }
+
+    public long skip(long n) throws IOException {
+        n -= n % frameSize;
+        long skipped = 0;
+        while(skipped < n) {
+            if(position == buffer.length && !decodeFrame()) {
+                break;
+            }
+            int count = (int) Math.min(n - skipped, buffer.length - position);
+            position += count;
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    public int available() throws IOException {
+        return buffer.length - position;
+    }
+
+    public boolean markSupported() {
+        return false;
+    }
+
+    public void mark(int readlimit) {
+    }
+
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    public void close() throws IOException {
+        ended = true;
+        try {
+            bitstream.close();
+        } catch(BitstreamException e) {
+            e.printStackTrace();
+        }
+        encoded.close();
+    }
+
+    /**
+     * Returns the position in the stream, under the same keys as mp3spi:
+     * mp3.frame, mp3.frame.bitrate, mp3.frame.size.bytes, mp3.position.byte
+     * and mp3.position.microseconds
+     *
+     * @return the properties of the last frame decoded
+     */
+    public Map properties() {
+        properties.put("mp3.frame", frame);
+        properties.put("mp3.frame.bitrate", bitrate);
+        properties.put("mp3.frame.size.bytes", frameBytes);
+        properties.put("mp3.position.byte", bytes);
+        properties.put("mp3.position.microseconds", microseconds);
+        return properties;
+    }
+
+    /*
+     * The decoder's output: a frame of 16 bit PCM, interleaved in the
+     * stream's byte order
+     */
+    private static class PcmBuffer extends Obuffer {
+        final byte[] data;
+        final int[] positions;      // the next byte of each channel
+        final int channels;
+        final int stride;
+        final int low;              // the offsets of the low and high byte of a sample
+        final int high;
+        int length;
+
+        PcmBuffer(int channels, boolean bigEndian) {
+            this.channels = channels;
+            data = new byte[OBUFFERSIZE * 2];
+            positions = new int[channels];
+            stride = channels * 2;
+            low = bigEndian ? 1 : 0;
+            high = 1 - low;
+            clear_buffer();
+        }
+
+        public void append(int channel, short value) {
+            if(channel < channels) {
+                int p = positions[channel];
+                data[p + low] = (byte) value;
+                data[p + high] = (byte) (value >> 8);
+                positions[channel] = p + stride;
+            }
+        }
+
+        /*
+         * Called by the synthesis filterbank with each 32 samples of a
+         * channel, clipped as Obuffer.appendSamples() does
+         */
+        public void appendSamples(int channel, float[] f) {
+            if(channel >= channels) {
+                return;
+            }
+            byte[] data = this.data;
+            int p = positions[channel] + low;
+            int q = p + high - low;
+            int stride = this.stride;
+            for(int i = 0; i < 32; i++) {
+                float sample = f[i];
+                int value = sample > 32767.0f ? 32767 : sample < -32768.0f ? -32768 : (int) sample;
+                data[p] = (byte) value;
+                data[q] = (byte) (value >> 8);
+                p += stride;
+                q += stride;
+            }
+            positions[channel] = p - low;
+        }
+
+        public void write_buffer(int val) {
+            length = positions[0];
+        }
+
+        public void close() {
+        }
+
+        public void clear_buffer() {
+            for(int channel = 0; channel < channels; channel++) {
+                positions[channel] = channel * 2;
+            }
+            length = 0;
+        }
+
+        public void set_stop_flag() {
+        }
+    }
+}
@@ -0,0 +1,228 @@
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The DiagnosticsWindow class displays all registered metrics and
+ * the EDT stalls recorded by the EdtWatchdog, refreshed once a
+ * second while the window is open
+ *
+ * @author shiTunes inc.
+ */
+public class DiagnosticsWindow {
+
+    private static final int REFRESH_MILLIS = 1000;
+    private static final String[] COLUMN_NAMES = {"Metric", "Count", "p50", "p99", "Max", "Mean"};
+    private static final String[] STALL_COLUMN_NAMES = {"Time", "Duration", "Culprit", "Event"};
+
+    private static DiagnosticsWindow instance;
+
+    private JFrame frame;
+    private MetricsTableModel tableModel;
+    private StallsTableModel stallsModel;
+    private Timer refreshTimer;
+
+    /**
+     * Shows the diagnostics window, creating it if it is not already open
+     */
+    public static void showWindow() {
+        if(instance == null) {
+            instance = new DiagnosticsWindow();
+        }
+        instance.frame.setVisible(true);
+        instance.frame.toFront();
+    }
+
+    private DiagnosticsWindow() {
+        tableModel = new MetricsTableModel();
+        JTable table = new JTable(tableModel);
+        table.getColumnModel().getColumn(0).setPreferredWidth(220);
+
+        stallsModel = new StallsTableModel();
+        final JTable stallsTable = new JTable(stallsModel);
+        stallsTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        stallsTable.getColumnModel().getColumn(2).setPreferredWidth(220);
+        final JTextArea stackArea = new JTextArea();
+        stackArea.setEditable(false);
+        stackArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 11));
+        stallsTable.getSelectionModel().addListSelectionListener(new javax.swing.event.ListSelectionListener() {
+            public void valueChanged(javax.swing.event.ListSelectionEvent e) {
+                int row = stallsTable.getSelectedRow();
+                stackArea.setText(row == -1 ? "" : formatSamples(stallsModel.getStall(row)));
+                stackArea.setCaretPosition(0);
+            }
+        });
+        JSplitPane stallsPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT,
+                new JScrollPane(stallsTable), new JScrollPane(stackArea));
+        stallsPane.setResizeWeight(0.5);
+
+        final JTabbedPane tabs = new JTabbedPane();
+        tabs.addTab("Metrics", new JScrollPane(table));
+        tabs.addTab("EDT Stalls", stallsPane);
+
+        JButton resetButton = new JButton("Reset");
+        resetButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                Metrics.resetHistograms();
+                if(EdtWatchdog.getInstance() != null) {
+                    EdtWatchdog.getInstance().clearStalls();
+                }
+                refresh();
+            }
+        });
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttonPanel.add(resetButton);
+
+        refreshTimer = new Timer(REFRESH_MILLIS, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                refresh();
+            }
+        });
+
+        frame = new JFrame("shiTunes Diagnostics");
+        frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        frame.add(tabs, BorderLayout.CENTER);
+        frame.add(buttonPanel, BorderLayout.SOUTH);
+        frame.setSize(700, 450);
+        frame.addWindowListener(new WindowAdapter() {
+            public void windowOpened(WindowEvent e) {
+                refresh();
+                refreshTimer.start();
+            }
+
+            public void windowClosed(WindowEvent e) {
+                refreshTimer.stop();
+                instance = null;
+            }
+        });
+    }
+
+    /*
+     * Refreshes the metrics and the stalls
+     */
+    private void refresh() {
+        tableModel.refresh();
+        stallsModel.refresh();
+    }
+
+    /*
+     * Formats the EDT stacks sampled during a stall, one after another
+     */
+    private static String formatSamples(EdtWatchdog.Stall stall) {
+        StringBuilder text = new StringBuilder();
+        List<StackTraceElement[]> samples = stall.getSamples();
+        if(samples.isEmpty()) {
+            text.append("The event finished before its stack was sampled");
+        }
+        for(int i = 0; i < samples.size(); i++) {
+            text.append("Sample ").append(i + 1).append(" of ").append(samples.size()).append('\n');
+            for(StackTraceElement frame : samples.get(i)) {
+                text.append("    at ").append(frame).append('\n');
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    /*
+     * One row per registered metric, counters and gauges
+     * show their value in the Count column only
+     */
+    private static class MetricsTableModel extends AbstractTableModel {
+        private List<Object[]> rows = new ArrayList<Object[]>();
+
+        void refresh() {
+            List<Object[]> newRows = new ArrayList<Object[]>();
+            for(Metrics.Metric metric : Metrics.getMetrics()) {
+                if(metric instanceof Metrics.Histogram) {
+                    Metrics.Histogram histogram = (Metrics.Histogram) metric;
+                    newRows.add(new Object[] {
+                            metric.getName(),
+                            histogram.getCount(),
+                            histogram.formatValue(histogram.percentile(0.5)),
+                            histogram.formatValue(histogram.percentile(0.99)),
+                            histogram.formatValue(histogram.getMax()),
+                            histogram.formatValue(histogram.getMean())
+                    });
+                } else {
+                    newRows.add(new Object[] {metric.getName(), metric.format(), "", "", "", ""});
+                }
+            }
+            rows = newRows;
+            fireTableDataChanged();
+        }
+
+        public int getRowCount() {
+            return rows.size();
+        }
+
+        public int getColumnCount() {
+            return COLUMN_NAMES.length;
+        }
+
+        public String getColumnName(int column) {
+            return COLUMN_NAMES[column];
+        }
+
+        public Object getValueAt(int row, int column) {
+            return rows.get(row)[column];
+        }
+    }
+
+    /*
+     * One row per stall recorded by the EDT watchdog, most recent first
+     */
+    private static class StallsTableModel extends AbstractTableModel {
+        private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+        private List<EdtWatchdog.Stall> stalls = new ArrayList<EdtWatchdog.Stall>();
+        private int stallCount = -1;
+
+        void refresh() {
+            EdtWatchdog watchdog = EdtWatchdog.getInstance();
+            if(watchdog == null || watchdog.getStallCount() == stallCount) {
+                return;     // unchanged, keep the selection
+            }
+            stallCount = watchdog.getStallCount();
+            stalls = watchdog.getStalls();
+            fireTableDataChanged();
+        }
+
+        EdtWatchdog.Stall getStall(int row) {
+            return stalls.get(row);
+        }
+
+        public int getRowCount() {
+            return stalls.size();
+        }
+
+        public int getColumnCount() {
+            return STALL_COLUMN_NAMES.length;
+        }
+
+        public String getColumnName(int column) {
+            return STALL_COLUMN_NAMES[column];
+        }
+
+        public Object getValueAt(int row, int column) {
+            EdtWatchdog.Stall stall = stalls.get(row);
+            switch(column) {
+                case 0:
+                    return timeFormat.format(new Date(stall.getTime()));
+                case 1:
+                    return String.format("%d ms", stall.getDurationNanos() / 1000000);
+                case 2:
+                    return stall.getCulprit();
+                default:
+                    return stall.getEvent();
+            }
+        }
+    }
+}
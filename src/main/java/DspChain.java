@@ -0,0 +1,137 @@
+/**
+ * The DspChain class runs the PCM played by the PipelinePlayer or the
+ * BufferedBasicPlayer through a list of DspStages, between decoding
+ * and output
+ * <p>
+ * Each buffer of 16 bit PCM is converted once to floats in a
+ * preallocated array, processed by every stage in turn and converted
+ * back, clipped, into the same byte array, so processing a buffer
+ * allocates nothing. Stages may be added and removed while a song
+ * plays: the stage list is replaced, never modified, so the output
+ * thread always iterates a complete list without locking.
+ *
+ * @author shiTunes inc.
+ */
+public class DspChain {
+
+    private static final float SCALE = 1.0f / 32768;
+
+    private volatile DspStage[] stages = new DspStage[0];
+
+    // The current format, guarded by this
+    private float sampleRate;
+    private int channels;
+
+    private float[] samples = new float[0];     // only used by the processing thread
+
+    /**
+     * Creates the chain played by default: a 10 band equalizer,
+     * the volume and a limiter catching what they push past full scale
+     *
+     * @param equalizer the equalizer stage
+     * @param gain the volume stage
+     * @param limiter the limiter stage
+     * @return the chain
+     */
+    public static DspChain create(EqualizerStage equalizer, GainStage gain, LimiterStage limiter) {
+        DspChain chain = new DspChain();
+        chain.add(equalizer);
+        chain.add(gain);
+        chain.add(limiter);
+        return chain;
+    }
+
+    /**
+     * Adds a stage at the end of the chain
+     *
+     * @param stage the stage to add
+     */
+    public synchronized void add(DspStage stage) {
+        if(channels > 0) {
+            stage.configure(sampleRate, channels);
+        }
+        DspStage[] added = new DspStage[stages.length + 1];
+        System.arraycopy(stages, 0, added, 0, stages.length);
+        added[stages.length] = stage;
+        stages = added;
+    }
+
+    /**
+     * Removes a stage from the chain
+     *
+     * @param stage the stage to remove
+     * @return true if the stage was in the chain
+     */
+    public synchronized boolean remove(DspStage stage) {
+        for(int i = 0; i < stages.length; i++) {
+            if(stages[i] == stage) {
+                DspStage[] removed = new DspStage[stages.length - 1];
+                System.arraycopy(stages, 0, removed, 0, i);
+                System.arraycopy(stages, i + 1, removed, i, removed.length - i);
+                stages = removed;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the stages in processing order
+     *
+     * @return a copy of the stage list
+     */
+    public DspStage[] getStages() {
+        return stages.clone();
+    }
+
+    /**
+     * Prepares every stage for a song, called before its first buffer
+     * by the thread that will process it
+     *
+     * @param sampleRate the sample rate in Hz
+     * @param channels the number of interleaved channels
+     * @param maxBytes the largest buffer process() will be given, in bytes
+     */
+    public synchronized void configure(float sampleRate, int channels, int maxBytes) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        if(samples.length < maxBytes / 2) {
+            samples = new float[maxBytes / 2];
+        }
+        for(DspStage stage : stages) {
+            stage.configure(sampleRate, channels);
+        }
+    }
+
+    /**
+     * Processes a buffer of 16 bit signed little endian PCM in place
+     *
+     * @param pcm the PCM bytes
+     * @param offset the offset of the first byte
+     * @param length the number of bytes, a whole number of frames
+     *               no larger than configured
+     */
+    public void process(byte[] pcm, int offset, int length) {
+        DspStage[] current = stages;
+        if(current.length == 0) {
+            return;
+        }
+        float[] buffer = samples;
+        int count = length / 2;
+        for(int i = 0, b = offset; i < count; i++, b += 2) {
+            buffer[i] = (short) ((pcm[b + 1] << 8) | (pcm[b] & 0xFF)) * SCALE;
+        }
+
+        int frames = count / channels;
+        for(DspStage stage : current) {
+            stage.process(buffer, frames, channels);
+        }
+
+        for(int i = 0, b = offset; i < count; i++, b += 2) {
+            float sample = buffer[i] * 32768;
+            int value = sample >= 32767 ? 32767 : sample <= -32768 ? -32768 : Math.round(sample);
+            pcm[b] = (byte) value;
+            pcm[b + 1] = (byte) (value >> 8);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * The DspStage interface is implemented by the signal processors
+ * of a DspChain, eg. the equalizer, the gain and the limiter
+ * <p>
+ * Stages process interleaved float samples in [-1.0, 1.0] in place.
+ * process() runs on the player's output thread for every buffer and
+ * must not allocate or block; anything it needs is allocated by
+ * configure(), which is only called when the audio format changes.
+ *
+ * @author shiTunes inc.
+ */
+public interface DspStage {
+
+    /**
+     * Prepares the stage for the given format, called before the first
+     * buffer of a song, clears any state left from the previous song
+     *
+     * @param sampleRate the sample rate in Hz
+     * @param channels the number of interleaved channels
+     */
+    void configure(float sampleRate, int channels);
+
+    /**
+     * Processes a buffer of interleaved samples in place
+     *
+     * @param samples the samples, channels interleaved
+     * @param frames the number of frames (samples per channel) to process
+     * @param channels the number of interleaved channels
+     */
+    void process(float[] samples, int frames, int channels);
+}
@@ -0,0 +1,315 @@
+import java.awt.AWTEvent;
+import java.awt.EventQueue;
+import java.awt.Toolkit;
+import java.awt.event.ActionEvent;
+import java.awt.event.InvocationEvent;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The EdtWatchdog class detects Swing events that keep the event
+ * dispatch thread (EDT) busy for longer than a threshold
+ * <p>
+ * The watchdog replaces the system event queue and notes when each
+ * event starts and ends dispatching. A background thread samples the
+ * EDT stack while an event runs past the threshold, so the stall can
+ * be attributed to the listener that caused it. The most recent stalls
+ * are kept in a ring buffer shown by the Diagnostics window.
+ *
+ * @author shiTunes inc.
+ */
+public class EdtWatchdog extends EventQueue {
+
+    /**
+     * The default time an event may take before it counts as a stall
+     */
+    public static final long DEFAULT_THRESHOLD_MILLIS = 200;
+
+    /**
+     * The number of stalls kept
+     */
+    public static final int RING_SIZE = 64;
+
+    private static final long SAMPLE_MILLIS = 50;
+    private static final int MAX_SAMPLES = 40;
+
+    private static final Metrics.Histogram STALL = Metrics.histogram("edt.stall");
+
+    private static EdtWatchdog instance;
+
+    private final long thresholdNanos;
+    private final Stall[] stalls = new Stall[RING_SIZE];
+    private int nextStall;
+    private int stallCount;
+
+    // The dispatch in progress, written by the EDT and read by the sampler
+    private volatile Thread edt;
+    private volatile long dispatchStart;        // 0 while the EDT is idle
+    private volatile long dispatchId;
+    private Stall pendingStall;                 // sampled by the sampler, guarded by this
+
+    /**
+     * A single event that held up the EDT
+     */
+    public static class Stall {
+        private final long id;
+        private final long time = System.currentTimeMillis();
+        private final List<StackTraceElement[]> samples = new ArrayList<StackTraceElement[]>();
+        private long durationNanos;
+        private String event;
+        private String culprit;
+
+        Stall(long id) {
+            this.id = id;
+        }
+
+        /**
+         * Returns when the stall was first detected
+         *
+         * @return the detection time in milliseconds since the epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Returns how long the event took to dispatch
+         *
+         * @return the stall duration in nanoseconds
+         */
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        /**
+         * Returns a description of the stalled event
+         *
+         * @return the event type and source
+         */
+        public String getEvent() {
+            return event;
+        }
+
+        /**
+         * Returns the shiTunes method that was called for the event,
+         * eg. Window$PlayListener.actionPerformed
+         *
+         * @return the culprit listener, or the event description if
+         *         no shiTunes method was found on the sampled stacks
+         */
+        public String getCulprit() {
+            return culprit;
+        }
+
+        /**
+         * Returns the EDT stacks sampled while the event was running
+         *
+         * @return the stack samples, oldest first
+         */
+        public List<StackTraceElement[]> getSamples() {
+            return samples;
+        }
+    }
+
+    private EdtWatchdog(long thresholdMillis) {
+        this.thresholdNanos = thresholdMillis * 1000000L;
+    }
+
+    /**
+     * Installs the watchdog on the system event queue, the threshold is read
+     * from the shiTunes.edtStallMillis system property if set
+     *
+     * @return the installed watchdog
+     */
+    public static synchronized EdtWatchdog install() {
+        return install(Long.getLong("shiTunes.edtStallMillis", DEFAULT_THRESHOLD_MILLIS));
+    }
+
+    /**
+     * Installs the watchdog on the system event queue
+     *
+     * @param thresholdMillis the time an event may take before it counts as a stall
+     * @return the installed watchdog, or the watchdog installed earlier
+     */
+    public static synchronized EdtWatchdog install(long thresholdMillis) {
+        if(instance == null) {
+            instance = new EdtWatchdog(thresholdMillis);
+            Toolkit.getDefaultToolkit().getSystemEventQueue().push(instance);
+            Thread sampler = new Thread(new Runnable() {
+                public void run() {
+                    instance.sampleLoop();
+                }
+            }, "EDT-watchdog");
+            sampler.setDaemon(true);
+            sampler.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the installed watchdog
+     *
+     * @return the watchdog, or null if it has not been installed
+     */
+    public static synchronized EdtWatchdog getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the time an event may take before it counts as a stall
+     *
+     * @return the threshold in milliseconds
+     */
+    public long getThresholdMillis() {
+        return thresholdNanos / 1000000L;
+    }
+
+    /**
+     * Dispatches the event, timing it
+     * <p>
+     * Events dispatched while another is in progress (eg. by a modal dialog
+     * opened from a listener) restart the outer event's timer when they
+     * finish, so time spent waiting on a dialog is not counted as a stall
+     *
+     * @param event the event to dispatch
+     */
+    @Override
+    protected void dispatchEvent(AWTEvent event) {
+        long outerStart = dispatchStart;
+        if(outerStart == 0) {
+            edt = Thread.currentThread();   // the EDT is replaced after an uncaught exception
+        }
+        dispatchId++;
+        dispatchStart = System.nanoTime();
+        try {
+            super.dispatchEvent(event);
+        } finally {
+            // a nested event restarts this event's timer, read it again
+            long id = dispatchId;
+            long duration = System.nanoTime() - dispatchStart;
+            if(duration > thresholdNanos) {
+                recordStall(id, event, duration);
+            }
+            if(outerStart != 0) {
+                dispatchId++;
+                dispatchStart = System.nanoTime();
+            } else {
+                dispatchStart = 0;
+            }
+        }
+    }
+
+    /*
+     * The sampler thread: captures the EDT stack every
+     * SAMPLE_MILLIS while an event runs past the threshold
+     */
+    private void sampleLoop() {
+        while(true) {
+            try {
+                Thread.sleep(SAMPLE_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long id = dispatchId;
+            long start = dispatchStart;
+            Thread thread = edt;
+            if(start == 0 || thread == null || System.nanoTime() - start < thresholdNanos) {
+                continue;
+            }
+            StackTraceElement[] stack = thread.getStackTrace();
+            synchronized(this) {
+                if(id != dispatchId) {
+                    continue;   // the event finished while the stack was sampled
+                }
+                if(pendingStall == null || pendingStall.id != id) {
+                    pendingStall = new Stall(id);
+                }
+                if(pendingStall.samples.size() < MAX_SAMPLES) {
+                    pendingStall.samples.add(stack);
+                }
+            }
+        }
+    }
+
+    /*
+     * Completes the stall of the given dispatch with the stacks
+     * sampled so far and adds it to the ring buffer
+     */
+    private synchronized void recordStall(long id, AWTEvent event, long duration) {
+        Stall stall = pendingStall != null && pendingStall.id == id ? pendingStall : new Stall(id);
+        pendingStall = null;
+        stall.durationNanos = duration;
+        stall.event = describe(event);
+        stall.culprit = findCulprit(stall.samples);
+        if(stall.culprit == null) {
+            stall.culprit = stall.event;
+        }
+        stalls[nextStall] = stall;
+        nextStall = (nextStall + 1) % RING_SIZE;
+        stallCount++;
+        STALL.record(duration);
+    }
+
+    /*
+     * Returns the outermost shiTunes method on the sampled stacks,
+     * the listener Swing called for the event
+     */
+    private static String findCulprit(List<StackTraceElement[]> samples) {
+        for(StackTraceElement[] stack : samples) {
+            for(int i = stack.length - 1; i >= 0; i--) {
+                // shiTunes classes are the only classes in the default package
+                String className = stack[i].getClassName();
+                if(className.indexOf('.') == -1 && !className.equals(EdtWatchdog.class.getName())) {
+                    return className + "." + stack[i].getMethodName();
+                }
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Describes an event by its type and source
+     */
+    private static String describe(AWTEvent event) {
+        if(event instanceof ActionEvent) {
+            return "ActionEvent " + ((ActionEvent) event).getActionCommand()
+                    + " from " + event.getSource().getClass().getSimpleName();
+        } else if(event instanceof InvocationEvent) {
+            return "InvocationEvent " + event.paramString();
+        }
+        return event.getClass().getSimpleName() + " from " + event.getSource().getClass().getSimpleName();
+    }
+
+    /**
+     * Returns the recorded stalls
+     *
+     * @return up to RING_SIZE stalls, most recent first
+     */
+    public synchronized List<Stall> getStalls() {
+        List<Stall> recent = new ArrayList<Stall>();
+        for(int i = 1; i <= Math.min(stallCount, RING_SIZE); i++) {
+            recent.add(stalls[(nextStall - i + RING_SIZE) % RING_SIZE]);
+        }
+        return recent;
+    }
+
+    /**
+     * Returns the number of stalls detected since the watchdog was installed
+     *
+     * @return the stall count, including stalls no longer in the ring buffer
+     */
+    public synchronized int getStallCount() {
+        return stallCount;
+    }
+
+    /**
+     * Clears the recorded stalls
+     */
+    public synchronized void clearStalls() {
+        for(int i = 0; i < RING_SIZE; i++) {
+            stalls[i] = null;
+        }
+        nextStall = 0;
+        stallCount = 0;
+    }
+}
@@ -0,0 +1,147 @@
+import java.util.Arrays;
+
+/**
+ * The EqualizerStage class is a 10 band graphic equalizer
+ * <p>
+ * Each band is a peaking biquad filter (from the RBJ audio EQ cookbook)
+ * centred on one of the ISO octave frequencies, 31 Hz to 16 kHz. Bands
+ * left at 0 dB are skipped, so a flat equalizer costs nothing. Band
+ * gains may be set from any thread; the coefficients are recomputed by
+ * the output thread, in place, before the next buffer.
+ *
+ * @author shiTunes inc.
+ */
+public class EqualizerStage implements DspStage {
+
+    /**
+     * The centre frequency of each band, in Hz
+     */
+    public static final float[] FREQUENCIES = {31, 62, 125, 250, 500, 1000, 2000, 4000, 8000, 16000};
+
+    /**
+     * The largest boost or cut of a band, in decibels
+     */
+    public static final float MAX_GAIN_DB = 12;
+
+    private static final int BANDS = FREQUENCIES.length;
+    private static final double Q = Math.sqrt(2);   // one octave wide
+
+    private final float[] gainsDb = new float[BANDS];
+    private volatile int version;       // incremented by every change to gainsDb
+    private int appliedVersion = -1;
+
+    private float sampleRate;
+    private int channels;
+
+    // Normalized coefficients of each band, and the bands not at 0 dB
+    private final double[] b0 = new double[BANDS];
+    private final double[] b1 = new double[BANDS];
+    private final double[] b2 = new double[BANDS];
+    private final double[] a1 = new double[BANDS];
+    private final double[] a2 = new double[BANDS];
+    private final int[] activeBands = new int[BANDS];
+    private int activeCount;
+
+    // Transposed direct form II state, per band and channel
+    private double[] z1 = new double[0];
+    private double[] z2 = new double[0];
+
+    /**
+     * Sets the boost or cut of a band
+     *
+     * @param band the band index, 0 (31 Hz) to 9 (16 kHz)
+     * @param gainDb the gain in decibels, clamped to [-MAX_GAIN_DB, MAX_GAIN_DB]
+     */
+    public void setBandGain(int band, float gainDb) {
+        gainsDb[band] = Math.max(-MAX_GAIN_DB, Math.min(MAX_GAIN_DB, gainDb));
+        version++;
+    }
+
+    /**
+     * Returns the boost or cut of a band
+     *
+     * @param band the band index, 0 (31 Hz) to 9 (16 kHz)
+     * @return the gain in decibels
+     */
+    public float getBandGain(int band) {
+        return gainsDb[band];
+    }
+
+    /**
+     * Returns the number of bands
+     *
+     * @return 10
+     */
+    public int getBandCount() {
+        return BANDS;
+    }
+
+    public void configure(float sampleRate, int channels) {
+        if(z1.length != BANDS * channels) {
+            z1 = new double[BANDS * channels];
+            z2 = new double[BANDS * channels];
+        } else {
+            Arrays.fill(z1, 0);
+            Arrays.fill(z2, 0);
+        }
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        appliedVersion = -1;
+    }
+
+    public void process(float[] samples, int frames, int channels) {
+        if(appliedVersion != version) {
+            updateCoefficients();
+        }
+        for(int active = 0; active < activeCount; active++) {
+            int band = activeBands[active];
+            double cb0 = b0[band], cb1 = b1[band], cb2 = b2[band], ca1 = a1[band], ca2 = a2[band];
+            for(int channel = 0; channel < channels; channel++) {
+                int state = band * channels + channel;
+                double s1 = z1[state];
+                double s2 = z2[state];
+                for(int i = channel, end = frames * channels; i < end; i += channels) {
+                    double x = samples[i];
+                    double y = cb0 * x + s1;
+                    s1 = cb1 * x - ca1 * y + s2;
+                    s2 = cb2 * x - ca2 * y;
+                    samples[i] = (float) y;
+                }
+                z1[state] = s1;
+                z2[state] = s2;
+            }
+        }
+    }
+
+    /*
+     * Recomputes the peaking filter of every band from its gain,
+     * keeping the filter state so a change does not click
+     */
+    private void updateCoefficients() {
+        appliedVersion = version;
+        activeCount = 0;
+        if(channels == 0) {
+            return;     // not configured yet
+        }
+        for(int band = 0; band < BANDS; band++) {
+            float gainDb = gainsDb[band];
+            if(gainDb == 0 || FREQUENCIES[band] >= sampleRate / 2) {
+                // a band switched back on starts from silence
+                Arrays.fill(z1, band * channels, (band + 1) * channels, 0);
+                Arrays.fill(z2, band * channels, (band + 1) * channels, 0);
+                continue;
+            }
+            double a = Math.pow(10, gainDb / 40);
+            double w0 = 2 * Math.PI * FREQUENCIES[band] / sampleRate;
+            double alpha = Math.sin(w0) / (2 * Q);
+            double cos = Math.cos(w0);
+            double a0 = 1 + alpha / a;
+            b0[band] = (1 + alpha * a) / a0;
+            b1[band] = -2 * cos / a0;
+            b2[band] = (1 - alpha * a) / a0;
+            a1[band] = -2 * cos / a0;
+            a2[band] = (1 - alpha / a) / a0;
+            activeBands[activeCount++] = band;
+        }
+    }
+}
@@ -0,0 +1,580 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The FrameIndex class maps playing time to byte offsets in an MP3 file
+ * <p>
+ * Every MPEG audio frame holds the same number of samples, so the frame
+ * playing at a given time is found by division. The byte offset of every
+ * 16th frame is kept in an int array; the frames in between are found by
+ * reading at most 15 frame headers, so a seek never decodes audio and
+ * reads only a few bytes whatever the bitrate (CBR or VBR) or length of
+ * the file.
+ * <p>
+ * Indexes are built when a song is imported or first played, and are
+ * cached in memory and on disk (under CACHE_DIR), keyed by the song's
+ * file path, length and modification time.
+ *
+ * @author shiTunes inc.
+ */
+public class FrameIndex {
+
+    /**
+     * The directory the indexes are cached in
+     */
+    public static final File CACHE_DIR = new File(System.getProperty("shiTunes.cacheDir", "shiTunesCache"), "frames");
+
+    /**
+     * log2 of the number of frames between two indexed offsets
+     */
+    static final int STEP_BITS = 4;
+
+    private static final int STEP_MASK = (1 << STEP_BITS) - 1;
+    private static final int MAGIC = 0x53494458;    // "SIDX"
+    private static final int VERSION = 1;
+    private static final int MEMORY_CACHE_SIZE = 32;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Bits of a frame header which must not change from frame to frame:
+    // frame sync, version, layer and sample rate
+    private static final int CONSTANT_HEADER_MASK = 0xFFFE0C00;
+
+    private static final int[][] BITRATES = {
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},    // MPEG 1 layer I
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},       // MPEG 1 layer II
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},        // MPEG 1 layer III
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},       // MPEG 2/2.5 layer I
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}             // MPEG 2/2.5 layer II & III
+    };
+    private static final int[] SAMPLE_RATES = {44100, 48000, 32000};
+
+    private static final Metrics.Histogram BUILD = Metrics.histogram("frameindex.build");
+    private static final Metrics.Histogram LOAD = Metrics.histogram("frameindex.load");
+
+    private static final Map<String, FrameIndex> memoryCache =
+            new LinkedHashMap<String, FrameIndex>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<String, FrameIndex> eldest) {
+                    return size() > MEMORY_CACHE_SIZE;
+                }
+            };
+
+    private static final ExecutorService builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "FrameIndex-builder");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    private final File file;
+    private final long fileLength;
+    private final long lastModified;
+    private final int firstHeader;
+    private final int sampleRate;
+    private final int samplesPerFrame;
+    private final int frameCount;
+    private final int[] offsets;    // byte offset of every (1 << STEP_BITS)th frame
+
+    private FrameIndex(File file, long fileLength, long lastModified, int firstHeader,
+                       int frameCount, int[] offsets) {
+        this.file = file;
+        this.fileLength = fileLength;
+        this.lastModified = lastModified;
+        this.firstHeader = firstHeader;
+        this.sampleRate = sampleRate(firstHeader);
+        this.samplesPerFrame = samplesPerFrame(firstHeader);
+        this.frameCount = frameCount;
+        this.offsets = offsets;
+    }
+
+    /* ************* */
+    /* INDEX LOOKUPS */
+    /* ************* */
+
+    /**
+     * Returns the index of the given song, reading it from the cache
+     * or building it if needed
+     *
+     * @param filePath the absolute path to the song file
+     * @return the song's frame index, or null if the file could not
+     *         be read or holds no MPEG audio frames
+     */
+    public static FrameIndex get(String filePath) {
+        File file = new File(filePath);
+        synchronized(memoryCache) {
+            FrameIndex index = memoryCache.get(filePath);
+            if(index != null && index.isCurrent()) {
+                return index;
+            }
+        }
+        FrameIndex index = load(file);
+        if(index == null) {
+            try {
+                index = build(file);
+                save(index);
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+                return null;
+            }
+        }
+        if(index.frameCount == 0) {
+            return null;
+        }
+        synchronized(memoryCache) {
+            memoryCache.put(filePath, index);
+        }
+        return index;
+    }
+
+    /**
+     * Builds the index of the given song in the background,
+     * unless it is already cached
+     *
+     * @param filePath the absolute path to the song file
+     */
+    public static void prefetch(final String filePath) {
+        builder.execute(new Runnable() {
+            public void run() {
+                get(filePath);
+            }
+        });
+    }
+
+    /**
+     * Returns the number of frames in the song
+     *
+     * @return the frame count
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Returns the sample rate of the song
+     *
+     * @return the sample rate in Hz
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Returns the length of the song, exact to the sample
+     *
+     * @return the song duration in milliseconds
+     */
+    public long getDurationMillis() {
+        return getTimeMillis(frameCount);
+    }
+
+    /**
+     * Returns the frame playing at the given time
+     *
+     * @param millis the time from the start of the song
+     * @return the frame number, clamped to the frames of the song
+     */
+    public int getFrame(long millis) {
+        long frame = millis * sampleRate / (samplesPerFrame * 1000L);
+        return (int) Math.max(0, Math.min(frameCount - 1, frame));
+    }
+
+    /**
+     * Returns the time the given frame starts playing
+     *
+     * @param frame the frame number
+     * @return the time from the start of the song in milliseconds
+     */
+    public long getTimeMillis(int frame) {
+        return (long) frame * samplesPerFrame * 1000L / sampleRate;
+    }
+
+    /**
+     * Returns the byte offset of the given frame in the song file
+     *
+     * @param frame the frame number
+     * @return the offset of the frame header
+     * @throws IOException if the song file can not be read
+     */
+    public long getOffset(int frame) throws IOException {
+        FrameReader reader = seek(frame, false);
+        try {
+            return reader.position;
+        } finally {
+            reader.in.close();
+        }
+    }
+
+    /**
+     * Opens the song file at the start of the given frame
+     *
+     * @param frame the frame number
+     * @return a buffered stream of the song's frames from the given frame on
+     * @throws IOException if the song file can not be read
+     */
+    public InputStream openAt(int frame) throws IOException {
+        return seek(frame, true).in;
+    }
+
+    /*
+     * Opens the song file at the nearest indexed frame at or before
+     * the given frame, then reads forward to the frame itself; a
+     * stream to play is opened through AudioSource, so it reads ahead
+     */
+    private FrameReader seek(int frame, boolean playback) throws IOException {
+        frame = Math.max(0, Math.min(frameCount - 1, frame));
+        int offset = offsets[frame >> STEP_BITS];
+        InputStream fileIn;
+        if(playback) {
+            fileIn = AudioSource.open(file, offset);
+        } else {
+            FileInputStream in = new FileInputStream(file);
+            in.getChannel().position(offset);
+            fileIn = in;
+        }
+        try {
+            FrameReader reader = new FrameReader(new BufferedInputStream(fileIn, BUFFER_SIZE), offset, firstHeader);
+            for(int i = frame & STEP_MASK; i > 0; i--) {
+                if(reader.nextFrame() == -1) {
+                    break;
+                }
+                reader.skipFrame();
+            }
+            if(reader.nextFrame() == -1) {
+                throw new IOException("Frame " + frame + " not found in " + file);
+            }
+            return reader;
+        } catch (IOException ioe) {
+            fileIn.close();
+            throw ioe;
+        }
+    }
+
+    /*
+     * Checks if the song file has not changed since it was indexed
+     */
+    private boolean isCurrent() {
+        return file.length() == fileLength && file.lastModified() == lastModified;
+    }
+
+    /* ****************** */
+    /* INDEX CONSTRUCTION */
+    /* ****************** */
+
+    /**
+     * Builds the index of the given song by reading every frame header
+     *
+     * @param file the song file
+     * @return the song's frame index, with no frames if the file holds
+     *         no MPEG audio frames or is 2 GB or larger
+     * @throws IOException if the song file can not be read
+     */
+    static FrameIndex build(File file) throws IOException {
+        long start = System.nanoTime();
+        long fileLength = file.length();
+        long lastModified = file.lastModified();
+        if(fileLength >= Integer.MAX_VALUE) {
+            return new FrameIndex(file, fileLength, lastModified, 0, 0, new int[0]);
+        }
+
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            long audioStart = skipId3v2Tags(in);
+            FrameReader reader = new FrameReader(in, audioStart, 0);
+            int[] offsets = new int[64];
+            int frameCount = 0;
+            while(reader.nextFrame() != -1) {
+                if((frameCount & STEP_MASK) == 0) {
+                    int step = frameCount >> STEP_BITS;
+                    if(step == offsets.length) {
+                        int[] grown = new int[offsets.length * 2];
+                        System.arraycopy(offsets, 0, grown, 0, offsets.length);
+                        offsets = grown;
+                    }
+                    offsets[step] = (int) reader.position;
+                }
+                frameCount++;
+                reader.skipFrame();
+            }
+            int[] trimmed = new int[(frameCount + STEP_MASK) >> STEP_BITS];
+            System.arraycopy(offsets, 0, trimmed, 0, trimmed.length);
+            return new FrameIndex(file, fileLength, lastModified, reader.firstHeader, frameCount, trimmed);
+        } finally {
+            in.close();
+            BUILD.recordSince(start);
+        }
+    }
+
+    /*
+     * Skips the ID3v2 tags at the start of the stream
+     *
+     * @return the number of bytes skipped
+     */
+    private static long skipId3v2Tags(InputStream in) throws IOException {
+        long skipped = 0;
+        byte[] header = new byte[10];
+        while(true) {
+            in.mark(header.length);
+            if(readFully(in, header) < header.length
+                    || header[0] != 'I' || header[1] != 'D' || header[2] != '3') {
+                in.reset();
+                return skipped;
+            }
+            long size = ((header[6] & 0x7F) << 21) | ((header[7] & 0x7F) << 14)
+                    | ((header[8] & 0x7F) << 7) | (header[9] & 0x7F);
+            if((header[5] & 0x10) != 0) {
+                size += 10;     // footer
+            }
+            skipFully(in, size);
+            skipped += header.length + size;
+        }
+    }
+
+    /*
+     * Reads consecutive frames, skipping junk between them
+     */
+    private static class FrameReader {
+        final InputStream in;
+        long position;
+        int firstHeader;
+        private int frameLength;
+        private final byte[] header = new byte[4];
+
+        FrameReader(InputStream in, long position, int firstHeader) {
+            this.in = in;
+            this.position = position;
+            this.firstHeader = firstHeader;
+        }
+
+        /*
+         * Finds the next frame, leaving the stream at its header
+         *
+         * @return the frame's length, -1 at the end of the audio
+         */
+        int nextFrame() throws IOException {
+            while(true) {
+                in.mark(header.length);
+                if(readFully(in, header) < header.length) {
+                    return -1;
+                }
+                in.reset();
+                if(header[0] == 'T' && header[1] == 'A' && header[2] == 'G') {
+                    return -1;      // ID3v1 tag at the end of the file
+                }
+                int h = ((header[0] & 0xFF) << 24) | ((header[1] & 0xFF) << 16)
+                        | ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+                int length = frameLength(h);
+                if(length > 0 && (firstHeader == 0
+                        || (h & CONSTANT_HEADER_MASK) == (firstHeader & CONSTANT_HEADER_MASK))) {
+                    if(firstHeader == 0) {
+                        firstHeader = h;
+                    }
+                    frameLength = length;
+                    return length;
+                }
+                // not a frame header, resynchronize one byte further
+                skipFully(in, 1);
+                position++;
+            }
+        }
+
+        /*
+         * Skips the frame found by nextFrame()
+         */
+        void skipFrame() throws IOException {
+            skipFully(in, frameLength);
+            position += frameLength;
+        }
+    }
+
+    /* ************* */
+    /* FRAME HEADERS */
+    /* ************* */
+
+    /*
+     * Returns the length of the frame with the given header, in bytes
+     *
+     * @return the frame length, or -1 if the header is not a valid frame header
+     */
+    static int frameLength(int header) {
+        if((header & 0xFFE00000) != 0xFFE00000) {
+            return -1;      // no frame sync
+        }
+        int version = (header >> 19) & 3;       // 0: MPEG 2.5, 1: reserved, 2: MPEG 2, 3: MPEG 1
+        int layer = (header >> 17) & 3;         // 1: layer III, 2: layer II, 3: layer I
+        int bitrateIndex = (header >> 12) & 15;
+        int sampleRateIndex = (header >> 10) & 3;
+        int padding = (header >> 9) & 1;
+        if(version == 1 || layer == 0 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+            return -1;
+        }
+        int table = version == 3 ? 3 - layer : (layer == 3 ? 3 : 4);
+        int bitrate = BITRATES[table][bitrateIndex] * 1000;
+        int sampleRate = sampleRate(header);
+        if(layer == 3) {
+            return (12 * bitrate / sampleRate + padding) * 4;
+        } else if(layer == 1 && version != 3) {
+            return 72 * bitrate / sampleRate + padding;
+        }
+        return 144 * bitrate / sampleRate + padding;
+    }
+
+    /*
+     * Returns the sample rate of the frame with the given header, in Hz
+     */
+    private static int sampleRate(int header) {
+        int version = (header >> 19) & 3;
+        int rate = SAMPLE_RATES[Math.min(2, (header >> 10) & 3)];
+        return version == 3 ? rate : version == 2 ? rate / 2 : rate / 4;
+    }
+
+    /*
+     * Returns the number of samples per channel in the frame with the given header
+     */
+    private static int samplesPerFrame(int header) {
+        int version = (header >> 19) & 3;
+        int layer = (header >> 17) & 3;
+        if(layer == 3) {
+            return 384;
+        }
+        return layer == 1 && version != 3 ? 576 : 1152;
+    }
+
+    /* ********** */
+    /* DISK CACHE */
+    /* ********** */
+
+    /*
+     * Returns the cache file of the given song file
+     */
+    private static File cacheFile(File file) {
+        return new File(CACHE_DIR, Integer.toHexString(file.getAbsolutePath().hashCode()) + ".idx");
+    }
+
+    /*
+     * Reads the index of the given song file from the disk cache
+     *
+     * @return the cached index, or null if the song is not cached or has changed
+     */
+    private static FrameIndex load(File file) {
+        File cacheFile = cacheFile(file);
+        if(!cacheFile.exists()) {
+            return null;
+        }
+        long start = System.nanoTime();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            try {
+                if(in.readInt() != MAGIC || in.readInt() != VERSION
+                        || !in.readUTF().equals(file.getAbsolutePath())) {
+                    return null;
+                }
+                long fileLength = in.readLong();
+                long lastModified = in.readLong();
+                if(fileLength != file.length() || lastModified != file.lastModified()) {
+                    return null;
+                }
+                int firstHeader = in.readInt();
+                int frameCount = in.readInt();
+                int[] offsets = new int[in.readInt()];
+                for(int i = 0; i < offsets.length; i++) {
+                    offsets[i] = in.readInt();
+                }
+                return new FrameIndex(file, fileLength, lastModified, firstHeader, frameCount, offsets);
+            } finally {
+                in.close();
+                LOAD.recordSince(start);
+            }
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            return null;
+        }
+    }
+
+    /*
+     * Writes the given index to the disk cache
+     *
+     * @return true if the index was written successfully
+     */
+    private static boolean save(FrameIndex index) {
+        if(!CACHE_DIR.isDirectory() && !CACHE_DIR.mkdirs()) {
+            return false;
+        }
+        File cacheFile = cacheFile(index.file);
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(index.file.getAbsolutePath());
+                out.writeLong(index.fileLength);
+                out.writeLong(index.lastModified);
+                out.writeInt(index.firstHeader);
+                out.writeInt(index.frameCount);
+                out.writeInt(index.offsets.length);
+                for(int offset : index.offsets) {
+                    out.writeInt(offset);
+                }
+            } finally {
+                out.close();
+            }
+            cacheFile.delete();
+            return tempFile.renameTo(cacheFile);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            tempFile.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Removes all cached indexes from memory, cached files are kept
+     */
+    static void clearMemoryCache() {
+        synchronized(memoryCache) {
+            memoryCache.clear();
+        }
+    }
+
+    /* ******* */
+    /* HELPERS */
+    /* ******* */
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int read = 0;
+        while(read < buffer.length) {
+            int n = in.read(buffer, read, buffer.length - read);
+            if(n == -1) {
+                break;
+            }
+            read += n;
+        }
+        return read;
+    }
+
+    private static void skipFully(InputStream in, long bytes) throws IOException {
+        while(bytes > 0) {
+            long skipped = in.skip(bytes);
+            if(skipped <= 0) {
+                if(in.read() == -1) {
+                    return;
+                }
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+    }
+}
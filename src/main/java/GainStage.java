@@ -0,0 +1,93 @@
+/**
+ * The GainStage class sets the volume in software, so the volume
+ * works on every system whether or not its sound line has a gain
+ * control
+ * <p>
+ * Volumes in [0.0, 1.0] are mapped to decibels on the same curve
+ * BasicPlayer uses for a typical line gain control (-80 dB to +3 dB,
+ * -3 dB at half volume), so the volume slider behaves the same with
+ * either engine. A volume change is ramped over one buffer so it
+ * does not click.
+ *
+ * @author shiTunes inc.
+ */
+public class GainStage implements DspStage {
+
+    // The range of a typical MASTER_GAIN line control, in decibels
+    private static final double MIN_GAIN_DB = -80.0;
+    private static final double MAX_GAIN_DB = 6.0;
+
+    private volatile float targetGain = 1.0f;
+    private float gain = 1.0f;      // the gain applied at the end of the last buffer
+
+    /**
+     * Sets the volume as BasicPlayer.setGain does
+     *
+     * @param volume the volume in [0.0, 1.0]
+     */
+    public void setVolume(double volume) {
+        setGain((float) Math.pow(10, toDecibels(volume) / 20));
+    }
+
+    /**
+     * Sets the linear gain applied to the samples
+     *
+     * @param gain the gain, 1.0 leaves the samples unchanged
+     */
+    public void setGain(float gain) {
+        targetGain = gain;
+    }
+
+    /**
+     * Returns the linear gain applied once any ramp has finished
+     *
+     * @return the gain
+     */
+    public float getGain() {
+        return targetGain;
+    }
+
+    /*
+     * Maps a volume in [0.0, 1.0] to decibels, as BasicPlayer does
+     */
+    static double toDecibels(double volume) {
+        double ampGainDB = ((10.0f / 20.0f) * MAX_GAIN_DB) - MIN_GAIN_DB;
+        double cste = Math.log(10.0) / 20;
+        return MIN_GAIN_DB + (1 / cste) * Math.log(1 + (Math.exp(cste * ampGainDB) - 1) * volume);
+    }
+
+    /*
+     * Maps decibels back to a volume, the inverse of toDecibels
+     */
+    static double toVolume(double decibels) {
+        double ampGainDB = ((10.0f / 20.0f) * MAX_GAIN_DB) - MIN_GAIN_DB;
+        double cste = Math.log(10.0) / 20;
+        return (Math.exp(cste * (decibels - MIN_GAIN_DB)) - 1) / (Math.exp(cste * ampGainDB) - 1);
+    }
+
+    public void configure(float sampleRate, int channels) {
+        gain = targetGain;
+    }
+
+    public void process(float[] samples, int frames, int channels) {
+        float target = targetGain;
+        float current = gain;
+        int count = frames * channels;
+        if(current == target) {
+            if(target != 1.0f) {
+                for(int i = 0; i < count; i++) {
+                    samples[i] *= target;
+                }
+            }
+            return;
+        }
+        float step = (target - current) / frames;
+        for(int frame = 0, i = 0; frame < frames; frame++) {
+            current += step;
+            for(int channel = 0; channel < channels; channel++, i++) {
+                samples[i] *= current;
+            }
+        }
+        gain = target;
+    }
+}
@@ -0,0 +1,999 @@
+import javazoom.jl.decoder.Bitstream;
+import javazoom.jl.decoder.Header;
+import javazoom.jl.decoder.Obuffer;
+
+/**
+ * The Layer3Decoder class decodes MPEG-1 Layer III frames to PCM, a port
+ * of jl1.0.1's LayerIIIDecoder rewritten for throughput
+ * <p>
+ * Every floating point operation is jl's, on the same operands in the
+ * same order, and the decoder's state carries from frame to frame as
+ * jl's does, so the PCM is jl's bit for bit, down to the frames jl
+ * drops. What changes is the work around the arithmetic:
+ * <ul>
+ * <li>the bit reservoir is a ring of bytes read a word at a time, where
+ * jl keeps an int per bit and reads codes a bit at a time</li>
+ * <li>Huffman codes are decoded by table lookup (Layer3Huffman) rather
+ * than by walking their trees</li>
+ * <li>the spectrum is a flat float[576] per channel, requantized a
+ * scalefactor band at a time, where jl divides and takes the modulo of
+ * every sample's index for its [subband][slot] arrays</li>
+ * <li>short blocks are reordered by a permutation computed once, and long
+ * blocks, and channels with no stereo processing, are not copied at all</li>
+ * <li>the IMDCT and the synthesis filterbank (SynthesisFilterbank) read
+ * the spectrum in place rather than from copies</li>
+ * </ul>
+ * Only MPEG-1 is ported: DecodedMp3Stream decodes MPEG-2 and 2.5, and
+ * Layers I and II, with jl's Decoder.
+ *
+ * @author shiTunes inc.
+ */
+public class Layer3Decoder {
+
+    // the scalefactor bands by sample_frequency (44.1, 48 and 32 kHz): long blocks, then short blocks
+    private static final int[][] LONG_BANDS = {
+            {0, 4, 8, 12, 16, 20, 24, 30, 36, 44, 52, 62, 74, 90, 110, 134, 162, 196, 238, 288, 342, 418, 576},
+            {0, 4, 8, 12, 16, 20, 24, 30, 36, 42, 50, 60, 72, 88, 106, 128, 156, 190, 230, 276, 330, 384, 576},
+            {0, 4, 8, 12, 16, 20, 24, 30, 36, 44, 54, 66, 82, 102, 126, 156, 194, 240, 296, 364, 448, 550, 576}};
+    private static final int[][] SHORT_BANDS = {
+            {0, 4, 8, 12, 16, 22, 30, 40, 52, 66, 84, 106, 136, 192},
+            {0, 4, 8, 12, 16, 22, 28, 38, 50, 64, 80, 100, 126, 192},
+            {0, 4, 8, 12, 16, 22, 30, 42, 58, 78, 104, 138, 180, 192}};
+
+    // the bits of the scalefactors of bands 0 to 10 and 11 to 20, by scalefac_compress
+    private static final int[] SLEN0 = {0, 0, 0, 0, 3, 1, 1, 1, 2, 2, 2, 3, 3, 3, 4, 4};
+    private static final int[] SLEN1 = {0, 1, 2, 3, 0, 1, 2, 3, 1, 2, 3, 1, 2, 3, 2, 3};
+
+    private static final int[] PRETAB = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 3, 3, 3, 2, 0};
+
+    // 2^(-i / 2), the scale of a scalefactor
+    private static final float[] POW2 = {
+            1.0f, 0.70710677f, 0.5f, 0.35355338f, 0.25f, 0.17677669f, 0.125f, 0.088388346f, 0.0625f,
+            0.044194173f, 0.03125f, 0.022097087f, 0.015625f, 0.011048543f, 0.0078125f, 0.0055242716f,
+            0.00390625f, 0.0027621358f, 0.001953125f, 0.0013810679f, 9.765625E-4f, 6.9053395E-4f,
+            4.8828125E-4f, 3.4526698E-4f, 2.4414062E-4f, 1.7263349E-4f, 1.2207031E-4f, 8.6316744E-5f,
+            6.1035156E-5f, 4.3158372E-5f, 3.0517578E-5f, 2.1579186E-5f, 1.5258789E-5f, 1.0789593E-5f,
+            7.6293945E-6f, 5.3947965E-6f, 3.8146973E-6f, 2.6973983E-6f, 1.9073486E-6f, 1.3486991E-6f,
+            9.536743E-7f, 6.7434956E-7f, 4.7683716E-7f, 3.3717478E-7f, 2.3841858E-7f, 1.6858739E-7f,
+            1.1920929E-7f, 8.4293696E-8f, 5.9604645E-8f, 4.2146848E-8f, 2.9802322E-8f, 2.1073424E-8f,
+            1.4901161E-8f, 1.0536712E-8f, 7.4505806E-9f, 5.268356E-9f, 3.7252903E-9f, 2.634178E-9f,
+            1.8626451E-9f, 1.317089E-9f, 9.313226E-10f, 6.585445E-10f, 4.656613E-10f, 3.2927225E-10f};
+
+    // i^(4/3), the magnitude of a quantized value
+    private static final float[] POW43 = new float[8192];
+
+    // the intensity stereo ratio of each position
+    private static final float[] TAN12 = {
+            0.0f, 0.2679492f, 0.57735026f, 1.0f, 1.7320508f, 3.732051f, 9.9999998E10f, -3.732051f,
+            -1.7320508f, -1.0f, -0.57735026f, -0.2679492f, 0.0f, 0.2679492f, 0.57735026f, 1.0f};
+
+    // the alias reduction butterflies
+    private static final float[] CS = {
+            0.8574929f, 0.881742f, 0.94962865f, 0.9833146f, 0.9955178f, 0.9991606f, 0.9998992f, 0.99999315f};
+    private static final float[] CA = {
+            -0.51449573f, -0.47173196f, -0.31337744f, -0.1819132f, -0.09457419f, -0.040965583f, -0.014198569f,
+            -0.0036999746f};
+
+    // the IMDCT windows by block type; short blocks (2) are windowed inside their IMDCT
+    private static final float[][] WINDOWS = {
+            {-0.016141215f, -0.05360318f, -0.100707136f, -0.16280818f, -0.5f, -0.38388735f, -0.6206114f,
+                    -1.1659756f, -3.8720753f, -4.225629f, -1.519529f, -0.97416484f, -0.73744076f, -1.2071068f,
+                    -0.5163616f, -0.45426053f, -0.40715656f, -0.3696946f, -0.3387627f, -0.31242222f, -0.28939587f,
+                    -0.26880082f, -0.5f, -0.23251417f, -0.21596715f, -0.20004979f, -0.18449493f, -0.16905846f,
+                    -0.15350361f, -0.13758625f, -0.12103922f, -0.20710678f, -0.084752575f, -0.06415752f,
+                    -0.041131172f, -0.014790705f},
+            {-0.016141215f, -0.05360318f, -0.100707136f, -0.16280818f, -0.5f, -0.38388735f, -0.6206114f,
+                    -1.1659756f, -3.8720753f, -4.225629f, -1.519529f, -0.97416484f, -0.73744076f, -1.2071068f,
+                    -0.5163616f, -0.45426053f, -0.40715656f, -0.3696946f, -0.33908543f, -0.3151181f, -0.29642227f,
+                    -0.28184548f, -0.5411961f, -0.2621323f, -0.25387916f, -0.2329629f, -0.19852729f, -0.15233535f,
+                    -0.0964964f, -0.03342383f, 0.0f, 0.0f, 0.0f, 0.0f, 0.0f, 0.0f},
+            null,
+            {0.0f, 0.0f, 0.0f, 0.0f, 0.0f, 0.0f, -0.15076514f, -0.7329629f, -3.489053f, -4.5470223f, -1.769529f,
+                    -1.1451749f, -0.8313774f, -1.306563f, -0.54142016f, -0.46528974f, -0.4106699f, -0.3700468f,
+                    -0.3387627f, -0.31242222f, -0.28939587f, -0.26880082f, -0.5f, -0.23251417f, -0.21596715f,
+                    -0.20004979f, -0.18449493f, -0.16905846f, -0.15350361f, -0.13758625f, -0.12103922f,
+                    -0.20710678f, -0.084752575f, -0.06415752f, -0.041131172f, -0.014790705f}};
+
+    // the source of each line of a reordered short block, by sample_frequency; mixed blocks keep their first 36
+    private static final int[][] SHORT_ORDER = new int[3][576];
+    private static final int[][] MIXED_ORDER = new int[3][576];
+
+    static {
+        for(int i = 0; i < POW43.length; i++) {
+            POW43[i] = (float) Math.pow(i, 4.0 / 3.0);
+        }
+        for(int frequency = 0; frequency < 3; frequency++) {
+            int[] bands = SHORT_BANDS[frequency];
+            int source = 0;
+            for(int band = 0; band < 13; band++) {
+                for(int window = 0; window < 3; window++) {
+                    for(int line = bands[band]; line < bands[band + 1]; line++) {
+                        SHORT_ORDER[frequency][3 * line + window] = source;
+                        MIXED_ORDER[frequency][3 * line + window] = line < 12 ? 3 * line + window : source;
+                        source++;
+                    }
+                }
+            }
+        }
+    }
+
+    private final Bitstream stream;
+    private final Obuffer buffer;
+    private final int channels;
+    private final int[] longBands;
+    private final int[] shortBands;
+    private final int[] shortOrder;
+    private final int[] mixedOrder;
+    private final SynthesisFilterbank[] filterbanks;
+
+    // the bit reservoir: a ring of 4096 bytes, its first 3 repeated after it so a word can be read across the end
+    private final byte[] reservoir = new byte[4096 + 3];
+    private int writeOffset;        // the next byte written
+    private int readOffset;         // the next bit read
+    private int bitsRead;           // the bits read since the stream started, less those rewound
+    private int frameStart;         // the byte of bitsRead the main data of the next frame ends at
+
+    // the side info of the frame: granule gr of channel ch is granules[2 * gr + ch]
+    private int mainDataBegin;
+    private final int[] scfsi = new int[8];
+    private final Granule[] granules = {new Granule(), new Granule(), new Granule(), new Granule()};
+    private int part2Start;
+
+    // the scalefactors of each channel: long blocks by band, short blocks by 13 * window + band
+    private final int[][] longScalefactors = new int[2][23];
+    private final int[][] shortScalefactors = new int[2][39];
+
+    // the granule being decoded: quantized values, requantized spectrum, stereo processed spectrum
+    private final int[] values = new int[580];
+    private final int[] nonzero = {576, 576};
+    private final float[][] spectrum = new float[2][576];
+    private final float[][] stereo = new float[2][576];
+    private final float[] reordered = new float[576];
+    private final int[] isPositions = new int[576];
+    private final float[] isRatios = new float[576];
+
+    // the IMDCT's output, and the second half of each channel's last, overlapped with the next
+    private final float[] imdct = new float[36];
+    private final float[][] overlap = new float[2][576];
+
+    /**
+     * Creates a decoder of the given stream
+     *
+     * @param first the header of the stream's first frame, whose channels and sample rate all frames have
+     * @param stream the stream the frames are read from
+     * @param buffer the buffer the PCM is written to
+     */
+    public Layer3Decoder(Header first, Bitstream stream, Obuffer buffer) {
+        this.stream = stream;
+        this.buffer = buffer;
+        channels = first.mode() == Header.SINGLE_CHANNEL ? 1 : 2;
+        int frequency = first.sample_frequency();
+        longBands = LONG_BANDS[frequency];
+        shortBands = SHORT_BANDS[frequency];
+        shortOrder = SHORT_ORDER[frequency];
+        mixedOrder = MIXED_ORDER[frequency];
+        filterbanks = new SynthesisFilterbank[channels];
+        for(int ch = 0; ch < channels; ch++) {
+            filterbanks[ch] = new SynthesisFilterbank(ch);
+        }
+    }
+
+    /**
+     * Decodes the frame of the given header, read from the stream, into
+     * the buffer, as jl's Decoder.decodeFrame() does
+     *
+     * @param header the header of the frame
+     */
+    public void decodeFrame(Header header) {
+        buffer.clear_buffer();
+        decode(header);
+        buffer.write_buffer(1);
+    }
+
+    /*
+     * Decodes the frame: jl's LayerIIIDecoder.decode()
+     */
+    private void decode(Header header) {
+        int slots = header.slots();
+        readSideInfo();
+        for(int i = 0; i < slots; i++) {
+            put(stream.get_bits(8));
+        }
+
+        int mainDataEnd = bitsRead >>> 3;
+        int flush = bitsRead & 7;
+        if(flush != 0) {
+            skip(8 - flush);
+            mainDataEnd++;
+        }
+        int discard = frameStart - mainDataEnd - mainDataBegin;
+        frameStart += slots;
+        if(discard < 0) {
+            return;     // the main data starts before the reservoir's
+        }
+        if(mainDataEnd > 4096) {
+            frameStart -= 4096;
+            bitsRead -= 4096 * 8;
+        }
+        skip(discard * 8);
+
+        for(int gr = 0; gr < 2; gr++) {
+            for(int ch = 0; ch < channels; ch++) {
+                part2Start = bitsRead;
+                readScalefactors(ch, gr);
+                readValues(ch, gr);
+                requantize(ch, gr);
+            }
+            float[][] processed = stereo(gr, header);
+            for(int ch = 0; ch < channels; ch++) {
+                Granule granule = granules[2 * gr + ch];
+                float[] lines = processed[ch];
+                if(granule.windowSwitching != 0 && granule.blockType == 2) {
+                    int[] order = granule.mixedBlock != 0 ? mixedOrder : shortOrder;
+                    float[] reordered = this.reordered;
+                    for(int i = 0; i < 576; i++) {
+                        reordered[i] = lines[order[i]];
+                    }
+                    lines = reordered;
+                }
+                antialias(lines, granule);
+                hybrid(lines, ch, granule);
+                for(int sb18 = 18; sb18 < 576; sb18 += 36) {
+                    for(int ss = 1; ss < 18; ss += 2) {
+                        lines[sb18 + ss] = -lines[sb18 + ss];
+                    }
+                }
+                SynthesisFilterbank filterbank = filterbanks[ch];
+                for(int ss = 0; ss < 18; ss++) {
+                    filterbank.filter(lines, ss, buffer);
+                }
+            }
+        }
+    }
+
+    /*
+     * Reads the side info from the stream: jl's get_side_info(), which
+     * stops at a window switching granule of block type 0, leaving the
+     * rest unread
+     */
+    private void readSideInfo() {
+        mainDataBegin = stream.get_bits(9);
+        stream.get_bits(channels == 1 ? 5 : 3);     // private bits
+        for(int ch = 0; ch < channels; ch++) {
+            for(int band = 0; band < 4; band++) {
+                scfsi[4 * ch + band] = stream.get_bits(1);
+            }
+        }
+        for(int gr = 0; gr < 2; gr++) {
+            for(int ch = 0; ch < channels; ch++) {
+                Granule granule = granules[2 * gr + ch];
+                granule.part23Length = stream.get_bits(12);
+                granule.bigValues = stream.get_bits(9);
+                granule.globalGain = stream.get_bits(8);
+                granule.scalefacCompress = stream.get_bits(4);
+                granule.windowSwitching = stream.get_bits(1);
+                if(granule.windowSwitching != 0) {
+                    granule.blockType = stream.get_bits(2);
+                    granule.mixedBlock = stream.get_bits(1);
+                    granule.tableSelect[0] = stream.get_bits(5);
+                    granule.tableSelect[1] = stream.get_bits(5);
+                    granule.subblockGain[0] = stream.get_bits(3);
+                    granule.subblockGain[1] = stream.get_bits(3);
+                    granule.subblockGain[2] = stream.get_bits(3);
+                    if(granule.blockType == 0) {
+                        return;
+                    }
+                    granule.region0Count = granule.blockType == 2 && granule.mixedBlock == 0 ? 8 : 7;
+                    granule.region1Count = 20 - granule.region0Count;
+                } else {
+                    granule.tableSelect[0] = stream.get_bits(5);
+                    granule.tableSelect[1] = stream.get_bits(5);
+                    granule.tableSelect[2] = stream.get_bits(5);
+                    granule.region0Count = stream.get_bits(4);
+                    granule.region1Count = stream.get_bits(3);
+                    granule.blockType = 0;
+                }
+                granule.preflag = stream.get_bits(1);
+                granule.scalefacScale = stream.get_bits(1);
+                granule.count1TableSelect = stream.get_bits(1);
+            }
+        }
+    }
+
+    /*
+     * Reads the scalefactors of a granule from the reservoir: jl's
+     * get_scale_factors()
+     */
+    private void readScalefactors(int ch, int gr) {
+        Granule granule = granules[2 * gr + ch];
+        int length0 = SLEN0[granule.scalefacCompress];
+        int length1 = SLEN1[granule.scalefacCompress];
+        int[] l = longScalefactors[ch];
+        int[] s = shortScalefactors[ch];
+        if(granule.windowSwitching != 0 && granule.blockType == 2) {
+            int band = 0;
+            if(granule.mixedBlock != 0) {
+                for(; band < 8; band++) {
+                    l[band] = bits(length0);
+                }
+                band = 3;
+            }
+            for(; band < 12; band++) {
+                int length = band < 6 ? length0 : length1;
+                for(int window = 0; window < 3; window++) {
+                    s[13 * window + band] = bits(length);
+                }
+            }
+            s[12] = 0;
+            s[25] = 0;
+            s[38] = 0;
+        } else {
+            int[] scfsi = this.scfsi;
+            for(int group = 0; group < 4; group++) {
+                if(scfsi[4 * ch + group] == 0 || gr == 0) {
+                    int length = group < 2 ? length0 : length1;
+                    for(int band = group == 0 ? 0 : 1 + 5 * group; band < 6 + 5 * group; band++) {
+                        l[band] = bits(length);
+                    }
+                }
+            }
+            l[21] = 0;
+            l[22] = 0;
+        }
+    }
+
+    /*
+     * Reads the Huffman coded values of a granule from the reservoir:
+     * jl's huffman_decode(). Values past the 580 jl has room for throw,
+     * as they do in jl, and the frame is dropped.
+     */
+    private void readValues(int ch, int gr) {
+        Granule granule = granules[2 * gr + ch];
+        int end = part2Start + granule.part23Length;
+        int region1;
+        int region2;
+        if(granule.windowSwitching != 0 && granule.blockType == 2) {
+            region1 = 36;
+            region2 = 576;
+        } else {
+            int band1 = granule.region0Count + 1;
+            int band2 = Math.min(band1 + granule.region1Count + 1, longBands.length - 1);
+            region1 = longBands[band1];
+            region2 = longBands[band2];
+        }
+
+        int[] values = this.values;
+        int index = 0;
+        int count = granule.bigValues << 1;
+        for(int region = 0; region < 3 && index < count; region++) {
+            int limit = Math.min(count, region == 0 ? region1 : region == 1 ? region2 : Integer.MAX_VALUE);
+            int select = granule.tableSelect[region];
+            int[] table = Layer3Huffman.TABLES[select];
+            if(table == null) {
+                for(; index < limit; index += 2) {
+                    values[index] = 0;
+                    values[index + 1] = 0;
+                }
+                continue;
+            }
+            int width = Layer3Huffman.BITS[select];
+            int linbits = Layer3Huffman.LINBITS[select];
+            for(; index < limit; index += 2) {
+                int entry = lookup(table, width);
+                int x = entry >>> 4 & 15;
+                int y = entry & 15;
+                if(linbits != 0 && x == 15) {
+                    x += bits(linbits);
+                }
+                if(x != 0 && bits(1) != 0) {
+                    x = -x;
+                }
+                if(linbits != 0 && y == 15) {
+                    y += bits(linbits);
+                }
+                if(y != 0 && bits(1) != 0) {
+                    y = -y;
+                }
+                values[index] = x;
+                values[index + 1] = y;
+            }
+        }
+
+        int select = granule.count1TableSelect + 32;
+        int[] table = Layer3Huffman.TABLES[select];
+        int width = Layer3Huffman.BITS[select];
+        int at = bitsRead;
+        while(at < end && index < 576) {
+            int entry = lookup(table, width);
+            int v = entry >>> 3 & 1;
+            int w = entry >>> 2 & 1;
+            int x = entry >>> 1 & 1;
+            int y = entry & 1;
+            if(v != 0 && bits(1) != 0) {
+                v = -v;
+            }
+            if(w != 0 && bits(1) != 0) {
+                w = -w;
+            }
+            if(x != 0 && bits(1) != 0) {
+                x = -x;
+            }
+            if(y != 0 && bits(1) != 0) {
+                y = -y;
+            }
+            values[index++] = v;
+            values[index++] = w;
+            values[index++] = x;
+            values[index++] = y;
+            at = bitsRead;
+        }
+        if(at > end) {
+            // the last quadruple ran past the granule: jl takes it back
+            rewind(at - end);
+            index -= 4;
+        }
+        at = bitsRead;
+        if(at < end) {
+            skip(end - at);
+        }
+        nonzero[ch] = Math.min(index, 576);
+        for(index = Math.max(index, 0); index < 576; index++) {
+            values[index] = 0;
+        }
+    }
+
+    /*
+     * Returns the lookup table entry of the next code in the reservoir,
+     * consuming the code's bits
+     */
+    private int lookup(int[] table, int width) {
+        int entry = table[peek(width)];
+        while(entry < 0) {
+            skip(width);
+            width = -entry & 31;
+            entry = table[(-entry >>> 5) + peek(width)];
+        }
+        skip(entry >>> 8);
+        return entry;
+    }
+
+    /*
+     * Requantizes a granule's values into its spectrum, a scalefactor band
+     * at a time: jl's dequantize_sample()
+     */
+    private void requantize(int ch, int gr) {
+        Granule granule = granules[2 * gr + ch];
+        float[] xr = spectrum[ch];
+        int[] values = this.values;
+        int nonzero = this.nonzero[ch];
+        float gain = (float) Math.pow(2.0, 0.25 * (granule.globalGain - 210.0));
+        int scale = granule.scalefacScale;
+        int[] l = longScalefactors[ch];
+        int[] s = shortScalefactors[ch];
+        int[] pretab = granule.preflag != 0 ? PRETAB : null;
+
+        int longLimit = 576;
+        int shortBand = 13;
+        if(granule.windowSwitching != 0 && granule.blockType == 2) {
+            longLimit = granule.mixedBlock != 0 ? 36 : 0;
+            shortBand = granule.mixedBlock != 0 ? 3 : 0;
+        }
+        int[] longBands = this.longBands;
+        for(int band = 0; longBands[band] < longLimit && longBands[band] < nonzero; band++) {
+            int factor = l[band];
+            if(pretab != null) {
+                factor += pretab[band];
+            }
+            requantize(xr, values, longBands[band], Math.min(longBands[band + 1], nonzero), gain,
+                    POW2[factor << scale]);
+        }
+        int[] shortBands = this.shortBands;
+        for(int band = shortBand; band < 13 && 3 * shortBands[band] < nonzero; band++) {
+            int width = shortBands[band + 1] - shortBands[band];
+            int start = 3 * shortBands[band];
+            for(int window = 0; window < 3; window++, start += width) {
+                int factor = (s[13 * window + band] << scale) + (granule.subblockGain[window] << 2);
+                requantize(xr, values, start, Math.min(start + width, nonzero), gain, POW2[factor]);
+            }
+        }
+        for(int i = Math.max(nonzero, 0); i < 576; i++) {
+            xr[i] = 0.0f;
+        }
+    }
+
+    /*
+     * Requantizes the values from start to end, multiplying each by the
+     * gain and then the band's scale as jl does
+     */
+    private static void requantize(float[] xr, int[] values, int start, int end, float gain, float scale) {
+        for(int i = start; i < end; i++) {
+            int value = values[i];
+            if(value == 0) {
+                xr[i] = 0.0f;
+            } else if(value > 0) {
+                xr[i] = gain * (value < 8192 ? POW43[value] : (float) Math.pow(value, 4.0 / 3.0)) * scale;
+            } else {
+                xr[i] = -gain * (-value < 8192 ? POW43[-value] : (float) Math.pow(-value, 4.0 / 3.0)) * scale;
+            }
+        }
+    }
+
+    /*
+     * Applies the frame's stereo processing to a granule: jl's stereo()
+     *
+     * @return the spectrum of each channel, the requantized one itself if there is none
+     */
+    private float[][] stereo(int gr, Header header) {
+        if(channels == 1) {
+            return spectrum;
+        }
+        int modeExtension = header.mode_extension();
+        boolean ms = header.mode() == Header.JOINT_STEREO && (modeExtension & 2) != 0;
+        boolean intensity = header.mode() == Header.JOINT_STEREO && (modeExtension & 1) != 0;
+        float[] left = spectrum[0];
+        float[] right = spectrum[1];
+        float[] leftOut = stereo[0];
+        float[] rightOut = stereo[1];
+        if(!intensity) {
+            if(!ms) {
+                return spectrum;
+            }
+            for(int i = 0; i < 576; i++) {
+                leftOut[i] = (left[i] + right[i]) * 0.70710677f;
+                rightOut[i] = (left[i] - right[i]) * 0.70710677f;
+            }
+            return stereo;
+        }
+
+        int[] isPositions = this.isPositions;
+        float[] isRatios = this.isRatios;
+        for(int i = 0; i < 576; i++) {
+            isPositions[i] = 7;
+            isRatios[i] = 0.0f;
+        }
+        intensityPositions(granules[2 * gr]);
+        for(int i = 0; i < 576; i++) {
+            if(isPositions[i] == 7) {
+                if(ms) {
+                    leftOut[i] = (left[i] + right[i]) * 0.70710677f;
+                    rightOut[i] = (left[i] - right[i]) * 0.70710677f;
+                } else {
+                    leftOut[i] = left[i];
+                    rightOut[i] = right[i];
+                }
+            } else {
+                rightOut[i] = left[i] / (1.0f + isRatios[i]);
+                leftOut[i] = rightOut[i] * isRatios[i];
+            }
+        }
+        return stereo;
+    }
+
+    /*
+     * Sets the intensity stereo position and ratio of the lines above
+     * the right channel's last nonzero one, from the right channel's
+     * scalefactors, as jl does
+     */
+    private void intensityPositions(Granule granule) {
+        float[] right = spectrum[1];
+        int[] l = longScalefactors[1];
+        int[] s = shortScalefactors[1];
+        int[] longBands = this.longBands;
+        int[] shortBands = this.shortBands;
+        int[] isPositions = this.isPositions;
+        float[] isRatios = this.isRatios;
+        if(granule.windowSwitching != 0 && granule.blockType == 2) {
+            boolean mixed = granule.mixedBlock != 0;
+            int maxBand = 0;
+            for(int window = 0; window < 3; window++) {
+                // the band above the window's last nonzero line
+                int last = mixed ? 2 : -1;
+                for(int band = 12; band >= (mixed ? 3 : 0) && last < band; band--) {
+                    int width = shortBands[band + 1] - shortBands[band];
+                    int start = 3 * shortBands[band] + window * width;
+                    for(int i = start + width - 1; i >= start; i--) {
+                        if(right[i] != 0.0f) {
+                            last = band;
+                            break;
+                        }
+                    }
+                    if(last == band) {
+                        break;
+                    }
+                }
+                int band = last + 1;
+                maxBand = Math.max(maxBand, band);
+                for(; band < 12; band++) {
+                    int width = shortBands[band + 1] - shortBands[band];
+                    int i = 3 * shortBands[band] + window * width;
+                    for(int end = i + width; i < end; i++) {
+                        int position = s[13 * window + band];
+                        isPositions[i] = position;
+                        if(position != 7) {
+                            isRatios[i] = TAN12[position];
+                        }
+                    }
+                }
+                // band 12 has no scalefactor: it takes the first line of band 11's
+                int width = shortBands[11] - shortBands[10];
+                int from = 3 * shortBands[10] + window * width;
+                width = shortBands[12] - shortBands[11];
+                int i = 3 * shortBands[11] + window * width;
+                for(int end = i + width; i < end; i++) {
+                    isPositions[i] = isPositions[from];
+                    isRatios[i] = isRatios[from];
+                }
+            }
+            if(mixed && maxBand <= 3) {
+                intensityLongPositions(l, 53, -1, 8);
+            }
+        } else {
+            int i = intensityLongPositions(l, 575, 0, 21);
+            int from = longBands[20];
+            for(int count = 576 - longBands[21]; count > 0 && i < 576; count--, i++) {
+                isPositions[i] = isPositions[from];
+                isRatios[i] = isRatios[from];
+            }
+        }
+    }
+
+    /*
+     * Sets the intensity stereo positions of the long bands above the
+     * last nonzero line at or below top (or none) up to bands
+     *
+     * @return the line after the bands set
+     */
+    private int intensityLongPositions(int[] l, int top, int none, int bands) {
+        float[] right = spectrum[1];
+        int last = none;
+        for(int i = top; i >= 0; i--) {
+            if(right[i] != 0.0f) {
+                last = i;
+                break;
+            }
+        }
+        int band = 0;
+        while(longBands[band] <= last) {
+            band++;
+        }
+        int i = longBands[band];
+        for(; band < bands; band++) {
+            int position = l[band];
+            for(int end = longBands[band + 1]; i < end; i++) {
+                isPositions[i] = position;
+                if(position != 7) {
+                    isRatios[i] = TAN12[position];
+                }
+            }
+        }
+        return i;
+    }
+
+    /*
+     * Reduces the aliasing between the subbands of long blocks: jl's
+     * antialias()
+     */
+    private static void antialias(float[] lines, Granule granule) {
+        int limit = 558;
+        if(granule.windowSwitching != 0 && granule.blockType == 2) {
+            if(granule.mixedBlock == 0) {
+                return;
+            }
+            limit = 18;
+        }
+        for(int sb18 = 0; sb18 < limit; sb18 += 18) {
+            for(int ss = 0; ss < 8; ss++) {
+                int up = sb18 + 17 - ss;
+                int down = sb18 + 18 + ss;
+                float bu = lines[up];
+                float bd = lines[down];
+                lines[up] = bu * CS[ss] - bd * CA[ss];
+                lines[down] = bd * CS[ss] + bu * CA[ss];
+            }
+        }
+    }
+
+    /*
+     * Replaces each subband's lines with their IMDCT, overlapped with the
+     * last granule's: jl's hybrid()
+     */
+    private void hybrid(float[] lines, int ch, Granule granule) {
+        float[] imdct = this.imdct;
+        float[] overlap = this.overlap[ch];
+        boolean mixed = granule.windowSwitching != 0 && granule.mixedBlock != 0;
+        for(int sb18 = 0; sb18 < 576; sb18 += 18) {
+            imdct(lines, sb18, imdct, mixed && sb18 < 36 ? 0 : granule.blockType);
+            for(int i = 0; i < 18; i++) {
+                lines[sb18 + i] = imdct[i] + overlap[sb18 + i];
+                overlap[sb18 + i] = imdct[18 + i];
+            }
+        }
+    }
+
+    /*
+     * Writes the 36 point IMDCT of the 18 lines at offset o, windowed for
+     * the block type, to out: jl's inv_mdct(), which also overwrites the
+     * lines
+     */
+    private static void imdct(float[] in, int o, float[] out, int blockType) {
+        if(blockType == 2) {
+            for(int i = 0; i < 36; i++) {
+                out[i] = 0.0f;
+            }
+            int sixI = 0;
+            for(int i = o; i < o + 3; i++) {
+                // 12 point IMDCT of each window, aliased on the input
+                in[15 + i] += in[12 + i];
+                in[12 + i] += in[9 + i];
+                in[9 + i] += in[6 + i];
+                in[6 + i] += in[3 + i];
+                in[3 + i] += in[i];
+                in[15 + i] += in[9 + i];
+                in[9 + i] += in[3 + i];
+
+                float pp2 = in[12 + i] * 0.5f;
+                float pp1 = in[6 + i] * 0.8660254f;
+                float sum = in[i] + pp2;
+                float tmpf1 = in[i] - in[12 + i];
+                float tmpf0 = sum + pp1;
+                float tmpf2 = sum - pp1;
+
+                pp2 = in[15 + i] * 0.5f;
+                pp1 = in[9 + i] * 0.8660254f;
+                sum = in[3 + i] + pp2;
+                float tmpf4 = in[3 + i] - in[15 + i];
+                float tmpf5 = sum + pp1;
+                float tmpf3 = sum - pp1;
+
+                tmpf3 *= 1.9318516f;
+                tmpf4 *= 0.70710677f;
+                tmpf5 *= 0.5176381f;
+
+                float save = tmpf0;
+                tmpf0 += tmpf5;
+                tmpf5 = save - tmpf5;
+                save = tmpf1;
+                tmpf1 += tmpf4;
+                tmpf4 = save - tmpf4;
+                save = tmpf2;
+                tmpf2 += tmpf3;
+                tmpf3 = save - tmpf3;
+
+                tmpf0 *= 0.5043145f;
+                tmpf1 *= 0.5411961f;
+                tmpf2 *= 0.6302362f;
+                tmpf3 *= 0.8213398f;
+                tmpf4 *= 1.306563f;
+                tmpf5 *= 3.830649f;
+
+                float tmpf8 = -tmpf0 * 0.7933533f;
+                float tmpf9 = -tmpf0 * 0.6087614f;
+                float tmpf7 = -tmpf1 * 0.9238795f;
+                float tmpf10 = -tmpf1 * 0.38268343f;
+                float tmpf6 = -tmpf2 * 0.9914449f;
+                float tmpf11 = -tmpf2 * 0.13052619f;
+                tmpf0 = tmpf3;
+                tmpf1 = tmpf4 * 0.38268343f;
+                tmpf2 = tmpf5 * 0.6087614f;
+                tmpf3 = -tmpf5 * 0.7933533f;
+                tmpf4 = -tmpf4 * 0.9238795f;
+                tmpf5 = -tmpf0 * 0.9914449f;
+                tmpf0 *= 0.13052619f;
+
+                out[sixI + 6] += tmpf0;
+                out[sixI + 7] += tmpf1;
+                out[sixI + 8] += tmpf2;
+                out[sixI + 9] += tmpf3;
+                out[sixI + 10] += tmpf4;
+                out[sixI + 11] += tmpf5;
+                out[sixI + 12] += tmpf6;
+                out[sixI + 13] += tmpf7;
+                out[sixI + 14] += tmpf8;
+                out[sixI + 15] += tmpf9;
+                out[sixI + 16] += tmpf10;
+                out[sixI + 17] += tmpf11;
+                sixI += 6;
+            }
+            return;
+        }
+
+        in[o + 17] += in[o + 16];
+        in[o + 16] += in[o + 15];
+        in[o + 15] += in[o + 14];
+        in[o + 14] += in[o + 13];
+        in[o + 13] += in[o + 12];
+        in[o + 12] += in[o + 11];
+        in[o + 11] += in[o + 10];
+        in[o + 10] += in[o + 9];
+        in[o + 9] += in[o + 8];
+        in[o + 8] += in[o + 7];
+        in[o + 7] += in[o + 6];
+        in[o + 6] += in[o + 5];
+        in[o + 5] += in[o + 4];
+        in[o + 4] += in[o + 3];
+        in[o + 3] += in[o + 2];
+        in[o + 2] += in[o + 1];
+        in[o + 1] += in[o];
+
+        in[o + 17] += in[o + 15];
+        in[o + 15] += in[o + 13];
+        in[o + 13] += in[o + 11];
+        in[o + 11] += in[o + 9];
+        in[o + 9] += in[o + 7];
+        in[o + 7] += in[o + 5];
+        in[o + 5] += in[o + 3];
+        in[o + 3] += in[o + 1];
+
+        // 9 point IDCT on the even lines
+        float i00 = in[o] + in[o];
+        float iip12 = i00 + in[o + 12];
+        float tmp0 = iip12 + in[o + 4] * 1.8793852f + in[o + 8] * 1.5320889f + in[o + 16] * 0.34729636f;
+        float tmp1 = i00 + in[o + 4] - in[o + 8] - in[o + 12] - in[o + 12] - in[o + 16];
+        float tmp2 = iip12 - in[o + 4] * 0.34729636f - in[o + 8] * 1.8793852f + in[o + 16] * 1.5320889f;
+        float tmp3 = iip12 - in[o + 4] * 1.5320889f + in[o + 8] * 0.34729636f - in[o + 16] * 1.8793852f;
+        float tmp4 = in[o] - in[o + 4] + in[o + 8] - in[o + 12] + in[o + 16];
+        float i66 = in[o + 6] * 1.7320508f;
+        float tmp0_ = in[o + 2] * 1.9696155f + i66 + in[o + 10] * 1.2855753f + in[o + 14] * 0.6840403f;
+        float tmp1_ = (in[o + 2] - in[o + 10] - in[o + 14]) * 1.7320508f;
+        float tmp2_ = in[o + 2] * 1.2855753f - i66 - in[o + 10] * 0.6840403f + in[o + 14] * 1.9696155f;
+        float tmp3_ = in[o + 2] * 0.6840403f - i66 + in[o + 10] * 1.9696155f - in[o + 14] * 1.2855753f;
+
+        // and on the odd lines
+        float i0 = in[o + 1] + in[o + 1];
+        float i0p12 = i0 + in[o + 13];
+        float tmp0o = i0p12 + in[o + 5] * 1.8793852f + in[o + 9] * 1.5320889f + in[o + 17] * 0.34729636f;
+        float tmp1o = i0 + in[o + 5] - in[o + 9] - in[o + 13] - in[o + 13] - in[o + 17];
+        float tmp2o = i0p12 - in[o + 5] * 0.34729636f - in[o + 9] * 1.8793852f + in[o + 17] * 1.5320889f;
+        float tmp3o = i0p12 - in[o + 5] * 1.5320889f + in[o + 9] * 0.34729636f - in[o + 17] * 1.8793852f;
+        float tmp4o = (in[o + 1] - in[o + 5] + in[o + 9] - in[o + 13] + in[o + 17]) * 0.70710677f;
+        float i6 = in[o + 7] * 1.7320508f;
+        float tmp0_o = in[o + 3] * 1.9696155f + i6 + in[o + 11] * 1.2855753f + in[o + 15] * 0.6840403f;
+        float tmp1_o = (in[o + 3] - in[o + 11] - in[o + 15]) * 1.7320508f;
+        float tmp2_o = in[o + 3] * 1.2855753f - i6 - in[o + 11] * 0.6840403f + in[o + 15] * 1.9696155f;
+        float tmp3_o = in[o + 3] * 0.6840403f - i6 + in[o + 11] * 1.9696155f - in[o + 15] * 1.2855753f;
+
+        // twiddle the odd ones and butterfly the two
+        float e = tmp0 + tmp0_;
+        float odd = (tmp0o + tmp0_o) * 0.5019099f;
+        float tmpf0 = e + odd;
+        float tmpf17 = e - odd;
+        e = tmp1 + tmp1_;
+        odd = (tmp1o + tmp1_o) * 0.5176381f;
+        float tmpf1 = e + odd;
+        float tmpf16 = e - odd;
+        e = tmp2 + tmp2_;
+        odd = (tmp2o + tmp2_o) * 0.55168897f;
+        float tmpf2 = e + odd;
+        float tmpf15 = e - odd;
+        e = tmp3 + tmp3_;
+        odd = (tmp3o + tmp3_o) * 0.61038727f;
+        float tmpf3 = e + odd;
+        float tmpf14 = e - odd;
+        float tmpf4 = tmp4 + tmp4o;
+        float tmpf13 = tmp4 - tmp4o;
+        e = tmp3 - tmp3_;
+        odd = (tmp3o - tmp3_o) * 0.8717234f;
+        float tmpf5 = e + odd;
+        float tmpf12 = e - odd;
+        e = tmp2 - tmp2_;
+        odd = (tmp2o - tmp2_o) * 1.1831008f;
+        float tmpf6 = e + odd;
+        float tmpf11 = e - odd;
+        e = tmp1 - tmp1_;
+        odd = (tmp1o - tmp1_o) * 1.9318516f;
+        float tmpf7 = e + odd;
+        float tmpf10 = e - odd;
+        e = tmp0 - tmp0_;
+        odd = (tmp0o - tmp0_o) * 5.7368565f;
+        float tmpf8 = e + odd;
+        float tmpf9 = e - odd;
+
+        float[] window = WINDOWS[blockType];
+        out[0] = -tmpf9 * window[0];
+        out[1] = -tmpf10 * window[1];
+        out[2] = -tmpf11 * window[2];
+        out[3] = -tmpf12 * window[3];
+        out[4] = -tmpf13 * window[4];
+        out[5] = -tmpf14 * window[5];
+        out[6] = -tmpf15 * window[6];
+        out[7] = -tmpf16 * window[7];
+        out[8] = -tmpf17 * window[8];
+        out[9] = tmpf17 * window[9];
+        out[10] = tmpf16 * window[10];
+        out[11] = tmpf15 * window[11];
+        out[12] = tmpf14 * window[12];
+        out[13] = tmpf13 * window[13];
+        out[14] = tmpf12 * window[14];
+        out[15] = tmpf11 * window[15];
+        out[16] = tmpf10 * window[16];
+        out[17] = tmpf9 * window[17];
+        out[18] = tmpf8 * window[18];
+        out[19] = tmpf7 * window[19];
+        out[20] = tmpf6 * window[20];
+        out[21] = tmpf5 * window[21];
+        out[22] = tmpf4 * window[22];
+        out[23] = tmpf3 * window[23];
+        out[24] = tmpf2 * window[24];
+        out[25] = tmpf1 * window[25];
+        out[26] = tmpf0 * window[26];
+        out[27] = tmpf0 * window[27];
+        out[28] = tmpf1 * window[28];
+        out[29] = tmpf2 * window[29];
+        out[30] = tmpf3 * window[30];
+        out[31] = tmpf4 * window[31];
+        out[32] = tmpf5 * window[32];
+        out[33] = tmpf6 * window[33];
+        out[34] = tmpf7 * window[34];
+        out[35] = tmpf8 * window[35];
+    }
+
+    /* **************************************************************** */
+    /* The bit reservoir                                                */
+    /* **************************************************************** */
+
+    /*
+     * Appends a byte of main data to the reservoir
+     */
+    private void put(int value) {
+        reservoir[writeOffset] = (byte) value;
+        if(writeOffset < 3) {
+            reservoir[4096 + writeOffset] = (byte) value;
+        }
+        writeOffset = writeOffset + 1 & 4095;
+    }
+
+    /*
+     * Returns the next 1 to 25 bits of the reservoir, without consuming them
+     */
+    private int peek(int count) {
+        byte[] reservoir = this.reservoir;
+        int at = readOffset;
+        int i = at >>> 3;
+        int word = reservoir[i] << 24 | (reservoir[i + 1] & 0xFF) << 16 | (reservoir[i + 2] & 0xFF) << 8
+                | reservoir[i + 3] & 0xFF;
+        return word << (at & 7) >>> 32 - count;
+    }
+
+    /*
+     * Reads the next 0 to 25 bits of the reservoir
+     */
+    private int bits(int count) {
+        if(count == 0) {
+            return 0;
+        }
+        int value = peek(count);
+        skip(count);
+        return value;
+    }
+
+    private void skip(int count) {
+        readOffset = readOffset + count & 32767;
+        bitsRead += count;
+    }
+
+    private void rewind(int count) {
+        readOffset = readOffset - count & 32767;
+        bitsRead -= count;
+    }
+
+    /*
+     * The side info of a granule of a channel, kept from frame to frame
+     * as jl keeps it
+     */
+    private static class Granule {
+        int part23Length;
+        int bigValues;
+        int globalGain;
+        int scalefacCompress;
+        int windowSwitching;
+        int blockType;
+        int mixedBlock;
+        final int[] tableSelect = new int[3];
+        final int[] subblockGain = new int[3];
+        int region0Count;
+        int region1Count;
+        int preflag;
+        int scalefacScale;
+        int count1TableSelect;
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * The LimiterStage class keeps the samples below full scale, so an
+ * equalizer boost or a volume above 0 dB reduces the level of loud
+ * passages instead of clipping them
+ * <p>
+ * The gain drops at once to bring a peak down to the threshold, then
+ * recovers smoothly over the release time. All channels share the
+ * gain so the stereo image does not move.
+ *
+ * @author shiTunes inc.
+ */
+public class LimiterStage implements DspStage {
+
+    /**
+     * The default threshold, -1 dBFS
+     */
+    public static final float DEFAULT_THRESHOLD = 0.891f;
+
+    /**
+     * The default release time, in milliseconds
+     */
+    public static final float DEFAULT_RELEASE_MILLIS = 50;
+
+    private volatile float threshold = DEFAULT_THRESHOLD;
+    private final float releaseMillis;
+    private float release;      // the fraction of the way back to unity gain per frame
+    private float envelope = 1.0f;
+
+    /**
+     * Creates a limiter with the default threshold and release
+     */
+    public LimiterStage() {
+        this(DEFAULT_RELEASE_MILLIS);
+    }
+
+    /**
+     * Creates a limiter
+     *
+     * @param releaseMillis the time taken to recover from a peak
+     */
+    public LimiterStage(float releaseMillis) {
+        this.releaseMillis = releaseMillis;
+    }
+
+    /**
+     * Sets the level the samples are kept below
+     *
+     * @param threshold the threshold in (0.0, 1.0]
+     */
+    public void setThreshold(float threshold) {
+        this.threshold = threshold;
+    }
+
+    public void configure(float sampleRate, int channels) {
+        release = (float) (1 - Math.exp(-1000 / (releaseMillis * sampleRate)));
+        envelope = 1.0f;
+    }
+
+    public void process(float[] samples, int frames, int channels) {
+        float limit = threshold;
+        float gain = envelope;
+        for(int frame = 0, i = 0; frame < frames; frame++, i += channels) {
+            float peak = 0;
+            for(int channel = 0; channel < channels; channel++) {
+                peak = Math.max(peak, Math.abs(samples[i + channel]));
+            }
+            float target = peak > limit ? limit / peak : 1.0f;
+            gain = target < gain ? target : gain + (target - gain) * release;
+            if(gain > 0.9999f && target == 1.0f) {
+                gain = 1.0f;    // fully recovered
+            }
+            if(gain != 1.0f) {
+                for(int channel = 0; channel < channels; channel++) {
+                    samples[i + channel] *= gain;
+                }
+            }
+        }
+        envelope = gain;
+    }
+}
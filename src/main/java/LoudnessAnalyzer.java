@@ -0,0 +1,335 @@
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The LoudnessAnalyzer class measures the loudness of every song in
+ * the library in the background, so the player can bring each song
+ * to the same loudness, and summarizes its Waveform for the progress bar
+ * <p>
+ * Songs are decoded once, through the same mp3spi stack that plays them,
+ * and measured by a LoudnessMeter and a Waveform on a fixed pool of low
+ * priority threads, one per core but one. The loudness, peak and waveform
+ * of each song are stored as soon as it is measured, and the songs not
+ * measured yet are read from ShiBase when a batch starts, so an analysis
+ * interrupted by closing shiTunes carries on where it stopped. A song
+ * played before the analysis reached it is moved to the front with
+ * prioritize().
+ * <p>
+ * While a song is playing only one thread carries on analyzing, the
+ * others wait, so the analysis never competes with the player for the
+ * CPU. The loudness.tracks counter and loudness.tracksPerSecond gauge
+ * report the progress.
+ *
+ * @author shiTunes inc.
+ */
+public class LoudnessAnalyzer {
+
+    // How long a waiting thread sleeps before looking whether playback ended
+    private static final long THROTTLE_NANOS = 100000000L;
+    private static final int CHUNK_BYTES = 16384;
+
+    private static final Metrics.Counter TRACKS = Metrics.counter("loudness.tracks");
+    private static final Metrics.Counter FAILURES = Metrics.counter("loudness.failures");
+    private static final Metrics.Histogram ANALYZE = Metrics.histogram("loudness.analyze");
+
+    private final ShiBase db;
+    private final int threads;
+    private final ExecutorService pool;
+    private final Map<Object, Boolean> playing = new ConcurrentHashMap<Object, Boolean>();
+    private final Queue<Integer> priority = new ConcurrentLinkedQueue<Integer>();
+
+    // The current batch, guarded by this
+    private boolean running;
+    private boolean rescan;         // songs were added while the batch ran
+
+    // Progress of the current or last batch
+    private volatile long batchStartNanos;
+    private volatile long batchEndNanos;
+    private final AtomicInteger batchTracks = new AtomicInteger();
+
+    /**
+     * Creates an analyzer with a thread per core but one
+     *
+     * @param db the database of the songs to analyze
+     */
+    public LoudnessAnalyzer(ShiBase db) {
+        this(db, Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /**
+     * Creates an analyzer
+     *
+     * @param db the database of the songs to analyze
+     * @param threads the number of songs analyzed at once
+     */
+    public LoudnessAnalyzer(ShiBase db, int threads) {
+        this.db = db;
+        this.threads = Math.max(1, threads);
+        pool = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Loudness-analyzer-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        Metrics.register(new Metrics.Gauge("loudness.tracksPerSecond") {
+            public long get() {
+                return Math.round(getTracksPerSecond());
+            }
+        });
+    }
+
+    /**
+     * Analyzes the songs not measured yet, unless a batch is already
+     * running, in which case the songs added since it started are
+     * analyzed when it ends
+     */
+    public synchronized void analyzePending() {
+        if(running) {
+            rescan = true;
+            return;
+        }
+        running = true;
+        startBatch();
+    }
+
+    /**
+     * Analyzes a song ahead of the others, eg. one starting to play
+     * before its waveform was computed
+     *
+     * @param songId the song id of the song to analyze next
+     */
+    public void prioritize(int songId) {
+        priority.add(songId);
+        analyzePending();
+    }
+
+    /**
+     * Tells the analyzer whether a player is playing, the analysis
+     * slows down to one thread while any player is
+     *
+     * @param player the player, eg. a window's MusicPlayer
+     * @param isPlaying true while the player is playing
+     */
+    public void setPlaying(Object player, boolean isPlaying) {
+        if(isPlaying) {
+            playing.put(player, Boolean.TRUE);
+        } else {
+            playing.remove(player);
+        }
+    }
+
+    /**
+     * Returns whether a batch of songs is being analyzed
+     *
+     * @return true until every song known to the analyzer has been measured
+     */
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Returns the analysis rate of the current batch, or of the last one once it ended
+     *
+     * @return the songs analyzed per second
+     */
+    public double getTracksPerSecond() {
+        long start = batchStartNanos;
+        if(start == 0) {
+            return 0;
+        }
+        long end = batchEndNanos;
+        long elapsed = (end == 0 ? System.nanoTime() : end) - start;
+        return elapsed <= 0 ? 0 : batchTracks.get() * 1e9 / elapsed;
+    }
+
+    /**
+     * Stops the analysis, the songs not measured yet are analyzed
+     * by the next analyzer created
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /*
+     * Reads the songs not measured yet and shares them among the threads
+     */
+    private void startBatch() {
+        batchTracks.set(0);
+        batchEndNanos = 0;
+        batchStartNanos = System.nanoTime();
+        pool.execute(new Runnable() {
+            public void run() {
+                final int[] songIds = db.getUnanalyzedSongs();
+                final AtomicInteger next = new AtomicInteger();
+                final AtomicInteger remaining = new AtomicInteger(threads);
+                final Map<Integer, Boolean> claimed = new ConcurrentHashMap<Integer, Boolean>();
+                for(int i = 0; i < threads; i++) {
+                    final boolean first = i == 0;
+                    pool.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                // wait before taking a song, so a waiting thread holds none back
+                                int songId;
+                                while(waitWhilePlaying(first)
+                                        && (songId = nextSong(songIds, next, claimed)) != -1) {
+                                    analyze(songId, first);
+                                }
+                            } finally {
+                                if(remaining.decrementAndGet() == 0) {
+                                    endBatch();
+                                }
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /*
+     * Returns the next song of the batch not taken by another thread,
+     * the prioritized songs first
+     *
+     * @return the song id, -1 once the batch is done
+     */
+    private int nextSong(int[] songIds, AtomicInteger next, Map<Integer, Boolean> claimed) {
+        Integer songId;
+        while((songId = priority.poll()) != null) {
+            if(claimed.put(songId, Boolean.TRUE) == null) {
+                return songId;
+            }
+        }
+        int index;
+        while((index = next.getAndIncrement()) < songIds.length) {
+            if(claimed.put(songIds[index], Boolean.TRUE) == null) {
+                return songIds[index];
+            }
+        }
+        return -1;
+    }
+
+    private synchronized void endBatch() {
+        batchEndNanos = System.nanoTime();
+        if((rescan || !priority.isEmpty()) && !pool.isShutdown()) {
+            rescan = false;
+            startBatch();
+        } else {
+            running = false;
+        }
+    }
+
+    /*
+     * Waits while a song is playing, unless this is the thread that carries on
+     *
+     * @return false if the analyzer was shut down
+     */
+    private boolean waitWhilePlaying(boolean carriesOn) {
+        while(!carriesOn && !playing.isEmpty()) {
+            LockSupport.parkNanos(THROTTLE_NANOS);
+            if(Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+        }
+        return !Thread.currentThread().isInterrupted();
+    }
+
+    /*
+     * Measures one song and stores its loudness and waveform, a song
+     * that can't be decoded is stored as analyzed with neither
+     */
+    private void analyze(int songId, boolean carriesOn) {
+        long start = System.nanoTime();
+        String filePath = db.getSongFilePath(songId);
+        if(filePath == null) {
+            return;     // deleted since the batch started
+        }
+        Measurement measurement = null;
+        try {
+            measurement = measure(new File(filePath), carriesOn);
+        } catch (Exception e) {
+            FAILURES.increment();
+            e.printStackTrace();
+        }
+        if(Thread.currentThread().isInterrupted()) {
+            return;     // shut down part way through the song, it is measured again next time
+        }
+        if(measurement == null) {
+            db.setLoudness(songId, Double.NaN, 0);
+            db.setWaveform(songId, new byte[0]);
+        } else {
+            db.setLoudness(songId, measurement.meter.getIntegratedLoudness(), measurement.meter.getPeak());
+            db.setWaveform(songId, measurement.waveform.getPeaks());
+        }
+        TRACKS.increment();
+        batchTracks.incrementAndGet();
+        ANALYZE.recordSince(start);
+    }
+
+    /*
+     * Decodes the song to 16 bit PCM and measures it
+     *
+     * @return the measurement, null if the analyzer was shut down
+     */
+    private Measurement measure(File file, boolean carriesOn) throws Exception {
+        AudioInputStream encoded = AudioSystem.getAudioInputStream(file);
+        AudioFormat base = encoded.getFormat();
+        AudioFormat pcm = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, base.getSampleRate(), 16,
+                base.getChannels(), base.getChannels() * 2, base.getSampleRate(), false);
+        AudioInputStream decoded = Mp3ConversionProvider.decode(pcm, encoded);
+        try {
+            Measurement measurement = new Measurement(pcm);
+            byte[] chunk = new byte[CHUNK_BYTES];
+            int length = 0;
+            int count;
+            while((count = decoded.read(chunk, length, chunk.length - length)) != -1) {
+                length += count;
+                int whole = length & ~1;
+                measurement.meter.process(chunk, 0, whole);
+                measurement.waveform.process(chunk, 0, whole);
+                length -= whole;
+                if(length > 0) {
+                    chunk[0] = chunk[whole];    // half a sample, completed by the next read
+                }
+                if(!waitWhilePlaying(carriesOn)) {
+                    return null;
+                }
+            }
+            return measurement;
+        } finally {
+            try {
+                decoded.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /*
+     * The loudness and waveform of a song, measured in the same pass
+     */
+    private static class Measurement {
+        final LoudnessMeter meter;
+        final Waveform waveform;
+
+        Measurement(AudioFormat format) {
+            meter = new LoudnessMeter(format.getSampleRate(), format.getChannels());
+            waveform = new Waveform(format.getSampleRate(), format.getChannels());
+        }
+    }
+}
@@ -0,0 +1,192 @@
+import java.util.Arrays;
+
+/**
+ * The LoudnessMeter class measures the integrated loudness and the
+ * sample peak of a song, as specified by ITU-R BS.1770 and EBU R128
+ * <p>
+ * Each channel is K-weighted (a high shelf modelling the head, then a
+ * high pass) and its mean square taken over 400 ms blocks overlapping
+ * by 75%. The integrated loudness is the mean of the blocks above the
+ * absolute gate of -70 LUFS and above the relative gate, 10 LU under
+ * the mean of those blocks, so silences and quiet passages do not
+ * lower it.
+ * <p>
+ * The track gain brings a song to the ReplayGain 2.0 reference
+ * loudness of -18 LUFS, lowered if needed so its peak does not clip.
+ *
+ * @author shiTunes inc.
+ */
+public class LoudnessMeter {
+
+    /**
+     * The loudness songs are brought to by their track gain, in LUFS
+     */
+    public static final double REFERENCE_LOUDNESS = -18.0;
+
+    private static final double ABSOLUTE_GATE = -70.0;
+    private static final double RELATIVE_GATE = -10.0;
+    private static final int SUB_BLOCKS = 4;        // 100 ms steps per 400 ms block
+    private static final float SCALE = 1.0f / 32768;
+
+    private final int channels;
+    private final int subBlockFrames;
+
+    // K-weighting: the pre-filter (high shelf) then the RLB filter (high pass)
+    private final double pb0, pb1, pb2, pa1, pa2;
+    private final double ra1, ra2;
+    private final double[] state;       // four values per channel for each of the two filters
+
+    private final double[] subBlocks = new double[SUB_BLOCKS];   // sum of channel mean squares, last four steps
+    private int subBlockCount;
+    private double sum;                 // of the squares in the current step
+    private int frames;                 // in the current step
+    private int channel;                // of the next sample
+    private double[] blocks = new double[256];   // mean square of each block
+    private int blockCount;
+    private float peak;
+
+    /**
+     * Creates a meter for a song
+     *
+     * @param sampleRate the sample rate in Hz
+     * @param channels the number of interleaved channels, all weighted alike (mono or stereo)
+     */
+    public LoudnessMeter(float sampleRate, int channels) {
+        this.channels = channels;
+        subBlockFrames = Math.max(1, Math.round(sampleRate / 10));
+        state = new double[channels * 4];
+
+        // coefficients for any sample rate, from the analog prototypes of the 48 kHz filters
+        double f0 = 1681.974450955533;
+        double gain = 3.999843853973347;
+        double q = 0.7071752369554196;
+        double k = Math.tan(Math.PI * f0 / sampleRate);
+        double vh = Math.pow(10, gain / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1 + k / q + k * k;
+        pb0 = (vh + vb * k / q + k * k) / a0;
+        pb1 = 2 * (k * k - vh) / a0;
+        pb2 = (vh - vb * k / q + k * k) / a0;
+        pa1 = 2 * (k * k - 1) / a0;
+        pa2 = (1 - k / q + k * k) / a0;
+
+        f0 = 38.13547087602444;
+        q = 0.5003270373238773;
+        k = Math.tan(Math.PI * f0 / sampleRate);
+        a0 = 1 + k / q + k * k;
+        ra1 = 2 * (k * k - 1) / a0;
+        ra2 = (1 - k / q + k * k) / a0;
+    }
+
+    /**
+     * Measures a buffer of 16 bit signed little endian PCM
+     *
+     * @param pcm the PCM bytes
+     * @param offset the offset of the first byte
+     * @param length the number of bytes, an even number
+     */
+    public void process(byte[] pcm, int offset, int length) {
+        for(int b = offset, end = offset + length; b < end; b += 2) {
+            float sample = (short) ((pcm[b + 1] << 8) | (pcm[b] & 0xFF)) * SCALE;
+            peak = Math.max(peak, Math.abs(sample));
+
+            // transposed direct form II, the pre-filter then the RLB filter
+            int s = channel * 4;
+            double x = sample;
+            double y = pb0 * x + state[s];
+            state[s] = pb1 * x - pa1 * y + state[s + 1];
+            state[s + 1] = pb2 * x - pa2 * y;
+            double z = y + state[s + 2];
+            state[s + 2] = -2 * y - ra1 * z + state[s + 3];
+            state[s + 3] = y - ra2 * z;
+            sum += z * z;
+
+            if(++channel == channels) {
+                channel = 0;
+                if(++frames == subBlockFrames) {
+                    endSubBlock();
+                }
+            }
+        }
+    }
+
+    /*
+     * Ends a 100 ms step, and the 400 ms block ending with it
+     */
+    private void endSubBlock() {
+        subBlocks[subBlockCount % SUB_BLOCKS] = sum / frames;
+        subBlockCount++;
+        sum = 0;
+        frames = 0;
+        if(subBlockCount < SUB_BLOCKS) {
+            return;
+        }
+        if(blockCount == blocks.length) {
+            blocks = Arrays.copyOf(blocks, blocks.length * 2);
+        }
+        blocks[blockCount++] = (subBlocks[0] + subBlocks[1] + subBlocks[2] + subBlocks[3]) / SUB_BLOCKS;
+    }
+
+    /**
+     * Returns the gated loudness of the PCM measured so far
+     *
+     * @return the integrated loudness in LUFS, Double.NaN if the
+     *         song is silent or shorter than 400 ms
+     */
+    public double getIntegratedLoudness() {
+        double absolute = meanAbove(toMeanSquare(ABSOLUTE_GATE));
+        if(Double.isNaN(absolute)) {
+            return Double.NaN;
+        }
+        double relative = toMeanSquare(toLoudness(absolute) + RELATIVE_GATE);
+        return toLoudness(meanAbove(Math.max(relative, toMeanSquare(ABSOLUTE_GATE))));
+    }
+
+    /**
+     * Returns the largest sample measured so far
+     *
+     * @return the sample peak in [0.0, 1.0]
+     */
+    public float getPeak() {
+        return peak;
+    }
+
+    /**
+     * Returns the gain bringing a song to the reference loudness,
+     * lowered so its peak stays below full scale
+     *
+     * @param loudness the song's integrated loudness in LUFS
+     * @param peak the song's sample peak in [0.0, 1.0]
+     * @return the track gain in decibels, 0 if the loudness is unknown
+     */
+    public static double trackGainDb(double loudness, double peak) {
+        if(Double.isNaN(loudness)) {
+            return 0;
+        }
+        double gain = REFERENCE_LOUDNESS - loudness;
+        if(peak > 0) {
+            gain = Math.min(gain, -20 * Math.log10(peak));
+        }
+        return gain;
+    }
+
+    private double meanAbove(double threshold) {
+        double total = 0;
+        int count = 0;
+        for(int i = 0; i < blockCount; i++) {
+            if(blocks[i] > threshold) {
+                total += blocks[i];
+                count++;
+            }
+        }
+        return count == 0 ? Double.NaN : total / count;
+    }
+
+    private static double toLoudness(double meanSquare) {
+        return -0.691 + 10 * Math.log10(meanSquare);
+    }
+
+    private static double toMeanSquare(double loudness) {
+        return Math.pow(10, (loudness + 0.691) / 10);
+    }
+}
@@ -0,0 +1,447 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The Metrics class is the registry of all shiTunes metrics:
+ * counters, gauges and latency histograms
+ * <p>
+ * Metrics are registered once, typically into a static final field,
+ * and updating them never allocates, so they can be used on hot paths:
+ * <pre>
+ * private static final Metrics.Histogram QUERY = Metrics.histogram("shibase.query");
+ * ...
+ * long start = System.nanoTime();
+ * ...
+ * QUERY.recordSince(start);
+ * </pre>
+ *
+ * @author shiTunes inc.
+ */
+public class Metrics {
+
+    private static final Map<String, Metric> metrics = new ConcurrentHashMap<String, Metric>();
+    private static ScheduledExecutorService dumper;
+
+    private Metrics() {
+    }
+
+    /**
+     * A named metric
+     */
+    public static abstract class Metric {
+        private final String name;
+
+        Metric(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Returns the name the metric is registered under
+         *
+         * @return the metric name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the current value(s) of the metric formatted for display
+         *
+         * @return the formatted metric
+         */
+        public abstract String format();
+    }
+
+    /**
+     * A counter that only goes up
+     */
+    public static class Counter extends Metric {
+        private final AtomicLong count = new AtomicLong();
+
+        Counter(String name) {
+            super(name);
+        }
+
+        /**
+         * Adds one to the counter
+         */
+        public void increment() {
+            count.incrementAndGet();
+        }
+
+        /**
+         * Adds the given amount to the counter
+         *
+         * @param amount the amount to add
+         */
+        public void add(long amount) {
+            count.addAndGet(amount);
+        }
+
+        /**
+         * Returns the current count
+         *
+         * @return the count
+         */
+        public long get() {
+            return count.get();
+        }
+
+        public String format() {
+            return String.valueOf(count.get());
+        }
+    }
+
+    /**
+     * A value read from its owner whenever metrics are displayed or dumped
+     */
+    public static abstract class Gauge extends Metric {
+        /**
+         * Creates a gauge, it must still be registered with Metrics.register(Gauge)
+         *
+         * @param name the gauge name
+         */
+        public Gauge(String name) {
+            super(name);
+        }
+
+        /**
+         * Returns the current value of the gauge
+         *
+         * @return the current value
+         */
+        public abstract long get();
+
+        public String format() {
+            return String.valueOf(get());
+        }
+    }
+
+    /**
+     * A histogram of latencies (in nanoseconds) or other positive values
+     * <p>
+     * Like an HDR histogram, values are counted in buckets whose width
+     * grows with the value: each power of two is split into 32 buckets,
+     * so every percentile is accurate to about 3% of its value, over the
+     * whole range from 1 ns to MAX_VALUE, in a fixed array of counts.
+     */
+    public static class Histogram extends Metric {
+        private static final int SUB_BUCKET_BITS = 6;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;    // exact values below this
+        private static final int HALF = SUB_BUCKETS / 2;                // buckets per power of two above it
+        private static final int MAX_SHIFT = 35;
+
+        /**
+         * The largest value recorded exactly, larger values are counted
+         * as this value (about 35 minutes in nanoseconds)
+         */
+        public static final long MAX_VALUE = ((long) SUB_BUCKETS << MAX_SHIFT) - 1;
+
+        private final boolean latency;
+        private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + MAX_SHIFT * HALF);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(String name, boolean latency) {
+            super(name);
+            this.latency = latency;
+        }
+
+        /**
+         * Records the time elapsed since the given start time
+         *
+         * @param startNanos the start time, from System.nanoTime()
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Records the given value
+         *
+         * @param value the value to record, negative values are counted as 0
+         */
+        public void record(long value) {
+            if(value < 0) {
+                value = 0;
+            } else if(value > MAX_VALUE) {
+                value = MAX_VALUE;
+            }
+            counts.incrementAndGet(bucket(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long currentMax = max.get();
+            while(value > currentMax && !max.compareAndSet(currentMax, value)) {
+                currentMax = max.get();
+            }
+        }
+
+        /*
+         * Returns the bucket counting the given value
+         */
+        private static int bucket(long value) {
+            if(value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+            return SUB_BUCKETS + (shift - 1) * HALF + (int) ((value >> shift) - HALF);
+        }
+
+        /*
+         * Returns the highest value counted by the given bucket
+         */
+        private static long highestValue(int bucket) {
+            if(bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = (bucket - SUB_BUCKETS) / HALF + 1;
+            long mantissa = (bucket - SUB_BUCKETS) % HALF + HALF;
+            return ((mantissa + 1) << shift) - 1;
+        }
+
+        /**
+         * Returns the value below which the given fraction of recorded values fall
+         *
+         * @param fraction the percentile as a fraction, eg. 0.99 for p99
+         * @return the percentile value, 0 if nothing was recorded
+         */
+        public long percentile(double fraction) {
+            long total = 0;
+            int length = counts.length();
+            for(int i = 0; i < length; i++) {
+                total += counts.get(i);
+            }
+            if(total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(fraction * total));
+            long seen = 0;
+            for(int i = 0; i < length; i++) {
+                seen += counts.get(i);
+                if(seen >= rank) {
+                    return Math.min(highestValue(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        /**
+         * Returns the number of recorded values
+         *
+         * @return the count
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * Returns the largest recorded value
+         *
+         * @return the maximum
+         */
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Returns the mean of the recorded values
+         *
+         * @return the mean, 0 if nothing was recorded
+         */
+        public long getMean() {
+            long n = count.get();
+            return n == 0 ? 0 : sum.get() / n;
+        }
+
+        /**
+         * Checks if the histogram records latencies in nanoseconds
+         *
+         * @return true for latencies, false for plain values
+         */
+        public boolean isLatency() {
+            return latency;
+        }
+
+        /**
+         * Clears all recorded values
+         */
+        public void reset() {
+            for(int i = 0; i < counts.length(); i++) {
+                counts.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+        /**
+         * Formats the given value of this histogram for display,
+         * latencies in milliseconds
+         *
+         * @param value the value to format
+         * @return the formatted value
+         */
+        public String formatValue(long value) {
+            return latency ? String.format("%.3f ms", value / 1e6) : String.valueOf(value);
+        }
+
+        public String format() {
+            return "count=" + getCount() + " p50=" + formatValue(percentile(0.5))
+                    + " p99=" + formatValue(percentile(0.99)) + " max=" + formatValue(getMax())
+                    + " mean=" + formatValue(getMean());
+        }
+    }
+
+    /* ************ */
+    /* REGISTRATION */
+    /* ************ */
+
+    /**
+     * Returns the counter registered under the given name, registering it if needed
+     *
+     * @param name the counter name
+     * @return the counter
+     */
+    public static Counter counter(String name) {
+        Metric metric = metrics.get(name);
+        if(metric == null) {
+            metrics.putIfAbsent(name, new Counter(name));
+            metric = metrics.get(name);
+        }
+        return (Counter) metric;
+    }
+
+    /**
+     * Returns the latency histogram registered under the given name,
+     * registering it if needed
+     *
+     * @param name the histogram name
+     * @return the histogram, recording nanoseconds
+     */
+    public static Histogram histogram(String name) {
+        return histogram(name, true);
+    }
+
+    /**
+     * Returns the histogram registered under the given name, registering it if needed
+     *
+     * @param name the histogram name
+     * @param latency true if the histogram records latencies in nanoseconds
+     * @return the histogram
+     */
+    public static Histogram histogram(String name, boolean latency) {
+        Metric metric = metrics.get(name);
+        if(metric == null) {
+            metrics.putIfAbsent(name, new Histogram(name, latency));
+            metric = metrics.get(name);
+        }
+        return (Histogram) metric;
+    }
+
+    /**
+     * Registers the given gauge, replacing any gauge registered under its name
+     *
+     * @param gauge the gauge to register
+     * @return the gauge
+     */
+    public static Gauge register(Gauge gauge) {
+        metrics.put(gauge.getName(), gauge);
+        return gauge;
+    }
+
+    /**
+     * Returns all registered metrics sorted by name
+     *
+     * @return the registered metrics
+     */
+    public static List<Metric> getMetrics() {
+        List<Metric> all = new ArrayList<Metric>(metrics.values());
+        Collections.sort(all, new java.util.Comparator<Metric>() {
+            public int compare(Metric a, Metric b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        return all;
+    }
+
+    /**
+     * Clears all histograms, counters and gauges keep their values
+     */
+    public static void resetHistograms() {
+        for(Metric metric : metrics.values()) {
+            if(metric instanceof Histogram) {
+                ((Histogram) metric).reset();
+            }
+        }
+    }
+
+    /* ******* */
+    /* DUMPING */
+    /* ******* */
+
+    /**
+     * Appends all metrics to the given file
+     *
+     * @param file the file to append to
+     * @return true if the metrics were written successfully
+     */
+    public static boolean dump(File file) {
+        try {
+            PrintWriter out = new PrintWriter(new FileWriter(file, true));
+            try {
+                out.println("# " + new Date());
+                for(Metric metric : getMetrics()) {
+                    out.println(metric.getName() + " " + metric.format());
+                }
+                out.println();
+            } finally {
+                out.close();
+            }
+            return true;
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Starts appending all metrics to the given file periodically,
+     * on a background thread
+     *
+     * @param file the file to append to
+     * @param periodSeconds the time between dumps
+     */
+    public static synchronized void startDumping(final File file, long periodSeconds) {
+        if(dumper != null) {
+            dumper.shutdownNow();
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Metrics-dump");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        dumper.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                dump(file);
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+}
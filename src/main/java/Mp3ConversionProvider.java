@@ -0,0 +1,117 @@
+import javazoom.spi.mpeg.sampled.file.MpegEncoding;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.spi.FormatConversionProvider;
+
+/**
+ * The Mp3ConversionProvider class is the javax.sound format conversion
+ * provider decoding MPEG audio to 16 bit PCM with a DecodedMp3Stream, an
+ * alternative to mp3spi's MpegFormatConversionProvider
+ * <p>
+ * The decoder is chosen by the shiTunes.decoder system property:
+ * "fast" (the default) for DecodedMp3Stream, "jl" for mp3spi's stream.
+ * <p>
+ * The provider is registered with AudioSystem (META-INF/services), so
+ * what decodes through AudioSystem, as BasicPlayer does, finds it like
+ * any other provider. AudioSystem takes the first provider on the
+ * classpath that can convert the stream, which may be mp3spi's, so the
+ * pipeline and the loudness analysis decode through decode(), which
+ * always asks this one first. The PCM is the same either way, only the
+ * speed differs.
+ *
+ * @author shiTunes inc.
+ */
+public class Mp3ConversionProvider extends FormatConversionProvider {
+
+    /**
+     * The system property choosing the MP3 decoder: "fast" or "jl"
+     */
+    public static final String DECODER_PROPERTY = "shiTunes.decoder";
+
+    private static final AudioFormat.Encoding[] MPEG = {
+            MpegEncoding.MPEG1L1, MpegEncoding.MPEG1L2, MpegEncoding.MPEG1L3,
+            MpegEncoding.MPEG2L1, MpegEncoding.MPEG2L2, MpegEncoding.MPEG2L3,
+            MpegEncoding.MPEG2DOT5L1, MpegEncoding.MPEG2DOT5L2, MpegEncoding.MPEG2DOT5L3};
+    private static final AudioFormat.Encoding[] PCM = {AudioFormat.Encoding.PCM_SIGNED};
+    private static final AudioFormat.Encoding[] NONE = {};
+
+    private static final Mp3ConversionProvider instance = new Mp3ConversionProvider();
+
+    /**
+     * Decodes the given stream to the given PCM format, with this
+     * provider unless it is turned off or cannot decode the stream
+     *
+     * @param pcm the format to decode to
+     * @param encoded the stream to decode
+     * @return the decoded stream
+     * @throws IllegalArgumentException if no provider can decode the stream
+     */
+    public static AudioInputStream decode(AudioFormat pcm, AudioInputStream encoded) {
+        if(instance.isConversionSupported(pcm, encoded.getFormat())) {
+            return instance.getAudioInputStream(pcm, encoded);
+        }
+        return AudioSystem.getAudioInputStream(pcm, encoded);
+    }
+
+    /*
+     * Returns whether the fast decoder is on and the format is MPEG audio
+     */
+    private static boolean decodes(AudioFormat format) {
+        if(System.getProperty(DECODER_PROPERTY, "fast").equals("jl")) {
+            return false;
+        }
+        for(AudioFormat.Encoding encoding : MPEG) {
+            if(encoding.equals(format.getEncoding())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public AudioFormat.Encoding[] getSourceEncodings() {
+        return System.getProperty(DECODER_PROPERTY, "fast").equals("jl") ? NONE : MPEG.clone();
+    }
+
+    public AudioFormat.Encoding[] getTargetEncodings() {
+        return PCM.clone();
+    }
+
+    public AudioFormat.Encoding[] getTargetEncodings(AudioFormat sourceFormat) {
+        return decodes(sourceFormat) ? PCM.clone() : NONE;
+    }
+
+    public AudioFormat[] getTargetFormats(AudioFormat.Encoding targetEncoding, AudioFormat sourceFormat) {
+        if(!decodes(sourceFormat) || !AudioFormat.Encoding.PCM_SIGNED.equals(targetEncoding)) {
+            return new AudioFormat[0];
+        }
+        return new AudioFormat[] {pcm(sourceFormat, false), pcm(sourceFormat, true)};
+    }
+
+    public AudioInputStream getAudioInputStream(AudioFormat.Encoding targetEncoding, AudioInputStream sourceStream) {
+        return getAudioInputStream(pcm(sourceStream.getFormat(), false), sourceStream);
+    }
+
+    public AudioInputStream getAudioInputStream(AudioFormat targetFormat, AudioInputStream sourceStream) {
+        if(!isConversionSupported(targetFormat, sourceStream.getFormat())) {
+            throw new IllegalArgumentException("Unsupported conversion: " + sourceStream.getFormat()
+                    + " to " + targetFormat);
+        }
+        AudioFormat source = sourceStream.getFormat();
+        // fill in what the target format leaves unspecified from the source
+        AudioFormat pcm = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, source.getSampleRate(), 16,
+                source.getChannels(), source.getChannels() * 2, source.getSampleRate(), targetFormat.isBigEndian());
+        return new DecodedMp3Stream(pcm, sourceStream);
+    }
+
+    /*
+     * Returns the 16 bit PCM format of the given MPEG audio format
+     */
+    private static AudioFormat pcm(AudioFormat source, boolean bigEndian) {
+        int channels = source.getChannels();
+        return new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, source.getSampleRate(), 16, channels,
+                channels == AudioSystem.NOT_SPECIFIED ? AudioSystem.NOT_SPECIFIED : channels * 2,
+                source.getSampleRate(), bigEndian);
+    }
+}
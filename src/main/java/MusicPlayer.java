@@ -1,8 +1,9 @@
 import javazoom.jlgui.basicplayer.BasicController;
-import javazoom.jlgui.basicplayer.BasicPlayer;
 import javazoom.jlgui.basicplayer.BasicPlayerException;
+import javazoom.jlgui.basicplayer.BasicPlayerListener;
 
 import java.io.File;
+import java.io.InputStream;
 
 /**
  * MusicPlayer class represents a persistent MusicPlayer object
@@ -12,19 +13,52 @@ import java.io.File;
  */
 public class MusicPlayer {
 
+    /**
+     * The system property choosing the playback engine, "basic" (the default)
+     * for BasicPlayer or "pipeline" for the PipelinePlayer
+     */
+    public static final String ENGINE_PROPERTY = "shiTunes.engine";
+
+    /**
+     * The system property giving the equalizer's band gains at startup,
+     * ten comma separated decibel values from 31 Hz to 16 kHz,
+     * eg. "4,3,2,0,0,0,0,1,2,3"
+     */
+    public static final String EQUALIZER_PROPERTY = "shiTunes.equalizer";
+
+    // Metrics
+    private static final Metrics.Histogram OPEN = Metrics.histogram("player.open");
+    private static final Metrics.Histogram PLAY = Metrics.histogram("player.play");
+    private static final Metrics.Histogram RESUME = Metrics.histogram("player.resume");
+    private static final Metrics.Histogram PAUSE = Metrics.histogram("player.pause");
+    private static final Metrics.Histogram STOP = Metrics.histogram("player.stop");
+    private static final Metrics.Histogram SEEK = Metrics.histogram("player.seek");
+
     private int loadedSongRow;   // Table row of loaded song
-    private BasicPlayer player;
+    private BufferedBasicPlayer player; // null when the pipeline engine is used
+    private PipelinePlayer pipeline;    // null when BasicPlayer is used
     private BasicController controller;
     private double volume;
+    private volatile String loadedFilePath;
+    private volatile long seekOffsetMillis;    // song time at which the current stream starts
+    private volatile double trackGainDb;       // the loaded song's gain to the reference loudness
+    private ShiTunesEvents.PlayerState stateEvent;   // the current state, committed when it ends
 
     /**
-     * MusicPlayer default constructor, instantiates the persistent BasicPlayer object
+     * MusicPlayer default constructor, instantiates the persistent player
+     * of the engine chosen by the shiTunes.engine system property
      *
      */
     public MusicPlayer() {
-        player = new BasicPlayer();
-        controller = (BasicController) player;
+        if("pipeline".equals(System.getProperty(ENGINE_PROPERTY))) {
+            pipeline = new PipelinePlayer();
+            controller = pipeline;
+        } else {
+            player = new BufferedBasicPlayer();
+            controller = player;
+        }
         volume = -1.0;    // indicates that gain has yet to be initialized
+        setEqualizer(System.getProperty(EQUALIZER_PROPERTY));
     }
 
     /**
@@ -43,21 +77,111 @@ public class MusicPlayer {
      */
     public double getVolume() { return volume; };
 
-    public BasicPlayer getPlayer() {
-        return player;
+    /**
+     * Adds a listener notified of the player's state and progress,
+     * whichever engine is used
+     *
+     * @param listener the listener to add
+     */
+    public void addBasicPlayerListener(BasicPlayerListener listener) {
+        if(pipeline != null) {
+            pipeline.addBasicPlayerListener(listener);
+        } else {
+            player.addBasicPlayerListener(listener);
+        }
+    }
+
+    /**
+     * Releases the sound line the pipeline engine keeps open between
+     * songs, unless a song is playing
+     */
+    public void closeLine() {
+        if(pipeline != null) {
+            pipeline.closeLine();
+        }
+    }
+
+    /**
+     * Returns the pipeline engine
+     *
+     * @return the PipelinePlayer, or null if BasicPlayer is used
+     */
+    public PipelinePlayer getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * Returns the equalizer the songs are played through, with either engine
+     *
+     * @return the equalizer
+     */
+    public EqualizerStage getEqualizer() {
+        return pipeline != null ? pipeline.getEqualizer() : player.getEqualizer();
+    }
+
+    /**
+     * Sets the equalizer's band gains
+     *
+     * @param gains comma separated decibel values from the lowest band up,
+     *              missing bands are left flat; null or empty for a flat equalizer
+     * @return false if the gains could not be parsed, the equalizer is then flat
+     */
+    public boolean setEqualizer(String gains) {
+        EqualizerStage equalizer = getEqualizer();
+        float[] gainsDb = new float[equalizer.getBandCount()];
+        boolean parsed = true;
+        if(gains != null && !gains.trim().isEmpty()) {
+            String[] values = gains.split(",");
+            try {
+                for(int band = 0; band < values.length && band < gainsDb.length; band++) {
+                    gainsDb[band] = Float.parseFloat(values[band].trim());
+                }
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+                gainsDb = new float[gainsDb.length];
+                parsed = false;
+            }
+        }
+        for(int band = 0; band < gainsDb.length; band++) {
+            equalizer.setBandGain(band, gainsDb[band]);
+        }
+        return parsed;
+    }
+
+    /**
+     * Sets how long the end of a song overlaps the start of the next,
+     * with the pipeline engine only
+     *
+     * @param millis the crossfade length, 0 to PipelinePlayer.MAX_CROSSFADE_MILLIS
+     */
+    public void setCrossfadeMillis(int millis) {
+        if(pipeline != null) {
+            pipeline.setCrossfadeMillis(millis);
+        }
+    }
+
+    /**
+     * Returns how long the end of a song overlaps the start of the next
+     *
+     * @return the crossfade length in milliseconds, 0 with BasicPlayer
+     */
+    public int getCrossfadeMillis() {
+        return pipeline == null ? 0 : pipeline.getCrossfadeMillis();
     }
 
     /**
      * Adjusts the volume to the given value
      * <p>
-     * Note: the volume value must be in range [0.0, 1.0] as per
-     * BasicPlayer setGain() method requirement
+     * Both engines set the volume in software, in their DSP chain,
+     * so it works whether or not the sound line has a gain control.
+     * The volume value must be in range [0.0, 1.0] as per the
+     * BasicPlayer setGain() method
      *
      * @param volume the volume to change to (double value in range [0.0, 1.0]
      */
     public void adjustVolume(double volume) {
         try {
-            controller.setGain(volume);
+            controller.setGain(engineVolume(volume));
             this.volume = volume;
         } catch (BasicPlayerException e) {
             e.printStackTrace();
@@ -71,15 +195,37 @@ public class MusicPlayer {
      * @return true if song plays successfully
      */
     public boolean play(String filePath) {
+        return play(filePath, 0);
+    }
+
+    /**
+     * Plays the selected song at the loudness of the others
+     *
+     * @param filePath the file path of the song to play
+     * @param trackGainDb the song's gain to the reference loudness, from ShiBase.getTrackGain
+     * @return true if song plays successfully
+     */
+    public boolean play(String filePath, double trackGainDb) {
         try {
+            long start = System.nanoTime();
+            loadedFilePath = filePath;
+            seekOffsetMillis = 0;
+            this.trackGainDb = trackGainDb;
+            FrameIndex.prefetch(filePath);      // ready for the first seek
             controller.open(new File(filePath));
+            if(pipeline != null) {
+                pipeline.setTrackGain(trackGainDb);
+            }
+            OPEN.recordSince(start);
             // play loaded song
+            start = System.nanoTime();
             controller.play();
+            PLAY.recordSince(start);
             // setGain to default .5 value
             if(this.volume == -1.0) {
-                controller.setGain(0.5);
                 this.volume = 0.5;
             }
+            controller.setGain(engineVolume(this.volume));    // with this song's track gain
             return true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -87,6 +233,74 @@ public class MusicPlayer {
         return false;
     }
 
+    /**
+     * Moves playback of the loaded song to the given time
+     * <p>
+     * The song's frame index gives the byte offset of the frame playing
+     * at that time, and the song is reopened from that frame, so seeking
+     * is exact for VBR songs and never decodes the skipped audio.
+     * BasicPlayer reports progress from the start of the reopened
+     * stream; add getSeekOffsetMillis() for the time in the song.
+     *
+     * @param millis the time from the start of the song
+     * @return true if playback moved successfully
+     */
+    public boolean seek(long millis) {
+        String filePath = loadedFilePath;
+        if(filePath == null) {
+            return false;
+        }
+        long start = System.nanoTime();
+        FrameIndex index = FrameIndex.get(filePath);
+        if(index == null) {
+            return false;
+        }
+        try {
+            int frame = index.getFrame(millis);
+            InputStream in = index.openAt(frame);
+            seekOffsetMillis = index.getTimeMillis(frame);
+            if(pipeline != null) {
+                // the remaining length, so the end of the song still crossfades
+                pipeline.open(in, Math.max(0, index.getDurationMillis() - seekOffsetMillis));
+                pipeline.setTrackGain(trackGainDb);
+            } else {
+                controller.open(in);
+            }
+            controller.play();
+            if(this.volume != -1.0) {
+                controller.setGain(engineVolume(this.volume));    // with this song's track gain
+            }
+            SEEK.recordSince(start);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /*
+     * Returns the volume to give the engine: the pipeline applies the
+     * track gain to the song itself, BasicPlayer has no gain per song,
+     * so the track gain is added to the volume's decibels
+     */
+    private double engineVolume(double volume) {
+        if(pipeline != null || trackGainDb == 0 || volume <= 0) {
+            return volume;
+        }
+        double decibels = GainStage.toDecibels(volume) + trackGainDb;
+        return Math.max(0.0, Math.min(1.0, GainStage.toVolume(decibels)));
+    }
+
+    /**
+     * Returns the time in the song at which the current stream started,
+     * 0 unless the song was moved with seek()
+     *
+     * @return the offset to add to the progress reported by BasicPlayer, in milliseconds
+     */
+    public long getSeekOffsetMillis() {
+        return seekOffsetMillis;
+    }
+
     /**
      * Resumes a previously paused song
      *
@@ -94,7 +308,9 @@ public class MusicPlayer {
      */
     public boolean resume() {
         try {
+            long start = System.nanoTime();
             controller.resume();
+            RESUME.recordSince(start);
             return true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -109,7 +325,9 @@ public class MusicPlayer {
      */
     public boolean pause() {
         try {
+            long start = System.nanoTime();
             controller.pause();
+            PAUSE.recordSince(start);
             return true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -124,7 +342,9 @@ public class MusicPlayer {
      */
     public boolean stop() {
         try {
+            long start = System.nanoTime();
             controller.stop();
+            STOP.recordSince(start);
             return true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -132,6 +352,22 @@ public class MusicPlayer {
         return false;
     }
 
+    /**
+     * Records a player state change reported to BasicPlayerListener.stateUpdated
+     * <p>
+     * Each state is recorded as a flight recorder event lasting
+     * until the next state change
+     *
+     * @param code the BasicPlayerEvent code of the new state
+     */
+    public synchronized void stateChanged(int code) {
+        ShiTunesEvents.PlayerState previous = stateEvent;
+        stateEvent = new ShiTunesEvents.PlayerState(code, loadedFilePath);
+        if(previous != null) {
+            previous.commit();
+        }
+    }
+
     /**
      * Gets the currently loaded song row
      *
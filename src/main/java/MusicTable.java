@@ -1,6 +1,14 @@
 import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.TableColumnModelEvent;
+import javax.swing.event.TableColumnModelListener;
 import javax.swing.table.DefaultTableModel;
 import javax.swing.table.TableColumn;
+import javax.swing.table.TableColumnModel;
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.Transferable;
+import java.awt.datatransfer.UnsupportedFlavorException;
 
 /**
  * The MusicTable class contains methods related
@@ -22,11 +30,21 @@ public class MusicTable {
     /**
      * The columns of the SONG table properly formatted for GUI
      */
-    public static final String[] SONG_COLUMN_NAMES =  {"ID", "File Path", "Title", "Artist", "Album", "Year",
-                                                        "Genre", "Comment"};
+    public static final String[] SONG_COLUMN_NAMES = ColumnConfig.COLUMN_NAMES;
     public static final int COL_ID = 0;
     public static final int COL_FILE_PATH = 1;
 
+    /**
+     * The flavor of a row dragged out of a playlist table, whose data is
+     * the MusicTable it was dragged from; only known within this JVM so
+     * text or anything dropped from another application never matches it
+     */
+    public static final DataFlavor ROW_FLAVOR = new DataFlavor(
+            DataFlavor.javaJVMLocalObjectMimeType + ";class=MusicTable", "Playlist row");
+
+    // Metrics
+    private static final Metrics.Histogram REBUILD = Metrics.histogram("musictable.rebuild");
+
     /**
      * Default constructor for MusicTable
      * by default populates a JTable with the entire
@@ -35,9 +53,11 @@ public class MusicTable {
      */
     public MusicTable(){
         table = new JTable();
-        buildTable(ShiTunes.db.getAllSongs());
+        table.getColumnModel().addColumnModelListener(new ColumnLayoutListener());
+        table.setTransferHandler(new RowTransferHandler());
         name = "Library";
         type = LIBRARY;
+        buildTable(ShiTunes.db.getAllSongs());
     }
 
     /**
@@ -49,9 +69,11 @@ public class MusicTable {
      */
     public MusicTable(String playlistName) {
         table = new JTable();
-        buildTable(ShiTunes.db.getPlaylistSongs(playlistName));
+        table.getColumnModel().addColumnModelListener(new ColumnLayoutListener());
+        table.setTransferHandler(new RowTransferHandler());
         name = playlistName;
         type = PLAYLIST;
+        buildTable(ShiTunes.db.getPlaylistSongs(playlistName));
     }
 
     /**
@@ -75,57 +97,142 @@ public class MusicTable {
         };
 
         table.setModel(tableModel);
-        table.getTableHeader().setReorderingAllowed(false); // don't allow reordering of columns
+        table.getTableHeader().setReorderingAllowed(true);  // column order is saved in the column config
+        if (!java.awt.GraphicsEnvironment.isHeadless()) {
+            table.setDragEnabled(type == PLAYLIST);         // rows may only be reordered in playlists
+        }
         setColumnVisibility();
     }
 
     /**
-     * Set visibility for all columns based on state saved in db
+     * Set order, width & visibility for all columns based on
+     * the column config shared by all windows
      *
      */
     public void setColumnVisibility() {
-        for(int i = 0; i < SONG_COLUMN_NAMES.length; i++) {
-            String columnName = SONG_COLUMN_NAMES[i];
-            if (ShiTunes.db.getColumnVisible(columnName)) {show(columnName);}
-            else {hide(columnName);}
+        ColumnConfig config = ShiTunes.db.getColumnConfig();
+        TableColumnModel columnModel = table.getColumnModel();
+        String[] order = config.getColumnOrder();
+        for(int i = 0; i < order.length; i++) {
+            columnModel.moveColumn(columnModel.getColumnIndex(order[i]), i);
+        }
+        for(String columnName : SONG_COLUMN_NAMES) {
+            if (config.isVisible(columnName)) {showColumn(columnName);}
+            else {hideColumn(columnName);}
         }
     }
 
     /**
      * Hides given column from view in the table model
-     * and sets column visible state in db to false
+     * and sets column visible state in the column config to false
      *
      * @param columnName column to hide
      */
     public void hide(String columnName) {
-        int index = table.getColumnModel().getColumnIndex(columnName);
-
-        TableColumn column = table.getColumnModel().getColumn(index);
-        column.setMinWidth(0);
-        column.setMaxWidth(0);
-        column.setWidth(0);
-
-        // update visibility in db based on view index
-        ShiTunes.db.setColumnVisible(columnName, false);
+        hideColumn(columnName);
+        ShiTunes.db.getColumnConfig().setVisible(columnName, false);
     }
 
     /**
      * Shows given column (unhide) in the table model
-     * and sets column visible state in db to true
+     * and sets column visible state in the column config to true
      *
      * @param columnName show the given column
      */
     public void show(String columnName) {
-        int index = table.getColumnModel().getColumnIndex(columnName);
+        showColumn(columnName);
+        ShiTunes.db.getColumnConfig().setVisible(columnName, true);
+    }
+
+    /*
+     * Hides given column from view in the table model
+     *
+     * @param columnName column to hide
+     */
+    private void hideColumn(String columnName) {
+        TableColumn column = table.getColumn(columnName);
+        column.setMinWidth(0);
+        column.setMaxWidth(0);
+        column.setWidth(0);
+        column.setPreferredWidth(0);
+    }
 
-        TableColumn column = table.getColumnModel().getColumn(index);
+    /*
+     * Shows given column in the table model at its saved width
+     *
+     * @param columnName show the given column
+     */
+    private void showColumn(String columnName) {
+        TableColumn column = table.getColumn(columnName);
         column.setMinWidth(10);
         column.setMaxWidth(500);
         column.setWidth(10);
-        column.setPreferredWidth(80);
+        column.setPreferredWidth(ShiTunes.db.getColumnConfig().getWidth(columnName));
+    }
+
+    /*
+     * Saves column moves & resizes made by the user in the column config
+     * <p>
+     * Only changes made by dragging the table header are saved, the
+     * layout changes made while building or resizing the table are not
+     */
+    private class ColumnLayoutListener implements TableColumnModelListener {
+        public void columnMoved(TableColumnModelEvent e) {
+            if (e.getFromIndex() == e.getToIndex() || table.getTableHeader().getDraggedColumn() == null) {
+                return;
+            }
+            TableColumnModel columnModel = table.getColumnModel();
+            String[] order = new String[columnModel.getColumnCount()];
+            for(int i = 0; i < order.length; i++) {
+                order[i] = columnModel.getColumn(i).getIdentifier().toString();
+            }
+            ShiTunes.db.getColumnConfig().setColumnOrder(order);
+        }
 
-        // update visibility in db
-        ShiTunes.db.setColumnVisible(columnName, true);
+        public void columnMarginChanged(ChangeEvent e) {
+            TableColumn column = table.getTableHeader().getResizingColumn();
+            if (column == null || column.getWidth() == 0) {
+                return;
+            }
+            ShiTunes.db.getColumnConfig().setWidth(column.getIdentifier().toString(), column.getWidth());
+        }
+
+        public void columnAdded(TableColumnModelEvent e) {}
+
+        public void columnRemoved(TableColumnModelEvent e) {}
+
+        public void columnSelectionChanged(ListSelectionEvent e) {}
+    }
+
+    /*
+     * Exports a row dragged within a playlist table as ROW_FLAVOR, so the
+     * drop target can tell it from text or files dropped from elsewhere
+     */
+    private class RowTransferHandler extends TransferHandler {
+        @Override
+        public int getSourceActions(JComponent c) {
+            return MOVE;
+        }
+
+        @Override
+        protected Transferable createTransferable(JComponent c) {
+            return new Transferable() {
+                public DataFlavor[] getTransferDataFlavors() {
+                    return new DataFlavor[] {ROW_FLAVOR};
+                }
+
+                public boolean isDataFlavorSupported(DataFlavor flavor) {
+                    return ROW_FLAVOR.equals(flavor);
+                }
+
+                public Object getTransferData(DataFlavor flavor) throws UnsupportedFlavorException {
+                    if(!isDataFlavorSupported(flavor)) {
+                        throw new UnsupportedFlavorException(flavor);
+                    }
+                    return MusicTable.this;
+                }
+            };
+        }
     }
 
     /**
@@ -135,16 +242,21 @@ public class MusicTable {
      * @param name the table name, either "Library" or [playlist-name]
      */
     public void updateTableModel(String name) {
+        long start = System.nanoTime();
+        ShiTunesEvents.TableRebuild event = new ShiTunesEvents.TableRebuild(name);
         this.name = name;
         if (name.equals("Library")) {
             // update with library contents
-            buildTable(ShiTunes.db.getAllSongs());
             type = LIBRARY;
+            buildTable(ShiTunes.db.getAllSongs());
         } else {
             // update table with playlist songs (type == playlist name)
-            buildTable(ShiTunes.db.getPlaylistSongs(name));
             type = PLAYLIST;
+            buildTable(ShiTunes.db.getPlaylistSongs(name));
         }
+        REBUILD.recordSince(start);
+        event.rows = table.getRowCount();
+        event.commit();
     }
 
     /**
@@ -170,6 +282,38 @@ public class MusicTable {
         updateTableModel(name);
     }
 
+    /**
+     * Moves the song at the given row to the given row
+     * and saves the new play order of the playlist
+     * <p>
+     * Only the moved song's position is written to the database,
+     * based on the rows it is moved from and to, as the same song
+     * can be in the playlist more than once
+     *
+     * @param fromRow the row of the song being moved
+     * @param toRow the row to move the song to
+     */
+    public void moveRow(int fromRow, int toRow) {
+        if (type != PLAYLIST || fromRow == toRow) {
+            return;
+        }
+        DefaultTableModel model = (DefaultTableModel) table.getModel();
+        model.moveRow(fromRow, fromRow, toRow);
+        table.setRowSelectionInterval(toRow, toRow);
+
+        ShiTunes.db.moveSongInPlaylist(name, getSongId(toRow), fromRow, toRow);
+    }
+
+    /*
+     * Returns the unique database id of the song at the given row
+     *
+     * @param row the table row
+     * @return the song id
+     */
+    private int getSongId(int row) {
+        return Integer.parseInt(table.getModel().getValueAt(row, COL_ID).toString());
+    }
+
     /**
      * Gets this MusicTable object's type (LIBRARY or PLAYLIST)
      *
@@ -179,4 +323,13 @@ public class MusicTable {
         return type;
     }
 
+    /**
+     * Gets this MusicTable object's name
+     *
+     * @return "Library" or the playlist name
+     */
+    public String getName() {
+        return name;
+    }
+
 }
@@ -0,0 +1,132 @@
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Control;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.Line;
+import javax.sound.sampled.LineListener;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * The NullSourceDataLine class is a SourceDataLine that discards the
+ * audio written to it, as fast as it is written
+ * <p>
+ * The PipelinePlayer writes to it instead of the sound card when the
+ * shiTunes.pipeline.sink system property is "null", so playback can be
+ * benchmarked and tested on machines without an audio device. The frame
+ * position counts the frames written, so progress is reported as usual.
+ *
+ * @author shiTunes inc.
+ */
+public class NullSourceDataLine implements SourceDataLine {
+
+    private AudioFormat format;
+    private int bufferSize;
+    private volatile long framesWritten;
+    private volatile boolean open;
+    private volatile boolean running;
+
+    public void open(AudioFormat format, int bufferSize) {
+        this.format = format;
+        this.bufferSize = bufferSize;
+        open = true;
+    }
+
+    public void open(AudioFormat format) {
+        open(format, (int) format.getFrameRate() / 2 * format.getFrameSize());
+    }
+
+    public void open() {
+        open(new AudioFormat(44100, 16, 2, true, false));
+    }
+
+    public int write(byte[] bytes, int offset, int length) {
+        framesWritten += length / format.getFrameSize();
+        return length;
+    }
+
+    public void drain() {
+    }
+
+    public void flush() {
+    }
+
+    public void start() {
+        running = true;
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public boolean isActive() {
+        return running;
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns the free space in the buffer, which is always empty
+     *
+     * @return the buffer size
+     */
+    public int available() {
+        return bufferSize;
+    }
+
+    public int getFramePosition() {
+        return (int) framesWritten;
+    }
+
+    public long getLongFramePosition() {
+        return framesWritten;
+    }
+
+    public long getMicrosecondPosition() {
+        return (long) (framesWritten * 1000000L / format.getFrameRate());
+    }
+
+    public float getLevel() {
+        return AudioSystem.NOT_SPECIFIED;
+    }
+
+    public Line.Info getLineInfo() {
+        return new DataLine.Info(SourceDataLine.class, format);
+    }
+
+    public void close() {
+        open = false;
+        running = false;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public Control[] getControls() {
+        return new Control[0];
+    }
+
+    public boolean isControlSupported(Control.Type control) {
+        return false;
+    }
+
+    public Control getControl(Control.Type control) {
+        throw new IllegalArgumentException("Unsupported control type: " + control);
+    }
+
+    public void addLineListener(LineListener listener) {
+    }
+
+    public void removeLineListener(LineListener listener) {
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * The PcmRingBuffer class is a lock-free ring buffer of PCM bytes
+ * for exactly one producer thread and one consumer thread
+ * <p>
+ * The producer only ever moves the write position and the consumer
+ * only ever moves the read position, each after copying the bytes, so
+ * the volatile positions are all the synchronization needed. Neither
+ * side blocks: write() and read() move as many bytes as fit or are
+ * available, and the caller decides whether to wait.
+ *
+ * @author shiTunes inc.
+ */
+public class PcmRingBuffer {
+
+    private final byte[] buffer;
+    private final int mask;
+
+    // Total bytes written and read since creation, only ever increase
+    private volatile long writePosition;
+    private volatile long readPosition;
+
+    /**
+     * Creates a ring buffer holding at least the given number of bytes
+     *
+     * @param minCapacity the minimum capacity in bytes, rounded up to a power of two
+     */
+    public PcmRingBuffer(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, minCapacity) - 1) << 1;
+        buffer = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Returns the number of bytes the buffer holds when full
+     *
+     * @return the capacity in bytes
+     */
+    public int getCapacity() {
+        return buffer.length;
+    }
+
+    /**
+     * Returns the number of bytes waiting to be read
+     *
+     * @return the readable byte count
+     */
+    public int available() {
+        return (int) (writePosition - readPosition);
+    }
+
+    /**
+     * Copies as many of the given bytes as fit into the buffer,
+     * only called by the producer thread
+     *
+     * @param bytes the bytes to write
+     * @param offset the offset of the first byte to write
+     * @param length the number of bytes to write
+     * @return the number of bytes written, 0 if the buffer is full
+     */
+    public int write(byte[] bytes, int offset, int length) {
+        long write = writePosition;
+        int count = Math.min(length, buffer.length - (int) (write - readPosition));
+        if(count <= 0) {
+            return 0;
+        }
+        int start = (int) write & mask;
+        int first = Math.min(count, buffer.length - start);
+        System.arraycopy(bytes, offset, buffer, start, first);
+        System.arraycopy(bytes, offset + first, buffer, 0, count - first);
+        writePosition = write + count;      // publishes the bytes to the consumer
+        return count;
+    }
+
+    /**
+     * Copies as many bytes as are available out of the buffer,
+     * only called by the consumer thread
+     *
+     * @param bytes the array to copy into
+     * @param offset the offset of the first byte to copy into
+     * @param length the maximum number of bytes to read
+     * @return the number of bytes read, 0 if the buffer is empty
+     */
+    public int read(byte[] bytes, int offset, int length) {
+        long read = readPosition;
+        int count = Math.min(length, (int) (writePosition - read));
+        if(count <= 0) {
+            return 0;
+        }
+        int start = (int) read & mask;
+        int first = Math.min(count, buffer.length - start);
+        System.arraycopy(buffer, start, bytes, offset, first);
+        System.arraycopy(buffer, 0, bytes, offset + first, count - first);
+        readPosition = read + count;        // hands the space back to the producer
+        return count;
+    }
+}
@@ -0,0 +1,1015 @@
+import javazoom.jlgui.basicplayer.BasicController;
+import javazoom.jlgui.basicplayer.BasicPlayer;
+import javazoom.jlgui.basicplayer.BasicPlayerEvent;
+import javazoom.jlgui.basicplayer.BasicPlayerException;
+import javazoom.jlgui.basicplayer.BasicPlayerListener;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.FloatControl;
+import javax.sound.sampled.SourceDataLine;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The PipelinePlayer class is a playback engine with its own decode
+ * and output threads, a drop-in replacement for BasicPlayer
+ * <p>
+ * A decode thread reads PCM from the decoded audio stream into a
+ * PcmRingBuffer, and an output thread of high priority moves it from
+ * the ring buffer to the SourceDataLine. A slow decode (eg. while the
+ * disk or the CPU is busy) is absorbed by the ring buffer instead of
+ * starving the line. The ring buffer length, the line buffer length
+ * and both thread priorities are configurable, and every time the line
+ * runs dry while the song is still decoding an underrun is counted.
+ * <p>
+ * The line stays open from one song to the next as long as their audio
+ * format (sample rate, channels) is the same, so switching tracks does
+ * not wait for the sound card to be released and opened again. The time
+ * from opening a song to writing its first sample to the line is
+ * recorded by the pipeline.firstSample metric.
+ * <p>
+ * Consecutive songs of the same format are crossfaded. When a song
+ * reaches the last crossfadeMillis of its length it is reported ended
+ * (EOM, then STOPPED) but keeps playing as the tail of the session, and
+ * the next song played is mixed over it with equal-power curves by the
+ * CrossfadeMixer. Each song has its own decode thread and bounded ring
+ * buffer, so both are decoded at once during the overlap. With no
+ * crossfade the next song follows the last sample of the previous one
+ * without a gap.
+ * <p>
+ * Each song may be given its own gain (setTrackGain) to bring it to the
+ * same loudness as the others, applied before it is mixed.
+ * <p>
+ * Before it is written to the line the PCM goes through a DspChain: a
+ * 10 band equalizer, the volume (set in software by setGain, so it does
+ * not depend on the line having a gain control) and a limiter.
+ * <p>
+ * Listeners receive the same BasicPlayerListener callbacks as from
+ * BasicPlayer. Those raised while playing (progress, and EOM then
+ * STOPPED at the end of a song) are called on a notifier thread, never
+ * on the output thread: a listener playing the next song, as Window
+ * does, would otherwise stop the line being fed meanwhile. Progress is
+ * coalesced, a listener slower than the chunks only getting the latest.
+ *
+ * @author shiTunes inc.
+ */
+public class PipelinePlayer implements BasicController {
+
+    /**
+     * The default length of the ring buffer, in milliseconds of audio
+     */
+    public static final int DEFAULT_BUFFER_MILLIS = 2000;
+
+    /**
+     * The default length of the line buffer, in milliseconds of audio
+     */
+    public static final int DEFAULT_LINE_MILLIS = 100;
+
+    /**
+     * The longest crossfade, in milliseconds
+     */
+    public static final int MAX_CROSSFADE_MILLIS = 12000;
+
+    // Audio moved by each read and write, in milliseconds
+    private static final int CHUNK_MILLIS = 20;
+
+    // How long a thread waits for the ring buffer before looking again
+    private static final long PARK_NANOS = 2000000L;
+    private static final long JOIN_MILLIS = 1000;
+
+    private static final Metrics.Counter UNDERRUNS = Metrics.counter("pipeline.underruns");
+    private static final Metrics.Histogram DECODE = Metrics.histogram("pipeline.decode");
+    private static final Metrics.Histogram FIRST_SAMPLE = Metrics.histogram("pipeline.firstSample");
+    private static final Metrics.Counter LINE_OPENS = Metrics.counter("pipeline.line.opens");
+    private static final Metrics.Counter LINE_REUSES = Metrics.counter("pipeline.line.reuses");
+    private static final Metrics.Counter CROSSFADES = Metrics.counter("pipeline.crossfades");
+    private static final Metrics.Histogram MIX = Metrics.histogram("pipeline.crossfade.mix");
+
+    private final int bufferMillis;
+    private final int lineMillis;
+    private final int decodePriority;
+    private final int outputPriority;
+    private final boolean reuseLine;
+    private final boolean nullSink;
+
+    private final List<BasicPlayerListener> listeners = new CopyOnWriteArrayList<BasicPlayerListener>();
+    private final ThreadPoolExecutor notifier = new ThreadPoolExecutor(1, 1, 5, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Pipeline-events");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final AtomicReference<Progress> pendingProgress = new AtomicReference<Progress>();
+    private volatile int status = BasicPlayer.UNKNOWN;
+    private volatile Session session;
+    private Voice opened;                     // opened but not yet played, guarded by this
+    private SourceDataLine line;              // kept open between songs, guarded by this
+    private final EqualizerStage equalizer = new EqualizerStage();
+    private final GainStage gainStage = new GainStage();
+    private final DspChain dsp = DspChain.create(equalizer, gainStage, new LimiterStage());
+    private volatile double pan;
+    private volatile int crossfadeMillis;
+    private volatile long underrunCount;
+
+    /*
+     * The progress of the song playing, as last written to the line
+     */
+    private static class Progress {
+        final int bytesRead;
+        final long micros;
+        final byte[] pcm;       // a copy, the output thread reuses its chunk
+        final Map<String, Object> properties;
+
+        Progress(int bytesRead, long micros, byte[] pcm, Map<String, Object> properties) {
+            this.bytesRead = bytesRead;
+            this.micros = micros;
+            this.pcm = pcm;
+            this.properties = properties;
+        }
+    }
+
+    /*
+     * One opened song: its decoded stream, and the decode thread
+     * filling its ring buffer once it is played
+     */
+    private class Voice {
+        final Object source;
+        final AudioInputStream stream;
+        final AudioFormat format;
+        final Map<String, Object> properties;
+        final long openNanos;       // when the song was opened
+        final long lengthFrames;    // from the duration property, -1 if unknown
+        PcmRingBuffer ring;
+        Thread decoder;
+        volatile Thread output;     // the output thread mixing the voice
+        volatile boolean stopped;
+        volatile boolean decoded;   // the decoder reached the end of the stream
+        volatile float trackGain = 1.0f;
+        long framesMixed;           // only used by the output thread
+        long startFrame = -1;       // line frame position of its first frame
+
+        Voice(Object source, AudioInputStream stream, Map<String, Object> properties, long openNanos) {
+            this.openNanos = openNanos;
+            this.source = source;
+            this.stream = stream;
+            this.format = stream.getFormat();
+            this.properties = properties;
+            Object duration = properties.get("duration");
+            lengthFrames = duration instanceof Long
+                    ? (long) ((Long) duration * (double) format.getFrameRate() / 1000000) : -1;
+        }
+
+        int bytesFor(int millis) {
+            return (int) (format.getFrameRate() * millis / 1000) * format.getFrameSize();
+        }
+
+        /*
+         * Returns true once every decoded frame has been mixed
+         */
+        boolean finished() {
+            return decoded && ring.available() < format.getFrameSize();
+        }
+
+        /*
+         * Returns the frames left before the song should start fading
+         * out, or Long.MAX_VALUE if it plays to the end (no crossfade,
+         * an unknown length, or a song too short to fade)
+         */
+        long framesToFade(int fadeFrames) {
+            if(fadeFrames == 0 || lengthFrames < 2L * fadeFrames) {
+                return Long.MAX_VALUE;
+            }
+            return lengthFrames - fadeFrames - framesMixed;
+        }
+
+        void close() {
+            stopped = true;
+            join(decoder);
+            try {
+                stream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /*
+     * The output thread and the line it writes to, playing one voice
+     * after another, and two at once while they crossfade
+     */
+    private class Session {
+        final AudioFormat format;
+        final int chunkSize;
+        SourceDataLine line;
+        long lineStartFrame;        // line frame position when the session started
+        long framesWritten;         // only used by the output thread
+        Thread output;
+        volatile Voice current;     // the song reported to the listeners
+        volatile Voice tail;        // the end of the previous song, fading out
+        volatile boolean stopped;
+        boolean ending;             // no more voices are accepted, guarded by PipelinePlayer.this
+
+        Session(AudioFormat format) {
+            this.format = format;
+            int frameSize = format.getFrameSize();
+            chunkSize = Math.max(1, (int) (format.getFrameRate() * CHUNK_MILLIS / 1000)) * frameSize;
+        }
+
+        int crossfadeFrames() {
+            return (int) (format.getFrameRate() * crossfadeMillis / 1000);
+        }
+
+        /*
+         * Marks the session stopped
+         *
+         * @return true if it was running, only one caller stops a session
+         */
+        synchronized boolean stop() {
+            boolean running = !stopped;
+            stopped = true;
+            return running;
+        }
+    }
+
+    /**
+     * Creates a player configured by the system properties
+     * shiTunes.pipeline.bufferMillis, shiTunes.pipeline.lineMillis,
+     * shiTunes.pipeline.decodePriority, shiTunes.pipeline.outputPriority,
+     * shiTunes.pipeline.reuseLine ("false" to open a line for every song),
+     * shiTunes.pipeline.sink ("null" to discard the audio) and
+     * shiTunes.pipeline.crossfadeMillis
+     */
+    public PipelinePlayer() {
+        this(Integer.getInteger("shiTunes.pipeline.bufferMillis", DEFAULT_BUFFER_MILLIS),
+                Integer.getInteger("shiTunes.pipeline.lineMillis", DEFAULT_LINE_MILLIS),
+                Integer.getInteger("shiTunes.pipeline.decodePriority", Thread.NORM_PRIORITY),
+                Integer.getInteger("shiTunes.pipeline.outputPriority", Thread.MAX_PRIORITY),
+                !"false".equals(System.getProperty("shiTunes.pipeline.reuseLine")),
+                "null".equals(System.getProperty("shiTunes.pipeline.sink")));
+        setCrossfadeMillis(Integer.getInteger("shiTunes.pipeline.crossfadeMillis", 0));
+    }
+
+    /**
+     * Creates a player
+     *
+     * @param bufferMillis the length of the ring buffer between the decode and output threads
+     * @param lineMillis the length of the SourceDataLine buffer
+     * @param decodePriority the priority of the decode thread
+     * @param outputPriority the priority of the output thread
+     */
+    public PipelinePlayer(int bufferMillis, int lineMillis, int decodePriority, int outputPriority) {
+        this(bufferMillis, lineMillis, decodePriority, outputPriority, true, false);
+    }
+
+    /**
+     * Creates a player
+     *
+     * @param bufferMillis the length of the ring buffer between the decode and output threads
+     * @param lineMillis the length of the SourceDataLine buffer
+     * @param decodePriority the priority of the decode thread
+     * @param outputPriority the priority of the output thread
+     * @param reuseLine true to keep the line open for the next song of the same format
+     * @param nullSink true to discard the audio instead of playing it
+     */
+    public PipelinePlayer(int bufferMillis, int lineMillis, int decodePriority, int outputPriority,
+                          boolean reuseLine, boolean nullSink) {
+        this.reuseLine = reuseLine;
+        this.nullSink = nullSink;
+        this.bufferMillis = Math.max(CHUNK_MILLIS * 2, bufferMillis);
+        this.lineMillis = Math.max(CHUNK_MILLIS, lineMillis);
+        this.decodePriority = decodePriority;
+        this.outputPriority = outputPriority;
+        notifier.allowCoreThreadTimeOut(true);     // no thread kept while nothing plays
+    }
+
+    /**
+     * Adds a listener notified of the player's state and progress
+     *
+     * @param listener the listener to add
+     */
+    public void addBasicPlayerListener(BasicPlayerListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener
+     *
+     * @param listener the listener to remove
+     */
+    public void removeBasicPlayerListener(BasicPlayerListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns the player's status
+     *
+     * @return BasicPlayer.UNKNOWN, OPENED, PLAYING, PAUSED or STOPPED
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the number of times the line ran dry while a song was still decoding
+     *
+     * @return the underrun count of this player since it was created
+     */
+    public long getUnderrunCount() {
+        return underrunCount;
+    }
+
+    /**
+     * Returns the number of bytes of the current song decoded but not
+     * yet written to the line
+     *
+     * @return the bytes in its ring buffer, 0 if no song is playing
+     */
+    public int getBufferedBytes() {
+        Session current = session;
+        Voice voice = current == null ? null : current.current;
+        return voice == null || voice.ring == null ? 0 : voice.ring.available();
+    }
+
+    /**
+     * Sets how long the end of a song overlaps the start of the next,
+     * from the next song to reach its end
+     *
+     * @param millis the crossfade length, clamped to [0, MAX_CROSSFADE_MILLIS],
+     *               0 to play songs one after the other
+     */
+    public void setCrossfadeMillis(int millis) {
+        crossfadeMillis = Math.max(0, Math.min(MAX_CROSSFADE_MILLIS, millis));
+    }
+
+    /**
+     * Returns how long the end of a song overlaps the start of the next
+     *
+     * @return the crossfade length in milliseconds, 0 if songs do not overlap
+     */
+    public int getCrossfadeMillis() {
+        return crossfadeMillis;
+    }
+
+    /**
+     * Sets the gain of the song opened, bringing it to the same loudness
+     * as the others; called between open() and play(). It applies to that
+     * song only, so it does not change the level of the song it is
+     * crossfaded with.
+     *
+     * @param gainDb the track gain in decibels, 0 to play the song as it is
+     */
+    public synchronized void setTrackGain(double gainDb) {
+        if(opened != null) {
+            opened.trackGain = (float) Math.pow(10, gainDb / 20);
+        }
+    }
+
+    /**
+     * Returns the signal processing applied before output, stages
+     * may be added to it
+     *
+     * @return the DSP chain
+     */
+    public DspChain getDspChain() {
+        return dsp;
+    }
+
+    /**
+     * Returns the equalizer of the DSP chain
+     *
+     * @return the equalizer
+     */
+    public EqualizerStage getEqualizer() {
+        return equalizer;
+    }
+
+    /* *************** */
+    /* Opening Streams */
+    /* *************** */
+
+    public void open(File file) throws BasicPlayerException {
+        try {
+            Map<String, Object> properties = new HashMap<String, Object>();
+            AudioFileFormat fileFormat = AudioSystem.getAudioFileFormat(file);
+            properties.putAll(fileFormat.properties());
+            InputStream in = new BufferedInputStream(AudioSource.open(file));
+            AudioInputStream encoded;
+            try {
+                encoded = AudioSystem.getAudioInputStream(in);
+            } catch (Exception e) {
+                in.close();
+                throw e;
+            }
+            open(file, encoded, properties);
+        } catch (BasicPlayerException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new BasicPlayerException(e);
+        }
+    }
+
+    public void open(InputStream in) throws BasicPlayerException {
+        open(in, -1);
+    }
+
+    /**
+     * Opens a stream of known length, so its end can be crossfaded
+     * into the next song
+     *
+     * @param in the encoded stream
+     * @param durationMillis the length of the stream, -1 if unknown
+     */
+    public void open(InputStream in, long durationMillis) throws BasicPlayerException {
+        try {
+            Map<String, Object> properties = new HashMap<String, Object>();
+            if(durationMillis >= 0) {
+                properties.put("duration", durationMillis * 1000);     // in microseconds, as from mp3spi
+            }
+            InputStream buffered = in.markSupported() ? in : new BufferedInputStream(in);
+            open(in, AudioSystem.getAudioInputStream(buffered), properties);
+        } catch (BasicPlayerException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new BasicPlayerException(e);
+        }
+    }
+
+    public void open(URL url) throws BasicPlayerException {
+        try {
+            Map<String, Object> properties = new HashMap<String, Object>();
+            properties.putAll(AudioSystem.getAudioFileFormat(url).properties());
+            open(url, AudioSystem.getAudioInputStream(url), properties);
+        } catch (BasicPlayerException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new BasicPlayerException(e);
+        }
+    }
+
+    /*
+     * Stops the song playing, if any, and opens the encoded stream
+     * decoding to 16 bit signed PCM. The tail of a song that has
+     * ended keeps playing, to be crossfaded into the opened song.
+     */
+    private void open(Object source, AudioInputStream encoded, Map<String, Object> properties)
+            throws BasicPlayerException {
+        long start = System.nanoTime();
+        Session current = session;
+        if(current != null && current.current != null) {
+            close(current);
+        }
+        closeOpened();
+        notifyEvent(BasicPlayerEvent.OPENING, source);
+
+        AudioFormat base = encoded.getFormat();
+        AudioFormat pcm = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, base.getSampleRate(), 16,
+                base.getChannels(), base.getChannels() * 2, base.getSampleRate(), false);
+        AudioInputStream decoded = Mp3ConversionProvider.decode(pcm, encoded);
+        Voice voice = new Voice(source, decoded, properties, start);
+        synchronized (this) {
+            opened = voice;
+        }
+        status = BasicPlayer.OPENED;
+
+        Map<String, Object> unmodifiable = Collections.unmodifiableMap(properties);
+        for(BasicPlayerListener listener : listeners) {
+            listener.opened(source, unmodifiable);
+        }
+        notifyEvent(BasicPlayerEvent.OPENED, source);
+    }
+
+    /*
+     * Takes the voice opened but not yet played
+     *
+     * @return the voice, or null if there is none
+     */
+    private synchronized Voice takeOpened() {
+        Voice voice = opened;
+        opened = null;
+        return voice;
+    }
+
+    private void closeOpened() {
+        Voice voice = takeOpened();
+        if(voice != null) {
+            voice.close();
+        }
+    }
+
+    /* ***************** */
+    /* Playback Controls */
+    /* ***************** */
+
+    /**
+     * Plays the opened song, mixed over the tail of the previous song
+     * if it has the same format, or on a new session otherwise
+     */
+    public void play() throws BasicPlayerException {
+        final Voice voice = takeOpened();
+        if(voice == null) {
+            return;
+        }
+        voice.ring = new PcmRingBuffer(voice.bytesFor(bufferMillis));
+
+        Session current = session;
+        boolean attached = false;
+        synchronized (this) {
+            if(current != null && !current.stopped && !current.ending && current.current == null
+                    && current.format.matches(voice.format)) {
+                voice.output = current.output;
+                current.current = voice;
+                status = BasicPlayer.PLAYING;
+                attached = true;
+            }
+        }
+        if(!attached) {
+            close(current);     // cuts the tail of a song of another format
+            final Session started = new Session(voice.format);
+            try {
+                started.line = acquireLine(voice.format);
+                dsp.configure(voice.format.getSampleRate(), voice.format.getChannels(), started.chunkSize);
+                started.lineStartFrame = started.line.getLongFramePosition();
+            } catch (Exception e) {
+                voice.close();
+                status = BasicPlayer.STOPPED;
+                throw new BasicPlayerException(e);
+            }
+            started.output = new Thread(new Runnable() {
+                public void run() {
+                    outputLoop(started);
+                }
+            }, "Pipeline-output");
+            started.output.setDaemon(true);
+            started.output.setPriority(outputPriority);
+            started.current = voice;
+            voice.output = started.output;
+            session = started;
+            status = BasicPlayer.PLAYING;
+            started.output.start();
+        }
+
+        voice.decoder = new Thread(new Runnable() {
+            public void run() {
+                decodeLoop(voice);
+            }
+        }, "Pipeline-decoder");
+        voice.decoder.setDaemon(true);
+        voice.decoder.setPriority(decodePriority);
+        voice.decoder.start();
+        notifyEvent(BasicPlayerEvent.PLAYING, voice.source);
+    }
+
+    public void pause() throws BasicPlayerException {
+        Session current = session;
+        if(current == null || status != BasicPlayer.PLAYING) {
+            return;
+        }
+        status = BasicPlayer.PAUSED;
+        current.line.stop();    // keeps the buffered audio, resume carries on from it
+        Voice voice = current.current;
+        notifyEvent(BasicPlayerEvent.PAUSED, voice == null ? null : voice.source);
+    }
+
+    public void resume() throws BasicPlayerException {
+        Session current = session;
+        if(current == null || status != BasicPlayer.PAUSED) {
+            return;
+        }
+        status = BasicPlayer.PLAYING;
+        current.line.start();
+        LockSupport.unpark(current.output);
+        Voice voice = current.current;
+        notifyEvent(BasicPlayerEvent.RESUMED, voice == null ? null : voice.source);
+    }
+
+    /**
+     * Stops the song playing or opened, and cuts the tail of a song
+     * that has ended
+     */
+    public void stop() throws BasicPlayerException {
+        Voice unplayed = takeOpened();
+        Session current = session;
+        Voice playing = current == null ? null : current.current;
+        close(current);
+        if(unplayed != null) {
+            unplayed.close();
+        }
+        if(playing == null && unplayed == null) {
+            return;     // at most a tail was cut, its song was already reported stopped
+        }
+        status = BasicPlayer.STOPPED;
+        notifyEvent(BasicPlayerEvent.STOPPED, playing != null ? playing.source : unplayed.source);
+    }
+
+    /**
+     * Not supported: the stream can only be reopened at a frame,
+     * as MusicPlayer.seek does with a FrameIndex
+     */
+    public long seek(long bytes) throws BasicPlayerException {
+        throw new BasicPlayerException("PipelinePlayer seeks by reopening the stream at a frame");
+    }
+
+    /**
+     * Sets the volume of the software gain stage
+     *
+     * @param gain the volume in [0.0, 1.0], mapped to decibels as by BasicPlayer
+     */
+    public void setGain(double gain) throws BasicPlayerException {
+        gainStage.setVolume(gain);
+        notifyEvent(BasicPlayerEvent.GAIN, gain);
+    }
+
+    public void setPan(double pan) throws BasicPlayerException {
+        this.pan = pan;
+        Session current = session;
+        if(current != null && current.line != null) {
+            applyPan(current.line);
+        }
+        notifyEvent(BasicPlayerEvent.PAN, pan);
+    }
+
+    /* ********************* */
+    /* Decode & Output Loops */
+    /* ********************* */
+
+    /*
+     * The decode thread of a voice: fills its ring buffer until the
+     * end of the stream, waiting whenever it is full
+     */
+    private void decodeLoop(Voice voice) {
+        byte[] chunk = new byte[voice.bytesFor(CHUNK_MILLIS)];
+        int length = 0;
+        int offset = 0;
+        try {
+            while(!voice.stopped) {
+                if(offset == length) {
+                    long start = System.nanoTime();
+                    length = readFully(voice.stream, chunk);
+                    DECODE.recordSince(start);
+                    offset = 0;
+                    if(length <= 0) {
+                        break;
+                    }
+                }
+                boolean wasEmpty = voice.ring.available() == 0;
+                int written = voice.ring.write(chunk, offset, length - offset);
+                offset += written;
+                if(written == 0) {
+                    LockSupport.parkNanos(PARK_NANOS);
+                } else if(wasEmpty) {
+                    LockSupport.unpark(voice.output);   // don't leave the output waiting for its next look
+                }
+            }
+        } catch (IOException e) {
+            if(!voice.stopped) {
+                e.printStackTrace();
+            }
+        } finally {
+            voice.decoded = true;
+            LockSupport.unpark(voice.output);
+        }
+    }
+
+    /*
+     * The output thread: mixes whole frames of the current song and
+     * the tail of the previous one, writes them to the line and reports
+     * progress, until a song ends and no other is played after it
+     */
+    private void outputLoop(Session current) {
+        SourceDataLine line = current.line;
+        int frameSize = current.format.getFrameSize();
+        int channels = current.format.getChannels();
+        long frameRate = (long) current.format.getFrameRate();
+        byte[] chunk = new byte[current.chunkSize];
+        byte[] tailChunk = new byte[current.chunkSize];
+        boolean starving = false;
+        Voice fadingIn = null;      // the voice the tail is fading into
+        int fadeFrames = 0;
+        int fadePosition = 0;
+
+        line.start();
+        while(!current.stopped) {
+            if(status == BasicPlayer.PAUSED) {
+                LockSupport.parkNanos(PARK_NANOS);
+                continue;
+            }
+            Voice voice = current.current;
+            Voice tail = current.tail;
+            int crossfadeFrames = current.crossfadeFrames();
+
+            // the song ends, or its tail starts
+            if(voice != null && (voice.finished() || voice.framesToFade(crossfadeFrames) <= 0)) {
+                endSong(current, voice);
+                continue;
+            }
+            if(tail != null && (tail.finished() || voice != null && voice == fadingIn && fadePosition >= fadeFrames)) {
+                current.tail = null;
+                tail.close();
+                continue;
+            }
+            if(voice == null && tail == null) {
+                if(line.available() < line.getBufferSize() - frameSize) {
+                    LockSupport.parkNanos(PARK_NANOS);  // still playing, the next song may follow without a gap
+                    continue;
+                }
+                synchronized (this) {
+                    current.ending = current.current == null;
+                }
+                if(current.ending) {
+                    break;
+                }
+                continue;
+            }
+
+            // the frames every voice has ready, up to where the current song starts fading out
+            int frames = chunk.length / frameSize;
+            if(voice != null) {
+                frames = Math.min(frames, voice.ring.available() / frameSize);
+                frames = (int) Math.min(frames, voice.framesToFade(crossfadeFrames));
+            }
+            if(tail != null) {
+                frames = Math.min(frames, tail.ring.available() / frameSize);
+            }
+            if(frames == 0) {
+                if(current.framesWritten > 0 && !starving
+                        && line.available() >= line.getBufferSize() - frameSize) {
+                    starving = true;    // the line has run dry, one dropout whatever its length
+                    underrunCount++;
+                    UNDERRUNS.increment();
+                }
+                LockSupport.parkNanos(PARK_NANOS);
+                continue;
+            }
+
+            int length = frames * frameSize;
+            if(voice != null) {
+                if(voice.startFrame < 0) {
+                    voice.startFrame = current.lineStartFrame + current.framesWritten;
+                    FIRST_SAMPLE.recordSince(voice.openNanos);
+                }
+                voice.ring.read(chunk, 0, length);
+                voice.framesMixed += frames;
+                scale(voice, chunk, length);
+                if(tail != null) {
+                    if(fadingIn != voice) {
+                        long remaining = tail.lengthFrames - tail.framesMixed;
+                        fadingIn = voice;
+                        fadeFrames = (int) Math.max(1, remaining > 0
+                                ? Math.min(crossfadeFrames, remaining) : crossfadeFrames);
+                        fadePosition = 0;
+                        CROSSFADES.increment();
+                    }
+                    tail.ring.read(tailChunk, 0, length);
+                    tail.framesMixed += frames;
+                    scale(tail, tailChunk, length);
+                    long start = System.nanoTime();
+                    fadePosition = CrossfadeMixer.mix(chunk, tailChunk, length, channels, fadePosition, fadeFrames);
+                    MIX.recordSince(start);
+                }
+            } else {
+                tail.ring.read(chunk, 0, length);      // no next song yet, the tail plays on alone
+                tail.framesMixed += frames;
+                scale(tail, chunk, length);
+            }
+            current.framesWritten += frames;
+            starving = false;
+            dsp.process(chunk, 0, length);
+            line.write(chunk, 0, length);
+
+            if(voice != null && !listeners.isEmpty()) {
+                long micros = Math.max(0, line.getLongFramePosition() - voice.startFrame) * 1000000L / frameRate;
+                postProgress(new Progress((int) (voice.framesMixed * frameSize), micros,
+                        Arrays.copyOf(chunk, length), voice.properties));
+            }
+        }
+
+        if(current.stopped) {
+            return;     // stopped or replaced, by stop() or play()
+        }
+        line.drain();
+        close(current);
+    }
+
+    private static void scale(Voice voice, byte[] pcm, int length) {
+        float gain = voice.trackGain;
+        if(gain != 1.0f) {
+            CrossfadeMixer.scale(pcm, length, gain);
+        }
+    }
+
+    /*
+     * Reports the end of the current song, which keeps playing as the
+     * session's tail if it is to be crossfaded into the next song
+     */
+    private void endSong(Session current, Voice voice) {
+        boolean fading = !voice.finished();
+        Voice cut = null;
+        synchronized (this) {
+            if(current.stopped) {
+                return;
+            }
+            current.current = null;
+            if(fading) {
+                cut = current.tail;     // still fading, the song was barely longer than the crossfade
+                current.tail = voice;
+            }
+            status = BasicPlayer.STOPPED;
+        }
+        if(cut != null) {
+            cut.close();
+        }
+        if(!fading) {
+            voice.close();
+        }
+        postEvent(BasicPlayerEvent.EOM, voice.source);
+        postEvent(BasicPlayerEvent.STOPPED, voice.source);
+    }
+
+    /*
+     * Stops the session's threads and closes its voices, the line
+     * is stopped and emptied and left open for the next song
+     *
+     * @return true if this call stopped the session
+     */
+    private boolean close(Session current) {
+        if(current == null) {
+            return false;
+        }
+        if(!current.stop()) {
+            join(current.output);   // another thread is closing it, wait until the line is free
+            return false;
+        }
+        SourceDataLine line = current.line;
+        if(line != null) {
+            line.stop();
+            line.flush();   // releases an output thread blocked in write
+        }
+        join(current.output);
+        Voice voice = current.current;
+        if(voice != null) {
+            voice.close();
+        }
+        Voice tail = current.tail;
+        if(tail != null) {
+            tail.close();
+        }
+        if(!reuseLine) {
+            releaseLine();
+        }
+        return true;
+    }
+
+    /*
+     * Waits for a session thread to finish, unless it is
+     * the calling thread (a listener reacting to an event)
+     */
+    private static void join(Thread thread) {
+        if(thread == null || thread == Thread.currentThread()) {
+            return;
+        }
+        LockSupport.unpark(thread);
+        try {
+            thread.join(JOIN_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Reads until the chunk is full or the stream ends
+     *
+     * @return the number of bytes read, -1 at the end of the stream
+     */
+    private static int readFully(InputStream in, byte[] chunk) throws IOException {
+        int length = 0;
+        while(length < chunk.length) {
+            int count = in.read(chunk, length, chunk.length - length);
+            if(count == -1) {
+                return length == 0 ? -1 : length;
+            }
+            length += count;
+        }
+        return length;
+    }
+
+    /* *************** */
+    /* Line & Controls */
+    /* *************** */
+
+    /*
+     * Returns the open line if it plays the given format, or closes
+     * it and opens a line for the format with a buffer of lineMillis
+     */
+    private synchronized SourceDataLine acquireLine(AudioFormat format) throws Exception {
+        if(line != null && line.isOpen() && line.getFormat().matches(format)) {
+            LINE_REUSES.increment();
+            return line;
+        }
+        releaseLine();
+        SourceDataLine opened;
+        if(nullSink) {
+            opened = new NullSourceDataLine();
+        } else {
+            opened = (SourceDataLine) AudioSystem.getLine(new DataLine.Info(SourceDataLine.class, format));
+        }
+        int frameSize = format.getFrameSize();
+        opened.open(format, Math.max(frameSize, (int) (format.getFrameRate() * lineMillis / 1000)) * frameSize);
+        LINE_OPENS.increment();
+        applyPan(opened);
+        line = opened;
+        return line;
+    }
+
+    /**
+     * Closes the line kept open between songs, if no song is playing
+     * <p>
+     * The line is otherwise only closed when a song of another format is played
+     */
+    public void closeLine() {
+        Session current = session;
+        if(current != null && !current.stopped && (current.current != null || current.tail != null)) {
+            return;
+        }
+        close(current);
+        releaseLine();
+    }
+
+    private synchronized void releaseLine() {
+        if(line != null) {
+            line.close();
+            line = null;
+        }
+    }
+
+    private void applyPan(SourceDataLine line) {
+        if(line.isControlSupported(FloatControl.Type.PAN)) {
+            ((FloatControl) line.getControl(FloatControl.Type.PAN)).setValue((float) pan);
+        }
+    }
+
+    private void notifyEvent(int code, Object description) {
+        notifyEvent(code, 0, description);
+    }
+
+    private void notifyEvent(int code, double value) {
+        notifyEvent(code, value, null);
+    }
+
+    private void notifyEvent(int code, double value, Object description) {
+        BasicPlayerEvent event = new BasicPlayerEvent(this, code, -1, value, description);
+        for(BasicPlayerListener listener : listeners) {
+            listener.stateUpdated(event);
+        }
+    }
+
+    /*
+     * Notifies the listeners on the notifier thread, after
+     * the progress and events posted before
+     */
+    private void postEvent(final int code, final Object description) {
+        notifier.execute(new Runnable() {
+            public void run() {
+                notifyEvent(code, description);
+            }
+        });
+    }
+
+    /*
+     * Hands the progress to the notifier thread, replacing
+     * any progress it has not reported yet
+     */
+    private void postProgress(Progress progress) {
+        if(pendingProgress.getAndSet(progress) != null) {
+            return;     // already queued, it will report this one
+        }
+        notifier.execute(new Runnable() {
+            public void run() {
+                Progress latest = pendingProgress.getAndSet(null);
+                for(BasicPlayerListener listener : listeners) {
+                    listener.progress(latest.bytesRead, latest.micros, latest.pcm, latest.properties);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,83 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * The ProcessStats class reports how long shiTunes took to start and
+ * how much memory it holds, so the GUI and the daemon can be compared
+ * <p>
+ * The resident set size is read from /proc/self/status, on Linux only.
+ * Both are registered as the process.startupMillis and process.rssKB
+ * metrics.
+ *
+ * @author shiTunes inc.
+ */
+public class ProcessStats {
+
+    private static volatile long startupMillis = -1;
+
+    static {
+        Metrics.register(new Metrics.Gauge("process.startupMillis") {
+            public long get() {
+                return startupMillis;
+            }
+        });
+        Metrics.register(new Metrics.Gauge("process.rssKB") {
+            public long get() {
+                return getResidentKB();
+            }
+        });
+    }
+
+    private ProcessStats() {
+    }
+
+    /**
+     * Records that shiTunes has started and prints the time it took
+     * and the memory it holds
+     *
+     * @param mode the mode shiTunes started in, eg. "GUI" or "daemon"
+     */
+    public static void started(String mode) {
+        startupMillis = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        long resident = getResidentKB();
+        System.out.println("shiTunes " + mode + " started in " + startupMillis + " ms"
+                + (resident == -1 ? "" : ", " + resident / 1024 + " MB resident"));
+    }
+
+    /**
+     * Returns the time from the JVM starting to started() being called
+     *
+     * @return the startup time in milliseconds, -1 until started
+     */
+    public static long getStartupMillis() {
+        return startupMillis;
+    }
+
+    /**
+     * Returns the memory of the process held in RAM
+     *
+     * @return the resident set size in KB, -1 if it is not known
+     */
+    public static long getResidentKB() {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+            try {
+                String line;
+                while((line = reader.readLine()) != null) {
+                    if(line.startsWith("VmRSS:")) {
+                        return Long.parseLong(line.substring(6).replace("kB", "").trim());
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // not Linux
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,146 @@
+import javax.swing.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+
+/**
+ * The ProgressPublisher class shows the playing position of a
+ * song on a window's progress bar and elapsed & remaining timers
+ * <p>
+ * BasicPlayer reports progress many times a second on its own thread.
+ * Those reports only store the latest position; a Swing timer on the
+ * EDT then updates the components at most REFRESH_RATE times a second,
+ * and only when the displayed second or percentage has changed. The
+ * timer stops while the window is minimized.
+ *
+ * @author shiTunes inc.
+ */
+public class ProgressPublisher {
+
+    /**
+     * The number of progress updates per second
+     */
+    public static final int REFRESH_RATE = 10;
+
+    private static final String ZERO_TIME = "00:00:00";
+    private static final char[][] TWO_DIGITS = new char[100][];
+
+    static {
+        for(int i = 0; i < TWO_DIGITS.length; i++) {
+            TWO_DIGITS[i] = new char[] {(char) ('0' + i / 10), (char) ('0' + i % 10)};
+        }
+    }
+
+    private final JProgressBar progressBar;
+    private final JLabel elapsedLabel;
+    private final JLabel remainingLabel;
+    private final Timer timer;
+
+    // The latest position, written by the player thread
+    private volatile long elapsedMillis;
+    private volatile long durationMillis;
+
+    // What is currently displayed, only used on the EDT
+    private long displayedElapsedSeconds = -1;
+    private long displayedRemainingSeconds = -1;
+    private int displayedPercent = -1;
+
+    /**
+     * Creates a publisher updating the given components while the given window is showing
+     *
+     * @param frame the window holding the components
+     * @param progressBar the progress bar showing the percentage played
+     * @param elapsedLabel the label showing the time elapsed
+     * @param remainingLabel the label showing the time remaining
+     */
+    public ProgressPublisher(JFrame frame, JProgressBar progressBar, JLabel elapsedLabel, JLabel remainingLabel) {
+        this.progressBar = progressBar;
+        this.elapsedLabel = elapsedLabel;
+        this.remainingLabel = remainingLabel;
+        timer = new Timer(1000 / REFRESH_RATE, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                refresh();
+            }
+        });
+        timer.setCoalesce(true);
+
+        frame.addWindowListener(new WindowAdapter() {
+            public void windowIconified(WindowEvent e) {
+                timer.stop();
+            }
+
+            public void windowDeiconified(WindowEvent e) {
+                refresh();
+                timer.start();
+            }
+
+            public void windowClosed(WindowEvent e) {
+                timer.stop();
+            }
+        });
+        timer.start();
+    }
+
+    /**
+     * Records the playing position, may be called from any thread
+     *
+     * @param elapsedMillis the time played
+     * @param durationMillis the length of the song, 0 if unknown
+     */
+    public void publish(long elapsedMillis, long durationMillis) {
+        this.durationMillis = durationMillis;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * Resets the progress to the start, may be called from any thread
+     */
+    public void clear() {
+        durationMillis = 0;
+        elapsedMillis = 0;
+    }
+
+    /*
+     * Shows the latest position, called on the EDT
+     */
+    private void refresh() {
+        long elapsed = elapsedMillis;
+        long duration = durationMillis;
+        long remaining = Math.max(0, duration - elapsed);
+
+        long elapsedSeconds = elapsed / 1000;
+        long remainingSeconds = remaining / 1000;
+        int percent = duration > 0 ? (int) Math.min(100, elapsed * 100 / duration) : 0;
+
+        if(elapsedSeconds != displayedElapsedSeconds) {
+            elapsedLabel.setText(formatTime(elapsedSeconds));
+            displayedElapsedSeconds = elapsedSeconds;
+        }
+        if(remainingSeconds != displayedRemainingSeconds) {
+            remainingLabel.setText(formatTime(remainingSeconds));
+            displayedRemainingSeconds = remainingSeconds;
+        }
+        if(percent != displayedPercent) {
+            progressBar.setValue(percent);
+            displayedPercent = percent;
+        }
+    }
+
+    /*
+     * Formats the given number of seconds as hh:mm:ss
+     */
+    static String formatTime(long seconds) {
+        if(seconds <= 0) {
+            return ZERO_TIME;
+        }
+        int hours = (int) Math.min(99, seconds / 3600);
+        char[] text = new char[8];
+        System.arraycopy(TWO_DIGITS[hours], 0, text, 0, 2);
+        text[2] = ':';
+        System.arraycopy(TWO_DIGITS[(int) (seconds / 60 % 60)], 0, text, 3, 2);
+        text[5] = ':';
+        System.arraycopy(TWO_DIGITS[(int) (seconds % 60)], 0, text, 6, 2);
+        return new String(text);
+    }
+}
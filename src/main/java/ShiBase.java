@@ -1,31 +1,132 @@
+import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The ShiBase class contains methods for connecting to,
  * building and interacting with the shiTunes database
+ * <p>
+ * Reads run on the caller's thread. All writes are queued to a
+ * single ShiBaseWriter thread and return a future that completes
+ * once the write is committed. Until then, reads see pending writes
+ * through an in-memory overlay, so a caller always reads its own writes.
  *
  * @author shiTunes inc.
  */
 public class ShiBase {
 
     private static final String DB_NAME = "ShiBase";
-    private static final String SONG_TABLE = "SONG";
-    private static final String PLAYLIST_TABLE = "PLAYLIST";
-    private static final String PLAYLIST_SONG_TABLE = "PLAYLIST_SONG";
-    private static final String COLUMN_CONFIG_TABLE = "COLUMN_CONFIG";
-    private static final String RECENT_SONGS_TABLE = "RECENT_SONGS";
-    private static final String[] SONG_COLUMNS =  {"songId", "filePath", "title", "artist", "album", "yearReleased",
-            "genre", "comment"};
+    static final String SONG_TABLE = "SONG";
+    static final String PLAYLIST_TABLE = "PLAYLIST";
+    static final String PLAYLIST_SONG_TABLE = "PLAYLIST_SONG";
+    static final String COLUMN_CONFIG_TABLE = "COLUMN_CONFIG";
+    static final String RECENT_SONGS_TABLE = "RECENT_SONGS";
+    static final String WAVEFORM_TABLE = "WAVEFORM";
+    static final String[] SONG_COLUMNS =  {"songId", "filePath", "title", "artist", "album", "yearReleased",
+            "genre", "comment", "duration", "bitrate", "sampleRate", "channels"};
+    private static final int DURATION_COLUMN = 8;
     private static final String[] PLAYLIST_COLUMNS = {"playlistId", "playlistName"};
-    private static final String[] PLAYLIST_SONG_COLUMNS = {"playlistId", "songId"};
-    private static final String[] COLUMN_CONFIG_COLUMNS = {"columnName", "columnIndex", "columnVisible"};
+    private static final String[] PLAYLIST_SONG_COLUMNS = {"playlistId", "songId", "position"};
+    private static final String[] COLUMN_CONFIG_COLUMNS = {"columnName", "columnVisible", "columnWidth", "columnIndex"};
     private static final String[] RECENT_SONGS_COLUMNS = {"songId"};
     private static final String CREATE = ";create=true";
+    private static final String SHUTDOWN = ";shutdown=true";
     private static final String PROTOCOL = "jdbc:derby:";
+    /**
+     * The distance between consecutive playlist song positions,
+     * leaving room to move or insert a song with a single row update
+     */
+    static final int POSITION_GAP = 1024;
+    /**
+     * How long deleted songs can still be restored before they are purged
+     */
+    static final long PURGE_DELAY_SECONDS = 60;
+    private static final int PURGE_BATCH_SIZE = 500;
+    private static final int RECENT_SONGS_LIMIT = 10;
+    /**
+     * How long column configuration changes are collected before they are saved
+     */
+    static final long COLUMN_CONFIG_SAVE_DELAY_MILLIS = 500;
+    // Metrics: reads are timed on the caller's thread, writes from queueing until committed
+    private static final Metrics.Histogram ADD_PLAYLIST_TIMER = Metrics.histogram("shibase.addPlaylist");
+    private static final Metrics.Histogram ADD_RECENT_SONG_TIMER = Metrics.histogram("shibase.addRecentSong");
+    private static final Metrics.Histogram ADD_SONG_TO_PLAYLIST_TIMER = Metrics.histogram("shibase.addSongToPlaylist");
+    private static final Metrics.Histogram ADD_SONGS_TO_PLAYLIST_TIMER = Metrics.histogram("shibase.addSongsToPlaylist");
+    private static final Metrics.Histogram CLOSE_TIMER = Metrics.histogram("shibase.close");
+    private static final Metrics.Histogram DELETE_PLAYLIST_TIMER = Metrics.histogram("shibase.deletePlaylist");
+    private static final Metrics.Histogram DELETE_SONG_FROM_PLAYLIST_TIMER = Metrics.histogram("shibase.deleteSongFromPlaylist");
+    private static final Metrics.Histogram DELETE_SONGS_TIMER = Metrics.histogram("shibase.deleteSongs");
+    private static final Metrics.Histogram DELETE_SONGS_FROM_PLAYLIST_TIMER = Metrics.histogram("shibase.deleteSongsFromPlaylist");
+    private static final Metrics.Histogram FLUSH_TIMER = Metrics.histogram("shibase.flush");
+    private static final Metrics.Histogram GET_ALL_SONGS_TIMER = Metrics.histogram("shibase.getAllSongs");
+    private static final Metrics.Histogram GET_LIBRARY_DURATION_TIMER = Metrics.histogram("shibase.getLibraryDuration");
+    private static final Metrics.Histogram GET_PLAYLIST_DURATION_TIMER = Metrics.histogram("shibase.getPlaylistDuration");
+    private static final Metrics.Histogram GET_PLAYLIST_ID_TIMER = Metrics.histogram("shibase.getPlaylistId");
+    private static final Metrics.Histogram GET_PLAYLIST_NAMES_TIMER = Metrics.histogram("shibase.getPlaylistNames");
+    private static final Metrics.Histogram GET_PLAYLIST_SONGS_TIMER = Metrics.histogram("shibase.getPlaylistSongs");
+    private static final Metrics.Histogram GET_RECENT_SONGS_TIMER = Metrics.histogram("shibase.getRecentSongs");
+    private static final Metrics.Histogram GET_SONG_FILE_PATH_TIMER = Metrics.histogram("shibase.getSongFilePath");
+    private static final Metrics.Histogram GET_SONG_ID_TIMER = Metrics.histogram("shibase.getSongId");
+    private static final Metrics.Histogram GET_SONG_TITLE_TIMER = Metrics.histogram("shibase.getSongTitle");
+    private static final Metrics.Histogram GET_TRACK_GAIN_TIMER = Metrics.histogram("shibase.getTrackGain");
+    private static final Metrics.Histogram GET_UNANALYZED_SONGS_TIMER = Metrics.histogram("shibase.getUnanalyzedSongs");
+    private static final Metrics.Histogram GET_WAVEFORM_TIMER = Metrics.histogram("shibase.getWaveform");
+    private static final Metrics.Histogram INSERT_SONG_TIMER = Metrics.histogram("shibase.insertSong");
+    private static final Metrics.Histogram MOVE_SONG_IN_PLAYLIST_TIMER = Metrics.histogram("shibase.moveSongInPlaylist");
+    private static final Metrics.Histogram PURGE_DELETED_SONGS_TIMER = Metrics.histogram("shibase.purgeDeletedSongs");
+    private static final Metrics.Histogram RENUMBER_PLAYLIST_TIMER = Metrics.histogram("shibase.renumberPlaylist");
+    private static final Metrics.Histogram RESTORE_SONGS_TIMER = Metrics.histogram("shibase.restoreSongs");
+    private static final Metrics.Histogram SET_LOUDNESS_TIMER = Metrics.histogram("shibase.setLoudness");
+    private static final Metrics.Histogram SET_WAVEFORM_TIMER = Metrics.histogram("shibase.setWaveform");
+    private static final Metrics.Histogram SAVE_COLUMN_CONFIG_TIMER = Metrics.histogram("shibase.saveColumnConfig");
+    private static final Metrics.Histogram SEARCH_SONGS_TIMER = Metrics.histogram("shibase.searchSongs");
+    private static final Metrics.Histogram SONG_EXISTS_TIMER = Metrics.histogram("shibase.songExists");
+    private static final Metrics.Histogram STREAM_PLAYLIST_SONGS_TIMER = Metrics.histogram("shibase.streamPlaylistSongs");
+    private static final Metrics.Histogram STREAM_SONGS_TIMER = Metrics.histogram("shibase.streamSongs");
+    private String dbName;
     private Connection conn;
     private PreparedStatement stmt;
     private boolean connected;
+    private boolean closed;
+    private List<ShiBaseListener> listeners = new CopyOnWriteArrayList<ShiBaseListener>();
+    private ShiBaseWriter writer;
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> scheduledPurge;
+
+    private ColumnConfig columnConfig;
+    private boolean columnConfigSavePending;
+
+    // Overlay of writes queued but not yet committed
+    private Map<String, Boolean> pendingPlaylists = new ConcurrentHashMap<String, Boolean>();   // true: added
+    private Map<Integer, Boolean> pendingDeletedSongs = new ConcurrentHashMap<Integer, Boolean>();
+    private Map<String, Object> pendingSongs = new ConcurrentHashMap<String, Object>();     // file path: its insert
+    private List<Integer> pendingRecentSongs = new CopyOnWriteArrayList<Integer>();
+
+    /**
+     * Receives the songs of a streamed query, one at a time as they are read
+     */
+    public interface RowHandler {
+        /**
+         * Handles a song
+         *
+         * @param song the song as a row of the SONG columns
+         * @throws IOException if the song cannot be handled, which ends the query
+         */
+        void row(String[] song) throws IOException;
+    }
 
     /**
      * The ShiBase default constructor
@@ -34,8 +135,25 @@ public class ShiBase {
      * creates tables, if not already created
      */
     public ShiBase() {
+        this(DB_NAME);
+    }
+
+    /**
+     * Overloaded constructor for ShiBase that opens the named
+     * database instead of the shiTunes library (eg. for benchmarks)
+     * <p>
+     * The database is created under the directory given by the
+     * derby.system.home system property, or the working directory
+     *
+     * @param dbName the name of the database to open or create
+     */
+    public ShiBase(String dbName) {
+        this.dbName = dbName;
         connect();      // creates db if not already present
         createTables(); // if not already present
+        loadColumnConfig();
+        startWriter();
+        schedulePurgeDeletedSongs(0);   // purge songs left deleted by a previous session
     }
 
     /* ************************ */
@@ -53,7 +171,7 @@ public class ShiBase {
         try {
             Class.forName("org.apache.derby.jdbc.EmbeddedDriver").newInstance();
             //Get a connection
-            conn = DriverManager.getConnection(PROTOCOL + DB_NAME);
+            conn = DriverManager.getConnection(PROTOCOL + dbName);
             // getConnection() can also have a second parameter, Properties,  to add username/password etc
             connected = true;
         } catch (Exception except) {
@@ -71,7 +189,7 @@ public class ShiBase {
         try {
             Class.forName("org.apache.derby.jdbc.EmbeddedDriver").newInstance();
             //Get a connection
-            conn = DriverManager.getConnection(PROTOCOL + DB_NAME + CREATE);
+            conn = DriverManager.getConnection(PROTOCOL + dbName + CREATE);
             // getConnection() can also have a second parameter, Properties,  to add username/password etc
             connected = true;
             return true;
@@ -86,10 +204,38 @@ public class ShiBase {
      */
     private void createTables() {
         createSongTable();
+        createSongTitleIndex();
         createPlaylistTable();
         createPlaylistSongTable();
+        createPlaylistSongPositionIndex();
         createColumnConfigTable();
         createRecentSongTable();
+        createWaveformTable();
+    }
+
+    /*
+     * Opens the writer connection and starts the writer thread
+     * along with the scheduler used to time background writes
+     */
+    private void startWriter() {
+        try {
+            writer = new ShiBaseWriter(DriverManager.getConnection(PROTOCOL + dbName),
+                    new ShiBaseListener() {
+                        public void tableChanged(String tableName) {
+                            fireTableChanged(tableName);
+                        }
+                    });
+        } catch (SQLException sqlExcept) {
+            sqlExcept.printStackTrace();
+            connected = false;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ShiBase-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
     /**
@@ -101,6 +247,136 @@ public class ShiBase {
         return connected;
     }
 
+    /**
+     * Commits all queued writes and closes the database
+     * <p>
+     * Safe to call more than once, only the first call has an effect
+     *
+     * @return true if the database was closed successfully
+     */
+    public boolean close() {
+        long start = System.nanoTime();
+        try {
+            synchronized(this) {
+                if(closed) {
+                    return true;
+                }
+                saveColumnConfig();     // don't lose column changes still being collected
+                closed = true;
+                scheduler.shutdownNow();
+            }
+            // not holding the lock: writes completing while the queue drains may still call back into ShiBase
+            if(writer != null) {
+                writer.close();
+            }
+            try {
+                conn.close();
+                DriverManager.getConnection(PROTOCOL + dbName + SHUTDOWN);
+            } catch (SQLException sqlExcept) {
+                if(!"08006".equals(sqlExcept.getSQLState())) {
+                    // 08006 is the expected result of a successful database shutdown
+                    sqlExcept.printStackTrace();
+                    return false;
+                }
+            }
+            connected = false;
+            return true;
+        } finally {
+            CLOSE_TIMER.recordSince(start);
+        }
+    }
+
+    /**
+     * Returns the writer all database writes are queued to,
+     * for its queue depth and commit latency metrics
+     *
+     * @return the ShiBase writer
+     */
+    public ShiBaseWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * Blocks until every write queued before this call,
+     * including a scheduled column configuration save, has been committed
+     */
+    public void flush() {
+        long start = System.nanoTime();
+        try {
+            saveColumnConfig();
+            writer.flush();
+        } finally {
+            FLUSH_TIMER.recordSince(start);
+        }
+    }
+
+    /**
+     * Registers a listener to be notified after changes
+     * to the database have been committed
+     * <p>
+     * Listeners are called on the writer thread
+     *
+     * @param listener the listener to register
+     */
+    public void addShiBaseListener(ShiBaseListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a previously registered listener
+     *
+     * @param listener the listener to remove
+     */
+    public void removeShiBaseListener(ShiBaseListener listener) {
+        listeners.remove(listener);
+    }
+
+    /*
+     * Notifies all registered listeners that the given table has changed
+     *
+     * @param tableName the name of the table that changed
+     */
+    private void fireTableChanged(String tableName) {
+        for(ShiBaseListener listener : listeners) {
+            try {
+                listener.tableChanged(tableName);
+            } catch (RuntimeException e) {
+                e.printStackTrace();    // the other listeners are still notified
+            }
+        }
+    }
+
+    /*
+     * Executes the given statement once per song id as a single batch
+     * <p>
+     * The first parameter of the statement is bound to the given
+     * playlist id, the second to each of the given song ids and,
+     * if positions are given, the third to the matching position
+     *
+     * @param connection the connection to execute the batch on
+     * @param query the statement to execute
+     * @param playlistId the playlist id to bind as the first parameter
+     * @param songIds the song ids to bind as the second parameter
+     * @param positions the positions to bind as the third parameter, or null
+     */
+    private static void executePlaylistSongBatch(Connection connection, String query, int playlistId,
+                                                 int[] songIds, int[] positions) throws SQLException {
+        PreparedStatement batch = connection.prepareStatement(query);
+        try {
+            for(int i = 0; i < songIds.length; i++) {
+                batch.setInt(1, playlistId);
+                batch.setInt(2, songIds[i]);
+                if(positions != null) {
+                    batch.setInt(3, positions[i]);
+                }
+                batch.addBatch();
+            }
+            batch.executeBatch();
+        } finally {
+            batch.close();
+        }
+    }
+
 
     /* ******************* */
     /* ******************* */
@@ -124,6 +400,13 @@ public class ShiBase {
                     "yearReleased VARCHAR(4), " +
                     "genre VARCHAR(20), " +
                     "comment VARCHAR(200), " +
+                    "deleted BOOLEAN NOT NULL DEFAULT FALSE, " +
+                    "duration INTEGER, " +
+                    "bitrate INTEGER, " +
+                    "sampleRate INTEGER, " +
+                    "channels SMALLINT, " +
+                    "loudness DOUBLE, " +
+                    "peak DOUBLE, " +
                     "PRIMARY KEY (songId))";
             stmt = conn.prepareStatement(query);
             stmt.execute();
@@ -132,481 +415,1673 @@ public class ShiBase {
         }
         catch (SQLException sqlExcept) {
             // Table Exists
+            addSongDeletedColumn();
+            addSongAudioColumns();
+            addSongLoudnessColumns();
         }
         return false;
     }
 
-    /**
-     * Inserts the given song into the ShiBase database
-     *
-     * @param song the song to insert into the database
-     * @return the song id in db if the song was inserted successfully
-     *         -1 if the song already exists, or the insert failed
-     */
-    public int insertSong(Song song) {
-        // To store the song id, or return -1 if db insert fails
-        int id = -1;
-        ResultSet keys = null;
-
-        if(!songExists(song.getFilePath())) {
-            try {
-                String query = "INSERT INTO " + SONG_TABLE +
-                        " (filePath, title, artist, album, yearReleased, genre, comment)" +
-                        " VALUES (?, ?, ?, ?, ?, ?, ?)";
-                stmt = conn.prepareStatement(query, Statement.RETURN_GENERATED_KEYS);
-                stmt.setString(1, song.getFilePath());
-                stmt.setString(2, song.getTitle());
-                stmt.setString(3, song.getArtist());
-                stmt.setString(4, song.getAlbum());
-                stmt.setString(5, song.getYear());
-                stmt.setString(6, song.getGenre());
-                stmt.setString(7, song.getComment());
-                stmt.execute();
-                keys = stmt.getGeneratedKeys();
-                while (keys.next()) {
-                    id = keys.getInt(1);
-                }
-                keys.close();
-                stmt.close();
-            } catch (SQLException sqlExcept) {
-                sqlExcept.printStackTrace();
-            }
-        }
-        return id;
-    }
-
-    /**
-     * Checks if song exists in database
+    /*
+     * Creates the index used to read the library a page at a time
+     * in title order, which holds every column the page's query reads
      *
-     * @param filePath the filePath of the song to look for in the database
-     * @return true if the song exists in the database
+     * @return true if index created successfully
      */
-    public boolean songExists(String filePath) {
-        int rowCount = 0;
-
+    private boolean createSongTitleIndex() {
         try {
-            String query = "SELECT count(*) AS rowcount FROM " + SONG_TABLE +
-                    " WHERE filePath=?";
+            String query = "CREATE INDEX idx_song_title ON " + SONG_TABLE + " (deleted, title, songId)";
             stmt = conn.prepareStatement(query);
-            stmt.setString(1, filePath);
-            ResultSet resultSet = stmt.executeQuery();
-            resultSet.next();
-            rowCount = resultSet.getInt("rowcount");
+            stmt.execute();
             stmt.close();
-            if(rowCount != 0) {
-                // song exists, return true
-                return true;
-            }
+            return true;
         } catch (SQLException sqlExcept) {
-            sqlExcept.printStackTrace();
-            return false;
+            // Index Exists
         }
-        // song doesn't exist
         return false;
     }
 
-    /**
-     * Deletes a given song from the database
-     *
-     * @param songId the unique song id of the song to delete
-     * @return true if the song was successfully deleted, false if otherwise
+    /*
+     * Adds the deleted flag to a SONG table created before
+     * songs were soft deleted
      */
-    public boolean deleteSong(int songId) {
+    private void addSongDeletedColumn() {
         try {
-            String query = "DELETE FROM " + SONG_TABLE + " WHERE songId=?";
+            String query = "ALTER TABLE " + SONG_TABLE +
+                    " ADD COLUMN deleted BOOLEAN NOT NULL DEFAULT FALSE";
             stmt = conn.prepareStatement(query);
-            stmt.setInt(1, songId);
             stmt.execute();
             stmt.close();
-            return true;
         } catch (SQLException sqlExcept) {
-            sqlExcept.printStackTrace();
+            // Column Exists
         }
-        return false;
     }
 
-    /**
-     * Gets all songs from the database
-     *
-     * @return all songs from the database as a multidimensional object array
+    /*
+     * Adds the duration, bitrate, sample rate and channels columns to a
+     * SONG table created before they were read at import, they stay
+     * NULL for songs imported earlier
      */
-    public Object[][] getAllSongs()
-    {
-        Object[][] allSongs;
-        int rowCount = 0;
-        int index = 0;
-
-        try {
-            // Get record count
-            String rowCountQuery = "SELECT count(*) AS rowcount FROM " + SONG_TABLE;
-            stmt = conn.prepareStatement(rowCountQuery);
-            ResultSet rowCountRS = stmt.executeQuery();
-            rowCountRS.next();
-            rowCount = rowCountRS.getInt("rowcount");
-
-            // Initialize multidimensional array large enough to hold all songs
-            allSongs = new Object[rowCount][SONG_COLUMNS.length];
-
-            // Get all records
-            String allSongsQuery = "SELECT * FROM " + SONG_TABLE + " ORDER BY title";
-            stmt = conn.prepareStatement(allSongsQuery);
-            ResultSet allSongsRS = stmt.executeQuery();
-
-            while(allSongsRS.next()) {
-                allSongs[index] = getSongRow(allSongsRS);
-                index++;
+    private void addSongAudioColumns() {
+        String[] columns = {"duration INTEGER", "bitrate INTEGER", "sampleRate INTEGER", "channels SMALLINT"};
+        for(String column : columns) {
+            try {
+                stmt = conn.prepareStatement("ALTER TABLE " + SONG_TABLE + " ADD COLUMN " + column);
+                stmt.execute();
+                stmt.close();
+            } catch (SQLException sqlExcept) {
+                // Column Exists
             }
-            stmt.close();
-            return allSongs;
         }
-        catch (SQLException sqlExcept) {
-            sqlExcept.printStackTrace();
-        }
-        return new Object[0][0];
     }
 
-    /**
-     * Get the unique integer id of a song based on its
-     * file path (which is also unique)
-     *
-     * @param filePath the filepath of the song being searched for
-     * @return the unique integer id of the song being searched for
-     *         returns -1 if not found
+    /*
+     * Adds the loudness and peak columns to a SONG table created before
+     * songs were analyzed, they stay NULL until the LoudnessAnalyzer
+     * reaches each song
      */
-    public int getSongId(String filePath) {
-        int songId = -1;
-        try {
-            String query = "SELECT * FROM " + SONG_TABLE + " WHERE filePath=?";
-            stmt = conn.prepareStatement(query);
-            stmt.setString(1, filePath);
-            ResultSet songIdRS = stmt.executeQuery();
-            if(songIdRS.next()) {
-                songId = songIdRS.getInt("songId");
+    private void addSongLoudnessColumns() {
+        String[] columns = {"loudness DOUBLE", "peak DOUBLE"};
+        for(String column : columns) {
+            try {
+                stmt = conn.prepareStatement("ALTER TABLE " + SONG_TABLE + " ADD COLUMN " + column);
+                stmt.execute();
+                stmt.close();
+            } catch (SQLException sqlExcept) {
+                // Column Exists
             }
-            stmt.close();
-        } catch (SQLException sqlExcept) {
-            sqlExcept.printStackTrace();
         }
-        return songId;
     }
 
     /**
-     * Get the unique file path of a song based on its
-     * song id (which is also unique)
+     * Inserts the given song into the ShiBase database
+     * <p>
+     * A song that was deleted but not yet purged is restored instead.
+     * songExists() sees the song as soon as it is queued; its id is
+     * known once the returned future completes.
      *
-     * @param songId the song id of the song being searched for
-     * @return the unique file path of the song being searched for
+     * @param song the song to insert into the database
+     * @return a future completed with the song id in db if the song was
+     *         inserted (or restored) successfully, -1 if the song already
+     *         exists, or the insert failed
      */
-    public String getSongFilePath(int songId) {
-        String songFilePath = null;
-        try {
-            String query = "SELECT * FROM " + SONG_TABLE + " WHERE songId=?";
-            stmt = conn.prepareStatement(query);
-            stmt.setInt(1, songId);
-            ResultSet songIdRS = stmt.executeQuery();
-            if(songIdRS.next()) {
-                songFilePath = songIdRS.getString("filePath");
+    public CompletableFuture<Integer> insertSong(final Song song) {
+        final String filePath = song.getFilePath();
+        ShiBaseWriter.Write<Integer> insert = new ShiBaseWriter.Write<Integer>(SONG_TABLE, INSERT_SONG_TIMER) {
+            Integer execute(Connection connection) throws SQLException {
+                if(songExists(connection, song.getFilePath())) {
+                    if(restoreDeletedSong(connection, song.getFilePath())) {
+                        // song was deleted but not yet purged: it is back in the library
+                        return getSongId(connection, song.getFilePath());
+                    }
+                    return -1;
+                }
+                return insertSong(connection, song);
             }
-            stmt.close();
-        } catch (SQLException sqlExcept) {
-            sqlExcept.printStackTrace();
-        }
-        return songFilePath;
-    }
 
+            void done(boolean committed) {
+                pendingSongs.remove(filePath, this);   // unless the same path was queued again since
+            }
+        };
+        pendingSongs.put(filePath, insert);
+        return writer.submit(insert);
+    }
 
-    /**
-     * Get the song title of a song based on its
-     * song id
+    /*
+     * Inserts the given song
      *
-     * @param songId the song id of the song being searched for
-     * @return the song title of the song being searched for
+     * @param connection the connection to insert on
+     * @param song the song to insert into the database
+     * @return the song id in db, -1 if no id was generated
      */
-    public String getSongTitle(int songId) {
-        String title = null;
-        try {
-            String query = "SELECT title FROM " + SONG_TABLE + " WHERE songId=?";
-            stmt = conn.prepareStatement(query);
-            stmt.setInt(1, songId);
-            ResultSet songIdRS = stmt.executeQuery();
-            if(songIdRS.next()) {
-                title = songIdRS.getString("title");
-            }
-            stmt.close();
-        } catch (SQLException sqlExcept) {
-            sqlExcept.printStackTrace();
+    private static int insertSong(Connection connection, Song song) throws SQLException {
+        int id = -1;
+        String query = "INSERT INTO " + SONG_TABLE +
+                " (filePath, title, artist, album, yearReleased, genre, comment," +
+                " duration, bitrate, sampleRate, channels)" +
+                " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        PreparedStatement insert = connection.prepareStatement(query, Statement.RETURN_GENERATED_KEYS);
+        insert.setString(1, song.getFilePath());
+        insert.setString(2, song.getTitle());
+        insert.setString(3, song.getArtist());
+        insert.setString(4, song.getAlbum());
+        insert.setString(5, song.getYear());
+        insert.setString(6, song.getGenre());
+        insert.setString(7, song.getComment());
+        // unknown audio information is stored as NULL
+        setIntOrNull(insert, 8, (int) Math.min(Integer.MAX_VALUE, song.getDuration()));
+        setIntOrNull(insert, 9, song.getBitrate());
+        setIntOrNull(insert, 10, song.getSampleRate());
+        setIntOrNull(insert, 11, song.getChannels());
+        insert.execute();
+        ResultSet keys = insert.getGeneratedKeys();
+        while (keys.next()) {
+            id = keys.getInt(1);
         }
-        return title;
+        keys.close();
+        insert.close();
+        return id;
     }
 
     /*
-     * Returns the given SONG row as a String array
-     *
-     * @param rs the current result set item
-     * @return the given result from the SONG table as a String array
+     * Sets the given parameter to the given value, or to NULL if the value is 0
      */
-    private String[] getSongRow(ResultSet rs) {
-        String[] song = new String[SONG_COLUMNS.length];
-        try {
-            for(int i = 0; i < SONG_COLUMNS.length; i++) {
-                song[i] = rs.getString(SONG_COLUMNS[i]);
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+    private static void setIntOrNull(PreparedStatement statement, int index, int value) throws SQLException {
+        if(value == 0) {
+            statement.setNull(index, Types.INTEGER);
+        } else {
+            statement.setInt(index, value);
         }
-        return song;
     }
 
-    /* ********************** */
-    /* ********************** */
-    /* PLAYLIST TABLE METHODS */
-    /* ********************** */
-    /* ********************** */
-
     /*
-     * Create the PLAYLIST table
+     * Restores the deleted, but not yet purged, song with the given file path
      *
-     * @return true if table created successfully
+     * @param connection the connection to update on
+     * @param filePath the file path of the song to restore
+     * @return true if a deleted song was restored
      */
-    private boolean createPlaylistTable() {
-        try {
-            String query = "CREATE TABLE " + PLAYLIST_TABLE +
-                    " (playlistId INTEGER NOT NULL GENERATED ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1), " +
-                    "playlistName VARCHAR(100) UNIQUE NOT NULL, " +
-                    "PRIMARY KEY (playlistId))";
-            stmt = conn.prepareStatement(query);
-            stmt.execute();
-            stmt.close();
-            return true;
-        }
-        catch (SQLException sqlExcept) {
-            // Table Exists
-        }
-        return false;
+    private static boolean restoreDeletedSong(Connection connection, String filePath) throws SQLException {
+        String query = "UPDATE " + SONG_TABLE + " SET deleted=FALSE" +
+                " WHERE filePath=? AND deleted=TRUE";
+        PreparedStatement update = connection.prepareStatement(query);
+        update.setString(1, filePath);
+        int restored = update.executeUpdate();
+        update.close();
+        return restored > 0;
     }
 
     /**
-     * Accessor method to get all playlist names
+     * Checks if song exists in database
      *
-     * @return an ArrayList of playlist names as Strings
+     * @param filePath the filePath of the song to look for in the database
+     * @return true if the song exists in the database
      */
-    public ArrayList<String> getPlaylistNames() {
-        ArrayList<String> playlistNames = new ArrayList<String>();
+    public boolean songExists(String filePath) {
+        long start = System.nanoTime();
+        ShiTunesEvents.Query event = new ShiTunesEvents.Query(SONG_EXISTS_TIMER.getName());
         try {
-            // Get all playlist names
-            String query = "SELECT playlistName FROM " + PLAYLIST_TABLE +
-                    " ORDER BY playlistName ASC";
-            stmt = conn.prepareStatement(query);
-            ResultSet playlistRS = stmt.executeQuery();
-            while(playlistRS.next()) {
-                playlistNames.add(playlistRS.getString("playlistName"));
+            try {
+                boolean exists = pendingSongs.containsKey(filePath) || songExists(conn, filePath);
+                event.rows = exists ? 1 : 0;
+                return exists;
+            } catch (SQLException sqlExcept) {
+                sqlExcept.printStackTrace();
+                return false;
             }
-            stmt.close();
-        }
-        catch (SQLException sqlExcept) {
-            sqlExcept.printStackTrace();
+        } finally {
+            SONG_EXISTS_TIMER.recordSince(start);
+            event.commit();
         }
-        return playlistNames;
     }
 
-    /**
-     * Add a new playlist to the PLAYLIST table
+    /*
+     * Checks if song exists in database, deleted or not
      *
-     * @param playlist the name of the newly created playlist
-     * @return true if entry successfully added to table
+     * @param connection the connection to query on
+     * @param filePath the filePath of the song to look for in the database
+     * @return true if the song exists in the database
      */
-    public boolean addPlaylist(String playlist) {
-        try {
-            String query = "INSERT INTO " + PLAYLIST_TABLE + " (playlistName) VALUES (?)";
-            stmt = conn.prepareStatement(query);
-            stmt.setString(1, playlist);
+    private static boolean songExists(Connection connection, String filePath) throws SQLException {
+        String query = "SELECT count(*) AS rowcount FROM " + SONG_TABLE +
+                " WHERE filePath=?";
+        PreparedStatement select = connection.prepareStatement(query);
+        select.setString(1, filePath);
+        ResultSet resultSet = select.executeQuery();
+        resultSet.next();
+        int rowCount = resultSet.getInt("rowcount");
+        select.close();
+        return rowCount != 0;
+    }
+
+    /**
+     * Deletes a given song from the database
+     *
+     * @param songId the unique song id of the song to delete
+     * @return a future completed with true if the song was successfully deleted
+     * @see #deleteSongs(int[])
+     */
+    public CompletableFuture<Boolean> deleteSong(int songId) {
+        return deleteSongs(new int[]{songId});
+    }
+
+    /**
+     * Deletes the given songs from the database
+     * <p>
+     * Songs are only flagged as deleted, which hides them from all queries
+     * straight away, and listeners are notified once the flags are committed.
+     * The rows, along with their playlist and recent song entries, are purged
+     * in the background after PURGE_DELAY_SECONDS; until then the songs can
+     * be brought back with restoreSongs(int[])
+     *
+     * @param songIds the unique song ids of the songs to delete
+     * @return a future completed with true if the songs were successfully deleted
+     */
+    public CompletableFuture<Boolean> deleteSongs(final int[] songIds) {
+        for(int songId : songIds) {
+            pendingDeletedSongs.put(songId, true);
+        }
+        return writer.submit(new ShiBaseWriter.Write<Boolean>(SONG_TABLE, DELETE_SONGS_TIMER) {
+            Boolean execute(Connection connection) throws SQLException {
+                setSongsDeleted(connection, songIds, true);
+                return true;
+            }
+
+            void done(boolean committed) {
+                for(int songId : songIds) {
+                    pendingDeletedSongs.remove(songId, true);
+                }
+                if(committed) {
+                    schedulePurgeDeletedSongs(PURGE_DELAY_SECONDS);
+                }
+            }
+        });
+    }
+
+    /**
+     * Restores songs that were deleted but have not yet been purged
+     *
+     * @param songIds the unique song ids of the songs to restore
+     * @return a future completed with the number of songs restored,
+     *         songs already purged can not be restored
+     */
+    public CompletableFuture<Integer> restoreSongs(final int[] songIds) {
+        return writer.submit(new ShiBaseWriter.Write<Integer>(SONG_TABLE, RESTORE_SONGS_TIMER) {
+            Integer execute(Connection connection) throws SQLException {
+                return setSongsDeleted(connection, songIds, false);
+            }
+        });
+    }
+
+    /*
+     * Sets the deleted flag of the given songs as a single batch
+     *
+     * @param connection the connection to update on
+     * @param songIds the unique song ids of the songs to flag
+     * @param deleted the deleted flag to set
+     * @return the number of songs whose flag changed
+     */
+    private static int setSongsDeleted(Connection connection, int[] songIds, boolean deleted) throws SQLException {
+        int changed = 0;
+        String query = "UPDATE " + SONG_TABLE + " SET deleted=? WHERE songId=? AND deleted=?";
+        PreparedStatement batch = connection.prepareStatement(query);
+        try {
+            for(int songId : songIds) {
+                batch.setBoolean(1, deleted);
+                batch.setInt(2, songId);
+                batch.setBoolean(3, !deleted);
+                batch.addBatch();
+            }
+            for(int count : batch.executeBatch()) {
+                changed += count;
+            }
+        } finally {
+            batch.close();
+        }
+        return changed;
+    }
+
+    /*
+     * (Re)schedules the background purge of deleted songs,
+     * replacing any purge that has not started yet so that the
+     * most recently deleted songs get the full delay to be restored
+     *
+     * @param delaySeconds the delay before the purge runs
+     */
+    private synchronized void schedulePurgeDeletedSongs(long delaySeconds) {
+        if(closed) {
+            return;
+        }
+        if(scheduledPurge != null) {
+            scheduledPurge.cancel(false);
+        }
+        scheduledPurge = scheduler.schedule(new Runnable() {
+            public void run() {
+                writer.submit(new PurgeDeletedSongs());
+            }
+        }, delaySeconds, TimeUnit.SECONDS);
+    }
+
+    /*
+     * Permanently removes up to PURGE_BATCH_SIZE songs flagged as deleted,
+     * queueing another purge when there may be more, so that other writes
+     * are committed in between and no single commit holds its locks for long
+     * <p>
+     * Playlist and recent song entries are removed by the cascading
+     * foreign keys. Purged songs were already hidden, so listeners
+     * are not notified.
+     */
+    private class PurgeDeletedSongs extends ShiBaseWriter.Write<Integer> {
+        private boolean batchFull;
+
+        PurgeDeletedSongs() {
+            super(null, PURGE_DELETED_SONGS_TIMER);
+        }
+
+        void done(boolean committed) {
+            if(committed && batchFull) {
+                writer.submit(new PurgeDeletedSongs());
+            }
+        }
+
+        Integer execute(Connection connection) throws SQLException {
+            PreparedStatement select = connection.prepareStatement("SELECT songId FROM " + SONG_TABLE +
+                    " WHERE deleted=TRUE FETCH FIRST " + PURGE_BATCH_SIZE + " ROWS ONLY");
+            PreparedStatement delete = connection.prepareStatement("DELETE FROM " + SONG_TABLE +
+                    " WHERE songId=? AND deleted=TRUE");
+            int purged = 0;
+            try {
+                ResultSet resultSet = select.executeQuery();
+                while(resultSet.next()) {
+                    delete.setInt(1, resultSet.getInt("songId"));
+                    delete.addBatch();
+                    purged++;
+                }
+                resultSet.close();
+                delete.executeBatch();
+            } finally {
+                select.close();
+                delete.close();
+            }
+            batchFull = purged == PURGE_BATCH_SIZE;
+            return purged;
+        }
+    }
+
+    /**
+     * Gets all songs from the database
+     *
+     * @return all songs from the database as a multidimensional object array
+     */
+    public Object[][] getAllSongs()
+    {
+        long start = System.nanoTime();
+        ShiTunesEvents.Query event = new ShiTunesEvents.Query(GET_ALL_SONGS_TIMER.getName());
+        try {
+            Object[][] allSongs;
+            int rowCount = 0;
+            int index = 0;
+
+            try {
+                // Get record count
+                String rowCountQuery = "SELECT count(*) AS rowcount FROM " + SONG_TABLE +
+                        " WHERE deleted=FALSE";
+                stmt = conn.prepareStatement(rowCountQuery);
+                ResultSet rowCountRS = stmt.executeQuery();
+                rowCountRS.next();
+                rowCount = rowCountRS.getInt("rowcount");
+
+                // Initialize multidimensional array large enough to hold all songs
+                allSongs = new Object[rowCount][SONG_COLUMNS.length];
+
+                // Get all records
+                String allSongsQuery = "SELECT * FROM " + SONG_TABLE +
+                        " WHERE deleted=FALSE ORDER BY title";
+                stmt = conn.prepareStatement(allSongsQuery);
+                ResultSet allSongsRS = stmt.executeQuery();
+
+                while(allSongsRS.next() && index < rowCount) {
+                    allSongs[index] = getSongRow(allSongsRS);
+                    index++;
+                }
+                stmt.close();
+                event.rows = index;
+                return withoutPendingDeletes(allSongs, index);
+            }
+            catch (SQLException sqlExcept) {
+                sqlExcept.printStackTrace();
+            }
+            return new Object[0][0];
+        } finally {
+            GET_ALL_SONGS_TIMER.recordSince(start);
+            event.commit();
+        }
+    }
+
+    /**
+     * Hands a page of the library's songs, in title order, to the given
+     * handler as they are read, so a listing of any length is never held
+     * in memory
+     *
+     * @param offset the number of songs skipped
+     * @param limit the most songs read
+     * @param handler receives the songs
+     * @return the number of songs in the page, less than the limit if it
+     *         is the last one, -1 if they could not be read
+     * @throws IOException if the handler fails
+     */
+    public int streamSongs(int offset, int limit, RowHandler handler) throws IOException {
+        long start = System.nanoTime();
+        ShiTunesEvents.Query event = new ShiTunesEvents.Query(STREAM_SONGS_TIMER.getName());
+        try {
+            String query = "SELECT songId FROM " + SONG_TABLE +
+                    " WHERE deleted=FALSE ORDER BY title, songId OFFSET ? ROWS FETCH NEXT ? ROWS ONLY";
+            int count = streamSongs(query, -1, offset, limit, handler);
+            event.rows = Math.max(count, 0);
+            return count;
+        } finally {
+            STREAM_SONGS_TIMER.recordSince(start);
+            event.commit();
+        }
+    }
+
+    /*
+     * Reads a page of songs in two steps: the song ids of the page, from
+     * an index alone however far the page is, and then each song by its
+     * primary key as the handler takes them. Skipping to a page by
+     * reading whole rows would read every song before it.
+     * <p>
+     * Statements of its own: called by the HTTP server's threads. The
+     * songs are read no faster than the handler writes them.
+     *
+     * @param idQuery the query of the page's song ids, its parameters the
+     *                playlist id if any, the offset and the limit
+     * @param playlistId the playlist id, -1 for none
+     * @return the number of song ids read, -1 if they could not be read
+     */
+    private int streamSongs(String idQuery, int playlistId, int offset, int limit, RowHandler handler)
+            throws IOException {
+        int[] songIds = new int[Math.min(limit, 1024)];
+        int count = 0;
+        try {
+            PreparedStatement select = conn.prepareStatement(idQuery);
+            int parameter = 1;
+            if(playlistId != -1) {
+                select.setInt(parameter++, playlistId);
+            }
+            select.setInt(parameter++, offset);
+            select.setInt(parameter, limit);
+            ResultSet idRS = select.executeQuery();
+            while(idRS.next()) {
+                if(count == songIds.length) {
+                    songIds = Arrays.copyOf(songIds, songIds.length * 2);
+                }
+                songIds[count++] = idRS.getInt(1);
+            }
+            select.close();
+            if(count == 0) {
+                return 0;
+            }
+
+            PreparedStatement statement = conn.prepareStatement("SELECT * FROM " + SONG_TABLE + " WHERE songId=?");
+            try {
+                for(int i = 0; i < count; i++) {
+                    statement.setInt(1, songIds[i]);
+                    ResultSet songRS = statement.executeQuery();
+                    String[] song = songRS.next() && !songRS.getBoolean("deleted") ? getSongRow(songRS) : null;
+                    songRS.close();
+                    if(song != null && !pendingDeletedSongs.containsKey(songIds[i])) {
+                        handler.row(song);
+                    }
+                }
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException sqlExcept) {
+            sqlExcept.printStackTrace();
+            return -1;
+        }
+        return count;
+    }
+
+    /**
+     * Finds the songs whose title, artist or album contains the given
+     * text, ignoring case
+     *
+     * @param text the text to look for
+     * @param limit the most songs returned
+     * @return the matching songs in title order, as rows of the SONG columns
+     */
+    public Object[][] searchSongs(String text, int limit) {
+        long start = System.nanoTime();
+        ShiTunesEvents.Query event = new ShiTunesEvents.Query(SEARCH_SONGS_TIMER.getName());
+        try {
+            String pattern = "%" + text.toLowerCase().replace("\\", "\\\\").replace("%", "\\%")
+                    .replace("_", "\\_") + "%";
+            ArrayList<Object[]> songs = new ArrayList<Object[]>();
+            try {
+                // a statement of its own: called by the daemon's command thread
+                PreparedStatement statement = conn.prepareStatement("SELECT * FROM " + SONG_TABLE +
+                        " WHERE deleted=FALSE AND (LOWER(title) LIKE ? ESCAPE '\\' OR LOWER(artist) LIKE ? ESCAPE '\\'" +
+                        " OR LOWER(album) LIKE ? ESCAPE '\\') ORDER BY title");
+                for(int i = 1; i <= 3; i++) {
+                    statement.setString(i, pattern);
+                }
+                // read a few more than the limit, in case some are being deleted
+                statement.setMaxRows(limit + pendingDeletedSongs.size());
+                ResultSet rs = statement.executeQuery();
+                while(rs.next()) {
+                    songs.add(getSongRow(rs));
+                }
+                statement.close();
+            } catch (SQLException sqlExcept) {
+                sqlExcept.printStackTrace();
+            }
+            Object[][] found = withoutPendingDeletes(songs.toArray(new Object[songs.size()][]), songs.size());
+            if(found.length > limit) {
+                Object[][] limited = new Object[limit][];
+                System.arraycopy(found, 0, limited, 0, limit);
+                found = limited;
+            }
+            event.rows = found.length;
+            return found;
+        } finally {
+            SEARCH_SONGS_TIMER.recordSince(start);
+            event.commit();
+        }
+    }
+
+    /*
+     * Removes songs whose delete is still queued from the given song rows
+     *
+     * @param songs the song rows read from the database
+     * @param rowCount the number of rows actually read
+     * @return the song rows without pending deletes
+     */
+    private Object[][] withoutPendingDeletes(Object[][] songs, int rowCount) {
+        if(pendingDeletedSongs.isEmpty() && rowCount == songs.length) {
+            return songs;
+        }
+        Object[][] visibleSongs = new Object[rowCount][];
+        int visibleCount = 0;
+        for(int i = 0; i < rowCount; i++) {
+            Integer songId = Integer.valueOf(songs[i][0].toString());
+            if(!pendingDeletedSongs.containsKey(songId)) {
+                visibleSongs[visibleCount++] = songs[i];
+            }
+        }
+        Object[][] result = new Object[visibleCount][];
+        System.arraycopy(visibleSongs, 0, result, 0, visibleCount);
+        return result;
+    }
+
+    /**
+     * Get the unique integer id of a song based on its
+     * file path (which is also unique)
+     *
+     * @param filePath the filepath of the song being searched for
+     * @return the unique integer id of the song being searched for
+     *         returns -1 if not found
+     */
+    public int getSongId(String filePath) {
+        long start = System.nanoTime();
+        ShiTunesEvents.Query event = new ShiTunesEvents.Query(GET_SONG_ID_TIMER.getName());
+        try {
+            try {
+                int songId = getSongId(conn, filePath);
+                event.rows = songId == -1 ? 0 : 1;
+                return songId;
+            } catch (SQLException sqlExcept) {
+                sqlExcept.printStackTrace();
+            }
+            return -1;
+        } finally {
+            GET_SONG_ID_TIMER.recordSince(start);
+            event.commit();
+        }
+    }
+
+    /*
+     * Get the unique integer id of a song based on its file path
+     *
+     * @param connection the connection to query on
+     * @param filePath the filepath of the song being searched for
+     * @return the unique integer id of the song, -1 if not found
+     */
+    private static int getSongId(Connection connection, String filePath) throws SQLException {
+        int songId = -1;
+        String query = "SELECT songId FROM " + SONG_TABLE + " WHERE filePath=?";
+        PreparedStatement select = connection.prepareStatement(query);
+        select.setString(1, filePath);
+        ResultSet songIdRS = select.executeQuery();
+        if(songIdRS.next()) {
+            songId = songIdRS.getInt("songId");
+        }
+        select.close();
+        return songId;
+    }
+
+    /**
+     * Get the unique file path of a song based on its
+     * song id (which is also unique)
+     *
+     * @param songId the song id of the song being searched for
+     * @return the unique file path of the song being searched for
+     */
+    public String getSongFilePath(int songId) {
+        long start = System.nanoTime();
+        ShiTunesEvents.Query event = new ShiTunesEvents.Query(GET_SONG_FILE_PATH_TIMER.getName());
+        try {
+            String songFilePath = null;
+            try {
+                // a statement of its own: also called by the analyzer's threads
+                String query = "SELECT * FROM " + SONG_TABLE + " WHERE songId=?";
+                PreparedStatement statement = conn.prepareStatement(query);
+                statement.setInt(1, songId);
+                ResultSet songIdRS = statement.executeQuery();
+                if(songIdRS.next()) {
+                    songFilePath = songIdRS.getString("filePath");
+                    event.rows = 1;
+                }
+                statement.close();
+            } catch (SQLException sqlExcept) {
+                sqlExcept.printStackTrace();
+            }
+            return songFilePath;
+        } finally {
+            GET_SONG_FILE_PATH_TIMER.recordSince(start);
+            event.commit();
+        }
+    }
+
+
+    /**
+     * Returns the gain bringing the song to the reference loudness,
+     * from its loudness and peak measured by the LoudnessAnalyzer
+     *
+     * @param songId the song id of the song to play
+     * @return the track gain in decibels, 0 if the song has not been analyzed
+     */
+    public double getTrackGain(int songId) {
+        long start = System.nanoTime();
+        ShiTunesEvents.Query event = new ShiTunesEvents.Query(GET_TRACK_GAIN_TIMER.getName());
+        try {
+            // a statement of its own: also called by the player's output thread
+            PreparedStatement statement = conn.prepareStatement(
+                    "SELECT loudness, peak FROM " + SONG_TABLE + " WHERE songId=?");
+            try {
+                statement.setInt(1, songId);
+                ResultSet rs = statement.executeQuery();
+                if(rs.next()) {
+                    event.rows = 1;
+                    double loudness = rs.getDouble("loudness");
+                    if(!rs.wasNull()) {
+                        return LoudnessMeter.trackGainDb(loudness, rs.getDouble("peak"));
+                    }
+                }
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException sqlExcept) {
+            sqlExcept.printStackTrace();
+        } finally {
+            GET_TRACK_GAIN_TIMER.recordSince(start);
+            event.commit();
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the songs the LoudnessAnalyzer has not measured yet, or
+     * measured before waveforms were stored, so an analysis interrupted
+     * by closing shiTunes carries on where it stopped
+     *
+     * @return the song ids in import order
+     */
+    public int[] getUnanalyzedSongs() {
+        long start = System.nanoTime();
+        ShiTunesEvents.Query event = new ShiTunesEvents.Query(GET_UNANALYZED_SONGS_TIMER.getName());
+        try {
+            ArrayList<Integer> songIds = new ArrayList<Integer>();
+            try {
+                // a statement of its own: called by the analyzer's threads
+                PreparedStatement statement = conn.prepareStatement("SELECT s.songId FROM " + SONG_TABLE +
+                        " s LEFT OUTER JOIN " + WAVEFORM_TABLE + " w ON s.songId=w.songId" +
+                        " WHERE (s.peak IS NULL OR w.songId IS NULL) AND s.deleted=FALSE ORDER BY s.songId");
+                ResultSet rs = statement.executeQuery();
+                while(rs.next()) {
+                    songIds.add(rs.getInt("songId"));
+                }
+                statement.close();
+            } catch (SQLException sqlExcept) {
+                sqlExcept.printStackTrace();
+            }
+            songIds.removeAll(pendingDeletedSongs.keySet());
+            event.rows = songIds.size();
+            int[] unanalyzed = new int[songIds.size()];
+            for(int i = 0; i < unanalyzed.length; i++) {
+                unanalyzed[i] = songIds.get(i);
+            }
+            return unanalyzed;
+        } finally {
+            GET_UNANALYZED_SONGS_TIMER.recordSince(start);
+            event.commit();
+        }
+    }
+
+    /**
+     * Stores the loudness measured for a song
+     *
+     * @param songId the song id of the analyzed song
+     * @param loudness the integrated loudness in LUFS, Double.NaN if the
+     *                 song is silent or could not be decoded
+     * @param peak the sample peak in [0.0, 1.0]
+     * @return a future completed with true if the loudness was stored
+     */
+    public CompletableFuture<Boolean> setLoudness(final int songId, final double loudness, final double peak) {
+        return writer.submit(new ShiBaseWriter.Write<Boolean>(null, SET_LOUDNESS_TIMER) {
+            Boolean execute(Connection connection) throws SQLException {
+                String query = "UPDATE " + SONG_TABLE + " SET loudness=?, peak=? WHERE songId=?";
+                PreparedStatement statement = connection.prepareStatement(query);
+                if(Double.isNaN(loudness)) {
+                    statement.setNull(1, Types.DOUBLE);     // analyzed, but no gain to apply
+                } else {
+                    statement.setDouble(1, loudness);
+                }
+                statement.setDouble(2, peak);
+                statement.setInt(3, songId);
+                int updated = statement.executeUpdate();
+                statement.close();
+                return updated == 1;
+            }
+        });
+    }
+
+    /**
+     * Get the song title of a song based on its
+     * song id
+     *
+     * @param songId the song id of the song being searched for
+     * @return the song title of the song being searched for
+     */
+    public String getSongTitle(int songId) {
+        long start = System.nanoTime();
+        ShiTunesEvents.Query event = new ShiTunesEvents.Query(GET_SONG_TITLE_TIMER.getName());
+        try {
+            String title = null;
+            try {
+                String query = "SELECT title FROM " + SONG_TABLE + " WHERE songId=?";
+                stmt = conn.prepareStatement(query);
+                stmt.setInt(1, songId);
+                ResultSet songIdRS = stmt.executeQuery();
+                if(songIdRS.next()) {
+                    title = songIdRS.getString("title");
+                    event.rows = 1;
+                }
+                stmt.close();
+            } catch (SQLException sqlExcept) {
+                sqlExcept.printStackTrace();
+            }
+            return title;
+        } finally {
+            GET_SONG_TITLE_TIMER.recordSince(start);
+            event.commit();
+        }
+    }
+
+    /*
+     * Returns the given SONG row as a String array
+     *
+     * @param rs the current result set item
+     * @return the given result from the SONG table as a String array
+     */
+    private String[] getSongRow(ResultSet rs) {
+        String[] song = new String[SONG_COLUMNS.length];
+        try {
+            for(int i = 0; i < SONG_COLUMNS.length; i++) {
+                song[i] = rs.getString(SONG_COLUMNS[i]);
+            }
+            int duration = rs.getInt("duration");
+            song[DURATION_COLUMN] = rs.wasNull() ? null : Song.formatDuration(duration);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return song;
+    }
+
+    /* ********************** */
+    /* ********************** */
+    /* WAVEFORM TABLE METHODS */
+    /* ********************** */
+    /* ********************** */
+
+    /*
+     * Creates WAVEFORM table, if it doesn't already exist
+     *
+     * @return true if table was created successfully
+     */
+    private boolean createWaveformTable() {
+        try {
+            String query = "CREATE TABLE " + WAVEFORM_TABLE +
+                    " (songId INTEGER NOT NULL, " +
+                    "peaks BLOB(1M) NOT NULL, " +
+                    "PRIMARY KEY (songId), " +
+                    "CONSTRAINT fk_waveform_songId FOREIGN KEY (songId) " +
+                    "REFERENCES " + SONG_TABLE + " (songId) " +
+                    "ON DELETE CASCADE)";
+            stmt = conn.prepareStatement(query);
             stmt.execute();
             stmt.close();
+            return true;
+        } catch (SQLException sqlExcept) {
+            // Table Exists
+        }
+        return false;
+    }
 
-            //playlistNames.add(playlist);
+    /**
+     * Returns the waveform summary of a song, computed by the
+     * LoudnessAnalyzer along with its loudness
+     *
+     * @param songId the song id of the song
+     * @return the (min, max) pairs of the song's Waveform, empty if the song
+     *         could not be decoded, or null if it has not been analyzed yet
+     */
+    public byte[] getWaveform(int songId) {
+        long start = System.nanoTime();
+        ShiTunesEvents.Query event = new ShiTunesEvents.Query(GET_WAVEFORM_TIMER.getName());
+        try {
+            PreparedStatement statement = conn.prepareStatement(
+                    "SELECT peaks FROM " + WAVEFORM_TABLE + " WHERE songId=?");
+            try {
+                statement.setInt(1, songId);
+                ResultSet rs = statement.executeQuery();
+                if(rs.next()) {
+                    event.rows = 1;
+                    return rs.getBytes("peaks");
+                }
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException sqlExcept) {
+            sqlExcept.printStackTrace();
+        } finally {
+            GET_WAVEFORM_TIMER.recordSince(start);
+            event.commit();
+        }
+        return null;
+    }
+
+    /**
+     * Stores the waveform summary of a song, replacing any stored before
+     *
+     * @param songId the song id of the analyzed song
+     * @param peaks the (min, max) pairs of the song's Waveform, empty if
+     *              the song could not be decoded
+     * @return a future completed with true if the waveform was stored
+     */
+    public CompletableFuture<Boolean> setWaveform(final int songId, final byte[] peaks) {
+        return writer.submit(new ShiBaseWriter.Write<Boolean>(WAVEFORM_TABLE, SET_WAVEFORM_TIMER) {
+            Boolean execute(Connection connection) throws SQLException {
+                PreparedStatement statement = connection.prepareStatement(
+                        "DELETE FROM " + WAVEFORM_TABLE + " WHERE songId=?");
+                statement.setInt(1, songId);
+                statement.executeUpdate();
+                statement.close();
+
+                statement = connection.prepareStatement(
+                        "INSERT INTO " + WAVEFORM_TABLE + " (songId, peaks) VALUES (?, ?)");
+                statement.setInt(1, songId);
+                statement.setBytes(2, peaks);
+                statement.execute();
+                statement.close();
+                return true;
+            }
+        });
+    }
+
+    /* ********************** */
+    /* ********************** */
+    /* PLAYLIST TABLE METHODS */
+    /* ********************** */
+    /* ********************** */
+
+    /*
+     * Create the PLAYLIST table
+     *
+     * @return true if table created successfully
+     */
+    private boolean createPlaylistTable() {
+        try {
+            String query = "CREATE TABLE " + PLAYLIST_TABLE +
+                    " (playlistId INTEGER NOT NULL GENERATED ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1), " +
+                    "playlistName VARCHAR(100) UNIQUE NOT NULL, " +
+                    "PRIMARY KEY (playlistId))";
+            stmt = conn.prepareStatement(query);
+            stmt.execute();
+            stmt.close();
+            return true;
         }
         catch (SQLException sqlExcept) {
+            // Table Exists
+        }
+        return false;
+    }
+
+    /**
+     * Accessor method to get all playlist names
+     *
+     * @return an ArrayList of playlist names as Strings
+     */
+    public ArrayList<String> getPlaylistNames() {
+        long start = System.nanoTime();
+        ShiTunesEvents.Query event = new ShiTunesEvents.Query(GET_PLAYLIST_NAMES_TIMER.getName());
+        try {
+            ArrayList<String> playlistNames = new ArrayList<String>();
+            try {
+                // Get all playlist names
+                // a statement of its own: also called by the HTTP server's threads
+                String query = "SELECT playlistName FROM " + PLAYLIST_TABLE +
+                        " ORDER BY playlistName ASC";
+                PreparedStatement statement = conn.prepareStatement(query);
+                ResultSet playlistRS = statement.executeQuery();
+                while(playlistRS.next()) {
+                    playlistNames.add(playlistRS.getString("playlistName"));
+                }
+                statement.close();
+                event.rows = playlistNames.size();
+            }
+            catch (SQLException sqlExcept) {
+                sqlExcept.printStackTrace();
+            }
+
+            // Apply playlists added or deleted but not yet committed
+            if(!pendingPlaylists.isEmpty()) {
+                for(Map.Entry<String, Boolean> pending : pendingPlaylists.entrySet()) {
+                    if(pending.getValue() && !playlistNames.contains(pending.getKey())) {
+                        playlistNames.add(pending.getKey());
+                    } else if(!pending.getValue()) {
+                        playlistNames.remove(pending.getKey());
+                    }
+                }
+                java.util.Collections.sort(playlistNames);
+            }
+            return playlistNames;
+        } finally {
+            GET_PLAYLIST_NAMES_TIMER.recordSince(start);
+            event.commit();
+        }
+    }
+
+    /**
+     * Add a new playlist to the PLAYLIST table
+     *
+     * @param playlist the name of the newly created playlist
+     * @return a future completed with true if entry successfully added to table
+     */
+    public CompletableFuture<Boolean> addPlaylist(final String playlist) {
+        if(playlist == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        pendingPlaylists.put(playlist, true);
+        return writer.submit(new ShiBaseWriter.Write<Boolean>(PLAYLIST_TABLE, ADD_PLAYLIST_TIMER) {
+            Boolean execute(Connection connection) throws SQLException {
+                String query = "INSERT INTO " + PLAYLIST_TABLE + " (playlistName) VALUES (?)";
+                PreparedStatement insert = connection.prepareStatement(query);
+                insert.setString(1, playlist);
+                insert.execute();
+                insert.close();
+                return true;
+            }
+
+            void done(boolean committed) {
+                pendingPlaylists.remove(playlist, true);
+            }
+        });
+    }
+
+    /**
+     * Delete a playlist from the PLAYLIST table
+     *
+     * @param playlist the name of playlist to be deleted
+     * @return a future completed with true if entry successfully deleted from table
+     */
+    public CompletableFuture<Boolean> deletePlaylist(final String playlist) {
+        pendingPlaylists.put(playlist, false);
+        return writer.submit(new ShiBaseWriter.Write<Boolean>(PLAYLIST_TABLE, DELETE_PLAYLIST_TIMER) {
+            Boolean execute(Connection connection) throws SQLException {
+                String query = "DELETE FROM " + PLAYLIST_TABLE +
+                        " WHERE playlistName = ?";
+                PreparedStatement delete = connection.prepareStatement(query);
+                delete.setString(1, playlist);
+                delete.execute();
+                delete.close();
+                return true;
+            }
+
+            void done(boolean committed) {
+                pendingPlaylists.remove(playlist, false);
+            }
+        });
+    }
+
+    /**
+     * Adds the given song to given playlist
+     *
+     * @param filePath the filePath of the song being added
+     * @param playlistName the name of the playlist to add the given song to
+     * @return a future completed with true if song successfully added to playlist
+     */
+    public CompletableFuture<Boolean> addSongToPlaylist(final String filePath, final String playlistName) {
+        return writer.submit(new ShiBaseWriter.Write<Boolean>(PLAYLIST_SONG_TABLE, ADD_SONG_TO_PLAYLIST_TIMER) {
+            Boolean execute(Connection connection) throws SQLException {
+                int songId = getSongId(connection, filePath);
+                int playlistId = getPlaylistId(connection, playlistName);
+                if(songId != -1 && playlistId != -1) {
+                    // SUCCESS: song and playlist id's found
+                    // append song after the current last song of the playlist
+                    String query = "INSERT INTO " + PLAYLIST_SONG_TABLE +
+                            " (playlistId, songId, position) " +
+                            " VALUES (?, ?, ?)";
+                    PreparedStatement insert = connection.prepareStatement(query);
+                    insert.setInt(1, playlistId);
+                    insert.setInt(2, songId);
+                    insert.setInt(3, getLastPosition(connection, playlistId) + POSITION_GAP);
+                    insert.execute();
+                    insert.close();
+                    return true;
+                }
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Adds the given songs to the given playlist
+     * <p>
+     * All songs are inserted as one batch within a single commit
+     * and listeners are notified once, after the commit
+     *
+     * @param playlistId the unique id of the playlist to add the songs to
+     * @param songIds the unique song ids of the songs being added
+     * @return a future completed with true if all songs were successfully added to the playlist
+     */
+    public CompletableFuture<Boolean> addSongsToPlaylist(int playlistId, int[] songIds) {
+        if(playlistId == -1) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return addSongsToPlaylist(null, playlistId, songIds);
+    }
+
+    /**
+     * Adds the given songs to the playlist of the given name, whose id is
+     * looked up by the writer, after a queued creation of the playlist
+     *
+     * @param playlistName the name of the playlist to add the songs to
+     * @param songIds the unique song ids of the songs being added
+     * @return a future completed with true if all songs were successfully added to the playlist
+     */
+    public CompletableFuture<Boolean> addSongsToPlaylist(String playlistName, int[] songIds) {
+        return addSongsToPlaylist(playlistName, -1, songIds);
+    }
+
+    private CompletableFuture<Boolean> addSongsToPlaylist(final String playlistName, final int knownPlaylistId,
+                                                          final int[] songIds) {
+        if(songIds.length == 0) {
+            return CompletableFuture.completedFuture(true);
+        }
+        return writer.submit(new ShiBaseWriter.Write<Boolean>(PLAYLIST_SONG_TABLE, ADD_SONGS_TO_PLAYLIST_TIMER) {
+            Boolean execute(Connection connection) throws SQLException {
+                int playlistId = playlistName == null ? knownPlaylistId : getPlaylistId(connection, playlistName);
+                if(playlistId == -1) {
+                    return false;
+                }
+                // Append the songs after the current last song of the playlist
+                int[] positions = new int[songIds.length];
+                int lastPosition = getLastPosition(connection, playlistId);
+                for(int i = 0; i < positions.length; i++) {
+                    positions[i] = lastPosition + (i + 1) * POSITION_GAP;
+                }
+                String query = "INSERT INTO " + PLAYLIST_SONG_TABLE +
+                        " (playlistId, songId, position) VALUES (?, ?, ?)";
+                executePlaylistSongBatch(connection, query, playlistId, songIds, positions);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Deletes the given songs from the given playlist
+     * <p>
+     * All songs are deleted as one batch within a single commit
+     * and listeners are notified once, after the commit
+     *
+     * @param playlistId the unique id of the playlist to delete the songs from
+     * @param songIds the unique song ids of the songs being deleted
+     * @return a future completed with true if all songs were successfully deleted from the playlist
+     */
+    public CompletableFuture<Boolean> deleteSongsFromPlaylist(int playlistId, int[] songIds) {
+        if(playlistId == -1) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return deleteSongsFromPlaylist(null, playlistId, songIds);
+    }
+
+    /**
+     * Deletes the given songs from the playlist of the given name, whose
+     * id is looked up by the writer, after a queued creation of the playlist
+     *
+     * @param playlistName the name of the playlist to delete the songs from
+     * @param songIds the unique song ids of the songs being deleted
+     * @return a future completed with true if all songs were successfully deleted from the playlist
+     */
+    public CompletableFuture<Boolean> deleteSongsFromPlaylist(String playlistName, int[] songIds) {
+        return deleteSongsFromPlaylist(playlistName, -1, songIds);
+    }
+
+    private CompletableFuture<Boolean> deleteSongsFromPlaylist(final String playlistName, final int knownPlaylistId,
+                                                               final int[] songIds) {
+        if(songIds.length == 0) {
+            return CompletableFuture.completedFuture(true);
+        }
+        return writer.submit(new ShiBaseWriter.Write<Boolean>(PLAYLIST_SONG_TABLE, DELETE_SONGS_FROM_PLAYLIST_TIMER) {
+            Boolean execute(Connection connection) throws SQLException {
+                int playlistId = playlistName == null ? knownPlaylistId : getPlaylistId(connection, playlistName);
+                if(playlistId == -1) {
+                    return false;
+                }
+                String query = "DELETE FROM " + PLAYLIST_SONG_TABLE +
+                        " WHERE playlistId = ? AND songId = ?";
+                executePlaylistSongBatch(connection, query, playlistId, songIds, null);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Deletes the given song to given playlist
+     *
+     * @param songId the unique song id of the song being deleted
+     * @param playlist the playlist to delete the given song from
+     * @return a future completed with true if song successfully deleted to playlist
+     */
+    public CompletableFuture<Boolean> deleteSongFromPlaylist(final int songId, final String playlist) {
+        return writer.submit(new ShiBaseWriter.Write<Boolean>(PLAYLIST_SONG_TABLE, DELETE_SONG_FROM_PLAYLIST_TIMER) {
+            Boolean execute(Connection connection) throws SQLException {
+                int playlistId = getPlaylistId(connection, playlist);
+                if(songId != -1 && playlistId != -1) {
+                    // SUCCESS: song and playlist id's found
+                    executePlaylistSongBatch(connection, "DELETE FROM " + PLAYLIST_SONG_TABLE +
+                            " WHERE playlistId = ? AND songId = ?", playlistId, new int[]{songId}, null);
+                }
+                return true;
+            }
+        });
+    }
+
+    /*
+     * Create the junction table that will associate a Song with
+     * a Playlist by Primary Key (id)
+     *
+     * @return true if table created successfully
+     */
+    private boolean createPlaylistSongTable() {
+        try {
+            String query = "CREATE TABLE " + PLAYLIST_SONG_TABLE +
+                    "(playlistId INTEGER NOT NULL, " +
+                    "songId INTEGER NOT NULL, " +
+                    "position INTEGER NOT NULL DEFAULT 0, " +
+                    "CONSTRAINT fk_songId FOREIGN KEY (songId) " +
+                    "REFERENCES " + SONG_TABLE + " (songId) " +
+                    "ON DELETE CASCADE, " +
+                    "CONSTRAINT fk_playlistId FOREIGN KEY (playlistId) " +
+                    "REFERENCES " + PLAYLIST_TABLE + " (playlistId) " +
+                    "ON DELETE CASCADE )";
+            stmt = conn.prepareStatement(query);
+            stmt.execute();
+            stmt.close();
+            return true;
+        }
+        catch (SQLException sqlExcept) {
+            // Table Exists
+            addPlaylistSongPositionColumn();
+        }
+        return false;
+    }
+
+    /*
+     * Adds the position column to a PLAYLIST_SONG table created
+     * before playlists were ordered, numbering existing playlist
+     * songs by title (their previous display order)
+     */
+    private void addPlaylistSongPositionColumn() {
+        try {
+            String query = "ALTER TABLE " + PLAYLIST_SONG_TABLE +
+                    " ADD COLUMN position INTEGER NOT NULL DEFAULT 0";
+            stmt = conn.prepareStatement(query);
+            stmt.execute();
+            stmt.close();
+        } catch (SQLException sqlExcept) {
+            // Column Exists
+            return;
+        }
+        try {
+            conn.setAutoCommit(false);
+            for(String playlistName : getPlaylistNames()) {
+                renumberPlaylist(conn, getPlaylistId(playlistName), "title");
+            }
+            conn.commit();
+        } catch (SQLException sqlExcept) {
             sqlExcept.printStackTrace();
-            return false;
+        } finally {
+            try {
+                conn.setAutoCommit(true);
+            } catch (SQLException sqlExcept) {
+                sqlExcept.printStackTrace();
+            }
         }
-        return true;
     }
 
-    /**
-     * Delete a playlist from the PLAYLIST table
+    /*
+     * Creates the index used to read playlist songs in order
+     * and to find the last position of a playlist
      *
-     * @param playlist the name of playlist to be deleted
-     * @return true if entry successfully deleted from table
+     * @return true if index created successfully
      */
-    public boolean deletePlaylist(String playlist) {
+    private boolean createPlaylistSongPositionIndex() {
         try {
-            String query = "DELETE FROM " + PLAYLIST_TABLE +
-                    " WHERE playlistName = ?";
+            String query = "CREATE INDEX idx_playlist_position ON " + PLAYLIST_SONG_TABLE +
+                    " (playlistId, position)";
             stmt = conn.prepareStatement(query);
-            stmt.setString(1, playlist);
             stmt.execute();
             stmt.close();
-
-            //playlistNames.remove(playlist);
             return true;
-        }
-        catch (SQLException sqlExcept) {
-            sqlExcept.printStackTrace();
+        } catch (SQLException sqlExcept) {
+            // Index Exists
         }
         return false;
     }
 
+    /*
+     * Get the position of the last song in the given playlist
+     *
+     * @param connection the connection to query on
+     * @param playlistId the unique id of the playlist
+     * @return the highest position in the playlist, 0 if the playlist is empty
+     */
+    private static int getLastPosition(Connection connection, int playlistId) throws SQLException {
+        int position = 0;
+        String query = "SELECT MAX(position) AS lastPosition FROM " + PLAYLIST_SONG_TABLE +
+                " WHERE playlistId=?";
+        PreparedStatement select = connection.prepareStatement(query);
+        select.setInt(1, playlistId);
+        ResultSet resultSet = select.executeQuery();
+        if(resultSet.next()) {
+            position = resultSet.getInt("lastPosition");
+        }
+        select.close();
+        return position;
+    }
+
+    /*
+     * Get the songs of the given playlist shown in it, in play order
+     *
+     * @param connection the connection to query on
+     * @param playlistId the unique id of the playlist
+     * @return the song id and position of every row
+     */
+    private static List<int[]> getPlaylistRows(Connection connection, int playlistId) throws SQLException {
+        List<int[]> rows = new ArrayList<int[]>();
+        String query = "SELECT songId, position FROM " + SONG_TABLE +
+                " JOIN " + PLAYLIST_SONG_TABLE +
+                " USING (songId) WHERE playlistId=? AND deleted=FALSE ORDER BY position, songId";
+        PreparedStatement select = connection.prepareStatement(query);
+        select.setInt(1, playlistId);
+        ResultSet resultSet = select.executeQuery();
+        while(resultSet.next()) {
+            rows.add(new int[] {resultSet.getInt("songId"), resultSet.getInt("position")});
+        }
+        select.close();
+        return rows;
+    }
+
     /**
-     * Adds the given song to given playlist
+     * Moves the song at the given row of a playlist to another row
+     * <p>
+     * Playlist positions are spaced POSITION_GAP apart so the move is
+     * a single row update. When the gap between the new neighbours is
+     * used up the playlist is renumbered first, and when it is nearly
+     * used up a renumbering pass is queued behind the move. Listeners of
+     * the PLAYLIST_SONG table are notified, so other views of the
+     * playlist show the new order.
+     * <p>
+     * Rows are counted as getPlaylistSongs() returns them. The row is
+     * given rather than the song alone as a song can be in a playlist
+     * more than once, and only the copy at that row is moved.
      *
-     * @param filePath the filePath of the song being added
-     * @param playlistName the name of the playlist to add the given song to
-     * @return true if song successfully added to playlist
+     * @param playlistId the unique id of the playlist
+     * @param songId the unique id of the song being moved, which must be at fromRow
+     * @param fromRow the row of the song being moved
+     * @param toRow the row the song is moved to
+     * @return a future completed with true if the song was moved successfully
      */
-    public boolean addSongToPlaylist(String filePath, String playlistName) {
-        try {
-            int songId = getSongId(filePath);
-            int playlistId = getPlaylistId(playlistName);
-            if(songId!= -1 && playlistId != -1) {
-                // SUCCESS: song and playlist id's found
-                String query = "INSERT INTO " + PLAYLIST_SONG_TABLE +
-                        " (playlistId, songId) " +
-                        " VALUES (" + playlistId + ", " + songId + ")";
-                stmt = conn.prepareStatement(query);
-                stmt.execute();
-                stmt.close();
+    public CompletableFuture<Boolean> moveSongInPlaylist(int playlistId, int songId, int fromRow, int toRow) {
+        if(playlistId == -1) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return moveSongInPlaylist(null, playlistId, songId, fromRow, toRow);
+    }
+
+    /**
+     * Moves the song at the given row of the playlist of the given name,
+     * whose id is looked up by the writer, after a queued creation of
+     * the playlist
+     *
+     * @param playlistName the name of the playlist
+     * @param songId the unique id of the song being moved, which must be at fromRow
+     * @param fromRow the row of the song being moved
+     * @param toRow the row the song is moved to
+     * @return a future completed with true if the song was moved successfully
+     */
+    public CompletableFuture<Boolean> moveSongInPlaylist(String playlistName, int songId, int fromRow, int toRow) {
+        return moveSongInPlaylist(playlistName, -1, songId, fromRow, toRow);
+    }
+
+    private CompletableFuture<Boolean> moveSongInPlaylist(final String playlistName, final int knownPlaylistId,
+                                                          final int songId, final int fromRow, final int toRow) {
+        return writer.submit(new ShiBaseWriter.Write<Boolean>(PLAYLIST_SONG_TABLE, MOVE_SONG_IN_PLAYLIST_TIMER) {
+            Boolean execute(Connection connection) throws SQLException {
+                int playlistId = playlistName == null ? knownPlaylistId : getPlaylistId(connection, playlistName);
+                if(playlistId == -1) {
+                    return false;
+                }
+                List<int[]> rows = getPlaylistRows(connection, playlistId);
+                if(fromRow < 0 || fromRow >= rows.size() || toRow < 0 || toRow >= rows.size()
+                        || rows.get(fromRow)[0] != songId) {
+                    // not the playlist the caller saw
+                    return false;
+                }
+                if(fromRow == toRow) {
+                    return true;
+                }
+                int[] moved = rows.remove(fromRow);
+                int[] previous = toRow > 0 ? rows.get(toRow - 1) : null;
+                int[] next = toRow < rows.size() ? rows.get(toRow) : null;
+                int position;
+
+                if(previous == null) {
+                    position = next[1] - POSITION_GAP;
+                } else if(next == null) {
+                    position = previous[1] + POSITION_GAP;
+                } else {
+                    if(next[1] - previous[1] < 2) {
+                        // no room left between neighbours: renumber now and look up again
+                        renumberPlaylist(connection, playlistId, null);
+                        rows = getPlaylistRows(connection, playlistId);
+                        moved = rows.remove(fromRow);
+                        previous = rows.get(toRow - 1);
+                        next = rows.get(toRow);
+                    }
+                    position = previous[1] + (next[1] - previous[1]) / 2;
+                    if(next[1] - previous[1] < 4) {
+                        // room is running out, renumber before the next move needs it
+                        scheduleRenumberPlaylist(playlistId);
+                    }
+                }
+
+                // keyed on the position too: any other copy of the song stays where it is
+                String query = "UPDATE " + PLAYLIST_SONG_TABLE +
+                        " SET position=? WHERE playlistId=? AND songId=? AND position=?";
+                PreparedStatement update = connection.prepareStatement(query);
+                update.setInt(1, position);
+                update.setInt(2, playlistId);
+                update.setInt(3, moved[0]);
+                update.setInt(4, moved[1]);
+                int updated = update.executeUpdate();
+                update.close();
+                return updated == 1;
+            }
+        });
+    }
+
+    /*
+     * Queues a renumbering pass of the given playlist, committed
+     * separately from the write that found it running out of room
+     *
+     * @param playlistId the unique id of the playlist to renumber
+     */
+    private void scheduleRenumberPlaylist(final int playlistId) {
+        writer.submit(new ShiBaseWriter.Write<Boolean>(PLAYLIST_SONG_TABLE, RENUMBER_PLAYLIST_TIMER) {
+            Boolean execute(Connection connection) throws SQLException {
+                renumberPlaylist(connection, playlistId, null);
                 return true;
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        });
+    }
+
+    /*
+     * Renumbers all songs of the given playlist POSITION_GAP apart
+     * within the current transaction of the given connection
+     *
+     * @param connection the connection to renumber the playlist on
+     * @param playlistId the unique id of the playlist to renumber
+     * @param orderBy the SONG column to order by, or null to keep the current order
+     */
+    private static void renumberPlaylist(Connection connection, int playlistId, String orderBy) throws SQLException {
+        String query = "SELECT songId, position FROM " + SONG_TABLE +
+                " JOIN " + PLAYLIST_SONG_TABLE +
+                " USING (songId) WHERE playlistId=?" +
+                " ORDER BY " + (orderBy == null ? "position, songId" : orderBy);
+        PreparedStatement select = connection.prepareStatement(query);
+        query = "UPDATE " + PLAYLIST_SONG_TABLE +
+                " SET position=? WHERE playlistId=? AND songId=? AND position=?";
+        PreparedStatement update = connection.prepareStatement(query);
+        try {
+            select.setInt(1, playlistId);
+            ResultSet resultSet = select.executeQuery();
+            int position = 0;
+            while(resultSet.next()) {
+                position += POSITION_GAP;
+                update.setInt(1, position);
+                update.setInt(2, playlistId);
+                update.setInt(3, resultSet.getInt("songId"));
+                update.setInt(4, resultSet.getInt("position"));
+                update.addBatch();
+            }
+            resultSet.close();
+            update.executeBatch();
+        } finally {
+            select.close();
+            update.close();
         }
-        return false;
     }
 
     /**
-     * Deletes the given song to given playlist
+     * Get all the songs associated with the given playlistId
      *
-     * @param songId the unique song id of the song being deleted
-     * @param playlist the playlist to delete the given song from
-     * @return true if song successfully deleted to playlist
+     * @param playlistName the name of the playlist to get all songs from
+     * @return an ArrayList of Songs associated with the given playlist
      */
-    public boolean deleteSongFromPlaylist(int songId, String playlist) {
+    public Object[][] getPlaylistSongs(String playlistName) {
+        long start = System.nanoTime();
+        ShiTunesEvents.Query event = new ShiTunesEvents.Query(GET_PLAYLIST_SONGS_TIMER.getName());
         try {
-            int playlistId = getPlaylistId(playlist);
-            if(songId!= -1 && playlistId != -1) {
-                // SUCCESS: song and playlist id's found
-                String query = "DELETE FROM " + PLAYLIST_SONG_TABLE +
-                        " WHERE playlistId = " + playlistId +
-                        " AND songId = " + songId;
+            Object[][] playlistSongs;
+            int playlistId = getPlaylistId(playlistName);
+            int rowCount;
+            int index = 0;
+
+            try {
+                // Get record count - which will be the size of
+                // the first dimension of the multidimensional array
+                // this method returns (ie. the number of songs in playlist)
+                String rowCountQuery = "SELECT count(*) AS rowcount FROM " + SONG_TABLE +
+                        " JOIN " + PLAYLIST_SONG_TABLE +
+                        " USING (songId) WHERE playlistId = " + playlistId +
+                        " AND deleted=FALSE";
+                stmt = conn.prepareStatement(rowCountQuery);
+                ResultSet rowCountRS = stmt.executeQuery();
+                rowCountRS.next();
+                rowCount = rowCountRS.getInt("rowcount");
+
+                // Initialize multidimensional array large enough to hold all songs in playlist
+                playlistSongs = new Object[rowCount][SONG_COLUMNS.length];
+
+                // Get all playlist songs
+                String query = "SELECT * FROM " + SONG_TABLE +
+                        " JOIN " + PLAYLIST_SONG_TABLE +
+                        " USING (songId) WHERE playlistID = " + playlistId +
+                        " AND deleted=FALSE ORDER BY position, songId";
                 stmt = conn.prepareStatement(query);
-                stmt.execute();
+                ResultSet playlistSongsRS = stmt.executeQuery();
+
+                while(playlistSongsRS.next() && index < rowCount) {
+                    playlistSongs[index] = getSongRow(playlistSongsRS);
+                    index++;
+                }
                 stmt.close();
-                return true;
+                event.rows = index;
+                return withoutPendingDeletes(playlistSongs, index);
             }
-            return true;
-        } catch (SQLException e) {
-            e.printStackTrace();
+            catch (SQLException sqlExcept) {
+                sqlExcept.printStackTrace();
+            }
+            return new Object[0][0];
+        } finally {
+            GET_PLAYLIST_SONGS_TIMER.recordSince(start);
+            event.commit();
         }
-        return false;
     }
 
-    /*
-     * Create the junction table that will associate a Song with
-     * a Playlist by Primary Key (id)
+
+    /**
+     * Returns the total length of all songs in the library
      *
-     * @return true if table created successfully
+     * @return the sum of the song durations in milliseconds,
+     *         songs of unknown duration are not counted
      */
-    private boolean createPlaylistSongTable() {
+    public long getLibraryDuration() {
+        long start = System.nanoTime();
+        ShiTunesEvents.Query event = new ShiTunesEvents.Query(GET_LIBRARY_DURATION_TIMER.getName());
         try {
-            String query = "CREATE TABLE " + PLAYLIST_SONG_TABLE +
-                    "(playlistId INTEGER NOT NULL, " +
-                    "songId INTEGER NOT NULL, " +
-                    "CONSTRAINT fk_songId FOREIGN KEY (songId) " +
-                    "REFERENCES " + SONG_TABLE + " (songId) " +
-                    "ON DELETE CASCADE, " +
-                    "CONSTRAINT fk_playlistId FOREIGN KEY (playlistId) " +
-                    "REFERENCES " + PLAYLIST_TABLE + " (playlistId) " +
-                    "ON DELETE CASCADE )";
+            String query = "SELECT SUM(CAST(duration AS BIGINT)) AS total FROM " + SONG_TABLE +
+                    " WHERE deleted=FALSE";
             stmt = conn.prepareStatement(query);
-            stmt.execute();
+            ResultSet rs = stmt.executeQuery();
+            rs.next();
+            long total = rs.getLong("total");
             stmt.close();
-            return true;
+            event.rows = 1;
+            return total;
+        } catch (SQLException sqlExcept) {
+            sqlExcept.printStackTrace();
+        } finally {
+            GET_LIBRARY_DURATION_TIMER.recordSince(start);
+            event.commit();
         }
-        catch (SQLException sqlExcept) {
-            // Table Exists
+        return 0;
+    }
+
+    /**
+     * Hands a page of a playlist's songs, in playlist order, to the given
+     * handler as they are read
+     *
+     * @param playlistName the name of the playlist
+     * @param offset the number of songs skipped
+     * @param limit the most songs read
+     * @param handler receives the songs
+     * @return the number of songs in the page, less than the limit if it
+     *         is the last one, -1 if there is no such playlist or its songs
+     *         could not be read
+     * @throws IOException if the handler fails
+     */
+    public int streamPlaylistSongs(String playlistName, int offset, int limit, RowHandler handler)
+            throws IOException {
+        long start = System.nanoTime();
+        ShiTunesEvents.Query event = new ShiTunesEvents.Query(STREAM_PLAYLIST_SONGS_TIMER.getName());
+        try {
+            int playlistId = getPlaylistId(playlistName);
+            if(playlistId == -1) {
+                // a playlist whose creation is still queued is empty, not missing
+                return playlistName != null && Boolean.TRUE.equals(pendingPlaylists.get(playlistName)) ? 0 : -1;
+            }
+            String query = "SELECT songId FROM " + PLAYLIST_SONG_TABLE +
+                    " WHERE playlistId = ? ORDER BY position, songId OFFSET ? ROWS FETCH NEXT ? ROWS ONLY";
+            int count = streamSongs(query, playlistId, offset, limit, handler);
+            event.rows = Math.max(count, 0);
+            return count;
+        } finally {
+            STREAM_PLAYLIST_SONGS_TIMER.recordSince(start);
+            event.commit();
         }
-        return false;
     }
 
     /**
-     * Get all the songs associated with the given playlistId
+     * Returns the total length of the songs in the given playlist
+     * <p>
+     * The sum is computed by the database from the playlist's
+     * index, the song files are not read
      *
-     * @param playlistName the name of the playlist to get all songs from
-     * @return an ArrayList of Songs associated with the given playlist
+     * @param playlistName the name of the playlist
+     * @return the sum of the song durations in milliseconds,
+     *         songs of unknown duration are not counted
      */
-    public Object[][] getPlaylistSongs(String playlistName) {
-        Object[][] playlistSongs;
-        int playlistId = getPlaylistId(playlistName);
-        int rowCount;
-        int index = 0;
-
-        try {
-            // Get record count - which will be the size of
-            // the first dimension of the multidimensional array
-            // this method returns (ie. the number of songs in playlist)
-            String rowCountQuery = "SELECT count(*) AS rowcount FROM " + PLAYLIST_SONG_TABLE +
-                    " WHERE playlistId = " + playlistId;
-            stmt = conn.prepareStatement(rowCountQuery);
-            ResultSet rowCountRS = stmt.executeQuery();
-            rowCountRS.next();
-            rowCount = rowCountRS.getInt("rowcount");
-
-            // Initialize multidimensional array large enough to hold all songs in playlist
-            playlistSongs = new Object[rowCount][SONG_COLUMNS.length];
-
-            // Get all playlist songs
-            String query = "SELECT * FROM " + SONG_TABLE +
+    public long getPlaylistDuration(String playlistName) {
+        long start = System.nanoTime();
+        ShiTunesEvents.Query event = new ShiTunesEvents.Query(GET_PLAYLIST_DURATION_TIMER.getName());
+        try {
+            int playlistId = getPlaylistId(playlistName);
+            String query = "SELECT SUM(CAST(duration AS BIGINT)) AS total FROM " + SONG_TABLE +
                     " JOIN " + PLAYLIST_SONG_TABLE +
-                    " USING (songId) WHERE playlistID = " + playlistId +
-                    " ORDER BY title";
+                    " USING (songId) WHERE playlistId = ? AND deleted=FALSE";
             stmt = conn.prepareStatement(query);
-            ResultSet playlistSongsRS = stmt.executeQuery();
-
-            while(playlistSongsRS.next()) {
-                playlistSongs[index] = getSongRow(playlistSongsRS);
-                index++;
-            }
+            stmt.setInt(1, playlistId);
+            ResultSet rs = stmt.executeQuery();
+            rs.next();
+            long total = rs.getLong("total");
             stmt.close();
-            return playlistSongs;
-        }
-        catch (SQLException sqlExcept) {
+            event.rows = 1;
+            return total;
+        } catch (SQLException sqlExcept) {
             sqlExcept.printStackTrace();
+        } finally {
+            GET_PLAYLIST_DURATION_TIMER.recordSince(start);
+            event.commit();
         }
-        return new Object[0][0];
+        return 0;
     }
-
-    /*
+    /**
      * Get the unique integer id of a playlist based on its
      * name (which is also unique)
+     * <p>
+     * A playlist whose creation is still queued has no id yet, and one
+     * whose deletion is queued has none any more: both return -1 without
+     * waiting for the writer. Writes to a playlist just created take its
+     * name instead, eg. addSongsToPlaylist(String, int[]), and look the
+     * id up once the creation has been applied.
      *
      * @param playlistName the name of the playlist being searched for
      * @return the unique integer id of the playlist being searched for
      *         returns -1 if not found
      */
-    private int getPlaylistId(String playlistName) {
-        int playlistId = -1;
+    public int getPlaylistId(String playlistName) {
+        long start = System.nanoTime();
+        ShiTunesEvents.Query event = new ShiTunesEvents.Query(GET_PLAYLIST_ID_TIMER.getName());
         try {
-            String query = "SELECT * FROM " + PLAYLIST_TABLE + " WHERE playlistName=?";
-            stmt = conn.prepareStatement(query);
-            stmt.setString(1, playlistName);
-            ResultSet songIdRS = stmt.executeQuery();
-            if(songIdRS.next()) {
-                playlistId = songIdRS.getInt("playlistId");
+            if(playlistName != null && Boolean.FALSE.equals(pendingPlaylists.get(playlistName))) {
+                return -1;
             }
-            stmt.close();
-        } catch (SQLException sqlExcept) {
-            sqlExcept.printStackTrace();
+            try {
+                int playlistId = getPlaylistId(conn, playlistName);
+                event.rows = playlistId == -1 ? 0 : 1;
+                return playlistId;
+            } catch (SQLException sqlExcept) {
+                sqlExcept.printStackTrace();
+            }
+            return -1;
+        } finally {
+            GET_PLAYLIST_ID_TIMER.recordSince(start);
+            event.commit();
+        }
+    }
+
+    /*
+     * Get the unique integer id of a playlist based on its name
+     *
+     * @param connection the connection to query on
+     * @param playlistName the name of the playlist being searched for
+     * @return the unique integer id of the playlist, -1 if not found
+     */
+    private static int getPlaylistId(Connection connection, String playlistName) throws SQLException {
+        int playlistId = -1;
+        String query = "SELECT playlistId FROM " + PLAYLIST_TABLE + " WHERE playlistName=?";
+        PreparedStatement select = connection.prepareStatement(query);
+        select.setString(1, playlistName);
+        ResultSet playlistIdRS = select.executeQuery();
+        if(playlistIdRS.next()) {
+            playlistId = playlistIdRS.getInt("playlistId");
         }
+        select.close();
         return playlistId;
     }
 
@@ -628,34 +2103,124 @@ public class ShiBase {
             // Create Table
             query = "CREATE TABLE " + COLUMN_CONFIG_TABLE +
                     " (columnName VARCHAR(50)," +
-                    "columnVisible BOOLEAN NOT NULL)";
+                    "columnVisible BOOLEAN NOT NULL, " +
+                    "columnWidth INTEGER NOT NULL DEFAULT " + ColumnConfig.DEFAULT_WIDTH + ", " +
+                    "columnIndex INTEGER NOT NULL DEFAULT -1)";
             stmt = conn.prepareStatement(query);
             stmt.execute();
             stmt.close();
 
             // Populate table with default values
-            for(int i = 0; i < MusicTable.SONG_COLUMN_NAMES.length; i++) {
+            for(int i = 0; i < ColumnConfig.COLUMN_NAMES.length; i++) {
                 query = "INSERT INTO " + COLUMN_CONFIG_TABLE +
-                        " (columnName, columnVisible)" +
-                        " VALUES (?, ?)";
+                        " (columnName, columnVisible, columnIndex)" +
+                        " VALUES (?, ?, ?)";
                 stmt = conn.prepareStatement(query);
-                String columnName = MusicTable.SONG_COLUMN_NAMES[i];
+                String columnName = ColumnConfig.COLUMN_NAMES[i];
                 stmt.setString(1, columnName);
-                if (columnName.equals("ID") || columnName.equals("File Path")) {
-                    stmt.setBoolean(2, false);  // default state for ID & File Path is !visible
-                } else {
-                    stmt.setBoolean(2, true);   // default state for all other columns is visible
-                }
+                // default state for ID & File Path is !visible, all other columns are visible
+                stmt.setBoolean(2, ColumnConfig.isVisibleByDefault(columnName));
+                stmt.setInt(3, i);
                 stmt.execute();
                 stmt.close();
             }
             return true;
         } catch (SQLException sqlExcept) {
             // Table Exists
+            addColumnConfigLayoutColumns();
         }
         return false;
     }
 
+    /*
+     * Adds the width and view index columns to a COLUMN_CONFIG
+     * table created before the column layout was saved
+     */
+    private void addColumnConfigLayoutColumns() {
+        String[] columns = {"columnWidth INTEGER NOT NULL DEFAULT " + ColumnConfig.DEFAULT_WIDTH,
+                "columnIndex INTEGER NOT NULL DEFAULT -1"};
+        for(String column : columns) {
+            try {
+                stmt = conn.prepareStatement("ALTER TABLE " + COLUMN_CONFIG_TABLE + " ADD COLUMN " + column);
+                stmt.execute();
+                stmt.close();
+            } catch (SQLException sqlExcept) {
+                // Column Exists
+            }
+        }
+    }
+
+    /*
+     * Loads the column configuration shared by all windows
+     */
+    private void loadColumnConfig() {
+        columnConfig = new ColumnConfig(new Runnable() {
+            public void run() {
+                scheduleSaveColumnConfig();
+            }
+        });
+        try {
+            String query = "SELECT " + COLUMN_CONFIG_COLUMNS[0];
+            for(int i = 1; i < COLUMN_CONFIG_COLUMNS.length; i++) {
+                query += ", " + COLUMN_CONFIG_COLUMNS[i];
+            }
+            stmt = conn.prepareStatement(query + " FROM " + COLUMN_CONFIG_TABLE);
+            ResultSet resultSet = stmt.executeQuery();
+            Set<String> loadedColumns = new HashSet<String>();
+            while(resultSet.next()) {
+                loadedColumns.add(resultSet.getString("columnName"));
+                try {
+                    columnConfig.load(resultSet.getString("columnName"),
+                            resultSet.getBoolean("columnVisible"),
+                            resultSet.getInt("columnWidth"),
+                            resultSet.getInt("columnIndex"));
+                } catch (IllegalArgumentException unknownColumn) {
+                    // Column no longer displayed
+                }
+            }
+            stmt.close();
+            addMissingColumnConfigRows(loadedColumns);
+        } catch (SQLException sqlExcept) {
+            sqlExcept.printStackTrace();
+        }
+        columnConfig.validateColumnOrder();
+    }
+
+    /*
+     * Adds the default layout of columns added to the music
+     * table after the COLUMN_CONFIG table was created
+     *
+     * @param loadedColumns the names of the columns already in the table
+     */
+    private void addMissingColumnConfigRows(Set<String> loadedColumns) throws SQLException {
+        for(String columnName : ColumnConfig.COLUMN_NAMES) {
+            if(loadedColumns.contains(columnName)) {
+                continue;
+            }
+            String query = "INSERT INTO " + COLUMN_CONFIG_TABLE +
+                    " (columnName, columnVisible, columnIndex)" +
+                    " VALUES (?, ?, ?)";
+            stmt = conn.prepareStatement(query);
+            stmt.setString(1, columnName);
+            stmt.setBoolean(2, ColumnConfig.isVisibleByDefault(columnName));
+            stmt.setInt(3, columnConfig.getViewIndex(columnName));
+            stmt.execute();
+            stmt.close();
+        }
+    }
+
+    /**
+     * Returns the column configuration shared by all windows
+     * <p>
+     * Changes made to it are saved to the database in the
+     * background, coalesced into a single write
+     *
+     * @return the cached column configuration
+     */
+    public ColumnConfig getColumnConfig() {
+        return columnConfig;
+    }
+
     /**
      * Accessor method to get a columns visibility
      *
@@ -663,46 +2228,66 @@ public class ShiBase {
      * @param columnName the column name to search for
      */
     public boolean getColumnVisible(String columnName) {
-        boolean columnVisible = false;
-        try {
-            // Get all playlist names
-            String query = "SELECT columnVisible FROM " + COLUMN_CONFIG_TABLE +
-                    " WHERE columnName=?";
-            stmt = conn.prepareStatement(query);
-            stmt.setString(1, columnName);
-            ResultSet resultSet = stmt.executeQuery();
-            resultSet.next();
-            columnVisible = resultSet.getBoolean("columnVisible");
-            stmt.close();
-        }
-        catch (SQLException sqlExcept) {
-            sqlExcept.printStackTrace();
-        }
-        return columnVisible;
+        return columnConfig.isVisible(columnName);
     }
 
     /**
      * Mutator method to set a columns visibility
      *
-     * @return boolean indicating whether column is visible
      * @param columnName the column name of the column being changed
      * @param visible the visible to set for the column
      */
     public void setColumnVisible(String columnName, boolean visible) {
-        try {
-            // Get all playlist names
-            String query = "UPDATE " + COLUMN_CONFIG_TABLE +
-                    " SET columnVisible=? " +
-                    " WHERE columnName=?";
-            stmt = conn.prepareStatement(query);
-            stmt.setBoolean(1, visible);
-            stmt.setString(2, columnName);
-            stmt.execute();
-            stmt.close();
+        columnConfig.setVisible(columnName, visible);
+    }
+
+    /*
+     * Schedules a save of the column configuration unless one is
+     * already scheduled, so that a burst of changes (eg. dragging
+     * a column border) costs a single write
+     */
+    private synchronized void scheduleSaveColumnConfig() {
+        if(columnConfigSavePending || closed) {
+            return;
         }
-        catch (SQLException sqlExcept) {
-            sqlExcept.printStackTrace();
+        columnConfigSavePending = true;
+        scheduler.schedule(new Runnable() {
+            public void run() {
+                saveColumnConfig();
+            }
+        }, COLUMN_CONFIG_SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Queues the pending save of the column configuration, if any
+     */
+    private synchronized void saveColumnConfig() {
+        if(!columnConfigSavePending) {
+            return;
         }
+        columnConfigSavePending = false;
+        writer.submit(new ShiBaseWriter.Write<Boolean>(null, SAVE_COLUMN_CONFIG_TIMER) {
+            Boolean execute(Connection connection) throws SQLException {
+                String query = "UPDATE " + COLUMN_CONFIG_TABLE +
+                        " SET columnVisible=?, columnWidth=?, columnIndex=?" +
+                        " WHERE columnName=?";
+                PreparedStatement batch = connection.prepareStatement(query);
+                try {
+                    // save the configuration as it is now, including changes made since scheduling
+                    for(String columnName : ColumnConfig.COLUMN_NAMES) {
+                        batch.setBoolean(1, columnConfig.isVisible(columnName));
+                        batch.setInt(2, columnConfig.getWidth(columnName));
+                        batch.setInt(3, columnConfig.getViewIndex(columnName));
+                        batch.setString(4, columnName);
+                        batch.addBatch();
+                    }
+                    batch.executeBatch();
+                } finally {
+                    batch.close();
+                }
+                return true;
+            }
+        });
     }
 
     /* ******************** */
@@ -737,43 +2322,48 @@ public class ShiBase {
      * Adds the given song to recent songs
      *
      * @param songId the song to add to recent songs
-     * @return true if song successfully added to recent songs
+     * @return a future completed with true if song successfully added to recent songs
      */
-    public boolean addRecentSong(int songId) {
-        try {
-            // Insert given song into recent songs table
-            String query = "INSERT INTO " + RECENT_SONGS_TABLE +
-                    " (songId) " +
-                    " VALUES (?)";
-            stmt = conn.prepareStatement(query);
-            stmt.setInt(1, songId);
-            stmt.execute();
-            stmt.close();
+    public CompletableFuture<Boolean> addRecentSong(final int songId) {
+        final Integer recentSong = songId;
+        pendingRecentSongs.add(recentSong);
+        return writer.submit(new ShiBaseWriter.Write<Boolean>(null, ADD_RECENT_SONG_TIMER) {
+            Boolean execute(Connection connection) throws SQLException {
+                // Insert given song into recent songs table
+                String query = "INSERT INTO " + RECENT_SONGS_TABLE +
+                        " (songId) " +
+                        " VALUES (?)";
+                PreparedStatement statement = connection.prepareStatement(query);
+                statement.setInt(1, songId);
+                statement.execute();
+                statement.close();
 
-            // Get row count after insert
-            query = "SELECT count(*) as rowCount FROM " + RECENT_SONGS_TABLE;
-            stmt = conn.prepareStatement(query);
-            ResultSet countRS = stmt.executeQuery();
-            int rowCount = 0;
-            while(countRS.next()) {
-                rowCount = countRS.getInt("rowCount");
+                // Get row count after insert
+                query = "SELECT count(*) as rowCount FROM " + RECENT_SONGS_TABLE;
+                statement = connection.prepareStatement(query);
+                ResultSet countRS = statement.executeQuery();
+                int rowCount = 0;
+                while(countRS.next()) {
+                    rowCount = countRS.getInt("rowCount");
+                }
+                statement.close();
+
+                // If rowCount > 10 (ie. 11) delete the oldest song in recent songs table
+                if(rowCount > RECENT_SONGS_LIMIT) {
+                    query = "DELETE FROM " + RECENT_SONGS_TABLE +
+                            " WHERE songId IN (SELECT songId FROM " + RECENT_SONGS_TABLE +
+                            " FETCH FIRST ROW ONLY)";
+                    statement = connection.prepareStatement(query);
+                    statement.executeUpdate();
+                    statement.close();
+                }
+                return true;
             }
-            stmt.close();
 
-            // If rowCount > 10 (ie. 11) delete the oldest song in recent songs table
-            if(rowCount > 10) {
-                query = "DELETE FROM " + RECENT_SONGS_TABLE +
-                        " WHERE songId IN (SELECT songId FROM " + RECENT_SONGS_TABLE +
-                        " FETCH FIRST ROW ONLY)";
-                stmt = conn.prepareStatement(query);
-                stmt.executeUpdate();
-                stmt.close();
+            void done(boolean committed) {
+                pendingRecentSongs.remove(recentSong);
             }
-            return true;
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return false;
+        });
     }
 
     /**
@@ -782,23 +2372,38 @@ public class ShiBase {
      * @return array of recent song ids
      */
     public int[] getRecentSongs() {
-        ArrayList<Integer> recentSongsList = new ArrayList<Integer>();
+        long start = System.nanoTime();
+        ShiTunesEvents.Query event = new ShiTunesEvents.Query(GET_RECENT_SONGS_TIMER.getName());
         try {
-            // Get all recent song ids
-            String query = "SELECT songId FROM " + RECENT_SONGS_TABLE;
-            stmt = conn.prepareStatement(query);
-            ResultSet rs = stmt.executeQuery();
-            while(rs.next()) {
-                recentSongsList.add(rs.getInt("songId"));
+            ArrayList<Integer> recentSongsList = new ArrayList<Integer>();
+            try {
+                // Get all recent song ids
+                String query = "SELECT songId FROM " + RECENT_SONGS_TABLE +
+                        " WHERE songId IN (SELECT songId FROM " + SONG_TABLE + " WHERE deleted=FALSE)";
+                stmt = conn.prepareStatement(query);
+                ResultSet rs = stmt.executeQuery();
+                while(rs.next()) {
+                    recentSongsList.add(rs.getInt("songId"));
+                }
+                stmt.close();
+                event.rows = recentSongsList.size();
+            } catch (SQLException e) {
+                e.printStackTrace();
             }
-            stmt.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        int[] recentSongs = new int[recentSongsList.size()];
-        for(int i = 0; i < recentSongs.length; i++) {
-            recentSongs[i] = recentSongsList.get(i);
+
+            // Apply recent songs added but not yet committed
+            recentSongsList.addAll(pendingRecentSongs);
+            recentSongsList.removeAll(pendingDeletedSongs.keySet());
+            int from = Math.max(0, recentSongsList.size() - RECENT_SONGS_LIMIT);
+
+            int[] recentSongs = new int[recentSongsList.size() - from];
+            for(int i = 0; i < recentSongs.length; i++) {
+                recentSongs[i] = recentSongsList.get(from + i);
+            }
+            return recentSongs;
+        } finally {
+            GET_RECENT_SONGS_TIMER.recordSince(start);
+            event.commit();
         }
-        return recentSongs;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,16 @@
+/**
+ * The ShiBaseListener interface is implemented by classes
+ * that need to be notified when committed changes are made
+ * to the shiTunes database
+ *
+ * @author shiTunes inc.
+ */
+public interface ShiBaseListener {
+
+    /**
+     * Called once after a transaction modifying the given table commits
+     *
+     * @param tableName the name of the table that changed
+     */
+    void tableChanged(String tableName);
+}
@@ -0,0 +1,432 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ShiBaseWriter class applies all ShiBase mutations on a
+ * single writer thread with its own database connection
+ * <p>
+ * Writes are queued by the caller and return immediately with a future.
+ * The writer thread takes every write waiting in the queue (up to
+ * MAX_BATCH_SIZE) and applies them within one transaction, so a burst
+ * of writes costs a single commit. Each write runs inside its own
+ * savepoint so one failing write does not undo the rest of its batch.
+ * Futures are completed and listeners notified, once per changed table,
+ * only after the batch has committed.
+ *
+ * @author shiTunes inc.
+ */
+public class ShiBaseWriter {
+
+    /**
+     * The maximum number of writes grouped into one commit
+     */
+    static final int MAX_BATCH_SIZE = 256;
+
+    // Queued by close() behind all other writes to stop the writer thread
+    private static final PendingWrite<Void> STOP = new PendingWrite<Void>(null);
+
+    private final BlockingQueue<PendingWrite<?>> queue = new LinkedBlockingQueue<PendingWrite<?>>();
+    private final Connection conn;
+    private final ShiBaseListener listener;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    // Metrics
+    private static final Metrics.Histogram COMMIT = Metrics.histogram("shibase.writer.commit");
+    private static final Metrics.Histogram BATCH_SIZE = Metrics.histogram("shibase.writer.batchSize", false);
+    private static final Metrics.Counter FAILED_WRITES = Metrics.counter("shibase.writer.failedWrites");
+    private final AtomicLong commitCount = new AtomicLong();
+    private final AtomicLong writeCount = new AtomicLong();
+    private final AtomicLong failedWriteCount = new AtomicLong();
+    private final AtomicLong totalCommitNanos = new AtomicLong();
+    private volatile long lastCommitNanos;
+    private volatile long maxCommitNanos;
+
+    /**
+     * A single database mutation applied by the writer thread
+     * <p>
+     * Writes run on the writer's connection inside the writer's
+     * transaction and so must never commit, roll back or change
+     * the auto commit mode themselves
+     *
+     * @param <T> the result type of the write
+     */
+    public static abstract class Write<T> {
+        private final String tableName;
+        private final Metrics.Histogram timer;
+
+        /**
+         * Creates a write that changes the given table
+         *
+         * @param tableName the table listeners are notified about once
+         *                  the write commits, or null for no notification
+         */
+        public Write(String tableName) {
+            this(tableName, null);
+        }
+
+        /**
+         * Creates a timed write that changes the given table
+         *
+         * @param tableName the table listeners are notified about once
+         *                  the write commits, or null for no notification
+         * @param timer records the time from queueing the write until
+         *              it is committed, or null
+         */
+        public Write(String tableName, Metrics.Histogram timer) {
+            this.tableName = tableName;
+            this.timer = timer;
+        }
+
+        /**
+         * Applies the write
+         *
+         * @param conn the writer's connection
+         * @return the result the write's future is completed with
+         * @throws SQLException if the write fails, only this write is rolled back
+         */
+        abstract T execute(Connection conn) throws SQLException;
+
+        /**
+         * Called on the writer thread once the write has been committed
+         * or has failed, before its future is completed
+         *
+         * @param committed true if the write was committed
+         */
+        void done(boolean committed) {
+        }
+    }
+
+    /*
+     * A queued write and the future its caller is waiting on
+     */
+    private static class PendingWrite<T> {
+        final Write<T> write;
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        final long submitted = System.nanoTime();
+        T result;
+        Throwable failure;
+
+        PendingWrite(Write<T> write) {
+            this.write = write;
+        }
+
+        void apply(Connection conn) throws SQLException {
+            ShiTunesEvents.Write event = new ShiTunesEvents.Write(
+                    write.timer != null ? write.timer.getName() : "shibase.write");
+            boolean applied = false;
+            try {
+                result = write.execute(conn);
+                applied = true;
+            } finally {
+                event.failed = !applied;
+                event.commit();
+            }
+        }
+
+        void complete() {
+            if(write != null && write.timer != null) {
+                write.timer.recordSince(submitted);
+            }
+            try {
+                write.done(failure == null);
+            } catch (Throwable t) {
+                t.printStackTrace();    // the caller still gets its result
+            }
+            if(failure == null) {
+                future.complete(result);
+            } else {
+                future.completeExceptionally(failure);
+            }
+        }
+    }
+
+    /**
+     * Creates the writer and starts its thread
+     *
+     * @param conn the connection used exclusively by the writer thread
+     * @param listener notified once per changed table after each commit
+     * @throws SQLException if auto commit can not be disabled on the connection
+     */
+    public ShiBaseWriter(Connection conn, ShiBaseListener listener) throws SQLException {
+        this.conn = conn;
+        this.listener = listener;
+        conn.setAutoCommit(false);
+        thread = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "ShiBase-writer");
+        thread.setDaemon(true);
+        thread.start();
+        Metrics.register(new Metrics.Gauge("shibase.writer.queueDepth") {
+            public long get() {
+                return getQueueDepth();
+            }
+        });
+    }
+
+    /**
+     * Queues the given write
+     *
+     * @param write the write to apply
+     * @param <T> the result type of the write
+     * @return a future completed with the write's result once it has been committed
+     */
+    public <T> CompletableFuture<T> submit(Write<T> write) {
+        PendingWrite<T> pending = new PendingWrite<T>(write);
+        synchronized(this) {
+            if(!closed) {
+                queue.add(pending);
+                return pending.future;
+            }
+        }
+        pending.failure = new IllegalStateException("ShiBaseWriter is closed");
+        pending.complete();
+        return pending.future;
+    }
+
+    /**
+     * Blocks until every write queued before this call has been committed
+     */
+    public void flush() {
+        if(Thread.currentThread() == thread) {
+            // called from a write or listener: everything before it is being committed already
+            return;
+        }
+        try {
+            submit(new Write<Void>(null) {
+                Void execute(Connection conn) {
+                    return null;
+                }
+            }).get();
+        } catch (Exception e) {
+            // writer closed, nothing left to flush
+        }
+    }
+
+    /**
+     * Commits all queued writes, stops the writer thread
+     * and closes its connection
+     * <p>
+     * Writes submitted after close fail immediately
+     */
+    public void close() {
+        synchronized(this) {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            queue.add(STOP);
+        }
+        try {
+            thread.join();
+            conn.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * The writer thread: takes every queued write and
+     * applies it in batches until the writer is closed
+     */
+    private void writeLoop() {
+        List<PendingWrite<?>> batch = new ArrayList<PendingWrite<?>>(MAX_BATCH_SIZE);
+        boolean stopping = false;
+        while(!stopping) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+            stopping = batch.remove(STOP);
+            if(!batch.isEmpty()) {
+                try {
+                    commitBatch(batch);
+                } catch (Throwable t) {
+                    // nothing may end the loop: every caller after this batch would wait forever
+                    t.printStackTrace();
+                    try {
+                        conn.rollback();
+                    } catch (Throwable rollbackFailure) {
+                        rollbackFailure.printStackTrace();
+                    }
+                    for(PendingWrite<?> pending : batch) {
+                        if(!pending.future.isDone()) {
+                            // rolled back: done(false) drops what ShiBase shows of it meanwhile
+                            if(pending.failure == null) {
+                                pending.failure = t;
+                            }
+                            pending.complete();
+                        }
+                    }
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /*
+     * Applies the given writes within one transaction,
+     * then completes their futures and notifies the listener
+     *
+     * @param batch the writes to apply
+     */
+    private void commitBatch(List<PendingWrite<?>> batch) {
+        long start = System.nanoTime();
+        ShiTunesEvents.Commit event = new ShiTunesEvents.Commit();
+        Set<String> changedTables = new LinkedHashSet<String>();
+
+        for(PendingWrite<?> pending : batch) {
+            Savepoint savepoint = null;
+            try {
+                savepoint = conn.setSavepoint();
+                pending.apply(conn);
+                conn.releaseSavepoint(savepoint);
+                if(pending.write.tableName != null) {
+                    changedTables.add(pending.write.tableName);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                pending.failure = e;
+                try {
+                    if(savepoint != null) {
+                        conn.rollback(savepoint);
+                    }
+                } catch (SQLException rollbackExcept) {
+                    rollbackExcept.printStackTrace();
+                }
+            }
+        }
+
+        try {
+            conn.commit();
+        } catch (SQLException sqlExcept) {
+            sqlExcept.printStackTrace();
+            changedTables.clear();
+            for(PendingWrite<?> pending : batch) {
+                if(pending.failure == null) {
+                    pending.failure = sqlExcept;
+                }
+            }
+            try {
+                conn.rollback();
+            } catch (SQLException rollbackExcept) {
+                rollbackExcept.printStackTrace();
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        lastCommitNanos = elapsed;
+        if(elapsed > maxCommitNanos) {
+            maxCommitNanos = elapsed;
+        }
+        totalCommitNanos.addAndGet(elapsed);
+        commitCount.incrementAndGet();
+        writeCount.addAndGet(batch.size());
+        COMMIT.record(elapsed);
+        BATCH_SIZE.record(batch.size());
+
+        event.end();
+        event.writes = batch.size();
+        for(PendingWrite<?> pending : batch) {
+            if(pending.failure != null) {
+                failedWriteCount.incrementAndGet();
+                FAILED_WRITES.increment();
+                event.failedWrites++;
+            }
+            try {
+                pending.complete();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+        event.commit();
+        for(String tableName : changedTables) {
+            try {
+                listener.tableChanged(tableName);
+            } catch (Throwable t) {
+                t.printStackTrace();    // a failing listener must not stop the writer thread
+            }
+        }
+    }
+
+    /* ******* */
+    /* METRICS */
+    /* ******* */
+
+    /**
+     * Returns the number of writes waiting to be applied
+     *
+     * @return the current queue depth
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of commits (batches) applied so far
+     *
+     * @return the commit count
+     */
+    public long getCommitCount() {
+        return commitCount.get();
+    }
+
+    /**
+     * Returns the number of writes applied so far, including failed writes
+     *
+     * @return the write count
+     */
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    /**
+     * Returns the number of writes that failed and were rolled back
+     *
+     * @return the failed write count
+     */
+    public long getFailedWriteCount() {
+        return failedWriteCount.get();
+    }
+
+    /**
+     * Returns the time taken to apply and commit the most recent batch
+     *
+     * @return the last commit latency in nanoseconds
+     */
+    public long getLastCommitNanos() {
+        return lastCommitNanos;
+    }
+
+    /**
+     * Returns the longest time taken to apply and commit a batch
+     *
+     * @return the maximum commit latency in nanoseconds
+     */
+    public long getMaxCommitNanos() {
+        return maxCommitNanos;
+    }
+
+    /**
+     * Returns the average time taken to apply and commit a batch
+     *
+     * @return the mean commit latency in nanoseconds
+     */
+    public long getMeanCommitNanos() {
+        long commits = commitCount.get();
+        return commits == 0 ? 0 : totalCommitNanos.get() / commits;
+    }
+}
@@ -0,0 +1,525 @@
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ShiHttpApi class serves the library, its playlists and the
+ * daemon's player over HTTP, in JSON, to other tools on the same machine:
+ * <ul>
+ * <li>GET /api/songs?offset=N&amp;limit=N: a page of the library, in title order</li>
+ * <li>GET /api/playlists: the playlist names</li>
+ * <li>GET /api/playlists/NAME/songs?offset=N&amp;limit=N: a page of a playlist, in its order</li>
+ * <li>GET /api/search?q=TEXT: the songs whose title, artist or album contains the text</li>
+ * <li>GET /api/player: the player's state, song and queue length</li>
+ * <li>POST /api/player/play?song=SONG, /api/player/queue?song=SONG and
+ * /api/player/stop: the daemon's commands, SONG a song id or a file path</li>
+ * <li>GET /api/player/events: the player's status as server-sent events</li>
+ * </ul>
+ * Pages are 500 songs unless a limit (up to 5000) is given, and link to
+ * the next page, "next" being null on the last. They are written out as
+ * ShiBase reads them, one song at a time, so neither the page nor its
+ * JSON is ever held in memory whole.
+ * <p>
+ * Listings carry an ETag that changes whenever the songs or playlists
+ * change; a request sending it back in If-None-Match is answered with
+ * 304 Not Modified without reading the library.
+ *
+ * @author shiTunes inc.
+ */
+public class ShiHttpApi {
+
+    /**
+     * The system property giving the port of the HTTP API, which is only
+     * served when it is set
+     */
+    public static final String PORT_PROPERTY = "shiTunes.http.port";
+    /**
+     * The system property giving the number of threads answering requests
+     */
+    public static final String THREADS_PROPERTY = "shiTunes.http.threads";
+    /**
+     * The songs in a page, unless the request gives a limit
+     */
+    public static final int DEFAULT_PAGE = 500;
+    /**
+     * The most songs in a page
+     */
+    public static final int MAX_PAGE = 5000;
+
+    private static final String JSON = "application/json; charset=utf-8";
+    private static final long MAX_EVENT_BACKLOG = 64 * 1024;    // events a client may leave unread
+    private static final String[] SONG_COLUMNS = ShiBase.SONG_COLUMNS;
+    private static final boolean[] NUMERIC_COLUMNS = new boolean[SONG_COLUMNS.length];
+
+    static {
+        // songId, bitrate, sampleRate & channels; duration is formatted, eg. "3:25"
+        NUMERIC_COLUMNS[0] = NUMERIC_COLUMNS[9] = NUMERIC_COLUMNS[10] = NUMERIC_COLUMNS[11] = true;
+    }
+
+    private final ShiBase db;
+    private final ShiTunesDaemon daemon;
+    private final ShiHttpServer server;
+    private final String instance = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong version = new AtomicLong();
+    private final ShiBaseListener versionListener = new ShiBaseListener() {
+        public void tableChanged(String tableName) {
+            if(tableName.equals(ShiBase.SONG_TABLE) || tableName.equals(ShiBase.PLAYLIST_TABLE)
+                    || tableName.equals(ShiBase.PLAYLIST_SONG_TABLE)) {
+                version.incrementAndGet();
+            }
+        }
+    };
+
+    /**
+     * Creates the API of a daemon, not yet listening
+     *
+     * @param db the library
+     * @param daemon the daemon whose player is controlled
+     * @param address the address to listen on, a loopback address
+     */
+    public ShiHttpApi(ShiBase db, ShiTunesDaemon daemon, InetSocketAddress address) {
+        this.db = db;
+        this.daemon = daemon;
+        server = new ShiHttpServer(address, Integer.getInteger(THREADS_PROPERTY, 4));
+        server.addHandler("/", new ShiHttpServer.Handler() {
+            public void handle(ShiHttpServer.Exchange exchange) {
+                sendError(exchange, 404, "Not found");
+            }
+        });
+        server.addHandler("/api/songs", new ShiHttpServer.Handler() {
+            public void handle(ShiHttpServer.Exchange exchange) throws IOException {
+                if(exchange.getPath().equals("/api/songs")) {
+                    getSongs(exchange);
+                } else {
+                    sendError(exchange, 404, "Not found");
+                }
+            }
+        });
+        server.addHandler("/api/playlists", new ShiHttpServer.Handler() {
+            public void handle(ShiHttpServer.Exchange exchange) throws IOException {
+                getPlaylists(exchange);
+            }
+        });
+        server.addHandler("/api/search", new ShiHttpServer.Handler() {
+            public void handle(ShiHttpServer.Exchange exchange) throws IOException {
+                search(exchange);
+            }
+        });
+        server.addHandler("/api/player", new ShiHttpServer.Handler() {
+            public void handle(ShiHttpServer.Exchange exchange) throws IOException {
+                player(exchange);
+            }
+        });
+    }
+
+    /**
+     * Starts serving the API
+     *
+     * @throws IOException if the address cannot be bound, eg. the port is taken
+     */
+    public void start() throws IOException {
+        db.addShiBaseListener(versionListener);
+        server.start();
+    }
+
+    /**
+     * Stops serving the API
+     */
+    public void stop() {
+        db.removeShiBaseListener(versionListener);
+        server.stop();
+    }
+
+    /**
+     * Returns the port the API is served on
+     *
+     * @return the port, -1 if not started
+     */
+    public int getPort() {
+        return server.getPort();
+    }
+
+    /* ******* */
+    /* LIBRARY */
+    /* ******* */
+
+    private void getSongs(ShiHttpServer.Exchange exchange) throws IOException {
+        if(!isGet(exchange) || notModified(exchange)) {
+            return;
+        }
+        SongPage page = SongPage.of(exchange, "/api/songs");
+        if(page != null) {
+            page.finish(db.streamSongs(page.offset, page.limit, page));
+        }
+    }
+
+    private void getPlaylists(ShiHttpServer.Exchange exchange) throws IOException {
+        String path = exchange.getPath();
+        if(path.equals("/api/playlists")) {
+            if(!isGet(exchange) || notModified(exchange)) {
+                return;
+            }
+            List<String> names = db.getPlaylistNames();
+            StringBuilder json = new StringBuilder("{\"playlists\":[");
+            for(int i = 0; i < names.size(); i++) {
+                if(i > 0) {
+                    json.append(',');
+                }
+                appendString(json, names.get(i));
+            }
+            json.append("]}");
+            send(exchange, 200, json);
+        } else if(path.startsWith("/api/playlists/") && path.endsWith("/songs")
+                && path.length() > "/api/playlists//songs".length()) {
+            if(!isGet(exchange) || notModified(exchange)) {
+                return;
+            }
+            String name = path.substring("/api/playlists/".length(), path.length() - "/songs".length());
+            SongPage page = SongPage.of(exchange, "/api/playlists/" + encode(name) + "/songs");
+            if(page != null) {
+                page.finish(db.streamPlaylistSongs(name, page.offset, page.limit, page));
+            }
+        } else {
+            sendError(exchange, 404, "Not found");
+        }
+    }
+
+    private void search(ShiHttpServer.Exchange exchange) throws IOException {
+        if(!isGet(exchange)) {
+            return;
+        }
+        String text = exchange.getParameter("q");
+        if(text == null || text.isEmpty()) {
+            sendError(exchange, 400, "Missing q");
+            return;
+        }
+        if(notModified(exchange)) {
+            return;
+        }
+        StringBuilder json = new StringBuilder("{\"songs\":[");
+        Object[][] songs = db.searchSongs(text, ShiTunesDaemon.SEARCH_LIMIT);
+        for(int i = 0; i < songs.length; i++) {
+            if(i > 0) {
+                json.append(',');
+            }
+            appendSong(json, (String[]) songs[i]);
+        }
+        json.append("]}");
+        send(exchange, 200, json);
+    }
+
+    /*
+     * A page of songs written out as they are read, its header once the
+     * first song is read and its link to the next page once the last is
+     */
+    private static class SongPage implements ShiBase.RowHandler {
+        final ShiHttpServer.Exchange exchange;
+        final String path;
+        final int offset;
+        final int limit;
+        final StringBuilder json = new StringBuilder(1024);
+        ShiHttpServer.Stream stream;
+        boolean first = true;
+
+        private SongPage(ShiHttpServer.Exchange exchange, String path, int offset, int limit) {
+            this.exchange = exchange;
+            this.path = path;
+            this.offset = offset;
+            this.limit = limit;
+        }
+
+        /*
+         * Reads the offset and limit of the request
+         *
+         * @return the page, null if they are not valid (answered with 400)
+         */
+        static SongPage of(ShiHttpServer.Exchange exchange, String path) {
+            int offset;
+            int limit;
+            try {
+                String offsetParameter = exchange.getParameter("offset");
+                String limitParameter = exchange.getParameter("limit");
+                offset = offsetParameter == null ? 0 : Integer.parseInt(offsetParameter);
+                limit = limitParameter == null ? DEFAULT_PAGE : Integer.parseInt(limitParameter);
+            } catch (NumberFormatException e) {
+                offset = limit = -1;
+            }
+            if(offset < 0 || limit < 1 || limit > MAX_PAGE) {
+                sendError(exchange, 400, "offset must be 0 or more and limit 1 to " + MAX_PAGE);
+                return null;
+            }
+            return new SongPage(exchange, path, offset, limit);
+        }
+
+        public void row(String[] song) throws IOException {
+            if(stream == null) {
+                start();
+            }
+            if(!first) {
+                json.append(',');
+            }
+            first = false;
+            appendSong(json, song);
+            stream.print(json);
+            json.setLength(0);
+        }
+
+        private void start() throws IOException {
+            stream = exchange.startStream(200, JSON);
+            json.append("{\"offset\":").append(offset).append(",\"limit\":").append(limit).append(",\"songs\":[");
+        }
+
+        /*
+         * Ends the page once its songs are read, linking to the next one
+         * if the page is full
+         *
+         * @param read the songs in the page, -1 if the listing does not exist
+         */
+        void finish(int read) throws IOException {
+            if(stream == null) {
+                if(read == -1) {
+                    sendError(exchange, 404, "Not found");
+                    return;
+                }
+                start();
+            }
+            json.append("],\"next\":");
+            if(read == limit) {
+                appendString(json, path + "?offset=" + (offset + limit) + "&limit=" + limit);
+            } else {
+                json.append("null");
+            }
+            json.append('}');
+            stream.print(json);
+            stream.close();
+        }
+    }
+
+    /* ****** */
+    /* PLAYER */
+    /* ****** */
+
+    private void player(final ShiHttpServer.Exchange exchange) throws IOException {
+        String path = exchange.getPath();
+        if(path.equals("/api/player")) {
+            if(isGet(exchange)) {
+                StringBuilder json = new StringBuilder();
+                appendStatus(json, daemon.getStatus());
+                send(exchange, 200, json);
+            }
+        } else if(path.equals("/api/player/events")) {
+            if(isGet(exchange)) {
+                streamEvents(exchange);
+            }
+        } else if(path.equals("/api/player/play") || path.equals("/api/player/queue")
+                || path.equals("/api/player/stop")) {
+            if(!exchange.getMethod().equals("POST")) {
+                exchange.setHeader("Allow", "POST");
+                sendError(exchange, 405, "Use POST");
+                return;
+            }
+            String command = path.substring("/api/player/".length());
+            String song = exchange.getParameter("song");
+            if(!command.equals("stop")) {
+                if(song == null || song.isEmpty()) {
+                    sendError(exchange, 400, "Missing song");
+                    return;
+                }
+                command += " " + song;
+            }
+            String reply;
+            try {
+                reply = daemon.command(command).get(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sendError(exchange, 503, "Interrupted");
+                return;
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+                sendError(exchange, 500, e.getCause().toString());
+                return;
+            } catch (TimeoutException e) {
+                sendError(exchange, 503, "The player is busy");
+                return;
+            }
+            if(reply.startsWith("OK")) {
+                StringBuilder json = new StringBuilder();
+                appendStatus(json, daemon.getStatus());
+                send(exchange, 200, json);
+            } else {
+                String message = reply.substring(Math.min(4, reply.length())).trim();
+                sendError(exchange, message.startsWith("no song") ? 404 : 400, message);
+            }
+        } else {
+            sendError(exchange, 404, "Not found");
+        }
+    }
+
+    /*
+     * Sends the player's status now and each time it changes, until the
+     * client leaves. The events are written on the daemon's command
+     * thread, which must never wait for a client: one that has left is
+     * noticed at the next event, and one that has not read the last
+     * 64 KB of events is disconnected.
+     */
+    private void streamEvents(final ShiHttpServer.Exchange exchange) throws IOException {
+        exchange.setHeader("Cache-Control", "no-cache");
+        final ShiHttpServer.Stream stream = exchange.startStream(200, "text/event-stream; charset=utf-8");
+        ShiTunesDaemon.StatusListener listener = new ShiTunesDaemon.StatusListener() {
+            public void statusChanged(ShiTunesDaemon.Status status) {
+                try {
+                    if(stream.getQueued() > MAX_EVENT_BACKLOG) {
+                        daemon.removeStatusListener(this);
+                        exchange.abort();       // not reading: writing on would wait
+                        return;
+                    }
+                    sendEvent(stream, status);
+                } catch (IOException e) {
+                    daemon.removeStatusListener(this);
+                }
+            }
+        };
+        daemon.addStatusListener(listener);
+        try {
+            sendEvent(stream, daemon.getStatus());
+        } catch (IOException e) {
+            daemon.removeStatusListener(listener);
+            throw e;
+        }
+    }
+
+    private static void sendEvent(ShiHttpServer.Stream stream, ShiTunesDaemon.Status status) throws IOException {
+        StringBuilder event = new StringBuilder("event: status\ndata: ");
+        appendStatus(event, status);
+        event.append("\n\n");
+        synchronized(stream) {
+            stream.print(event);
+            stream.flush();
+        }
+    }
+
+    /* ******** */
+    /* RESPONSE */
+    /* ******** */
+
+    /*
+     * Answers a request for a listing with 304 if the client holds its
+     * current version, or else sets its ETag
+     *
+     * @return true if answered
+     */
+    private boolean notModified(ShiHttpServer.Exchange exchange) {
+        String etag = "\"" + instance + "-" + version.get() + "\"";
+        exchange.setHeader("ETag", etag);
+        exchange.setHeader("Cache-Control", "no-cache");
+        if(etag.equals(exchange.getHeader("if-none-match"))) {
+            exchange.send(304, null, new byte[0]);
+            return true;
+        }
+        return false;
+    }
+
+    /*
+     * Answers a request that is not a GET (or HEAD) with 405
+     *
+     * @return true if the request is a GET
+     */
+    private static boolean isGet(ShiHttpServer.Exchange exchange) {
+        String method = exchange.getMethod();
+        if(method.equals("GET") || method.equals("HEAD")) {
+            return true;
+        }
+        exchange.setHeader("Allow", "GET, HEAD");
+        sendError(exchange, 405, "Use GET");
+        return false;
+    }
+
+    private static void send(ShiHttpServer.Exchange exchange, int status, CharSequence json) {
+        exchange.send(status, JSON, json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void sendError(ShiHttpServer.Exchange exchange, int status, String message) {
+        StringBuilder json = new StringBuilder("{\"error\":");
+        appendString(json, message);
+        send(exchange, status, json.append('}'));
+    }
+
+    private static String encode(String text) {
+        try {
+            return URLEncoder.encode(text, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /* **** */
+    /* JSON */
+    /* **** */
+
+    private static void appendSong(StringBuilder json, String[] song) {
+        json.append('{');
+        for(int i = 0; i < SONG_COLUMNS.length; i++) {
+            if(i > 0) {
+                json.append(',');
+            }
+            json.append('"').append(SONG_COLUMNS[i]).append("\":");
+            if(song[i] == null) {
+                json.append("null");
+            } else if(NUMERIC_COLUMNS[i]) {
+                json.append(song[i]);
+            } else {
+                appendString(json, song[i]);
+            }
+        }
+        json.append('}');
+    }
+
+    private static void appendStatus(StringBuilder json, ShiTunesDaemon.Status status) {
+        json.append("{\"state\":");
+        appendString(json, status.getState());
+        json.append(",\"song\":");
+        if(status.getSong() == null) {
+            json.append("null");
+        } else {
+            appendString(json, status.getSong());
+        }
+        json.append(",\"queued\":").append(status.getQueued()).append('}');
+    }
+
+    /*
+     * Appends a JSON string, quoted and escaped
+     */
+    static void appendString(StringBuilder json, String text) {
+        json.append('"');
+        for(int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if(c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if(c < 0x20) {
+                switch(c) {
+                    case '\n':
+                        json.append("\\n");
+                        break;
+                    case '\r':
+                        json.append("\\r");
+                        break;
+                    case '\t':
+                        json.append("\\t");
+                        break;
+                    default:
+                        json.append(String.format("\\u%04x", (int) c));
+                }
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,1084 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ShiHttpServer class is the small HTTP/1.1 server behind the HTTP
+ * API: one selector thread reads requests and writes responses for
+ * every connection, and a few worker threads run the handlers.
+ * <p>
+ * A handler answers with send(), or starts a stream and writes it at
+ * its own pace, from any thread and for as long as it likes (eg. server
+ * sent events). Streams are sent in chunks of 8 KB. A handler writing
+ * faster than its client reads waits once 256 KB are queued, so a slow
+ * client holds a worker but never the server's memory, and a client
+ * that reads nothing for 30 seconds is disconnected.
+ * <p>
+ * A handler may also answer with a region of a file, sendFile(): the
+ * selector thread then transfers it from the file to the socket as the
+ * client reads, with FileChannel.transferTo() (sendfile on Linux), so
+ * the bytes are never copied into the JVM and the worker is free at
+ * once. Any number of files are sent at the same time by the one
+ * selector thread, in turns of at most 512 KB each.
+ * <p>
+ * Connections are kept alive between requests, one request at a time.
+ * Requests are limited to 16 KB, headers and body.
+ *
+ * @author shiTunes inc.
+ */
+public class ShiHttpServer {
+
+    /**
+     * Answers the requests for a path
+     */
+    public interface Handler {
+        /**
+         * Answers a request, before returning or later on any thread
+         *
+         * @param exchange the request and its response
+         * @throws IOException if the response cannot be written
+         */
+        void handle(Exchange exchange) throws IOException;
+    }
+
+    private static final int READ_BUFFER_SIZE = 16384;     // also the largest request
+    private static final int CHUNK_SIZE = 8192;
+    private static final int CHUNK_HEADER_SIZE = 6;         // "2000\r\n"
+    private static final long HIGH_WATER = 256 * 1024;      // bytes queued before a handler waits
+    private static final long IDLE_MILLIS = 30000;
+    private static final int BACKLOG = 1024;                // connections not accepted yet, eg. many listeners at once
+    private static final long TRANSFER_SIZE = 512 * 1024;   // bytes of a file sent in a turn
+    private static final ByteBuffer END = ByteBuffer.allocate(0);   // marks the end of a response
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final Map<Integer, String> REASONS = new HashMap<Integer, String>();
+
+    static {
+        REASONS.put(200, "OK");
+        REASONS.put(204, "No Content");
+        REASONS.put(206, "Partial Content");
+        REASONS.put(304, "Not Modified");
+        REASONS.put(400, "Bad Request");
+        REASONS.put(404, "Not Found");
+        REASONS.put(405, "Method Not Allowed");
+        REASONS.put(413, "Payload Too Large");
+        REASONS.put(416, "Range Not Satisfiable");
+        REASONS.put(500, "Internal Server Error");
+        REASONS.put(503, "Service Unavailable");
+    }
+
+    private static final Metrics.Counter REQUESTS = Metrics.counter("http.requests");
+    private static final Metrics.Counter ERRORS = Metrics.counter("http.errors");
+    private static final Metrics.Histogram RESPONSE = Metrics.histogram("http.response");
+    private static final AtomicInteger CONNECTIONS = new AtomicInteger();
+
+    static {
+        Metrics.register(new Metrics.Gauge("http.connections") {
+            public long get() {
+                return CONNECTIONS.get();
+            }
+        });
+    }
+
+    private final InetSocketAddress address;
+    private final ExecutorService workers;
+    private final List<String> prefixes = new ArrayList<String>();     // longest first
+    private final Map<String, Handler> handlers = new HashMap<String, Handler>();
+    private final ConcurrentLinkedQueue<Connection> ready = new ConcurrentLinkedQueue<Connection>();
+    private final AtomicInteger fileTransfers = new AtomicInteger();
+    private final AtomicLong fileBytes = new AtomicLong();
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Thread thread;
+
+    /**
+     * Creates a server, not yet listening
+     *
+     * @param address the address to listen on, eg. 127.0.0.1 and a port
+     *                (port 0 for any free port)
+     * @param threads the number of worker threads running handlers
+     */
+    public ShiHttpServer(InetSocketAddress address, int threads) {
+        this.address = address;
+        final AtomicInteger count = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Http-worker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Answers the requests whose path starts with the given prefix with
+     * the given handler, the handler of the longest prefix winning
+     *
+     * @param prefix the start of the paths, eg. "/api/songs"
+     * @param handler the handler
+     */
+    public synchronized void addHandler(String prefix, Handler handler) {
+        handlers.put(prefix, handler);
+        prefixes.remove(prefix);
+        int i = 0;
+        while(i < prefixes.size() && prefixes.get(i).length() >= prefix.length()) {
+            i++;
+        }
+        prefixes.add(i, prefix);
+    }
+
+    private synchronized Handler getHandler(String path) {
+        for(String prefix : prefixes) {
+            if(path.startsWith(prefix)) {
+                return handlers.get(prefix);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Starts listening, serving connections on a thread of the server's own
+     *
+     * @throws IOException if the address cannot be bound
+     */
+    public void start() throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(address, BACKLOG);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        thread = new Thread(new Runnable() {
+            public void run() {
+                serve();
+            }
+        }, "Http-selector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the port the server listens on
+     *
+     * @return the port, -1 if not started
+     */
+    public int getPort() {
+        return server == null ? -1 : server.socket().getLocalPort();
+    }
+
+    /**
+     * Accessor method to get the number of files being sent
+     *
+     * @return the responses sent with sendFile() not yet fully written
+     */
+    public int getFileTransfers() {
+        return fileTransfers.get();
+    }
+
+    /**
+     * Accessor method to get the number of bytes of files sent so far
+     *
+     * @return the bytes written with sendFile() since the server started
+     */
+    public long getFileBytes() {
+        return fileBytes.get();
+    }
+
+    /**
+     * Stops serving, closing every connection
+     */
+    public void stop() {
+        try {
+            if(selector != null) {
+                for(SelectionKey key : selector.keys()) {
+                    if(key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).close();
+                    } else {
+                        key.channel().close();
+                    }
+                }
+                selector.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (ClosedSelectorException e) {
+            // already closed
+        }
+        workers.shutdownNow();
+    }
+
+    /* ******** */
+    /* SELECTOR */
+    /* ******** */
+
+    private void serve() {
+        long lastSweep = System.currentTimeMillis();
+        try {
+            while(selector.isOpen()) {
+                selector.select(1000);
+                for(Connection connection; (connection = ready.poll()) != null; ) {
+                    connection.scheduled.set(false);
+                    try {
+                        connection.write();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                        connection.close();
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if(key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Connection connection = (Connection) key.attachment();
+                            if(key.isWritable()) {
+                                connection.write();
+                            }
+                            if(key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                        }
+                    } catch (CancelledKeyException e) {
+                        // closed by stop()
+                    } catch (RuntimeException e) {
+                        // a bug answering one client must not stop the server for all of them
+                        e.printStackTrace();
+                        if(key.attachment() instanceof Connection) {
+                            ((Connection) key.attachment()).close();
+                        }
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if(now - lastSweep >= 1000) {
+                    lastSweep = now;
+                    closeIdle(now);
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // stopped
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            CONNECTIONS.incrementAndGet();
+        }
+    }
+
+    /*
+     * Closes the connections idle between requests, and those whose
+     * client has not read any of its response, for longer than
+     * IDLE_MILLIS
+     */
+    private void closeIdle(long now) {
+        for(SelectionKey key : selector.keys()) {
+            if(key.attachment() instanceof Connection) {
+                Connection connection = (Connection) key.attachment();
+                if(now - connection.lastActive > IDLE_MILLIS
+                        && (connection.exchange == null || !connection.out.isEmpty())) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /*
+     * Runs the handler of a request on a worker thread
+     */
+    private void dispatch(final Exchange exchange) {
+        REQUESTS.increment();
+        try {
+            workers.execute(new Runnable() {
+                public void run() {
+                    Handler handler = getHandler(exchange.path);
+                    try {
+                        if(handler == null) {
+                            exchange.sendError(404, "No handler for " + exchange.path);
+                        } else {
+                            handler.handle(exchange);
+                        }
+                    } catch (IOException e) {
+                        exchange.abort();      // the client left
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                        exchange.fail();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            exchange.connection.close();    // stopping
+        }
+    }
+
+    /*
+     * A client connection: the request being read, and the response
+     * queued by the handler but not yet written
+     */
+    private class Connection {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        final ConcurrentLinkedQueue<Object> out = new ConcurrentLinkedQueue<Object>();  // ByteBuffer, FileRegion
+        final AtomicLong queued = new AtomicLong();      // bytes of the buffers in out
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        volatile boolean open = true;
+        volatile long lastActive = System.currentTimeMillis();
+        SelectionKey key;
+        Exchange exchange;          // the request being answered, null between requests
+        boolean keepAlive;
+        long requestStart;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() {
+            int count;
+            try {
+                count = channel.read(in);
+            } catch (IOException e) {
+                count = -1;
+            }
+            if(count == -1) {
+                close();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            if(exchange == null) {
+                parse();
+            } else if(!in.hasRemaining()) {
+                // the next requests fill the buffer, read them once this one is answered
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        /*
+         * Parses the request at the start of the buffer, if it has all
+         * been read, and hands it to its handler
+         */
+        void parse() {
+            byte[] bytes = in.array();
+            int length = in.position();
+            int headerEnd = -1;
+            for(int i = 3; i < length; i++) {
+                if(bytes[i] == '\n' && bytes[i - 1] == '\r' && bytes[i - 2] == '\n' && bytes[i - 3] == '\r') {
+                    headerEnd = i + 1;
+                    break;
+                }
+            }
+            if(headerEnd == -1) {
+                if(!in.hasRemaining()) {
+                    reject(413);
+                }
+                return;
+            }
+            String[] lines = new String(bytes, 0, headerEnd - 4, StandardCharsets.ISO_8859_1).split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if(requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+                reject(400);
+                return;
+            }
+            Map<String, String> headers = new HashMap<String, String>();
+            for(int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if(colon > 0) {
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+                }
+            }
+            int bodyLength = 0;
+            if(headers.containsKey("content-length")) {
+                try {
+                    bodyLength = Integer.parseInt(headers.get("content-length"));
+                } catch (NumberFormatException e) {
+                    reject(400);
+                    return;
+                }
+                if(bodyLength < 0) {
+                    reject(400);
+                    return;
+                }
+            }
+            if(bodyLength > in.capacity() - headerEnd || headers.containsKey("transfer-encoding")) {
+                reject(413);
+                return;
+            }
+            if(length < headerEnd + bodyLength) {
+                return;     // the rest of the body is on its way
+            }
+            byte[] body = new byte[bodyLength];
+            System.arraycopy(bytes, headerEnd, body, 0, bodyLength);
+            in.limit(length).position(headerEnd + bodyLength);
+            in.compact();
+
+            boolean http11 = requestLine[2].equals("HTTP/1.1");
+            String connectionHeader = headers.get("connection");
+            keepAlive = http11 ? !"close".equalsIgnoreCase(connectionHeader)
+                    : "keep-alive".equalsIgnoreCase(connectionHeader);
+            try {
+                exchange = new Exchange(this, requestLine[0], requestLine[1], headers, body, http11);
+            } catch (IllegalArgumentException e) {
+                reject(400);        // not URL encoded
+                return;
+            }
+            requestStart = System.nanoTime();
+            dispatch(exchange);
+        }
+
+        /*
+         * Answers a request that cannot be parsed and closes the connection
+         */
+        void reject(int status) {
+            ERRORS.increment();
+            keepAlive = false;
+            exchange = new Exchange(this, "GET", "/", Collections.<String, String>emptyMap(), new byte[0], false);
+            requestStart = System.nanoTime();
+            exchange.sendError(status, REASONS.get(status));
+        }
+
+        /*
+         * Queues bytes of the response, called by the handler on any
+         * thread; waits while too many are queued
+         */
+        void enqueue(ByteBuffer buffer) throws IOException {
+            if(!open) {
+                throw new IOException("Connection closed");
+            }
+            long total = queued.addAndGet(buffer.remaining());
+            out.add(buffer);
+            schedule();
+            if(total > HIGH_WATER) {
+                synchronized(this) {
+                    try {
+                        while(open && queued.get() > HIGH_WATER / 2) {
+                            wait(1000);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted");
+                    }
+                }
+                if(!open) {
+                    throw new IOException("Connection closed");
+                }
+            }
+        }
+
+        /*
+         * Queues a file region of the response; it is sent by the
+         * selector thread as the client reads, so the handler never waits
+         */
+        void enqueue(FileRegion region) throws IOException {
+            if(!open) {
+                throw new IOException("Connection closed");
+            }
+            out.add(region);
+            if(!open) {
+                region.release();   // closed meanwhile, maybe after close() released the queue
+            }
+            schedule();
+        }
+
+        FileRegion region(FileChannel file, long position, long count) {
+            return new FileRegion(file, position, count);
+        }
+
+        /*
+         * Has the selector thread write what was queued
+         */
+        void schedule() {
+            if(scheduled.compareAndSet(false, true)) {
+                ready.add(this);
+                selector.wakeup();
+            }
+        }
+
+        /*
+         * Writes the queued response, reading the next request once it
+         * has all been written
+         */
+        void write() {
+            if(!open) {
+                close();
+                return;
+            }
+            try {
+                for(Object item; (item = out.peek()) != null; ) {
+                    if(item == END) {
+                        out.poll();
+                        finished();
+                        if(!open) {
+                            return;
+                        }
+                        continue;
+                    }
+                    if(item instanceof FileRegion) {
+                        FileRegion region = (FileRegion) item;
+                        long count = region.transferTo(channel);
+                        if(count > 0) {
+                            lastActive = System.currentTimeMillis();
+                            fileBytes.addAndGet(count);
+                        }
+                        if(region.position < region.end) {
+                            // the socket is full, or the turn is over: wait to be writable again
+                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        region.release();
+                        out.poll();
+                        continue;
+                    }
+                    ByteBuffer buffer = (ByteBuffer) item;
+                    int count = channel.write(buffer);
+                    if(count > 0) {
+                        lastActive = System.currentTimeMillis();
+                        long left = queued.addAndGet(-count);
+                        if(left <= HIGH_WATER / 2 && left + count > HIGH_WATER / 2) {
+                            synchronized(this) {
+                                notifyAll();
+                            }
+                        }
+                    }
+                    if(buffer.hasRemaining()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    out.poll();
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                close();
+            } catch (CancelledKeyException e) {
+                close();        // closed by stop()
+            }
+        }
+
+        /*
+         * Ends the exchange whose response has been written
+         */
+        void finished() {
+            RESPONSE.recordSince(requestStart);
+            exchange = null;
+            if(!keepAlive) {
+                close();
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            if(in.position() > 0) {
+                parse();        // a request sent before this one was answered
+            }
+        }
+
+        /*
+         * Closes the connection from any thread, waking up a handler
+         * waiting to write
+         */
+        void abort() {
+            open = false;
+            schedule();
+        }
+
+        void close() {
+            if(key != null) {
+                key.cancel();
+            }
+            if(channel.isOpen()) {
+                CONNECTIONS.decrementAndGet();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            open = false;
+            for(Object item : out) {
+                if(item instanceof FileRegion) {
+                    ((FileRegion) item).release();
+                }
+            }
+            synchronized(this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /*
+     * A region of a file queued as (part of) a response, closed once sent
+     * or when its connection is closed
+     */
+    private class FileRegion {
+        final FileChannel file;
+        final long end;
+        long position;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        FileRegion(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.end = position + count;
+            fileTransfers.incrementAndGet();
+        }
+
+        /*
+         * Sends the next bytes of the region, as many as the socket takes
+         * up to TRANSFER_SIZE
+         */
+        long transferTo(SocketChannel channel) throws IOException {
+            long count = file.transferTo(position, Math.min(end - position, TRANSFER_SIZE), channel);
+            if(count == 0 && position >= file.size()) {
+                throw new IOException("File truncated while being sent");
+            }
+            position += count;
+            return count;
+        }
+
+        void release() {
+            if(released.compareAndSet(false, true)) {
+                fileTransfers.decrementAndGet();
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /* ******** */
+    /* EXCHANGE */
+    /* ******** */
+
+    /**
+     * A request and its response
+     * <p>
+     * The response is written once, with send() or sendError(), or as a
+     * stream with startStream(), from any thread.
+     */
+    public static class Exchange {
+        private final Connection connection;
+        private final String method;
+        private final String path;
+        private final Map<String, String> parameters = new HashMap<String, String>();
+        private final Map<String, String> headers;
+        private final byte[] body;
+        private final boolean http11;
+        private final List<String> responseHeaders = new ArrayList<String>();
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        private Exchange(Connection connection, String method, String target, Map<String, String> headers,
+                         byte[] body, boolean http11) {
+            this.connection = connection;
+            this.method = method;
+            this.headers = headers;
+            this.body = body;
+            this.http11 = http11;
+            int question = target.indexOf('?');
+            path = decode(question == -1 ? target : target.substring(0, question), false);
+            if(question != -1) {
+                for(String parameter : target.substring(question + 1).split("&")) {
+                    int equals = parameter.indexOf('=');
+                    if(equals == -1) {
+                        parameters.put(decode(parameter, true), "");
+                    } else {
+                        parameters.put(decode(parameter.substring(0, equals), true),
+                                decode(parameter.substring(equals + 1), true));
+                    }
+                }
+            }
+        }
+
+        private static String decode(String text, boolean query) {
+            try {
+                // a + only stands for a space in the query
+                return URLDecoder.decode(query ? text : text.replace("+", "%2B"), "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Returns the request method
+         *
+         * @return eg. "GET"
+         */
+        public String getMethod() {
+            return method;
+        }
+
+        /**
+         * Returns the decoded path of the request, without its query
+         *
+         * @return eg. "/api/songs"
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Returns a decoded parameter of the request's query
+         *
+         * @param name the name of the parameter
+         * @return its value, null if it is not in the query
+         */
+        public String getParameter(String name) {
+            return parameters.get(name);
+        }
+
+        /**
+         * Returns a request header
+         *
+         * @param name the name of the header, in lower case
+         * @return its value, null if it was not sent
+         */
+        public String getHeader(String name) {
+            return headers.get(name);
+        }
+
+        /**
+         * Returns the body of the request
+         *
+         * @return the body, empty if none was sent
+         */
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * Adds a header to the response, before it is sent
+         *
+         * @param name the name of the header
+         * @param value its value
+         */
+        public void setHeader(String name, String value) {
+            responseHeaders.add(name + ": " + value);
+        }
+
+        /**
+         * Returns whether the client is still connected
+         *
+         * @return false once the connection is closed
+         */
+        public boolean isOpen() {
+            return connection.open;
+        }
+
+        /**
+         * Sends the response
+         *
+         * @param status the status code, eg. 200
+         * @param contentType the content type of the body, null for none
+         * @param content the body
+         */
+        public void send(int status, String contentType, byte[] content) {
+            if(!started.compareAndSet(false, true)) {
+                throw new IllegalStateException("Response already sent");
+            }
+            if(status >= 400) {
+                ERRORS.increment();
+            }
+            boolean withBody = status != 304 && status != 204 && !method.equals("HEAD");
+            StringBuilder head = head(status, contentType);
+            head.append("Content-Length: ").append(withBody ? content.length : 0).append("\r\n\r\n");
+            byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+            ByteBuffer response = ByteBuffer.allocate(headBytes.length + (withBody ? content.length : 0));
+            response.put(headBytes);
+            if(withBody) {
+                response.put(content);
+            }
+            response.flip();
+            try {
+                connection.enqueue(response);
+                connection.enqueue(END);
+            } catch (IOException e) {
+                // the client left
+            }
+        }
+
+        /**
+         * Sends a region of a file as the response body, written by the
+         * selector thread straight from the file to the socket. The file
+         * is closed once sent, or when the client leaves; headers such as
+         * Content-Range are set beforehand with setHeader().
+         *
+         * @param status the status code, eg. 206
+         * @param contentType the content type of the file
+         * @param file the file, opened for reading
+         * @param position the first byte of the file to send
+         * @param count the number of bytes to send
+         */
+        public void sendFile(int status, String contentType, FileChannel file, long position, long count) {
+            if(!started.compareAndSet(false, true)) {
+                throw new IllegalStateException("Response already sent");
+            }
+            FileRegion region = connection.region(file, position, count);
+            boolean withBody = count > 0 && !method.equals("HEAD");
+            StringBuilder head = head(status, contentType);
+            head.append("Content-Length: ").append(count).append("\r\n\r\n");
+            try {
+                connection.enqueue(ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1)));
+                if(withBody) {
+                    connection.enqueue(region);
+                } else {
+                    region.release();
+                }
+                connection.enqueue(END);
+            } catch (IOException e) {
+                region.release();     // the client left
+            }
+        }
+
+        /**
+         * Sends a plain text error
+         *
+         * @param status the status code, eg. 404
+         * @param message the body
+         */
+        public void sendError(int status, String message) {
+            send(status, "text/plain; charset=utf-8", (message + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Starts a response whose body is written as a stream, in chunks
+         * (or until the connection is closed, for HTTP/1.0 clients)
+         *
+         * @param status the status code, eg. 200
+         * @param contentType the content type of the body
+         * @return the body, to be closed once written
+         * @throws IOException if the client has left
+         */
+        public Stream startStream(int status, String contentType) throws IOException {
+            if(!started.compareAndSet(false, true)) {
+                throw new IllegalStateException("Response already sent");
+            }
+            boolean headOnly = method.equals("HEAD");
+            StringBuilder head = head(status, contentType);
+            if(headOnly) {
+                head.append("Content-Length: 0\r\n");
+            } else if(http11) {
+                head.append("Transfer-Encoding: chunked\r\n");
+            } else {
+                connection.keepAlive = false;
+            }
+            head.append("\r\n");
+            connection.enqueue(ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1)));
+            return new Stream(connection, http11, headOnly);
+        }
+
+        private StringBuilder head(int status, String contentType) {
+            String reason = REASONS.get(status);
+            StringBuilder head = new StringBuilder(256);
+            head.append(http11 ? "HTTP/1.1 " : "HTTP/1.0 ").append(status).append(' ')
+                    .append(reason == null ? "Unknown" : reason).append("\r\n");
+            head.append("Server: shiTunes\r\n");
+            if(contentType != null) {
+                head.append("Content-Type: ").append(contentType).append("\r\n");
+            }
+            for(String header : responseHeaders) {
+                head.append(header).append("\r\n");
+            }
+            if(!connection.keepAlive) {
+                head.append("Connection: close\r\n");
+            } else if(!http11) {
+                head.append("Connection: keep-alive\r\n");
+            }
+            return head;
+        }
+
+        /*
+         * Closes the connection, the response having been cut short
+         */
+        void abort() {
+            connection.abort();
+        }
+
+        /*
+         * Answers a request whose handler failed
+         */
+        void fail() {
+            if(started.get()) {
+                abort();
+            } else {
+                sendError(500, "Internal error");
+            }
+        }
+    }
+
+    /**
+     * The body of a streamed response
+     * <p>
+     * Written by one thread at a time. What is written is sent once 8 KB
+     * are buffered, or on flush() and close().
+     */
+    public static class Stream extends OutputStream {
+        private final Connection connection;
+        private final boolean chunked;
+        private final boolean discard;      // the response to a HEAD request
+        private byte[] chunk = new byte[CHUNK_HEADER_SIZE + CHUNK_SIZE + 2];
+        private int count = CHUNK_HEADER_SIZE;
+        private boolean closed;
+
+        private Stream(Connection connection, boolean chunked, boolean discard) {
+            this.connection = connection;
+            this.chunked = chunked;
+            this.discard = discard;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if(count == CHUNK_HEADER_SIZE + CHUNK_SIZE) {
+                send();
+            }
+            chunk[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while(length > 0) {
+                if(count == CHUNK_HEADER_SIZE + CHUNK_SIZE) {
+                    send();
+                }
+                int copied = Math.min(length, CHUNK_HEADER_SIZE + CHUNK_SIZE - count);
+                System.arraycopy(bytes, offset, chunk, count, copied);
+                count += copied;
+                offset += copied;
+                length -= copied;
+            }
+        }
+
+        /**
+         * Writes text encoded in UTF-8
+         *
+         * @param text the text
+         * @return this stream
+         * @throws IOException if the client has left
+         */
+        public Stream print(CharSequence text) throws IOException {
+            int length = text.length();
+            for(int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if(c < 0x80) {
+                    if(count == CHUNK_HEADER_SIZE + CHUNK_SIZE) {
+                        send();
+                    }
+                    chunk[count++] = (byte) c;
+                } else {
+                    // the rare character outside ASCII, with its low surrogate if any
+                    int end = Character.isHighSurrogate(c) && i + 1 < length ? i + 2 : i + 1;
+                    byte[] bytes = text.subSequence(i, end).toString().getBytes(StandardCharsets.UTF_8);
+                    write(bytes, 0, bytes.length);
+                    i = end - 1;
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Sends what has been written so far
+         *
+         * @throws IOException if the client has left
+         */
+        @Override
+        public void flush() throws IOException {
+            if(count > CHUNK_HEADER_SIZE) {
+                send();
+            }
+        }
+
+        /**
+         * Returns the bytes written to the response but not yet read by
+         * the client. A writer that must never wait keeps this well
+         * under 256 KB, past which a write waits for the client.
+         *
+         * @return the bytes queued on the connection
+         */
+        public long getQueued() {
+            return connection.queued.get();
+        }
+
+        /**
+         * Sends the rest of the body and ends the response
+         *
+         * @throws IOException if the client has left
+         */
+        @Override
+        public void close() throws IOException {
+            if(closed) {
+                return;
+            }
+            flush();
+            closed = true;
+            if(chunked && !discard) {
+                connection.enqueue(ByteBuffer.wrap(LAST_CHUNK));
+            }
+            if(!chunked) {
+                connection.keepAlive = false;
+            }
+            connection.enqueue(END);
+        }
+
+        /*
+         * Queues the buffered bytes as a chunk, its size written in the
+         * space left for it in front
+         */
+        private void send() throws IOException {
+            if(closed) {
+                throw new IOException("Stream closed");
+            }
+            int length = count - CHUNK_HEADER_SIZE;
+            if(discard) {
+                count = CHUNK_HEADER_SIZE;
+                return;
+            }
+            int start = CHUNK_HEADER_SIZE;
+            if(chunked) {
+                String size = Integer.toHexString(length);
+                start -= size.length() + 2;
+                for(int i = 0; i < size.length(); i++) {
+                    chunk[start + i] = (byte) size.charAt(i);
+                }
+                chunk[CHUNK_HEADER_SIZE - 2] = '\r';
+                chunk[CHUNK_HEADER_SIZE - 1] = '\n';
+                chunk[count++] = '\r';
+                chunk[count++] = '\n';
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(chunk, start, count - start);
+            chunk = new byte[CHUNK_HEADER_SIZE + CHUNK_SIZE + 2];   // the queued one is written later
+            count = CHUNK_HEADER_SIZE;
+            connection.enqueue(buffer);
+        }
+    }
+}
@@ -1,3 +1,4 @@
+import javax.swing.*;
 import java.util.ArrayList;
 
 /**
@@ -7,14 +8,66 @@ import java.util.ArrayList;
  * @author shiTunes inc.
  */
 public class ShiTunes {
+    static final String METRICS_LOG = "shiTunes-metrics.log";
+    static final long METRICS_DUMP_SECONDS = 60;
+
     static ShiBase db;
+    static LoudnessAnalyzer analyzer;
     static Window mainWindow;
     static ArrayList<Window> windows;
 
     public static void main(String[] args) {
+        // Without a display: the daemon never loads AWT or Swing
+        if(args.length > 0 && args[0].equals(ShiTunesDaemon.ARGUMENT)) {
+            ShiTunesDaemon.main(args);
+            return;
+        }
+
         // initialize db
         db = new ShiBase();
 
+        // Commit queued writes however the application exits
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                if(analyzer != null) {
+                    analyzer.shutdown();    // songs part way through are measured again next time
+                }
+                db.close();
+            }
+        }, "ShiBase-shutdown"));
+
+        // Measure the loudness of songs not analyzed yet, carrying on from the last session
+        analyzer = new LoudnessAnalyzer(db);
+        analyzer.analyzePending();
+
+        // Keep a record of the hot path latencies for later analysis
+        Metrics.startDumping(new java.io.File(METRICS_LOG), METRICS_DUMP_SECONDS);
+
+        // Refresh tables once a batch of song or playlist changes has been committed
+        db.addShiBaseListener(new ShiBaseListener() {
+            public void tableChanged(final String tableName) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        if(tableName.equals(ShiBase.SONG_TABLE)) {
+                            updateAllWindows();
+                            analyzer.analyzePending();     // songs may have been added
+                        } else if(tableName.equals(ShiBase.PLAYLIST_SONG_TABLE)) {
+                            updatePlaylistWindows();
+                        } else if(tableName.equals(ShiBase.WAVEFORM_TABLE)) {
+                            for(Window w : windows) {
+                                w.waveformsChanged();
+                            }
+                        }
+                    }
+                });
+            }
+        });
+
+        // Record listeners that hold up the EDT, shown in the Diagnostics window
+        if(!java.awt.GraphicsEnvironment.isHeadless()) {
+            EdtWatchdog.install();
+        }
+
         // An array list of shiTunes application windows
         windows = new ArrayList<>();
 
@@ -26,6 +79,8 @@ public class ShiTunes {
 
         // Add main application window to list of ShiTunes windows
         windows.add(mainWindow);
+
+        ProcessStats.started("GUI");
     }
 
     /*
@@ -41,4 +96,17 @@ public class ShiTunes {
             }
         }
     }
+
+    /*
+    * Updates the table model for all application windows
+    * currently displaying a playlist
+    *
+    */
+    public static void updatePlaylistWindows() {
+        for(Window w : windows) {
+            if (w.getMusicTable().getType() == MusicTable.PLAYLIST) {
+                w.getMusicTable().updateTableModel(w.getSelectedPlaylist());
+            }
+        }
+    }
 }
@@ -0,0 +1,667 @@
+import javazoom.jlgui.basicplayer.BasicController;
+import javazoom.jlgui.basicplayer.BasicPlayerEvent;
+import javazoom.jlgui.basicplayer.BasicPlayerListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The ShiTunesDaemon class runs shiTunes without a display: the library
+ * and a player, controlled through a Unix domain socket. It is started
+ * with {@code java -jar shiTunes.jar --daemon} and never loads an AWT or
+ * Swing class.
+ * <p>
+ * Clients send one command per line:
+ * <ul>
+ * <li>play SONG: plays a song now, SONG being a song id or a file path</li>
+ * <li>queue SONG: plays a song after those already queued, now if nothing plays</li>
+ * <li>stop: stops the song playing, the queue is kept</li>
+ * <li>search TEXT: the songs whose title, artist or album contains the text</li>
+ * <li>status: the player state, the queue length, the startup time and memory</li>
+ * </ul>
+ * and get back, in the order sent, "OK" followed by the number of lines
+ * that follow it, or "ERR" followed by a message.
+ * <p>
+ * One thread serves every client with non-blocking I/O. The commands
+ * received in one read are carried out together on the command thread,
+ * so the player and ShiBase never hold up the socket, and their replies
+ * go back in a single write. A client that does not read its replies is
+ * not read from until they are written.
+ * <p>
+ * With -DshiTunes.http.port=PORT the daemon also serves the HTTP API
+ * of ShiHttpApi on localhost, its player commands carried out on the
+ * same command thread. With -DshiTunes.stream.port=PORT it serves the
+ * song files to the other devices of the network, see SongStreamServer.
+ *
+ * @author shiTunes inc.
+ */
+public class ShiTunesDaemon {
+
+    /**
+     * The command line argument starting shiTunes as a daemon
+     */
+    public static final String ARGUMENT = "--daemon";
+    /**
+     * The system property giving the path of the control socket
+     */
+    public static final String SOCKET_PROPERTY = "shiTunes.socket";
+    /**
+     * The most songs a search returns
+     */
+    public static final int SEARCH_LIMIT = 100;
+
+    private static final int READ_BUFFER_SIZE = 8192;   // also the longest command
+
+    /**
+     * Notified on the command thread when the player's state, its song
+     * or the number of songs queued changes
+     */
+    public interface StatusListener {
+        /**
+         * Called with the new status
+         *
+         * @param status the status
+         */
+        void statusChanged(Status status);
+    }
+
+    /**
+     * The player's state, its song and the number of songs queued
+     */
+    public static class Status {
+        private final String state;
+        private final String song;
+        private final int queued;
+
+        Status(String state, String song, int queued) {
+            this.state = state;
+            this.song = song;
+            this.queued = queued;
+        }
+
+        /**
+         * Accessor method to get the player's state
+         *
+         * @return "playing", "paused" or "stopped"
+         */
+        public String getState() {
+            return state;
+        }
+
+        /**
+         * Accessor method to get the song playing
+         *
+         * @return the file path of the song playing or paused, null if stopped
+         */
+        public String getSong() {
+            return song;
+        }
+
+        /**
+         * Accessor method to get the length of the queue
+         *
+         * @return the number of songs queued after the one playing
+         */
+        public int getQueued() {
+            return queued;
+        }
+
+        boolean matches(String state, String song, int queued) {
+            return this.state.equals(state) && (this.song == null ? song == null : this.song.equals(song))
+                    && this.queued == queued;
+        }
+    }
+
+    private static final Metrics.Counter COMMANDS = Metrics.counter("daemon.commands");
+    private static final Metrics.Histogram BATCH = Metrics.histogram("daemon.batch");
+
+    private final ShiBase db;
+    private final LoudnessAnalyzer analyzer;
+    private final MusicPlayer player;
+    private final Path socketPath;
+    private final ExecutorService commands;
+    private final ConcurrentLinkedQueue<Client> replied = new ConcurrentLinkedQueue<Client>();
+    private final List<StatusListener> statusListeners = new CopyOnWriteArrayList<StatusListener>();
+    private volatile Status status = new Status("stopped", null, 0);
+    private Selector selector;
+
+    // Only used on the command thread
+    private final ArrayDeque<String> queue = new ArrayDeque<String>();  // file paths
+    private int playerState = BasicPlayerEvent.STOPPED;
+    private boolean songCompleted;
+    private String playing;
+
+    /**
+     * Starts shiTunes without a display
+     *
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        final ShiBase db = new ShiBase();
+        final LoudnessAnalyzer analyzer = new LoudnessAnalyzer(db);
+        final ShiTunesDaemon daemon = new ShiTunesDaemon(db, analyzer,
+                new File(System.getProperty(SOCKET_PROPERTY, "shiTunes.sock")).toPath());
+
+        // Commit queued writes and remove the socket however the daemon exits
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                daemon.close();
+                analyzer.shutdown();
+                db.close();
+            }
+        }, "ShiBase-shutdown"));
+
+        analyzer.analyzePending();
+        Metrics.startDumping(new File(ShiTunes.METRICS_LOG), ShiTunes.METRICS_DUMP_SECONDS);
+
+        // Analyze songs added by another process sharing the library
+        db.addShiBaseListener(new ShiBaseListener() {
+            public void tableChanged(String tableName) {
+                if(tableName.equals(ShiBase.SONG_TABLE)) {
+                    analyzer.analyzePending();
+                }
+            }
+        });
+
+        try {
+            daemon.bind();
+            String port = System.getProperty(ShiHttpApi.PORT_PROPERTY);
+            if(port != null) {
+                ShiHttpApi api = new ShiHttpApi(db, daemon,
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(port)));
+                api.start();
+                System.out.println("shiTunes HTTP API on http://127.0.0.1:" + api.getPort() + "/api/");
+            }
+            port = System.getProperty(SongStreamServer.PORT_PROPERTY);
+            if(port != null) {
+                String address = System.getProperty(SongStreamServer.ADDRESS_PROPERTY, "0.0.0.0");
+                SongStreamServer streams = new SongStreamServer(db,
+                        new InetSocketAddress(address, Integer.parseInt(port)));
+                streams.start();
+                System.out.println("shiTunes streaming songs on http://" + address + ":" + streams.getPort()
+                        + "/songs/");
+            }
+            ProcessStats.started("daemon");
+            daemon.serve();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Creates a daemon serving the given library
+     *
+     * @param db the library
+     * @param analyzer the analyzer of the library's loudness, or null
+     * @param socketPath the path of the control socket
+     */
+    public ShiTunesDaemon(ShiBase db, LoudnessAnalyzer analyzer, Path socketPath) {
+        this.db = db;
+        this.analyzer = analyzer;
+        this.socketPath = socketPath;
+        commands = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Daemon-commands");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        player = new MusicPlayer();
+        player.addBasicPlayerListener(new BasicPlayerListener() {
+            public void opened(Object stream, Map properties) {
+            }
+
+            public void progress(int bytesread, long microseconds, byte[] pcmdata, Map properties) {
+            }
+
+            public void stateUpdated(final BasicPlayerEvent event) {
+                try {
+                    commands.execute(new Runnable() {
+                        public void run() {
+                            stateChanged(event.getCode());
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // the daemon is closing
+                }
+            }
+
+            public void setController(BasicController controller) {
+            }
+        });
+    }
+
+    /* ****** */
+    /* SOCKET */
+    /* ****** */
+
+    /**
+     * Opens the control socket, replacing the socket file left by a
+     * daemon that did not exit cleanly
+     *
+     * @throws IOException if the socket cannot be opened, eg. when
+     *                     another daemon is listening on it
+     */
+    public void bind() throws IOException {
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(socketPath);
+        if(Files.exists(socketPath)) {
+            if(isListening(address)) {
+                throw new IOException("A daemon is already listening on " + socketPath);
+            }
+            Files.delete(socketPath);
+        }
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(address);
+        server.configureBlocking(false);
+        selector = Selector.open();
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    private static boolean isListening(UnixDomainSocketAddress address) {
+        try {
+            SocketChannel.open(address).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Serves the clients of the control socket until close() is called
+     *
+     * @throws IOException if the socket fails
+     */
+    public void serve() throws IOException {
+        try {
+            while(selector.isOpen()) {
+                selector.select();
+                for(Client client; (client = replied.poll()) != null; ) {
+                    client.write();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(!key.isValid()) {
+                        continue;
+                    }
+                    if(key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.channel());
+                    } else {
+                        Client client = (Client) key.attachment();
+                        if(key.isWritable()) {
+                            client.write();
+                        }
+                        if(key.isValid() && key.isReadable()) {
+                            client.read();
+                        }
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Stops serving, stops the player and removes the socket file
+     */
+    public void close() {
+        try {
+            if(selector != null) {
+                for(SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            }
+            Files.deleteIfExists(socketPath);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (ClosedSelectorException e) {
+            // already closed
+        }
+        commands.shutdownNow();
+        player.stop();
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel = server.accept();
+        if(channel != null) {
+            channel.configureBlocking(false);
+            Client client = new Client(channel);
+            client.key = channel.register(selector, SelectionKey.OP_READ, client);
+        }
+    }
+
+    /*
+     * A connected client: its unfinished command and its replies not
+     * yet written
+     */
+    private class Client {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        final ConcurrentLinkedQueue<ByteBuffer> replies = new ConcurrentLinkedQueue<ByteBuffer>();
+        final ArrayDeque<ByteBuffer> unwritten = new ArrayDeque<ByteBuffer>();
+        SelectionKey key;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /*
+         * Reads what the client sent and hands its whole lines to the
+         * command thread
+         */
+        void read() {
+            int count;
+            try {
+                count = channel.read(in);
+            } catch (IOException e) {
+                count = -1;
+            }
+            if(count == -1) {
+                close();
+                return;
+            }
+            final List<String> lines = new ArrayList<String>();
+            int start = 0;
+            byte[] bytes = in.array();
+            for(int i = 0; i < in.position(); i++) {
+                if(bytes[i] == '\n') {
+                    String line = new String(bytes, start, i - start, StandardCharsets.UTF_8).trim();
+                    if(!line.isEmpty()) {
+                        lines.add(line);
+                    }
+                    start = i + 1;
+                }
+            }
+            if(start == 0 && !in.hasRemaining()) {
+                close();        // a line longer than the buffer, not a command
+                return;
+            }
+            in.limit(in.position()).position(start);
+            in.compact();
+            if(!lines.isEmpty()) {
+                commands.execute(new Runnable() {
+                    public void run() {
+                        long begin = System.nanoTime();
+                        StringBuilder reply = new StringBuilder();
+                        for(String line : lines) {
+                            execute(line, reply);
+                        }
+                        publishStatus();
+                        replies.add(ByteBuffer.wrap(reply.toString().getBytes(StandardCharsets.UTF_8)));
+                        replied.add(Client.this);
+                        selector.wakeup();
+                        BATCH.recordSince(begin);
+                    }
+                });
+            }
+        }
+
+        /*
+         * Writes the replies of the command thread, reading from the
+         * client again once they are all written
+         */
+        void write() {
+            if(!channel.isOpen()) {
+                return;
+            }
+            for(ByteBuffer reply; (reply = replies.poll()) != null; ) {
+                unwritten.add(reply);
+            }
+            try {
+                while(!unwritten.isEmpty()) {
+                    ByteBuffer reply = unwritten.peek();
+                    channel.write(reply);
+                    if(reply.hasRemaining()) {
+                        break;
+                    }
+                    unwritten.poll();
+                }
+                key.interestOps(unwritten.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /* ******** */
+    /* COMMANDS */
+    /* ******** */
+
+    /**
+     * Carries out a command as if it had been sent to the socket
+     *
+     * @param line the command, eg. "play 42"
+     * @return the reply, "OK" and the lines following it or "ERR" and a message
+     */
+    public Future<String> command(final String line) {
+        return commands.submit(new Callable<String>() {
+            public String call() {
+                StringBuilder reply = new StringBuilder();
+                execute(line, reply);
+                publishStatus();
+                return reply.toString();
+            }
+        });
+    }
+
+    /**
+     * Returns the player's status as of the last command or player event
+     *
+     * @return the status
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Registers a listener notified of every change of the status
+     *
+     * @param listener the listener
+     */
+    public void addStatusListener(StatusListener listener) {
+        statusListeners.add(listener);
+    }
+
+    /**
+     * Unregisters a status listener
+     *
+     * @param listener the listener
+     */
+    public void removeStatusListener(StatusListener listener) {
+        statusListeners.remove(listener);
+    }
+
+    /*
+     * Notifies the status listeners if the status has changed, on the
+     * command thread
+     */
+    private void publishStatus() {
+        String state = playing == null ? "stopped"
+                : playerState == BasicPlayerEvent.PAUSED ? "paused" : "playing";
+        if(status.matches(state, playing, queue.size())) {
+            return;
+        }
+        status = new Status(state, playing, queue.size());
+        for(StatusListener listener : statusListeners) {
+            listener.statusChanged(status);
+        }
+    }
+
+    /*
+     * Carries out a command on the command thread, appending its reply
+     */
+    private void execute(String line, StringBuilder reply) {
+        COMMANDS.increment();
+        int space = line.indexOf(' ');
+        String command = (space == -1 ? line : line.substring(0, space)).toLowerCase();
+        String argument = space == -1 ? "" : line.substring(space + 1).trim();
+        try {
+            if(command.equals("play")) {
+                String filePath = findSong(argument);
+                if(filePath == null) {
+                    reply.append("ERR no song ").append(argument).append('\n');
+                } else if(play(filePath)) {
+                    reply.append("OK 0\n");
+                } else {
+                    reply.append("ERR cannot play ").append(filePath).append('\n');
+                }
+            } else if(command.equals("queue")) {
+                String filePath = findSong(argument);
+                if(filePath == null) {
+                    reply.append("ERR no song ").append(argument).append('\n');
+                } else {
+                    queue.add(filePath);
+                    if(playing == null) {
+                        playNext();
+                    } else if(queue.size() == 1) {
+                        AudioSource.prefetch(filePath);
+                    }
+                    reply.append("OK 0\n");
+                }
+            } else if(command.equals("stop")) {
+                songCompleted = false;
+                playing = null;
+                reply.append(player.stop() ? "OK 0\n" : "ERR cannot stop\n");
+            } else if(command.equals("search")) {
+                Object[][] songs = db.searchSongs(argument, SEARCH_LIMIT);
+                reply.append("OK ").append(songs.length).append('\n');
+                for(Object[] song : songs) {
+                    // songId, title, artist, album, duration
+                    appendField(reply, song[0]).append('\t');
+                    appendField(reply, song[2]).append('\t');
+                    appendField(reply, song[3]).append('\t');
+                    appendField(reply, song[4]).append('\t');
+                    appendField(reply, song[8]).append('\n');
+                }
+            } else if(command.equals("status")) {
+                reply.append("OK 5\n");
+                publishStatus();
+                reply.append("state ").append(status.getState()).append('\n');
+                reply.append("song ").append(playing == null ? "-" : playing).append('\n');
+                reply.append("queued ").append(queue.size()).append('\n');
+                reply.append("startupMillis ").append(ProcessStats.getStartupMillis()).append('\n');
+                reply.append("rssKB ").append(ProcessStats.getResidentKB()).append('\n');
+            } else {
+                reply.append("ERR unknown command ").append(command).append('\n');
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            reply.append("ERR ").append(e).append('\n');
+        }
+    }
+
+    /*
+     * Returns the file path of a song given by its song id or file path
+     *
+     * @return the file path, null if there is no such song
+     */
+    private String findSong(String song) {
+        if(song.isEmpty()) {
+            return null;
+        }
+        try {
+            return db.getSongFilePath(Integer.parseInt(song));
+        } catch (NumberFormatException e) {
+            return new File(song).isFile() ? song : null;
+        }
+    }
+
+    private static StringBuilder appendField(StringBuilder reply, Object value) {
+        String text = value == null ? "" : value.toString();
+        return reply.append(text.replace('\t', ' ').replace('\n', ' ').replace('\r', ' '));
+    }
+
+    /*
+     * Plays a song at the loudness of the others and reads the next
+     * queued song into memory
+     */
+    private boolean play(String filePath) {
+        int songId = db.getSongId(filePath);
+        songCompleted = false;
+        if(!player.play(filePath, songId == -1 ? 0 : db.getTrackGain(songId))) {
+            playing = null;
+            return false;
+        }
+        playing = filePath;
+        if(songId != -1) {
+            db.addRecentSong(songId);
+        }
+        if(!queue.isEmpty()) {
+            AudioSource.prefetch(queue.peek());
+        }
+        return true;
+    }
+
+    /*
+     * Plays the songs in the queue, skipping those that cannot be played
+     */
+    private void playNext() {
+        playing = null;
+        while(!queue.isEmpty() && !play(queue.poll())) {
+            // try the next one
+        }
+    }
+
+    /*
+     * Follows the player's state, playing the next queued song when one
+     * ends, as the Window does
+     */
+    private void stateChanged(int code) {
+        if(code != BasicPlayerEvent.GAIN) {
+            playerState = code;
+            player.stateChanged(code);
+        }
+        if(analyzer != null) {
+            // the loudness analysis slows down while a song plays
+            analyzer.setPlaying(player, playerState == BasicPlayerEvent.PLAYING
+                    || playerState == BasicPlayerEvent.RESUMED);
+        }
+        if(code == BasicPlayerEvent.EOM) {
+            songCompleted = true;
+        }
+        if(playerState == BasicPlayerEvent.STOPPED && songCompleted) {
+            songCompleted = false;
+            playNext();
+        }
+        publishStatus();
+    }
+}
@@ -0,0 +1,174 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The ShiTunesEvents class holds the Java Flight Recorder events
+ * emitted by shiTunes, so database calls, song parsing, player state
+ * changes and table rebuilds show up in a recording next to GC pauses
+ * and thread activity
+ * <p>
+ * Events are created and committed inline on the hot paths:
+ * <pre>
+ * ShiTunesEvents.Query event = new ShiTunesEvents.Query("shibase.getAllSongs");
+ * ...
+ * event.rows = index;
+ * event.commit();
+ * </pre>
+ * When an event is disabled commit() returns immediately and the JIT
+ * removes the allocation, so recording costs next to nothing unless
+ * the event is enabled, eg. with the shiTunes.jfc settings profile.
+ *
+ * @author shiTunes inc.
+ */
+public class ShiTunesEvents {
+
+    private static final String[] PLAYER_STATES = {
+            "Opening", "Opened", "Playing", "Stopped", "Paused",
+            "Resumed", "Seeking", "Seeked", "End Of Media", "Pan", "Gain"
+    };
+
+    private ShiTunesEvents() {
+    }
+
+    /**
+     * A ShiBase read, timed from the call until its rows have been read
+     */
+    @Name("shiTunes.Query")
+    @Label("ShiBase Query")
+    @Category({"shiTunes", "Database"})
+    @StackTrace(false)
+    public static class Query extends Event {
+        @Label("SQL Id")
+        @Description("The metric name of the ShiBase method")
+        String sqlId;
+
+        @Label("Rows")
+        int rows;
+
+        /**
+         * Creates and begins a query event
+         *
+         * @param sqlId the metric name of the ShiBase method
+         */
+        Query(String sqlId) {
+            this.sqlId = sqlId;
+            begin();
+        }
+    }
+
+    /**
+     * A ShiBase write, timed while it is applied on the writer thread
+     */
+    @Name("shiTunes.Write")
+    @Label("ShiBase Write")
+    @Category({"shiTunes", "Database"})
+    @StackTrace(false)
+    public static class Write extends Event {
+        @Label("SQL Id")
+        @Description("The metric name of the ShiBase method")
+        String sqlId;
+
+        @Label("Failed")
+        boolean failed;
+
+        Write(String sqlId) {
+            this.sqlId = sqlId;
+            begin();
+        }
+    }
+
+    /**
+     * A batch of ShiBase writes applied and committed in one transaction
+     */
+    @Name("shiTunes.Commit")
+    @Label("ShiBase Commit")
+    @Category({"shiTunes", "Database"})
+    @StackTrace(false)
+    public static class Commit extends Event {
+        @Label("Writes")
+        int writes;
+
+        @Label("Failed Writes")
+        int failedWrites;
+
+        Commit() {
+            begin();
+        }
+    }
+
+    /**
+     * Reading the tag information of a song file
+     */
+    @Name("shiTunes.SongParse")
+    @Label("Song Parse")
+    @Category({"shiTunes", "Library"})
+    @StackTrace(false)
+    public static class SongParse extends Event {
+        @Label("File Path")
+        String filePath;
+
+        @Label("File Size")
+        @DataAmount
+        long fileSize;
+
+        @Label("Tag")
+        @Description("ID3v1, ID3v2 or none")
+        String tag;
+
+        @Label("Failed")
+        boolean failed;
+
+        SongParse(String filePath) {
+            this.filePath = filePath;
+            begin();
+        }
+    }
+
+    /**
+     * A MusicPlayer state, lasting from the state change reported to
+     * stateUpdated until the next one
+     */
+    @Name("shiTunes.PlayerState")
+    @Label("Player State")
+    @Category({"shiTunes", "Player"})
+    @StackTrace(false)
+    public static class PlayerState extends Event {
+        @Label("State")
+        String state;
+
+        @Label("File Path")
+        String filePath;
+
+        PlayerState(int code, String filePath) {
+            this.state = code >= 0 && code < PLAYER_STATES.length ? PLAYER_STATES[code] : "Unknown";
+            this.filePath = filePath;
+            begin();
+        }
+    }
+
+    /**
+     * Rebuilding the model of a MusicTable from ShiBase
+     */
+    @Name("shiTunes.TableRebuild")
+    @Label("Music Table Rebuild")
+    @Category({"shiTunes", "UI"})
+    @StackTrace(false)
+    public static class TableRebuild extends Event {
+        @Label("Table")
+        @Description("Library or the playlist name")
+        String table;
+
+        @Label("Rows")
+        int rows;
+
+        TableRebuild(String table) {
+            this.table = table;
+            begin();
+        }
+    }
+}
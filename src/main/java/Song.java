@@ -10,6 +10,10 @@ import java.io.IOException;
  */
 public class Song {
 
+    // Metrics
+    private static final Metrics.Histogram PARSE = Metrics.histogram("song.parse");
+    private static final Metrics.Counter PARSE_ERRORS = Metrics.counter("song.parse.errors");
+
     private String filePath;
     private String artist;
     private String title;
@@ -17,19 +21,36 @@ public class Song {
     private String year;
     private String genre;
     private String comment;
+    private long duration;      // milliseconds, 0 if unknown
+    private int bitrate;        // kbps, averaged over all frames
+    private int sampleRate;     // Hz
+    private int channels;
 
     /**
      * Song constructor takes the song file path and utilizes the
      * mp3agic library to grab the song information from it's ID3v1
      * or ID3v2 tag
+     * <p>
+     * The duration, bitrate, sample rate and channels are taken from
+     * the MPEG frames mp3agic counts while reading the file, so no
+     * further pass over the file is needed
      *
      * @param filePath the absolute path to the song file
      */
     public Song(String filePath) {
+        long start = System.nanoTime();
+        ShiTunesEvents.SongParse event = new ShiTunesEvents.SongParse(filePath);
         this.filePath = filePath;
         try {
             Mp3File mp3file = new Mp3File(filePath);
+            event.fileSize = mp3file.getLength();
+            event.tag = "none";
+            this.duration = mp3file.getLengthInMilliseconds();
+            this.bitrate = mp3file.getBitrate();
+            this.sampleRate = mp3file.getSampleRate();
+            this.channels = "Mono".equals(mp3file.getChannelMode()) ? 1 : 2;
             if (mp3file.hasId3v1Tag()) {
+                event.tag = "ID3v1";
                 ID3v1 id3v1Tag = mp3file.getId3v1Tag();
                 this.artist = id3v1Tag.getArtist();
                 this.title = id3v1Tag.getTitle();
@@ -38,6 +59,7 @@ public class Song {
                 this.genre = id3v1Tag.getGenreDescription();
                 this.comment = id3v1Tag.getComment();
             } else if (mp3file.hasId3v2Tag()) {
+                event.tag = "ID3v2";
                 ID3v2 id3v2Tag = mp3file.getId3v2Tag();
                 this.artist = id3v2Tag.getArtist();
                 this.title = id3v2Tag.getTitle();
@@ -47,10 +69,65 @@ public class Song {
                 this.comment = id3v2Tag.getComment();
             }
         } catch (IOException ioe) {
+            PARSE_ERRORS.increment();
+            event.failed = true;
             System.out.println("Song.java: IOException occurred");
         } catch (Exception e) {
+            PARSE_ERRORS.increment();
+            event.failed = true;
             System.out.println("Song.java: An exception occurred while getting Song tag information");
         }
+        PARSE.recordSince(start);
+        event.commit();
+    }
+
+    /**
+     * Song constructor for a song whose tag information is already
+     * known, the song file is not read
+     *
+     * @param filePath the absolute path to the song file
+     * @param title the song title
+     * @param artist the song artist
+     * @param album the song album
+     * @param year the song year
+     * @param genre the song genre
+     * @param comment the song comment
+     */
+    public Song(String filePath, String title, String artist, String album,
+                String year, String genre, String comment) {
+        this(filePath, title, artist, album, year, genre, comment, 0, 0, 0, 0);
+    }
+
+    /**
+     * Song constructor for a song whose tag and audio information is
+     * already known, the song file is not read
+     *
+     * @param filePath the absolute path to the song file
+     * @param title the song title
+     * @param artist the song artist
+     * @param album the song album
+     * @param year the song year
+     * @param genre the song genre
+     * @param comment the song comment
+     * @param duration the song length in milliseconds, 0 if unknown
+     * @param bitrate the average bitrate in kbps, 0 if unknown
+     * @param sampleRate the sample rate in Hz, 0 if unknown
+     * @param channels the number of channels, 0 if unknown
+     */
+    public Song(String filePath, String title, String artist, String album,
+                String year, String genre, String comment,
+                long duration, int bitrate, int sampleRate, int channels) {
+        this.filePath = filePath;
+        this.title = title;
+        this.artist = artist;
+        this.album = album;
+        this.year = year;
+        this.genre = genre;
+        this.comment = comment;
+        this.duration = duration;
+        this.bitrate = bitrate;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
     }
 
     /**
@@ -114,5 +191,55 @@ public class Song {
      */
     public String getComment() { return comment; }
 
+    /**
+     * Returns the Song length
+     *
+     * @return the Song length in milliseconds, 0 if unknown
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Returns the Song bitrate, averaged over the whole song for VBR songs
+     *
+     * @return the Song bitrate in kbps, 0 if unknown
+     */
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    /**
+     * Returns the Song sample rate
+     *
+     * @return the Song sample rate in Hz, 0 if unknown
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Returns the Song channel count
+     *
+     * @return 1 for mono, 2 for stereo songs, 0 if unknown
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * Formats a song length for display, as m:ss or h:mm:ss
+     *
+     * @param millis the length in milliseconds
+     * @return the formatted length
+     */
+    public static String formatDuration(long millis) {
+        long seconds = millis / 1000;
+        if(seconds < 3600) {
+            return String.format("%d:%02d", seconds / 60, seconds % 60);
+        }
+        return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
 }
 
@@ -0,0 +1,348 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The SongStreamServer class serves the song files of the library over
+ * HTTP to the other devices of the network, for them to play:
+ * <ul>
+ * <li>GET /songs/SONG_ID: the file of the song, or the byte range asked
+ * for with a Range header, eg. "bytes=1048576-"</li>
+ * <li>GET /stats: the number of files being sent and the bytes sent per
+ * second, in JSON</li>
+ * </ul>
+ * Files are sent by the selector thread of the ShiHttpServer with
+ * FileChannel.transferTo(), so hundreds of listeners are served by one
+ * thread without their bytes ever being copied into the JVM; the worker
+ * threads only look up the path and open the file.
+ * <p>
+ * The paths of the last songs requested are kept in memory, a player
+ * asking for the next range of a song not going back to ShiBase, and
+ * forgotten whenever the songs change.
+ * <p>
+ * The stream.active gauge counts the files being sent, and the
+ * stream.bytesPerSecond gauge reports the throughput.
+ *
+ * @author shiTunes inc.
+ */
+public class SongStreamServer {
+
+    /**
+     * The system property giving the port songs are served on, which they
+     * are only when it is set
+     */
+    public static final String PORT_PROPERTY = "shiTunes.stream.port";
+    /**
+     * The system property giving the address songs are served on, all the
+     * addresses of the machine by default
+     */
+    public static final String ADDRESS_PROPERTY = "shiTunes.stream.address";
+    /**
+     * The system property giving the number of threads answering requests
+     */
+    public static final String THREADS_PROPERTY = "shiTunes.stream.threads";
+    /**
+     * The number of song paths kept in memory
+     */
+    public static final int PATH_CACHE_SIZE = 1024;
+
+    private static final Metrics.Counter REQUESTS = Metrics.counter("stream.requests");
+    private static final Metrics.Counter PATH_MISSES = Metrics.counter("stream.pathMisses");
+    private static final long[] UNSATISFIABLE = new long[0];
+
+    private final ShiBase db;
+    private final ShiHttpServer server;
+    private final Map<Integer, String> paths = new LinkedHashMap<Integer, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+            return size() > PATH_CACHE_SIZE;
+        }
+    };
+    private long pathsVersion;          // changes whenever the songs change, guarded by paths
+    private final ShiBaseListener pathsListener = new ShiBaseListener() {
+        public void tableChanged(String tableName) {
+            if(tableName.equals(ShiBase.SONG_TABLE)) {
+                synchronized(paths) {
+                    paths.clear();
+                    pathsVersion++;
+                }
+            }
+        }
+    };
+    private long sampleTime = System.nanoTime();   // throughput sampling, guarded by this
+    private long sampleBytes;
+    private long bytesPerSecond;
+
+    /**
+     * Creates the server of a library, not yet listening
+     *
+     * @param db the library
+     * @param address the address to listen on
+     */
+    public SongStreamServer(ShiBase db, InetSocketAddress address) {
+        this.db = db;
+        server = new ShiHttpServer(address, Integer.getInteger(THREADS_PROPERTY, 2));
+        server.addHandler("/", new ShiHttpServer.Handler() {
+            public void handle(ShiHttpServer.Exchange exchange) {
+                exchange.sendError(404, "Not found");
+            }
+        });
+        server.addHandler("/songs/", new ShiHttpServer.Handler() {
+            public void handle(ShiHttpServer.Exchange exchange) {
+                getSong(exchange);
+            }
+        });
+        server.addHandler("/stats", new ShiHttpServer.Handler() {
+            public void handle(ShiHttpServer.Exchange exchange) {
+                getStats(exchange);
+            }
+        });
+    }
+
+    /**
+     * Starts serving the songs
+     *
+     * @throws IOException if the address cannot be bound, eg. the port is taken
+     */
+    public void start() throws IOException {
+        db.addShiBaseListener(pathsListener);
+        server.start();
+        Metrics.register(new Metrics.Gauge("stream.active") {
+            public long get() {
+                return getActiveStreams();
+            }
+        });
+        Metrics.register(new Metrics.Gauge("stream.bytes") {
+            public long get() {
+                return server.getFileBytes();
+            }
+        });
+        Metrics.register(new Metrics.Gauge("stream.bytesPerSecond") {
+            public long get() {
+                return getBytesPerSecond();
+            }
+        });
+    }
+
+    /**
+     * Stops serving the songs, cutting the streams short
+     */
+    public void stop() {
+        db.removeShiBaseListener(pathsListener);
+        server.stop();
+    }
+
+    /**
+     * Returns the port the songs are served on
+     *
+     * @return the port, -1 if not started
+     */
+    public int getPort() {
+        return server.getPort();
+    }
+
+    /**
+     * Accessor method to get the number of files being sent
+     *
+     * @return the responses whose file is not fully sent yet
+     */
+    public int getActiveStreams() {
+        return server.getFileTransfers();
+    }
+
+    /**
+     * Returns the bytes of files sent per second, measured since the
+     * previous call at least a second ago
+     *
+     * @return the throughput in bytes per second
+     */
+    public synchronized long getBytesPerSecond() {
+        long now = System.nanoTime();
+        if(now - sampleTime >= 1000000000L) {
+            long bytes = server.getFileBytes();
+            bytesPerSecond = (bytes - sampleBytes) * 1000000000L / (now - sampleTime);
+            sampleTime = now;
+            sampleBytes = bytes;
+        }
+        return bytesPerSecond;
+    }
+
+    /* ***** */
+    /* SONGS */
+    /* ***** */
+
+    private void getSong(ShiHttpServer.Exchange exchange) {
+        REQUESTS.increment();
+        if(!exchange.getMethod().equals("GET") && !exchange.getMethod().equals("HEAD")) {
+            exchange.setHeader("Allow", "GET, HEAD");
+            exchange.sendError(405, "Method not allowed");
+            return;
+        }
+        String filePath = null;
+        try {
+            filePath = getFilePath(Integer.parseInt(exchange.getPath().substring("/songs/".length())));
+        } catch (NumberFormatException e) {
+            // not a song id
+        }
+        if(filePath == null) {
+            exchange.sendError(404, "No such song");
+            return;
+        }
+
+        FileChannel file;
+        long size;
+        String etag;
+        try {
+            Path path = Paths.get(filePath);
+            file = FileChannel.open(path, StandardOpenOption.READ);
+            size = file.size();
+            etag = "\"" + Long.toString(size, 36) + "-"
+                    + Long.toString(Files.getLastModifiedTime(path).toMillis(), 36) + "\"";
+        } catch (IOException e) {
+            exchange.sendError(404, "Song file missing");
+            return;
+        } catch (InvalidPathException e) {
+            exchange.sendError(404, "Song file missing");
+            return;
+        }
+
+        exchange.setHeader("Accept-Ranges", "bytes");
+        exchange.setHeader("ETag", etag);
+        String contentType = getContentType(filePath);
+        if(etag.equals(exchange.getHeader("if-none-match"))) {
+            close(file);
+            exchange.send(304, null, new byte[0]);
+            return;
+        }
+        String range = exchange.getHeader("range");
+        String ifRange = exchange.getHeader("if-range");
+        if(ifRange != null && !ifRange.equals(etag)) {
+            range = null;       // the file changed since the client read its start: send it whole
+        }
+        long[] bytes = parseRange(range, size);
+        if(bytes == null) {
+            exchange.sendFile(200, contentType, file, 0, size);
+        } else if(bytes == UNSATISFIABLE) {
+            close(file);
+            exchange.setHeader("Content-Range", "bytes */" + size);
+            exchange.sendError(416, "Range not satisfiable");
+        } else {
+            exchange.setHeader("Content-Range", "bytes " + bytes[0] + "-" + bytes[1] + "/" + size);
+            exchange.sendFile(206, contentType, file, bytes[0], bytes[1] - bytes[0] + 1);
+        }
+    }
+
+    /*
+     * Returns the path of a song, from memory if it was asked for lately
+     */
+    private String getFilePath(int songId) {
+        long version;
+        synchronized(paths) {
+            String filePath = paths.get(songId);
+            if(filePath != null) {
+                return filePath;
+            }
+            version = pathsVersion;
+        }
+        PATH_MISSES.increment();
+        String filePath = db.getSongFilePath(songId);
+        if(filePath != null) {
+            synchronized(paths) {
+                if(version == pathsVersion) {      // not read before a change just committed
+                    paths.put(songId, filePath);
+                }
+            }
+        }
+        return filePath;
+    }
+
+    /**
+     * Parses the Range header of a request for a file
+     *
+     * @param range the header, eg. "bytes=0-499", "bytes=500-" or "bytes=-500"
+     * @param size the size of the file
+     * @return the first and last byte of the range, null for the whole file
+     * (no header, or one that is not understood, such as several ranges),
+     * and an empty array when the range starts past the end of the file
+     */
+    static long[] parseRange(String range, long size) {
+        if(range == null || !range.startsWith("bytes=") || range.indexOf(',') != -1) {
+            return null;
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if(dash == -1) {
+            return null;
+        }
+        try {
+            long first;
+            long last;
+            if(dash == 0) {
+                // the last bytes of the file
+                long suffix = Long.parseLong(spec.substring(1));
+                if(suffix <= 0 || size == 0) {
+                    return UNSATISFIABLE;
+                }
+                first = Math.max(0, size - suffix);
+                last = size - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                if(first < 0 || last < first) {
+                    return null;
+                }
+                if(first >= size) {
+                    return UNSATISFIABLE;
+                }
+                last = Math.min(last, size - 1);
+            }
+            return new long[] {first, last};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String getContentType(String filePath) {
+        String name = filePath.toLowerCase(Locale.ROOT);
+        if(name.endsWith(".mp3")) {
+            return "audio/mpeg";
+        } else if(name.endsWith(".wav")) {
+            return "audio/wav";
+        } else if(name.endsWith(".m4a") || name.endsWith(".aac")) {
+            return "audio/mp4";
+        } else if(name.endsWith(".ogg")) {
+            return "audio/ogg";
+        } else if(name.endsWith(".flac")) {
+            return "audio/flac";
+        }
+        return "application/octet-stream";
+    }
+
+    private static void close(FileChannel file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* ***** */
+    /* STATS */
+    /* ***** */
+
+    private void getStats(ShiHttpServer.Exchange exchange) {
+        String stats = "{\"active\":" + getActiveStreams() + ",\"bytes\":" + server.getFileBytes()
+                + ",\"bytesPerSecond\":" + getBytesPerSecond() + "}";
+        exchange.setHeader("Cache-Control", "no-cache");
+        exchange.send(200, "application/json; charset=utf-8", stats.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,379 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The SpectrumAnalyzer class turns the PCM a player reports with
+ * its progress into the spectrum and levels drawn by a SpectrumPanel
+ * <p>
+ * publish() is called on the player's thread and only copies the
+ * samples into a ring buffer and advances its write count, it never
+ * locks, waits or allocates. A thread of its own takes a snapshot of the
+ * latest FFT_SIZE samples at most FRAME_RATE times a second, checking the
+ * write count afterwards to retry a snapshot overwritten meanwhile. It
+ * windows them, runs a radix-2 FFT with precomputed twiddles and bit
+ * reversal, and sums the bins into BANDS logarithmic bands.
+ * <p>
+ * Frames are handed to the EDT through three preallocated frames: the
+ * thread fills one, swaps it with the latest, and the EDT swaps the
+ * latest with the one it draws, so neither ever waits for the other.
+ * Nothing is computed while the spectrum is hidden or no samples arrive.
+ *
+ * @author shiTunes inc.
+ */
+public class SpectrumAnalyzer {
+
+    /**
+     * The number of samples transformed by each FFT (46 ms at 44.1 kHz)
+     */
+    public static final int FFT_SIZE = 2048;
+    /**
+     * The number of frequency bands, from LOWEST_HZ to HIGHEST_HZ
+     */
+    public static final int BANDS = 32;
+    /**
+     * The most spectra computed, and drawn, per second
+     */
+    public static final int FRAME_RATE = Integer.getInteger("shiTunes.spectrum.fps", 30);
+    /**
+     * The level shown as an empty band or meter, in dBFS
+     */
+    public static final float FLOOR_DB = -72;
+
+    private static final float LOWEST_HZ = 40;
+    private static final float HIGHEST_HZ = 16000;
+    private static final int RING_SIZE = 4 * FFT_SIZE;      // a power of two
+    private static final float DECAY = 0.85f;               // per frame, so bands fall smoothly
+    private static final int SNAPSHOT_ATTEMPTS = 3;
+    private static final float SCALE = 1.0f / 32768;
+
+    private static final Metrics.Histogram FFT = Metrics.histogram("spectrum.fft");
+
+    /**
+     * The bands and levels of one frame, in [0.0, 1.0] from FLOOR_DB to full scale
+     */
+    public static class Frame {
+        /** The level of each band, lowest frequency first */
+        public final float[] bands = new float[BANDS];
+        /** The RMS level of the left and right channels */
+        public final float[] levels = new float[2];
+        /** The peak level of the left and right channels */
+        public final float[] peaks = new float[2];
+        private boolean fresh;      // filled but not yet drawn
+    }
+
+    // Ring buffer of the latest samples, written by the player's thread only
+    private final float[] left = new float[RING_SIZE];
+    private final float[] right = new float[RING_SIZE];
+    private final AtomicLong written = new AtomicLong();
+    private volatile int channels = 2;
+    private volatile float sampleRate = 44100;
+    private volatile boolean active;
+    private volatile boolean disposed;
+
+    // Owned by the analysis thread
+    private final float[] snapshotLeft = new float[FFT_SIZE];
+    private final float[] snapshotRight = new float[FFT_SIZE];
+    private final float[] real = new float[FFT_SIZE];
+    private final float[] imaginary = new float[FFT_SIZE];
+    private final float[] window = new float[FFT_SIZE];
+    private final float[] cos = new float[FFT_SIZE / 2];
+    private final float[] sin = new float[FFT_SIZE / 2];
+    private final int[] reversed = new int[FFT_SIZE];
+    private final int[] bandEdges = new int[BANDS + 1];     // first bin of each band, and the end
+    private final Frame smoothed = new Frame();             // the last frame computed
+    private float bandRate;                                 // the sample rate of bandEdges
+    private float windowGain;
+    private long analyzed = -1;                             // write count of the last snapshot
+    private Thread thread;
+
+    // Frames handed from the analysis thread to the EDT
+    private Frame back = new Frame();
+    private final AtomicReference<Frame> latest = new AtomicReference<Frame>(new Frame());
+    private Frame front = new Frame();
+
+    /**
+     * Creates an analyzer, its thread starts when it is first made active
+     */
+    public SpectrumAnalyzer() {
+        int bits = Integer.numberOfTrailingZeros(FFT_SIZE);
+        for(int i = 0; i < FFT_SIZE; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / (FFT_SIZE - 1)));   // Hann
+            windowGain += window[i];
+            reversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+        for(int i = 0; i < FFT_SIZE / 2; i++) {
+            cos[i] = (float) Math.cos(2 * Math.PI * i / FFT_SIZE);
+            sin[i] = (float) -Math.sin(2 * Math.PI * i / FFT_SIZE);
+        }
+    }
+
+    /**
+     * Sets the format of the PCM published from now on
+     *
+     * @param sampleRate the sample rate in Hz
+     * @param channels the number of interleaved channels
+     */
+    public void setFormat(float sampleRate, int channels) {
+        if(sampleRate > 0) {
+            this.sampleRate = sampleRate;
+        }
+        if(channels > 0) {
+            this.channels = channels;
+        }
+    }
+
+    /**
+     * Records the latest samples played, called on the player's thread;
+     * returns at once while the spectrum is hidden
+     *
+     * @param pcm 16 bit signed little endian PCM
+     * @param length the number of bytes
+     */
+    public void publish(byte[] pcm, int length) {
+        if(!active || pcm == null) {
+            return;
+        }
+        int channels = this.channels;
+        int frameSize = 2 * channels;
+        long position = written.get();
+        for(int b = 0; b + frameSize <= length; b += frameSize) {
+            int index = (int) (position++ & (RING_SIZE - 1));
+            left[index] = (short) ((pcm[b + 1] << 8) | (pcm[b] & 0xFF)) * SCALE;
+            right[index] = channels == 1 ? left[index] :
+                    (short) ((pcm[b + 3] << 8) | (pcm[b + 2] & 0xFF)) * SCALE;
+        }
+        written.lazySet(position);
+    }
+
+    /**
+     * Starts or pauses the analysis, eg. as the spectrum is shown or hidden
+     *
+     * @param active true to analyze the published samples
+     */
+    public synchronized void setActive(boolean active) {
+        this.active = active;
+        if(active && thread == null && !disposed) {
+            thread = new Thread(new Runnable() {
+                public void run() {
+                    analyzeLoop();
+                }
+            }, "Spectrum-analyzer");
+            thread.setDaemon(true);
+            thread.start();
+        } else if(active && thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Stops the analysis thread for good, eg. when the window closes
+     */
+    public synchronized void dispose() {
+        disposed = true;
+        active = false;
+        if(thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Returns the latest frame, called on the EDT; the frame is
+     * only valid until the next call
+     *
+     * @return the latest frame, or the previous one if no new frame was computed
+     */
+    public Frame takeFrame() {
+        if(latest.get().fresh) {
+            front = latest.getAndSet(front);
+            front.fresh = false;
+        }
+        return front;
+    }
+
+    /*
+     * Computes a frame every 1/FRAME_RATE seconds while active
+     */
+    private void analyzeLoop() {
+        long period = 1000000000L / Math.max(1, FRAME_RATE);
+        long next = System.nanoTime();
+        while(!disposed) {
+            if(!active) {
+                LockSupport.park(this);
+                next = System.nanoTime();
+                continue;
+            }
+            next += period;
+            long start = System.nanoTime();
+            if(analyze(back)) {
+                back.fresh = true;
+                back = latest.getAndSet(back);
+                FFT.recordSince(start);
+            }
+            long delay = next - System.nanoTime();
+            if(delay > 0) {
+                LockSupport.parkNanos(this, delay);
+            } else {
+                next = System.nanoTime();   // fell behind, don't try to catch up
+            }
+        }
+    }
+
+    /*
+     * Fills a frame from a snapshot of the latest samples, the bands
+     * falling back smoothly once samples stop arriving
+     *
+     * @return false if there was nothing new to show
+     */
+    boolean analyze(Frame frame) {
+        long end = snapshot();
+        boolean silent = end == analyzed || end < 0;
+        if(silent && isEmpty(smoothed)) {
+            return false;
+        }
+        analyzed = end;
+        if(silent) {
+            decay(smoothed);
+        } else {
+            measure(smoothed);
+        }
+        System.arraycopy(smoothed.bands, 0, frame.bands, 0, BANDS);
+        System.arraycopy(smoothed.levels, 0, frame.levels, 0, 2);
+        System.arraycopy(smoothed.peaks, 0, frame.peaks, 0, 2);
+        return true;
+    }
+
+    /*
+     * Transforms the snapshot into the frame's bands and levels, each
+     * falling by no more than DECAY from the previous frame
+     */
+    private void measure(Frame frame) {
+
+        float sumLeft = 0, sumRight = 0, peakLeft = 0, peakRight = 0;
+        for(int i = 0; i < FFT_SIZE; i++) {
+            float l = snapshotLeft[i];
+            float r = snapshotRight[i];
+            sumLeft += l * l;
+            sumRight += r * r;
+            peakLeft = Math.max(peakLeft, Math.abs(l));
+            peakRight = Math.max(peakRight, Math.abs(r));
+            real[reversed[i]] = (l + r) * 0.5f * window[i];
+            imaginary[reversed[i]] = 0;
+        }
+        transform();
+
+        float rate = sampleRate;
+        if(rate != bandRate) {
+            computeBandEdges(rate);
+        }
+        float scale = 2 / windowGain;
+        for(int band = 0; band < BANDS; band++) {
+            float power = 0;
+            for(int bin = bandEdges[band]; bin < bandEdges[band + 1]; bin++) {
+                power += real[bin] * real[bin] + imaginary[bin] * imaginary[bin];
+            }
+            float level = toLevel((float) Math.sqrt(power) * scale);
+            frame.bands[band] = Math.max(level, frame.bands[band] * DECAY);
+        }
+        frame.levels[0] = Math.max(toLevel((float) Math.sqrt(sumLeft / FFT_SIZE)), frame.levels[0] * DECAY);
+        frame.levels[1] = Math.max(toLevel((float) Math.sqrt(sumRight / FFT_SIZE)), frame.levels[1] * DECAY);
+        frame.peaks[0] = Math.max(toLevel(peakLeft), frame.peaks[0] * DECAY);
+        frame.peaks[1] = Math.max(toLevel(peakRight), frame.peaks[1] * DECAY);
+    }
+
+    /*
+     * Copies the latest FFT_SIZE samples, retrying if the player
+     * overwrote them during the copy
+     *
+     * @return the write count the snapshot ends at, -1 if it
+     *         kept being overwritten or too few samples were published
+     */
+    private long snapshot() {
+        for(int attempt = 0; attempt < SNAPSHOT_ATTEMPTS; attempt++) {
+            long end = written.get();
+            if(end < FFT_SIZE) {
+                return -1;
+            }
+            if(end == analyzed) {
+                return end;
+            }
+            long start = end - FFT_SIZE;
+            for(int i = 0; i < FFT_SIZE; i++) {
+                int index = (int) ((start + i) & (RING_SIZE - 1));
+                snapshotLeft[i] = left[index];
+                snapshotRight[i] = right[index];
+            }
+            if(written.get() - start <= RING_SIZE) {
+                return end;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * In-place iterative radix-2 FFT of the bit reversed input
+     */
+    private void transform() {
+        for(int size = 2; size <= FFT_SIZE; size <<= 1) {
+            int half = size >> 1;
+            int step = FFT_SIZE / size;
+            for(int start = 0; start < FFT_SIZE; start += size) {
+                for(int k = 0, t = 0; k < half; k++, t += step) {
+                    int even = start + k;
+                    int odd = even + half;
+                    float oddReal = real[odd] * cos[t] - imaginary[odd] * sin[t];
+                    float oddImaginary = real[odd] * sin[t] + imaginary[odd] * cos[t];
+                    real[odd] = real[even] - oddReal;
+                    imaginary[odd] = imaginary[even] - oddImaginary;
+                    real[even] += oddReal;
+                    imaginary[even] += oddImaginary;
+                }
+            }
+        }
+    }
+
+    /*
+     * Spaces the bands evenly on a log scale, each at least one bin wide
+     */
+    private void computeBandEdges(float rate) {
+        float highest = Math.min(HIGHEST_HZ, rate / 2);
+        float binHz = rate / FFT_SIZE;
+        bandEdges[0] = Math.max(1, Math.round(LOWEST_HZ / binHz));
+        for(int band = 1; band <= BANDS; band++) {
+            double hz = LOWEST_HZ * Math.pow(highest / LOWEST_HZ, (double) band / BANDS);
+            bandEdges[band] = Math.min(FFT_SIZE / 2,
+                    Math.max(bandEdges[band - 1] + 1, (int) Math.round(hz / binHz)));
+        }
+        bandRate = rate;
+    }
+
+    private static void decay(Frame frame) {
+        for(int band = 0; band < BANDS; band++) {
+            frame.bands[band] = frame.bands[band] * DECAY < 0.01f ? 0 : frame.bands[band] * DECAY;
+        }
+        for(int channel = 0; channel < 2; channel++) {
+            frame.levels[channel] = frame.levels[channel] * DECAY < 0.01f ? 0 : frame.levels[channel] * DECAY;
+            frame.peaks[channel] = frame.peaks[channel] * DECAY < 0.01f ? 0 : frame.peaks[channel] * DECAY;
+        }
+    }
+
+    private static boolean isEmpty(Frame frame) {
+        for(int band = 0; band < BANDS; band++) {
+            if(frame.bands[band] != 0) {
+                return false;
+            }
+        }
+        return frame.peaks[0] == 0 && frame.peaks[1] == 0;
+    }
+
+    /*
+     * Maps an amplitude to [0.0, 1.0] between FLOOR_DB and full scale
+     */
+    private static float toLevel(float amplitude) {
+        if(amplitude <= 0) {
+            return 0;
+        }
+        float db = (float) (20 * Math.log10(amplitude));
+        return Math.max(0, Math.min(1, 1 - db / FLOOR_DB));
+    }
+}
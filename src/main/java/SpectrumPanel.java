@@ -0,0 +1,127 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.HierarchyListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+
+/**
+ * The SpectrumPanel class draws the spectrum and the left & right
+ * levels computed by a SpectrumAnalyzer
+ * <p>
+ * A Swing timer repaints the panel SpectrumAnalyzer.FRAME_RATE times a
+ * second, and only when the analyzer has a new frame. The timer and the
+ * analyzer stop while the panel is hidden or its window minimized.
+ *
+ * @author shiTunes inc.
+ */
+public class SpectrumPanel extends JComponent {
+
+    private static final int METER_WIDTH = 8;
+    private static final int GAP = 2;
+    private static final Color BAR = new Color(0x3C78D8);
+    private static final Color PEAK = new Color(0xD8A03C);
+
+    private final SpectrumAnalyzer analyzer;
+    private final Timer timer;
+    private SpectrumAnalyzer.Frame frame;
+    private boolean iconified;
+
+    /**
+     * Creates a panel drawing the given analyzer's frames while the given window is showing
+     *
+     * @param frame the window holding the panel
+     * @param analyzer the analyzer fed with the window player's PCM
+     */
+    public SpectrumPanel(JFrame frame, SpectrumAnalyzer analyzer) {
+        this.analyzer = analyzer;
+        setPreferredSize(new Dimension(400, 60));
+        setMaximumSize(new Dimension(Integer.MAX_VALUE, 60));
+        setOpaque(true);
+        setBackground(Color.BLACK);
+
+        timer = new Timer(1000 / Math.max(1, SpectrumAnalyzer.FRAME_RATE), new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                SpectrumAnalyzer.Frame latest = SpectrumPanel.this.analyzer.takeFrame();
+                if(latest != SpectrumPanel.this.frame) {
+                    SpectrumPanel.this.frame = latest;
+                    repaint();
+                }
+            }
+        });
+        timer.setCoalesce(true);
+
+        addHierarchyListener(new HierarchyListener() {
+            public void hierarchyChanged(HierarchyEvent e) {
+                if((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0) {
+                    update();
+                }
+            }
+        });
+        frame.addWindowListener(new WindowAdapter() {
+            public void windowIconified(WindowEvent e) {
+                iconified = true;
+                update();
+            }
+
+            public void windowDeiconified(WindowEvent e) {
+                iconified = false;
+                update();
+            }
+
+            public void windowClosed(WindowEvent e) {
+                timer.stop();
+                SpectrumPanel.this.analyzer.dispose();
+            }
+        });
+    }
+
+    /*
+     * Runs the timer and the analyzer only while the panel can be seen
+     */
+    private void update() {
+        boolean visible = isShowing() && !iconified;
+        analyzer.setActive(visible);
+        if(visible) {
+            timer.start();
+        } else {
+            timer.stop();
+        }
+    }
+
+    protected void paintComponent(Graphics g) {
+        g.setColor(getBackground());
+        g.fillRect(0, 0, getWidth(), getHeight());
+        if(frame == null) {
+            return;
+        }
+        Insets insets = getInsets();
+        int height = getHeight() - insets.top - insets.bottom;
+        int bottom = insets.top + height;
+        int metersWidth = 2 * (METER_WIDTH + GAP);
+        int width = getWidth() - insets.left - insets.right - metersWidth;
+
+        // the bands, evenly spread over the width
+        g.setColor(BAR);
+        int bands = frame.bands.length;
+        for(int band = 0; band < bands; band++) {
+            int x = insets.left + band * width / bands;
+            int barWidth = Math.max(1, (band + 1) * width / bands - band * width / bands - GAP);
+            int barHeight = Math.round(frame.bands[band] * height);
+            g.fillRect(x, bottom - barHeight, barWidth, barHeight);
+        }
+
+        // the left and right levels, with a line at their peak
+        for(int channel = 0; channel < 2; channel++) {
+            int x = insets.left + width + GAP + channel * (METER_WIDTH + GAP);
+            int levelHeight = Math.round(frame.levels[channel] * height);
+            int peakHeight = Math.round(frame.peaks[channel] * height);
+            g.setColor(BAR);
+            g.fillRect(x, bottom - levelHeight, METER_WIDTH, levelHeight);
+            g.setColor(PEAK);
+            g.fillRect(x, bottom - peakHeight, METER_WIDTH, Math.min(2, peakHeight));
+        }
+    }
+}
@@ -0,0 +1,456 @@
+import javazoom.jl.decoder.JavaLayerUtils;
+import javazoom.jl.decoder.Obuffer;
+
+import java.io.IOException;
+
+/**
+ * The SynthesisFilterbank class is the polyphase synthesis filterbank of
+ * one channel, turning each 32 subband samples into 32 PCM samples, a
+ * port of jl1.0.1's SynthesisFilter
+ * <p>
+ * The matrixing is jl's, operation for operation. The windowing sums
+ * the same 16 products per sample in the same order, but jl keeps its
+ * vector V by subband, V[16 * i + position], so each sample reads 16
+ * scattered values and multiplies them by a row of the window one at a
+ * time. Here V is kept by position, V[32 * position + i], and the window
+ * by tap, so each of the 16 taps is a run of 32 contiguous products
+ * over the 32 samples that the JIT compiles to vector instructions.
+ * <p>
+ * The PCM is scaled as jl's Decoder does and appended to the output
+ * buffer, which clips it.
+ *
+ * @author shiTunes inc.
+ */
+public class SynthesisFilterbank {
+
+    private static final float SCALE = 32700.0f;
+
+    private static final float COS1_64 = cos(1, 64);
+    private static final float COS3_64 = cos(3, 64);
+    private static final float COS5_64 = cos(5, 64);
+    private static final float COS7_64 = cos(7, 64);
+    private static final float COS9_64 = cos(9, 64);
+    private static final float COS11_64 = cos(11, 64);
+    private static final float COS13_64 = cos(13, 64);
+    private static final float COS15_64 = cos(15, 64);
+    private static final float COS17_64 = cos(17, 64);
+    private static final float COS19_64 = cos(19, 64);
+    private static final float COS21_64 = cos(21, 64);
+    private static final float COS23_64 = cos(23, 64);
+    private static final float COS25_64 = cos(25, 64);
+    private static final float COS27_64 = cos(27, 64);
+    private static final float COS29_64 = cos(29, 64);
+    private static final float COS31_64 = cos(31, 64);
+    private static final float COS1_32 = cos(1, 32);
+    private static final float COS3_32 = cos(3, 32);
+    private static final float COS5_32 = cos(5, 32);
+    private static final float COS7_32 = cos(7, 32);
+    private static final float COS9_32 = cos(9, 32);
+    private static final float COS11_32 = cos(11, 32);
+    private static final float COS13_32 = cos(13, 32);
+    private static final float COS15_32 = cos(15, 32);
+    private static final float COS1_16 = cos(1, 16);
+    private static final float COS3_16 = cos(3, 16);
+    private static final float COS5_16 = cos(5, 16);
+    private static final float COS7_16 = cos(7, 16);
+    private static final float COS1_8 = cos(1, 8);
+    private static final float COS3_8 = cos(3, 8);
+    private static final float COS1_4 = cos(1, 4);
+
+    // jl's synthesis window, by tap: WINDOW[32 * k + i] is tap k of sample i
+    private static final float[] WINDOW = new float[512];
+
+    static {
+        try {
+            float[] d = (float[]) JavaLayerUtils.deserializeArrayResource("sfd.ser", Float.TYPE, 512);
+            for(int i = 0; i < 32; i++) {
+                for(int k = 0; k < 16; k++) {
+                    WINDOW[32 * k + i] = d[16 * i + k];
+                }
+            }
+        } catch(IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final int channel;
+    private final float[] v1 = new float[512];
+    private final float[] v2 = new float[512];
+    private final float[] pcm = new float[32];
+    private float[] actual = v1;        // the V windowed next; the other one gets the mirror image
+    private int position = 15;
+
+    /**
+     * Creates the filterbank of the given channel
+     *
+     * @param channel the channel the PCM is appended to, 0 left or 1 right
+     */
+    public SynthesisFilterbank(int channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Filters the 32 subband samples spectrum[offset + 18 * subband],
+     * appending the 32 PCM samples to the given buffer
+     *
+     * @param spectrum the 576 samples of a granule, 18 of each subband
+     * @param offset the time slot of the samples, 0 to 17
+     * @param buffer the buffer the PCM is appended to
+     */
+    public void filter(float[] spectrum, int offset, Obuffer buffer) {
+        matrix(spectrum, offset);
+        window();
+        buffer.appendSamples(channel, pcm);
+        position = position + 1 & 15;
+        actual = actual == v1 ? v2 : v1;
+    }
+
+    /*
+     * Writes the samples' column of both Vs: jl's compute_new_v()
+     */
+    private void matrix(float[] spectrum, int offset) {
+        float s0 = spectrum[offset + 0];
+        float s1 = spectrum[offset + 18];
+        float s2 = spectrum[offset + 36];
+        float s3 = spectrum[offset + 54];
+        float s4 = spectrum[offset + 72];
+        float s5 = spectrum[offset + 90];
+        float s6 = spectrum[offset + 108];
+        float s7 = spectrum[offset + 126];
+        float s8 = spectrum[offset + 144];
+        float s9 = spectrum[offset + 162];
+        float s10 = spectrum[offset + 180];
+        float s11 = spectrum[offset + 198];
+        float s12 = spectrum[offset + 216];
+        float s13 = spectrum[offset + 234];
+        float s14 = spectrum[offset + 252];
+        float s15 = spectrum[offset + 270];
+        float s16 = spectrum[offset + 288];
+        float s17 = spectrum[offset + 306];
+        float s18 = spectrum[offset + 324];
+        float s19 = spectrum[offset + 342];
+        float s20 = spectrum[offset + 360];
+        float s21 = spectrum[offset + 378];
+        float s22 = spectrum[offset + 396];
+        float s23 = spectrum[offset + 414];
+        float s24 = spectrum[offset + 432];
+        float s25 = spectrum[offset + 450];
+        float s26 = spectrum[offset + 468];
+        float s27 = spectrum[offset + 486];
+        float s28 = spectrum[offset + 504];
+        float s29 = spectrum[offset + 522];
+        float s30 = spectrum[offset + 540];
+        float s31 = spectrum[offset + 558];
+
+        float p0 = s0 + s31;
+        float p1 = s1 + s30;
+        float p2 = s2 + s29;
+        float p3 = s3 + s28;
+        float p4 = s4 + s27;
+        float p5 = s5 + s26;
+        float p6 = s6 + s25;
+        float p7 = s7 + s24;
+        float p8 = s8 + s23;
+        float p9 = s9 + s22;
+        float p10 = s10 + s21;
+        float p11 = s11 + s20;
+        float p12 = s12 + s19;
+        float p13 = s13 + s18;
+        float p14 = s14 + s17;
+        float p15 = s15 + s16;
+        float pp0 = p0 + p15;
+        float pp1 = p1 + p14;
+        float pp2 = p2 + p13;
+        float pp3 = p3 + p12;
+        float pp4 = p4 + p11;
+        float pp5 = p5 + p10;
+        float pp6 = p6 + p9;
+        float pp7 = p7 + p8;
+        float pp8 = (p0 - p15) * COS1_32;
+        float pp9 = (p1 - p14) * COS3_32;
+        float pp10 = (p2 - p13) * COS5_32;
+        float pp11 = (p3 - p12) * COS7_32;
+        float pp12 = (p4 - p11) * COS9_32;
+        float pp13 = (p5 - p10) * COS11_32;
+        float pp14 = (p6 - p9) * COS13_32;
+        float pp15 = (p7 - p8) * COS15_32;
+        p0 = pp0 + pp7;
+        p1 = pp1 + pp6;
+        p2 = pp2 + pp5;
+        p3 = pp3 + pp4;
+        p4 = (pp0 - pp7) * COS1_16;
+        p5 = (pp1 - pp6) * COS3_16;
+        p6 = (pp2 - pp5) * COS5_16;
+        p7 = (pp3 - pp4) * COS7_16;
+        p8 = pp8 + pp15;
+        p9 = pp9 + pp14;
+        p10 = pp10 + pp13;
+        p11 = pp11 + pp12;
+        p12 = (pp8 - pp15) * COS1_16;
+        p13 = (pp9 - pp14) * COS3_16;
+        p14 = (pp10 - pp13) * COS5_16;
+        p15 = (pp11 - pp12) * COS7_16;
+        pp0 = p0 + p3;
+        pp1 = p1 + p2;
+        pp2 = (p0 - p3) * COS1_8;
+        pp3 = (p1 - p2) * COS3_8;
+        pp4 = p4 + p7;
+        pp5 = p5 + p6;
+        pp6 = (p4 - p7) * COS1_8;
+        pp7 = (p5 - p6) * COS3_8;
+        pp8 = p8 + p11;
+        pp9 = p9 + p10;
+        pp10 = (p8 - p11) * COS1_8;
+        pp11 = (p9 - p10) * COS3_8;
+        pp12 = p12 + p15;
+        pp13 = p13 + p14;
+        pp14 = (p12 - p15) * COS1_8;
+        pp15 = (p13 - p14) * COS3_8;
+        p0 = pp0 + pp1;
+        p1 = (pp0 - pp1) * COS1_4;
+        p2 = pp2 + pp3;
+        p3 = (pp2 - pp3) * COS1_4;
+        p4 = pp4 + pp5;
+        p5 = (pp4 - pp5) * COS1_4;
+        p6 = pp6 + pp7;
+        p7 = (pp6 - pp7) * COS1_4;
+        p8 = pp8 + pp9;
+        p9 = (pp8 - pp9) * COS1_4;
+        p10 = pp10 + pp11;
+        p11 = (pp10 - pp11) * COS1_4;
+        p12 = pp12 + pp13;
+        p13 = (pp12 - pp13) * COS1_4;
+        p14 = pp14 + pp15;
+        p15 = (pp14 - pp15) * COS1_4;
+
+        float v12 = p7;
+        float v4 = p7 + p5;
+        float v19 = -v4 - p6;
+        float v27 = -p6 - p7 - p4;
+        float v14 = p15;
+        float v10 = p15 + p11;
+        float v6 = v10 + p13;
+        float v2 = p15 + p13 + p9;
+        float v17 = -v2 - p14;
+        float tmp1 = -p14 - p15 - p10 - p11;
+        float v21 = tmp1 - p13;
+        float v29 = -p14 - p15 - p12 - p8;
+        float v25 = tmp1 - p12;
+        float v31 = -p0;
+        float v0 = p1;
+        float v8 = p3;
+        float v23 = -v8 - p2;
+
+        p0 = (s0 - s31) * COS1_64;
+        p1 = (s1 - s30) * COS3_64;
+        p2 = (s2 - s29) * COS5_64;
+        p3 = (s3 - s28) * COS7_64;
+        p4 = (s4 - s27) * COS9_64;
+        p5 = (s5 - s26) * COS11_64;
+        p6 = (s6 - s25) * COS13_64;
+        p7 = (s7 - s24) * COS15_64;
+        p8 = (s8 - s23) * COS17_64;
+        p9 = (s9 - s22) * COS19_64;
+        p10 = (s10 - s21) * COS21_64;
+        p11 = (s11 - s20) * COS23_64;
+        p12 = (s12 - s19) * COS25_64;
+        p13 = (s13 - s18) * COS27_64;
+        p14 = (s14 - s17) * COS29_64;
+        p15 = (s15 - s16) * COS31_64;
+        pp0 = p0 + p15;
+        pp1 = p1 + p14;
+        pp2 = p2 + p13;
+        pp3 = p3 + p12;
+        pp4 = p4 + p11;
+        pp5 = p5 + p10;
+        pp6 = p6 + p9;
+        pp7 = p7 + p8;
+        pp8 = (p0 - p15) * COS1_32;
+        pp9 = (p1 - p14) * COS3_32;
+        pp10 = (p2 - p13) * COS5_32;
+        pp11 = (p3 - p12) * COS7_32;
+        pp12 = (p4 - p11) * COS9_32;
+        pp13 = (p5 - p10) * COS11_32;
+        pp14 = (p6 - p9) * COS13_32;
+        pp15 = (p7 - p8) * COS15_32;
+        p0 = pp0 + pp7;
+        p1 = pp1 + pp6;
+        p2 = pp2 + pp5;
+        p3 = pp3 + pp4;
+        p4 = (pp0 - pp7) * COS1_16;
+        p5 = (pp1 - pp6) * COS3_16;
+        p6 = (pp2 - pp5) * COS5_16;
+        p7 = (pp3 - pp4) * COS7_16;
+        p8 = pp8 + pp15;
+        p9 = pp9 + pp14;
+        p10 = pp10 + pp13;
+        p11 = pp11 + pp12;
+        p12 = (pp8 - pp15) * COS1_16;
+        p13 = (pp9 - pp14) * COS3_16;
+        p14 = (pp10 - pp13) * COS5_16;
+        p15 = (pp11 - pp12) * COS7_16;
+        pp0 = p0 + p3;
+        pp1 = p1 + p2;
+        pp2 = (p0 - p3) * COS1_8;
+        pp3 = (p1 - p2) * COS3_8;
+        pp4 = p4 + p7;
+        pp5 = p5 + p6;
+        pp6 = (p4 - p7) * COS1_8;
+        pp7 = (p5 - p6) * COS3_8;
+        pp8 = p8 + p11;
+        pp9 = p9 + p10;
+        pp10 = (p8 - p11) * COS1_8;
+        pp11 = (p9 - p10) * COS3_8;
+        pp12 = p12 + p15;
+        pp13 = p13 + p14;
+        pp14 = (p12 - p15) * COS1_8;
+        pp15 = (p13 - p14) * COS3_8;
+        p0 = pp0 + pp1;
+        p1 = (pp0 - pp1) * COS1_4;
+        p2 = pp2 + pp3;
+        p3 = (pp2 - pp3) * COS1_4;
+        p4 = pp4 + pp5;
+        p5 = (pp4 - pp5) * COS1_4;
+        p6 = pp6 + pp7;
+        p7 = (pp6 - pp7) * COS1_4;
+        p8 = pp8 + pp9;
+        p9 = (pp8 - pp9) * COS1_4;
+        p10 = pp10 + pp11;
+        p11 = (pp10 - pp11) * COS1_4;
+        p12 = pp12 + pp13;
+        p13 = (pp12 - pp13) * COS1_4;
+        p14 = pp14 + pp15;
+        p15 = (pp14 - pp15) * COS1_4;
+
+        float v15 = p15;
+        float v13 = p15 + p7;
+        float v11 = v13 + p11;
+        float v5 = v11 + p5 + p13;
+        float v9 = p15 + p11 + p3;
+        float v7 = v9 + p13;
+        tmp1 = p13 + p15 + p9;
+        float v1 = tmp1 + p1;
+        float v16 = -v1 - p14;
+        float v3 = tmp1 + p5 + p7;
+        float v18 = -v3 - p6 - p14;
+        tmp1 = -p10 - p11 - p14 - p15;
+        float v22 = tmp1 - p13 - p2 - p3;
+        float v20 = tmp1 - p13 - p5 - p6 - p7;
+        float v24 = tmp1 - p12 - p2 - p3;
+        float tmp2 = p4 + p6 + p7;
+        float v26 = tmp1 - p12 - tmp2;
+        tmp1 = -p8 - p12 - p14 - p15;
+        float v30 = tmp1 - p0;
+        float v28 = tmp1 - tmp2;
+
+        int p = position << 5;
+        float[] v = actual;
+        v[p] = v0;
+        v[p + 1] = v1;
+        v[p + 2] = v2;
+        v[p + 3] = v3;
+        v[p + 4] = v4;
+        v[p + 5] = v5;
+        v[p + 6] = v6;
+        v[p + 7] = v7;
+        v[p + 8] = v8;
+        v[p + 9] = v9;
+        v[p + 10] = v10;
+        v[p + 11] = v11;
+        v[p + 12] = v12;
+        v[p + 13] = v13;
+        v[p + 14] = v14;
+        v[p + 15] = v15;
+        v[p + 16] = 0.0f;
+        v[p + 17] = -v15;
+        v[p + 18] = -v14;
+        v[p + 19] = -v13;
+        v[p + 20] = -v12;
+        v[p + 21] = -v11;
+        v[p + 22] = -v10;
+        v[p + 23] = -v9;
+        v[p + 24] = -v8;
+        v[p + 25] = -v7;
+        v[p + 26] = -v6;
+        v[p + 27] = -v5;
+        v[p + 28] = -v4;
+        v[p + 29] = -v3;
+        v[p + 30] = -v2;
+        v[p + 31] = -v1;
+        float[] o = actual == this.v1 ? this.v2 : this.v1;
+        o[p] = -v0;
+        o[p + 1] = v16;
+        o[p + 2] = v17;
+        o[p + 3] = v18;
+        o[p + 4] = v19;
+        o[p + 5] = v20;
+        o[p + 6] = v21;
+        o[p + 7] = v22;
+        o[p + 8] = v23;
+        o[p + 9] = v24;
+        o[p + 10] = v25;
+        o[p + 11] = v26;
+        o[p + 12] = v27;
+        o[p + 13] = v28;
+        o[p + 14] = v29;
+        o[p + 15] = v30;
+        o[p + 16] = v31;
+        o[p + 17] = v30;
+        o[p + 18] = v29;
+        o[p + 19] = v28;
+        o[p + 20] = v27;
+        o[p + 21] = v26;
+        o[p + 22] = v25;
+        o[p + 23] = v24;
+        o[p + 24] = v23;
+        o[p + 25] = v22;
+        o[p + 26] = v21;
+        o[p + 27] = v20;
+        o[p + 28] = v19;
+        o[p + 29] = v18;
+        o[p + 30] = v17;
+        o[p + 31] = v16;
+    }
+
+    /*
+     * Windows the actual V into the PCM: jl's compute_pcm_samples(),
+     * sample i summing V[16 * i + (position - k & 15)] * d[16 * i + k]
+     * over the taps k
+     */
+    private void window() {
+        float[] v = actual;
+        float[] d = WINDOW;
+        float[] pcm = this.pcm;
+        int p = position;
+        int r0 = p << 5;
+        int r1 = (p - 1 & 15) << 5;
+        int r2 = (p - 2 & 15) << 5;
+        int r3 = (p - 3 & 15) << 5;
+        int r4 = (p - 4 & 15) << 5;
+        int r5 = (p - 5 & 15) << 5;
+        int r6 = (p - 6 & 15) << 5;
+        int r7 = (p - 7 & 15) << 5;
+        int r8 = (p - 8 & 15) << 5;
+        int r9 = (p - 9 & 15) << 5;
+        int r10 = (p - 10 & 15) << 5;
+        int r11 = (p - 11 & 15) << 5;
+        int r12 = (p - 12 & 15) << 5;
+        int r13 = (p - 13 & 15) << 5;
+        int r14 = (p - 14 & 15) << 5;
+        int r15 = (p - 15 & 15) << 5;
+        for(int i = 0; i < 32; i++) {
+            pcm[i] = (v[r0 + i] * d[i] + v[r1 + i] * d[32 + i] + v[r2 + i] * d[64 + i] + v[r3 + i] * d[96 + i] +
+                    v[r4 + i] * d[128 + i] + v[r5 + i] * d[160 + i] + v[r6 + i] * d[192 + i] +
+                    v[r7 + i] * d[224 + i] + v[r8 + i] * d[256 + i] + v[r9 + i] * d[288 + i] +
+                    v[r10 + i] * d[320 + i] + v[r11 + i] * d[352 + i] + v[r12 + i] * d[384 + i] +
+                    v[r13 + i] * d[416 + i] + v[r14 + i] * d[448 + i] + v[r15 + i] * d[480 + i]) * SCALE;
+        }
+    }
+
+    /*
+     * Returns jl's matrixing coefficient 1 / (2 cos(pi * i / n))
+     */
+    private static float cos(int i, int n) {
+        return (float) (1.0 / (2.0 * Math.cos(Math.PI * i / n)));
+    }
+}
@@ -0,0 +1,92 @@
+import java.util.Arrays;
+
+/**
+ * The Waveform class summarizes a song as the lowest and highest
+ * sample of every BUCKET_MILLIS of audio, small enough to be stored
+ * with the song and drawn on the progress bar without decoding it
+ * again
+ * <p>
+ * The summary is a byte array of (min, max) pairs, one pair per bucket,
+ * each the top 8 bits of the 16 bit samples of all channels. A three
+ * minute song takes 3.6 KB.
+ *
+ * @author shiTunes inc.
+ */
+public class Waveform {
+
+    /**
+     * The length of audio summarized by each (min, max) pair
+     */
+    public static final int BUCKET_MILLIS = 100;
+
+    private final int channels;
+    private final int bucketFrames;
+
+    private byte[] peaks = new byte[2 * 1024];
+    private int bucketCount;
+    private int min = Short.MAX_VALUE;
+    private int max = Short.MIN_VALUE;
+    private int frames;                 // in the current bucket
+    private int channel;                // of the next sample
+
+    /**
+     * Creates a summary for a song
+     *
+     * @param sampleRate the sample rate in Hz
+     * @param channels the number of interleaved channels
+     */
+    public Waveform(float sampleRate, int channels) {
+        this.channels = channels;
+        bucketFrames = Math.max(1, Math.round(sampleRate * BUCKET_MILLIS / 1000));
+    }
+
+    /**
+     * Summarizes a buffer of 16 bit signed little endian PCM
+     *
+     * @param pcm the PCM bytes
+     * @param offset the offset of the first byte
+     * @param length the number of bytes, an even number
+     */
+    public void process(byte[] pcm, int offset, int length) {
+        for(int b = offset, end = offset + length; b < end; b += 2) {
+            int sample = (short) ((pcm[b + 1] << 8) | (pcm[b] & 0xFF));
+            if(sample < min) {
+                min = sample;
+            }
+            if(sample > max) {
+                max = sample;
+            }
+            if(++channel == channels) {
+                channel = 0;
+                if(++frames == bucketFrames) {
+                    endBucket();
+                }
+            }
+        }
+    }
+
+    private void endBucket() {
+        if(2 * bucketCount == peaks.length) {
+            peaks = Arrays.copyOf(peaks, peaks.length * 2);
+        }
+        peaks[2 * bucketCount] = (byte) (min >> 8);
+        peaks[2 * bucketCount + 1] = (byte) (max >> 8);
+        bucketCount++;
+        min = Short.MAX_VALUE;
+        max = Short.MIN_VALUE;
+        frames = 0;
+    }
+
+    /**
+     * Returns the summary of the PCM processed so far, the
+     * last part bucket included
+     *
+     * @return the (min, max) pair of each bucket, in [-128, 127]
+     */
+    public byte[] getPeaks() {
+        if(frames > 0) {
+            endBucket();
+        }
+        return Arrays.copyOf(peaks, 2 * bucketCount);
+    }
+}
@@ -0,0 +1,115 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * The WaveformProgressBar class is a progress bar drawing the
+ * Waveform of the playing song, so quiet and loud passages can be
+ * seen and seeked to
+ * <p>
+ * The waveform is drawn once into two images, in the played and
+ * unplayed colors, whenever it or the bar's size changes. Each
+ * repaint then only copies the part of each image either side of the
+ * playing position. Without a waveform the bar paints as a plain
+ * JProgressBar.
+ *
+ * @author shiTunes inc.
+ */
+public class WaveformProgressBar extends JProgressBar {
+
+    private static final Color PLAYED = new Color(0x3C78D8);
+    private static final Color UNPLAYED = new Color(0xA0A0A0);
+
+    private byte[] peaks;           // (min, max) pairs, null for a plain bar
+    private BufferedImage played;
+    private BufferedImage unplayed;
+
+    /**
+     * Creates a progress bar with the given range
+     *
+     * @param min the value at the start of the song
+     * @param max the value at the end of the song
+     */
+    public WaveformProgressBar(int min, int max) {
+        super(min, max);
+        setPreferredSize(new Dimension(400, 32));
+    }
+
+    /**
+     * Shows a song's waveform, called on the EDT
+     *
+     * @param peaks the (min, max) pairs of the song's Waveform,
+     *              null or empty to show a plain progress bar
+     */
+    public void setWaveform(byte[] peaks) {
+        this.peaks = peaks == null || peaks.length < 2 ? null : peaks;
+        played = null;
+        unplayed = null;
+        repaint();
+    }
+
+    /**
+     * Returns whether a waveform is shown
+     *
+     * @return true if the bar draws a song's waveform
+     */
+    public boolean hasWaveform() {
+        return peaks != null;
+    }
+
+    protected void paintComponent(Graphics g) {
+        if(peaks == null) {
+            super.paintComponent(g);
+            return;
+        }
+        Insets insets = getInsets();
+        int width = getWidth() - insets.left - insets.right;
+        int height = getHeight() - insets.top - insets.bottom;
+        if(width <= 0 || height <= 0) {
+            return;
+        }
+        if(played == null || played.getWidth() != width || played.getHeight() != height) {
+            played = render(width, height, PLAYED);
+            unplayed = render(width, height, UNPLAYED);
+        }
+
+        g.setColor(getBackground());
+        g.fillRect(0, 0, getWidth(), getHeight());
+        int range = getMaximum() - getMinimum();
+        int position = range <= 0 ? 0 : (int) ((long) (getValue() - getMinimum()) * width / range);
+        int x = insets.left;
+        int y = insets.top;
+        g.drawImage(played, x, y, x + position, y + height, 0, 0, position, height, null);
+        g.drawImage(unplayed, x + position, y, x + width, y + height, position, 0, width, height, null);
+    }
+
+    /*
+     * Draws the waveform as a vertical line per pixel, from the lowest
+     * to the highest sample of the buckets falling on that pixel
+     */
+    private BufferedImage render(int width, int height, Color color) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(color);
+        int buckets = peaks.length / 2;
+        int middle = height / 2;
+        for(int x = 0; x < width; x++) {
+            int from = (int) ((long) x * buckets / width);
+            int to = Math.max(from + 1, (int) ((long) (x + 1) * buckets / width));
+            int min = Byte.MAX_VALUE;
+            int max = Byte.MIN_VALUE;
+            for(int bucket = from; bucket < to && bucket < buckets; bucket++) {
+                min = Math.min(min, peaks[2 * bucket]);
+                max = Math.max(max, peaks[2 * bucket + 1]);
+            }
+            if(min > max) {
+                continue;
+            }
+            int top = middle - (max + 1) * middle / 128;
+            int bottom = middle - min * middle / 128;
+            g.drawLine(x, top, x, Math.max(top, bottom));
+        }
+        g.dispose();
+        return image;
+    }
+}
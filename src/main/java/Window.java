@@ -7,7 +7,6 @@ import javax.swing.*;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
-import javax.swing.table.DefaultTableModel;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeCellRenderer;
 import javax.swing.tree.DefaultTreeModel;
@@ -22,10 +21,10 @@ import java.awt.event.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.Random;
+import java.util.function.Consumer;
 
 
 /**
@@ -79,15 +78,21 @@ public class Window
     private MusicPlayer player;
     private JSlider volumeSlider;
     private JMenu playRecentSubMenu;
-    private JProgressBar progressBar;
+    private WaveformProgressBar progressBar;
+    private int waveformSongId = -1;    // the song whose waveform is awaited from the analyzer
+    private int nextShuffleRow = -1;    // the row shuffle plays next, chosen early to prefetch it
     private JLabel leftTimer;
     private JLabel rightTimer;
-    private long timeRemaining;
-    private long timeElapsed;
-    private int duration;
+    private JLabel statusLabel;
+    private ProgressPublisher progressPublisher;
+    private SpectrumAnalyzer spectrum = new SpectrumAnalyzer();
+    private SpectrumPanel spectrumPanel;
+    private volatile int duration;
     private boolean songCompleted;
     private JCheckBoxMenuItem shuffleItem;
     private JCheckBoxMenuItem repeatItem;
+    private JMenuItem undoDeleteItem;
+    private int[] deletedSongIds;       // songs removed by the last library delete, for undo
 
 
 
@@ -109,7 +114,7 @@ public class Window
 
         // Set this Window instance's player
         player = new MusicPlayer();
-        player.getPlayer().addBasicPlayerListener(this);
+        player.addBasicPlayerListener(this);
 
         buildWindowLayout("shiTunes");
     }
@@ -134,7 +139,7 @@ public class Window
 
         // Set this Window instance's player
         player = new MusicPlayer();
-        player.getPlayer().addBasicPlayerListener(this);
+        player.addBasicPlayerListener(this);
 
         // Add this window to list of application windows
         ShiTunes.windows.add(this);
@@ -184,7 +189,9 @@ public class Window
         JPanel controlTablePanel = new JPanel();
         controlTablePanel.setLayout(new BoxLayout(controlTablePanel, BoxLayout.Y_AXIS));
         controlTablePanel.add(getControlPanel());
+        controlTablePanel.add(getSpectrumPanel());
         controlTablePanel.add(musicTableScrollPane);
+        controlTablePanel.add(getStatusPanel());
         controlTablePanel.setMinimumSize(new Dimension(500, 600));
 
         // Create menuBar and add File/Control menus
@@ -394,21 +401,29 @@ public class Window
         JMenuItem openItem = new JMenuItem("Open");
         JMenuItem addItem = new JMenuItem("Add Song");
         JMenuItem deleteItem = new JMenuItem("Delete Song(s)");
+        undoDeleteItem = new JMenuItem("Undo Delete");
         JMenuItem createPlaylistItem = new JMenuItem("Create Playlist");
+        JMenuItem diagnosticsItem = new JMenuItem("Diagnostics");
         JMenuItem exitItem = new JMenuItem("Exit");
 
         addItem.addActionListener(new AddSongListener());
         deleteItem.addActionListener(new DeleteSongListener());
+        undoDeleteItem.addActionListener(new UndoDeleteListener());
+        undoDeleteItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.META_MASK));
+        undoDeleteItem.setEnabled(false);     // nothing to undo yet
         openItem.addActionListener(new OpenItemListener());
         createPlaylistItem.addActionListener(new CreatePlaylistListener());
+        diagnosticsItem.addActionListener(new DiagnosticsListener());
         exitItem.addActionListener(new ExitItemListener());
 
         menu.add(openItem);
         menu.add(addItem);
         menu.add(deleteItem);
+        menu.add(undoDeleteItem);
         if(windowType == Window.MAIN) {
             menu.add(createPlaylistItem);
         }
+        menu.add(diagnosticsItem);
         menu.add(exitItem);
         return menu;
     }
@@ -429,6 +444,9 @@ public class Window
         JMenuItem decreaseVolumeItem = new JMenuItem("Decrease Volume");
         shuffleItem = new JCheckBoxMenuItem("Shuffle");
         repeatItem = new JCheckBoxMenuItem("Repeat");
+        JMenu crossfadeSubMenu = getCrossfadeMenu();
+        JMenu equalizerSubMenu = getEqualizerMenu();
+        JCheckBoxMenuItem spectrumItem = new JCheckBoxMenuItem("Show Spectrum", spectrumPanel.isVisible());
 
         // Build play recent menu
         updateRecentSongsMenu();
@@ -450,6 +468,7 @@ public class Window
         decreaseVolumeItem.addActionListener(new VolumeDecreaseListener());
         shuffleItem.addActionListener(new ShuffleListener());
         repeatItem.addActionListener(new RepeatListener());
+        spectrumItem.addActionListener(new SpectrumListener());
 
         menu.add(playItem);
         menu.add(nextItem);
@@ -462,6 +481,55 @@ public class Window
         menu.addSeparator();
         menu.add(shuffleItem);
         menu.add(repeatItem);
+        menu.add(crossfadeSubMenu);
+        menu.add(equalizerSubMenu);
+        menu.addSeparator();
+        menu.add(spectrumItem);
+        return menu;
+    }
+
+    /**
+     * Creates the crossfade length menu, only enabled with the
+     * pipeline engine which mixes consecutive songs
+     *
+     * @return the crossfade menu
+     */
+    private JMenu getCrossfadeMenu() {
+        JMenu menu = new JMenu("Crossfade");
+        ButtonGroup group = new ButtonGroup();
+        int selected = player.getCrossfadeMillis();
+        for(int seconds = 0; seconds <= PipelinePlayer.MAX_CROSSFADE_MILLIS / 1000; seconds += 2) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(seconds == 0 ? "Off" : seconds + " Seconds");
+            item.setSelected(seconds * 1000 == selected);
+            item.addActionListener(new CrossfadeListener(seconds * 1000));
+            group.add(item);
+            menu.add(item);
+        }
+        menu.setEnabled(player.getPipeline() != null);
+        return menu;
+    }
+
+    /**
+     * Creates the equalizer menu of presets, whose band gains go from
+     * 31 Hz to 16 kHz; the equalizer is flat unless the shiTunes.equalizer
+     * system property gives other gains
+     *
+     * @return the equalizer menu
+     */
+    private JMenu getEqualizerMenu() {
+        String[] names = {"Flat", "Bass Boost", "Treble Boost", "Vocal", "Loudness"};
+        String[] gains = {"", "6,5,4,2,0,0,0,0,0,0", "0,0,0,0,0,0,2,4,5,6",
+                "-2,-2,-1,1,3,3,2,1,0,-1", "5,4,2,0,-1,-1,0,2,4,5"};
+        String selected = System.getProperty(MusicPlayer.EQUALIZER_PROPERTY, "");
+        JMenu menu = new JMenu("Equalizer");
+        ButtonGroup group = new ButtonGroup();
+        for(int i = 0; i < names.length; i++) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(names[i]);
+            item.setSelected(gains[i].equals(selected.replace(" ", "")));
+            item.addActionListener(new EqualizerListener(gains[i]));
+            group.add(item);
+            menu.add(item);
+        }
         return menu;
     }
 
@@ -521,65 +589,23 @@ public class Window
      */
     private void createShowColumnsPopupMenu() {
         showColumnsPopupMenu = new JPopupMenu();
-        final JCheckBoxMenuItem showArtist = new JCheckBoxMenuItem("Artist");
-        final JCheckBoxMenuItem showAlbum = new JCheckBoxMenuItem("Album");
-        final JCheckBoxMenuItem showYear = new JCheckBoxMenuItem("Year");
-        final JCheckBoxMenuItem showGenre = new JCheckBoxMenuItem("Genre");
-        final JCheckBoxMenuItem showComment = new JCheckBoxMenuItem("Comment");
-
-        // Set checkbox to reflect columns' visibility state (default is unselected)
-        if (ShiTunes.db.getColumnVisible("Artist")) {showArtist.setSelected(true);}
-        if (ShiTunes.db.getColumnVisible("Album")) {showAlbum.setSelected(true);}
-        if (ShiTunes.db.getColumnVisible("Year")) {showYear.setSelected(true);}
-        if (ShiTunes.db.getColumnVisible("Genre")) {showGenre.setSelected(true);}
-        if (ShiTunes.db.getColumnVisible("Comment")) {showComment.setSelected(true);}
-
-        showColumnsPopupMenu.add(showArtist);
-        showColumnsPopupMenu.add(showAlbum);
-        showColumnsPopupMenu.add(showYear);
-        showColumnsPopupMenu.add(showGenre);
-        showColumnsPopupMenu.add(showComment);
-
-        ActionListener artistCheckboxListener = new ActionListener() {
-            public void actionPerformed(ActionEvent event) {
-                if (showArtist.isSelected()) { musicTable.show("Artist"); }
-                else {musicTable.hide("Artist");}
-            }
-        };
+        String[] columnNames = {"Artist", "Album", "Time", "Year", "Genre", "Comment",
+                "Bitrate", "Sample Rate", "Channels"};
 
-        ActionListener albumCheckboxListener = new ActionListener() {
-            public void actionPerformed(ActionEvent event) {
-                if (showAlbum.isSelected()) { musicTable.show("Album"); }
-                else { musicTable.hide("Album"); }
-            }
-        };
+        for(final String columnName : columnNames) {
+            final JCheckBoxMenuItem showColumn = new JCheckBoxMenuItem(columnName);
 
-        ActionListener yearCheckboxListener = new ActionListener() {
-            public void actionPerformed(ActionEvent event) {
-                if (showYear.isSelected()) { musicTable.show("Year"); }
-                else { musicTable.hide("Year"); }
-            }
-        };
-
-        ActionListener genreCheckboxListener = new ActionListener() {
-            public void actionPerformed(ActionEvent event) {
-                if (showGenre.isSelected()) { musicTable.show("Genre"); }
-                else { musicTable.hide("Genre"); }
-            }
-        };
-
-        ActionListener commentCheckboxListener = new ActionListener() {
-            public void actionPerformed(ActionEvent event) {
-                if (showComment.isSelected()) { musicTable.show("Comment"); }
-                else { musicTable.hide("Comment"); }
-            }
-        };
+            // Set checkbox to reflect column's visibility state (default is unselected)
+            if (ShiTunes.db.getColumnVisible(columnName)) {showColumn.setSelected(true);}
 
-        showArtist.addActionListener(artistCheckboxListener);
-        showAlbum.addActionListener(albumCheckboxListener);
-        showYear.addActionListener(yearCheckboxListener);
-        showGenre.addActionListener(genreCheckboxListener);
-        showComment.addActionListener(commentCheckboxListener);
+            showColumn.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent event) {
+                    if (showColumn.isSelected()) { musicTable.show(columnName); }
+                    else { musicTable.hide(columnName); }
+                }
+            });
+            showColumnsPopupMenu.add(showColumn);
+        }
     }
 
     /**
@@ -616,6 +642,59 @@ public class Window
 
     }
 
+    /* ****************** */
+    /* Status Bar Methods */
+    /* ****************** */
+
+    // Creates a JPanel showing the number and total length of the songs in the table
+    private JPanel getStatusPanel()
+    {
+        JPanel statusPanel = new JPanel(new FlowLayout(FlowLayout.CENTER));
+        statusLabel = new JLabel();
+        statusPanel.add(statusLabel);
+        statusPanel.setMaximumSize(new Dimension(Integer.MAX_VALUE, statusLabel.getPreferredSize().height + 10));
+
+        // the table gets a new model whenever its songs change
+        musicTable.getTable().addPropertyChangeListener("model", new java.beans.PropertyChangeListener() {
+            public void propertyChange(java.beans.PropertyChangeEvent event) {
+                updateStatus();
+            }
+        });
+        updateStatus();
+        return statusPanel;
+    }
+
+    // Shows the number and total length of the songs in the table
+    private void updateStatus()
+    {
+        long totalDuration = musicTable.getType() == MusicTable.LIBRARY ?
+                ShiTunes.db.getLibraryDuration() : ShiTunes.db.getPlaylistDuration(musicTable.getName());
+        int songCount = musicTable.getTable().getRowCount();
+        statusLabel.setText(songCount + (songCount == 1 ? " song, " : " songs, ") + Song.formatDuration(totalDuration));
+    }
+
+    /* **************** */
+    /* Spectrum Methods */
+    /* **************** */
+
+    // Creates the spectrum drawn from the PCM the player reports
+    private SpectrumPanel getSpectrumPanel()
+    {
+        spectrumPanel = new SpectrumPanel(windowFrame, spectrum);
+        spectrumPanel.setBorder(BorderFactory.createEmptyBorder(0, 10, 5, 10));
+        return spectrumPanel;
+    }
+
+    // Reads a number from the player's audio properties, -1 if absent
+    private static float getAudioProperty(Map properties, String key, String mp3Key)
+    {
+        Object value = properties.get(key);
+        if(value == null) {
+            value = properties.get(mp3Key);
+        }
+        return value instanceof Number ? ((Number) value).floatValue() : -1;
+    }
+
     /* ******************** */
     /* Progress Bar Methods */
     /* ******************** */
@@ -626,12 +705,15 @@ public class Window
         JPanel progressBarPanel = new JPanel();
         leftTimer = new JLabel ("00:00:00");
         rightTimer = new JLabel ("00:00:00");
-        progressBar = new JProgressBar(0, 100);
+        progressBar = new WaveformProgressBar(0, 100);
         progressBar.setValue(0);
         progressBar.setStringPainted(true);
         progressBar.setString("");
 
-        //timer is used for the timer. Similar to threads, it runs in the background: actions happen based on time
+        // the publisher updates the timers and progress bar from the player's progress
+        progressPublisher = new ProgressPublisher(windowFrame, progressBar, leftTimer, rightTimer);
+        progressBar.addMouseListener(new SeekListener());
+
         progressBarPanel.add(leftTimer);
         progressBarPanel.add(progressBar);
         progressBarPanel.add(rightTimer);
@@ -639,44 +721,54 @@ public class Window
         return progressBarPanel;
     }
 
-    //changes the jlabels timers for the progress bar
-    private void updateProgress()
+    //used when changing songs
+    private void clearProgressBar()
     {
-        //used to format timer number
-        NumberFormat format;
-        format = NumberFormat.getNumberInstance();
-        format.setMinimumIntegerDigits(2); //pad with 0 if necessary
-
-        //right timer
-        int rightHours = (int) (timeRemaining / (60000*60));
-        int rightMinutes = (int) (timeRemaining / 60000);
-        int rightSeconds = (int) ((timeRemaining % 60000) / 1000);
-
-        //left timer
-        int leftHours = (int) (timeElapsed / (60000*60));
-        int leftMinutes = (int) (timeElapsed / 60000);
-        int leftSeconds = (int) ((timeElapsed %60000)/1000);
-        //set the left and right timer labels with new time
-
-        //set the labels with format
-        rightTimer.setText(format.format(rightHours) +":" + format.format(rightMinutes) + ":" + format.format(rightSeconds));
-        leftTimer.setText(format.format(leftHours) +":" + format.format(leftMinutes) + ":" + format.format(leftSeconds));
-
-        if(duration > 0) {
-            // set progress bar value based on percentage of timeElapsed
-            progressBar.setValue((int) ( ( (float) timeElapsed / duration) * 100));
-        }
+        progressPublisher.clear();
     }
 
-    //used when changing songs
-    private void clearProgressBar()
+    // Draws the song's waveform on the progress bar, or has it computed first
+    private void showWaveform(int songId)
     {
-        timeRemaining = 0;
-        timeElapsed = 0;
-        updateProgress();
-        rightTimer.setText("00:00:00");
-        leftTimer.setText("00:00:00");
-        progressBar.setValue(0);
+        byte[] peaks = songId == -1 ? null : ShiTunes.db.getWaveform(songId);
+        progressBar.setWaveform(peaks);
+        waveformSongId = peaks == null ? songId : -1;
+        if(waveformSongId != -1 && ShiTunes.analyzer != null) {
+            ShiTunes.analyzer.prioritize(songId);
+        }
+    }
+
+    /**
+     * Draws the waveform of the loaded song once the analyzer has stored it,
+     * called on the EDT when waveforms are added
+     */
+    public void waveformsChanged() {
+        if(waveformSongId != -1) {
+            showWaveform(waveformSongId);
+        }
+    }
+
+    /**
+     * Seek Listener:
+     * <p>
+     * Moves the playing or paused song to the time clicked on the progress bar
+     */
+    private class SeekListener extends MouseAdapter {
+        public void mousePressed(MouseEvent e) {
+            boolean paused = playerState == BasicPlayerEvent.PAUSED;
+            if(duration <= 0 || !(paused || playerState == BasicPlayerEvent.PLAYING
+                    || playerState == BasicPlayerEvent.RESUMED)) {
+                return;
+            }
+            long millis = Math.max(0, (long) e.getX() * duration / progressBar.getWidth());
+            songCompleted = false;
+            if(player.seek(millis)) {
+                progressPublisher.publish(millis, duration);
+                if(paused) {
+                    player.pause();
+                }
+            }
+        }
     }
 
     /* ********************* */
@@ -749,57 +841,80 @@ public class Window
      * <ul>
      * <li>If this is the Library table:  add songs to table & database</li>
      * <li>If this is a Playlist table: add songs to table & playlist (& database if not already)</li>
+     * <li>If a row of a Playlist table is dragged within the table: move the song to the drop row</li>
      * </ul>
      */
     private class AddToTableDropTarget extends DropTarget {
         @Override
         public synchronized void drop(DropTargetDropEvent dtde) {
-            dtde.acceptDrop(DnDConstants.ACTION_COPY_OR_MOVE);
             Transferable t = dtde.getTransferable();
             java.util.List fileList;
+
+            if(!t.isDataFlavorSupported(DataFlavor.javaFileListFlavor)) {
+                if(!isOwnRow(t)) {
+                    // text or anything else dropped from another application
+                    dtde.rejectDrop();
+                    return;
+                }
+                // a row dragged within this playlist table
+                dtde.acceptDrop(DnDConstants.ACTION_MOVE);
+                JTable table = musicTable.getTable();
+                if(musicTable.getType() == MusicTable.PLAYLIST && table.getSelectedRowCount() == 1) {
+                    int fromRow = table.getSelectedRow();
+                    int toRow = table.rowAtPoint(dtde.getLocation());
+                    if(toRow == -1) {
+                        toRow = table.getRowCount() - 1;   // dropped below last row
+                    }
+                    musicTable.moveRow(fromRow, toRow);
+                    // keep the loaded song row pointing at the loaded song
+                    int loadedRow = player.getLoadedSongRow();
+                    if(loadedRow == fromRow) {
+                        player.setLoadedSongRow(toRow);
+                    } else if(fromRow < loadedRow && loadedRow <= toRow) {
+                        player.setLoadedSongRow(loadedRow - 1);
+                    } else if(toRow <= loadedRow && loadedRow < fromRow) {
+                        player.setLoadedSongRow(loadedRow + 1);
+                    }
+                }
+                dtde.dropComplete(true);
+                return;
+            }
+
+            dtde.acceptDrop(DnDConstants.ACTION_COPY_OR_MOVE);
             try {
                 fileList = (java.util.List) t.getTransferData(DataFlavor.javaFileListFlavor);
                 for(Object file : fileList) {
                     Song song = new Song(file.toString());
 
-                    if(musicTable.getType() == MusicTable.LIBRARY) {
-                        // If this is the main application window & the music table == library
-                        // Only add song to library table if it is not already present in db
-                        int id = ShiTunes.db.insertSong(song);
-                        if (id != -1) {
-                            // if song successfully added to database
-                            // add song to music library table
-                            musicTable.addSongToTable(id, song);
-                        }
-                    } else if(musicTable.getType() == MusicTable.PLAYLIST) {
-
-                        // If the music table == playlist
-                        // Try to add song to db (if already in db it won't be added)
-                        int id = ShiTunes.db.insertSong(song);
+                    // Queue the song to be added to the library (if already in db it won't be added),
+                    // all windows are refreshed once the insert commits
+                    ShiTunes.db.insertSong(song);
+                    FrameIndex.prefetch(song.getFilePath());
 
-                        // Add song to the playlist
+                    if(musicTable.getType() == MusicTable.PLAYLIST) {
+                        // Queue the song to be added to the playlist, behind its insert
                         ShiTunes.db.addSongToPlaylist(song.getFilePath(), selectedPlaylist);
-
-                        // Get song id if the song was already in library
-                        // (ie. id in previous assignment == -1)
-                        if(id == -1) {
-                            id = ShiTunes.db.getSongId(song.getFilePath());
-                        }
-
-                        // Add song to playlist table
-                        musicTable.addSongToTable(id, song);
-
-                        // Notify main application window table of change
-                        // if this is a separate playlist window
-                        if(windowType == Window.PLAYLIST) {
-                            ShiTunes.mainWindow.musicTable.updateTableModel("Library");
-                        }
                     }
                 }
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
+
+        /*
+         * Returns true if the given drop is a row dragged out of this window's table
+         */
+        private boolean isOwnRow(Transferable t) {
+            if(!t.isDataFlavorSupported(MusicTable.ROW_FLAVOR)) {
+                return false;
+            }
+            try {
+                return t.getTransferData(MusicTable.ROW_FLAVOR) == musicTable;
+            } catch (Exception e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
     }
 
     /* ************************ */
@@ -982,12 +1097,16 @@ public class Window
 
         public void actionPerformed(ActionEvent event) {
             int[] selectedRows = musicTable.getTable().getSelectedRows();
+            int[] songIds = new int[selectedRows.length];
 
             for(int i = 0; i < selectedRows.length; i++) {
-                String selectedSong = musicTable.getTable().getValueAt(
-                        selectedRows[i], MusicTable.COL_FILE_PATH).toString();
-                ShiTunes.db.addSongToPlaylist(selectedSong, playlist);
+                songIds[i] = Integer.parseInt(musicTable.getTable().getModel().getValueAt(
+                        selectedRows[i], MusicTable.COL_ID).toString());
             }
+
+            // Add all selected songs in a single transaction
+            ShiTunes.db.addSongsToPlaylist(playlist, songIds);
+
             // Expand playlist node (index 1)
             playlistPanelTree.expandRow(1);
         }
@@ -1247,6 +1366,55 @@ public class Window
         }
     }
 
+    /**
+     * Spectrum listener
+     *
+     * Shows or hides the spectrum, which is only computed while shown
+     *
+     */
+    private class SpectrumListener implements ActionListener {
+        public void actionPerformed(ActionEvent e) {
+            spectrumPanel.setVisible(((JCheckBoxMenuItem) e.getSource()).isSelected());
+            spectrumPanel.getParent().revalidate();
+        }
+    }
+
+    /**
+     * Crossfade listener
+     *
+     * Sets how long the end of each song overlaps the start of the next
+     *
+     */
+    private class CrossfadeListener implements ActionListener {
+        private final int millis;
+
+        CrossfadeListener(int millis) {
+            this.millis = millis;
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            player.setCrossfadeMillis(millis);
+        }
+    }
+
+    /**
+     * Equalizer listener
+     *
+     * Sets the band gains of the equalizer the songs are played through
+     *
+     */
+    private class EqualizerListener implements ActionListener {
+        private final String gains;
+
+        EqualizerListener(String gains) {
+            this.gains = gains;
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            player.setEqualizer(gains);
+        }
+    }
+
     /* ******************* */
     /* File Menu Listeners */
     /* ******************* */
@@ -1276,6 +1444,7 @@ public class Window
                     }
 
                     player.play(selectedSong.getFilePath());
+                    showWaveform(ShiTunes.db.getSongId(selectedSong.getFilePath()));
                 }
             }
     }
@@ -1301,25 +1470,15 @@ public class Window
             if (chooser.showDialog(windowFrame, "Add Song") == JFileChooser.APPROVE_OPTION) {
                 File selectedFile = chooser.getSelectedFile();
                 Song selectedSong = new Song(selectedFile.getPath());
-                int id = ShiTunes.db.insertSong(selectedSong);  // -1 if failure
-
-                if(musicTable.getType() == MusicTable.LIBRARY) {
-                    // If the music table == library
-                    // Only add song to library table if it is not already present in db
-                    if (id != -1) {
-                        // if song successfully added to database
-                        // add song to music library table
-                        musicTable.addSongToTable(id, selectedSong);
-                    }
-                } else if(musicTable.getType() == MusicTable.PLAYLIST){
-                    // If the music table == playlist
-                    // Add song to the playlist
+                // Queue the song to be added to the library (if already in db it won't be added),
+                // all windows are refreshed once the insert commits
+                ShiTunes.db.insertSong(selectedSong);
+                FrameIndex.prefetch(selectedSong.getFilePath());
+
+                if(musicTable.getType() == MusicTable.PLAYLIST){
+                    // Queue the song to be added to the playlist, behind its insert
                     ShiTunes.db.addSongToPlaylist(selectedSong.getFilePath(), selectedPlaylist);
-                    // Add song to playlist table
-                    musicTable.addSongToTable(id, selectedSong);
                 }
-
-                ShiTunes.updateAllWindows();
             }
         }
     }
@@ -1340,16 +1499,17 @@ public class Window
         public void actionPerformed(ActionEvent event) {
             int[] selectedRows = musicTable.getTable().getSelectedRows();
 
-            DefaultTableModel model = (DefaultTableModel) musicTable.getTable().getModel();
+            int[] selectedSongIds = new int[selectedRows.length];
 
             /*
-            * Cycle through all selected songs and delete
-            * one at a time
+            * Collect the ids of the selected songs. The rows are not
+            * removed one by one (each removal fires its own table event):
+            * the table is rebuilt once, by the refresh after the commit
             *
             */
             for(int i = 0; i < selectedRows.length; i++) {
                 int selectedSongRow = selectedRows[i];
-                int selectedSongId = Integer.parseInt(musicTable.getTable().getValueAt(
+                selectedSongIds[i] = Integer.parseInt(musicTable.getTable().getModel().getValueAt(
                         selectedSongRow, MusicTable.COL_ID).toString());
 
                 // Stop player if song being deleted is the current song on the player
@@ -1358,23 +1518,67 @@ public class Window
                     player.stop();
                     clearProgressBar();
                 }
-
-                model.removeRow(selectedSongRow);
-
-                if(musicTable.getType() == MusicTable.LIBRARY) {
-                    // Delete song from database by using filepath as an identifier
-                    ShiTunes.db.deleteSong(selectedSongId);
-                } else if(musicTable.getType() == MusicTable.PLAYLIST){
-                    ShiTunes.db.deleteSongFromPlaylist(selectedSongId, selectedPlaylist);
-                }
             }
+            musicTable.getTable().clearSelection();
+
+            if(musicTable.getType() == MusicTable.LIBRARY) {
+                // Flag all selected songs as deleted in a single transaction,
+                // all windows are refreshed once the delete commits
+                // and the rows are purged in the background
+                ShiTunes.db.deleteSongs(selectedSongIds);
+                deletedSongIds = selectedSongIds;
+                undoDeleteItem.setEnabled(true);
+
+                // Update recent songs menu (in case any recent songs were deleted)
+                updateRecentSongsMenu();
+            } else if(musicTable.getType() == MusicTable.PLAYLIST){
+                // Delete all selected songs from the playlist in a single transaction,
+                // other playlist windows are refreshed once the delete commits
+                ShiTunes.db.deleteSongsFromPlaylist(selectedPlaylist, selectedSongIds);
+            }
+        }
+    }
 
-            // Update all windows in the event that the song(s) being removed from the table
-            // is also present in another window/table
-            ShiTunes.updateAllWindows();
+    /**
+     * Undo Delete Listener:
+     * <p>
+     * Restores the songs removed by the last library delete,
+     * as long as they have not been purged from the database yet
+     *
+     */
+    private class UndoDeleteListener implements ActionListener {
+        public void actionPerformed(ActionEvent event) {
+            ShiTunes.db.restoreSongs(deletedSongIds).thenAccept(new Consumer<Integer>() {
+                public void accept(final Integer restored) {
+                    // Called on the database writer thread once the restore commits
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            if(restored == 0) {
+                                JOptionPane.showMessageDialog(windowFrame,
+                                        "The deleted songs have already been removed from the library.",
+                                        "Undo Delete", JOptionPane.INFORMATION_MESSAGE);
+                            }
+
+                            // Update recent songs menu (in case any recent songs were restored)
+                            updateRecentSongsMenu();
+                        }
+                    });
+                }
+            });
+            deletedSongIds = null;
+            undoDeleteItem.setEnabled(false);
+        }
+    }
 
-            // Update recent songs menu (in case any recent songs were deleted)
-            updateRecentSongsMenu();
+    /**
+     * Diagnostics item listener:
+     * <p>
+     * Opens the diagnostics window showing the shiTunes metrics
+     *
+     */
+    private class DiagnosticsListener implements ActionListener {
+        public void actionPerformed(ActionEvent event) {
+            DiagnosticsWindow.showWindow();
         }
     }
 
@@ -1411,7 +1615,13 @@ public class Window
      */
     public void opened(Object stream, Map properties)
     {
-        duration = Integer.parseInt(properties.get("duration").toString()) / 1000;
+        spectrum.setFormat(getAudioProperty(properties, "audio.samplerate.hz", "mp3.frequency.hz"),
+                (int) getAudioProperty(properties, "audio.channels", "mp3.channels"));
+
+        // streams reopened by a seek have no duration, keep the song's
+        if(stream instanceof File) {
+            duration = Integer.parseInt(properties.get("duration").toString()) / 1000;
+        }
     }
 
     /**
@@ -1428,9 +1638,12 @@ public class Window
      */
     public void progress(int bytesread, long microseconds, byte[] pcmdata, Map properties)
     {
-        timeElapsed = microseconds/1000;
-        timeRemaining = duration - timeElapsed;
-        updateProgress();
+        // only copied here, the spectrum is computed on the analyzer's own thread
+        spectrum.publish(pcmdata, pcmdata == null ? 0 : pcmdata.length);
+
+        long timeElapsed = player.getSeekOffsetMillis() + microseconds/1000;
+        long timeRemaining = duration - timeElapsed;
+        progressPublisher.publish(timeElapsed, duration);
 
         // if time remaining less than 1 second, set songCompleted flag to true
         if(timeRemaining < 1000) {
@@ -1453,14 +1666,31 @@ public class Window
             // if state is not GAIN (due to volume change)
             // update state code
             playerState = event.getCode();
+            player.stateChanged(playerState);
         } else {
             // do nothing, retain previous state
         }
 
+        if(ShiTunes.analyzer != null) {
+            // the loudness analysis slows down while a song plays
+            ShiTunes.analyzer.setPlaying(player, playerState == BasicPlayerEvent.PLAYING
+                    || playerState == BasicPlayerEvent.RESUMED);
+        }
+
+        if(event.getCode() == BasicPlayerEvent.EOM) {
+            // a song crossfaded into the next ends before its last second
+            songCompleted = true;
+        }
+
         if(playerState == BasicPlayerEvent.STOPPED && songCompleted) {
-            NextListener nextListener = new NextListener();
-            nextListener.actionPerformed(null);
             songCompleted = false;
+            // opening the next song reads files and the database and selects its row:
+            // not on the player's thread, which may still be playing the tail of this one
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    new NextListener().actionPerformed(null);
+                }
+            });
         }
     }
 
@@ -1490,6 +1720,24 @@ public class Window
     * Window related methods *
     * ********************** */
 
+    /**
+     * Returns this Window's music table
+     *
+     * @return the music table displayed in this window
+     */
+    public MusicTable getMusicTable() {
+        return musicTable;
+    }
+
+    /**
+     * Returns the name of the playlist selected in this window
+     *
+     * @return the selected playlist name, or "Library"
+     */
+    public String getSelectedPlaylist() {
+        return selectedPlaylist;
+    }
+
      /**
      * Window listener for Window.type == PLAYLIST
      *
@@ -1503,6 +1751,7 @@ public class Window
          public void windowClosed(WindowEvent e) {
              // Remove window from list of application windows
              ShiTunes.windows.remove(this);
+             player.closeLine();
          }
 
          @Override
@@ -1535,17 +1784,19 @@ public class Window
     private void playSong(int row) {
         // If shuffle mode on, switch to random row
         if (shuffleItem.isSelected()) {
-            Random r = new Random();
-            row = r.nextInt(musicTable.getTable().getRowCount());
+            row = nextShuffleRow >= 0 && nextShuffleRow < musicTable.getTable().getRowCount() ?
+                    nextShuffleRow : new Random().nextInt(musicTable.getTable().getRowCount());
         } else if(repeatItem.isSelected()) {
             row = player.getLoadedSongRow();
         }
 
         clearProgressBar();
-        int songId = Integer.parseInt(musicTable.getTable().getValueAt(row, MusicTable.COL_ID).toString());
+        int songId = Integer.parseInt(musicTable.getTable().getModel().getValueAt(row, MusicTable.COL_ID).toString());
         player.setLoadedSongRow(row);
         musicTable.getTable().setRowSelectionInterval(row, row);
-        player.play(ShiTunes.db.getSongFilePath(songId));
+        player.play(ShiTunes.db.getSongFilePath(songId), ShiTunes.db.getTrackGain(songId));
+        showWaveform(songId);
+        prefetchNextSong(row);
         ShiTunes.db.addRecentSong(songId);
         updateRecentSongsMenu();
 
@@ -1553,4 +1804,27 @@ public class Window
         GoToCurrentListener goToCurrentSong = new GoToCurrentListener();
         goToCurrentSong.actionPerformed(null);
     }
-}
\ No newline at end of file
+
+    /*
+     * Reads the song that plays after the given row into memory, so it
+     * starts and plays without waiting for slow or network storage
+     *
+     * @param row the row playing
+     */
+    private void prefetchNextSong(int row) {
+        int rowCount = musicTable.getTable().getRowCount();
+        int next;
+        if(shuffleItem.isSelected()) {
+            nextShuffleRow = new Random().nextInt(rowCount);
+            next = nextShuffleRow;
+        } else if(repeatItem.isSelected()) {
+            next = row;
+        } else {
+            next = row + 1;
+        }
+        if(next < rowCount) {
+            int songId = Integer.parseInt(musicTable.getTable().getModel().getValueAt(next, MusicTable.COL_ID).toString());
+            AudioSource.prefetch(ShiTunes.db.getSongFilePath(songId));
+        }
+    }
+}
@@ -0,0 +1,95 @@
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Suite of tests for the AudioSource class
+ *
+ */
+public class AudioSourceTests {
+
+    private static File file;
+    private static byte[] content;
+
+    @BeforeClass
+    public static void writeFile() throws IOException {
+        // several chunks and a part one, so the reader thread wraps around its buffers
+        content = new byte[AudioSource.READ_AHEAD + 3 * AudioSource.CHUNK_SIZE + 12345];
+        new Random(5).nextBytes(content);
+        file = File.createTempFile("shiTunes-source", ".mp3");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+    }
+
+    @AfterClass
+    public static void deleteFile() {
+        file.delete();
+        System.clearProperty(AudioSource.MODE_PROPERTY);
+    }
+
+    @Test
+    public void testModesReadTheFile() throws IOException {
+        for(String mode : new String[] {"readahead", "mmap", "file"}) {
+            System.setProperty(AudioSource.MODE_PROPERTY, mode);
+            assertArrayEquals(mode, content, readAll(AudioSource.open(file)));
+
+            int offset = AudioSource.CHUNK_SIZE + 7;
+            assertArrayEquals(mode, Arrays.copyOfRange(content, offset, content.length),
+                    readAll(AudioSource.open(file, offset)));
+        }
+    }
+
+    @Test
+    public void testCloseWhileReadingAhead() throws IOException {
+        System.setProperty(AudioSource.MODE_PROPERTY, "readahead");
+        InputStream in = AudioSource.open(file);
+        assertEquals(content[0] & 0xFF, in.read());
+        in.close();     // the reader thread stops, the file is released
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        assertTrue(!AudioSource.isCached(file.getPath()));
+        AudioSource.prefetch(file.getPath());
+        long deadline = System.currentTimeMillis() + 10000;
+        while(!AudioSource.isCached(file.getPath()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(AudioSource.isCached(file.getPath()));
+
+        long hits = Metrics.counter("source.cache.hits").get();
+        assertArrayEquals(content, readAll(AudioSource.open(file)));
+        assertEquals(hits + 1, Metrics.counter("source.cache.hits").get());
+
+        // a changed file is read again
+        assertTrue(file.setLastModified(file.lastModified() - 10000));
+        assertTrue(!AudioSource.isCached(file.getPath()));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,256 @@
+import javazoom.spi.mpeg.sampled.convert.MpegFormatConversionProvider;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Suite of tests for the DecodedMp3Stream class, comparing its PCM with
+ * mp3spi's bit for bit
+ * <p>
+ * The songs are MPEG-1 Layer I frames of random samples, some loud enough to
+ * clip, written here so the test needs no encoder, decoded by jl1.0.1 on
+ * both sides; Layer III songs of random spectra from Layer3Writer at each
+ * sample rate, decoded by Layer3Decoder; and the silent Layer III frames
+ * of the benchmark libraries.
+ *
+ */
+public class DecodedMp3StreamTests {
+
+    private static final int FRAMES = 200;
+
+    private static File dir;
+
+    @BeforeClass
+    public static void createDir() {
+        dir = new File(System.getProperty("java.io.tmpdir"), "shiTunes-decoder-" + System.nanoTime());
+        dir.mkdirs();
+    }
+
+    @AfterClass
+    public static void deleteDir() {
+        for(File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+        System.clearProperty(Mp3ConversionProvider.DECODER_PROPERTY);
+    }
+
+    @Test
+    public void testStereoIsBitExact() throws Exception {
+        File song = layerOne("stereo.mp3", 2, new Random(1));
+        assertSamePcm(song, false);
+        assertSamePcm(song, true);
+    }
+
+    @Test
+    public void testMonoIsBitExact() throws Exception {
+        File song = layerOne("mono.mp3", 1, new Random(2));
+        assertSamePcm(song, false);
+    }
+
+    @Test
+    public void testLayerThreeIsBitExact() throws Exception {
+        File song = new File(dir, "silent.mp3");
+        byte[] frame = new byte[417];
+        frame[0] = (byte) 0xFF;
+        frame[1] = (byte) 0xFB;
+        frame[2] = (byte) 0x90;
+        frame[3] = (byte) 0x64;
+        FileOutputStream out = new FileOutputStream(song);
+        for(int i = 0; i < FRAMES; i++) {
+            out.write(frame);
+        }
+        out.close();
+        byte[] pcm = assertSamePcm(song, false);
+        assertEquals(FRAMES * 1152 * 4, pcm.length);
+    }
+
+    @Test
+    public void testLayerThreeStereoIsBitExact() throws Exception {
+        File song = layerThree("stereo3.mp3", 2, 0, false, new Random(5));
+        assertNotSilent(assertSamePcm(song, false));
+        assertSamePcm(song, true);
+    }
+
+    @Test
+    public void testLayerThreeMonoIsBitExact() throws Exception {
+        assertNotSilent(assertSamePcm(layerThree("mono3.mp3", 1, 1, false, new Random(6)), false));
+    }
+
+    @Test
+    public void testLayerThreeWithCrcIsBitExact() throws Exception {
+        assertSamePcm(layerThree("crc48.mp3", 2, 1, true, new Random(7)), false);
+        assertSamePcm(layerThree("crc32.mp3", 2, 2, true, new Random(8)), false);
+        assertSamePcm(layerThree("mono32.mp3", 1, 2, true, new Random(9)), false);
+    }
+
+    @Test
+    public void testLayerThreeWithoutReservoirIsBitExact() throws Exception {
+        // from the second frame: the first frames' main data begins in frames that are not there
+        byte[] frames = new Layer3Writer(new Random(10), 2, 1, false).write(FRAMES);
+        File song = new File(dir, "cut.mp3");
+        FileOutputStream out = new FileOutputStream(song);
+        out.write(frames, 960, frames.length - 960);        // a 320 kbps, 48 kHz frame
+        out.close();
+        byte[] pcm = assertSamePcm(song, false);
+        assertTrue(pcm.length < (FRAMES - 1) * 1152 * 4);
+        assertNotSilent(pcm);
+    }
+
+    @Test
+    public void testProperties() throws Exception {
+        AudioInputStream decoded = decode(layerOne("properties.mp3", 2, new Random(3)), false,
+                new Mp3ConversionProvider());
+        byte[] buffer = new byte[384 * 4];      // a Layer I frame
+        assertEquals(buffer.length, decoded.read(buffer));
+        Map properties = ((DecodedMp3Stream) decoded).properties();
+        assertEquals(1L, properties.get("mp3.frame"));
+        assertEquals(384000, properties.get("mp3.frame.bitrate"));
+        assertEquals(8707L, properties.get("mp3.position.microseconds"));
+        decoded.close();
+    }
+
+    @Test
+    public void testDecoderProperty() throws Exception {
+        File song = layerOne("switch.mp3", 2, new Random(4));
+        System.setProperty(Mp3ConversionProvider.DECODER_PROPERTY, "jl");
+        assertTrue(!(decode(song) instanceof DecodedMp3Stream));
+        System.setProperty(Mp3ConversionProvider.DECODER_PROPERTY, "fast");
+        assertTrue(decode(song) instanceof DecodedMp3Stream);
+    }
+
+    /*
+     * Decodes the song with both providers and checks they agree
+     *
+     * @return the PCM
+     */
+    private static byte[] assertSamePcm(File song, boolean bigEndian) throws Exception {
+        byte[] expected = readAll(decode(song, bigEndian, new MpegFormatConversionProvider()));
+        byte[] actual = readAll(decode(song, bigEndian, new Mp3ConversionProvider()));
+        assertTrue(expected.length > 0);
+        assertArrayEquals(song.getName(), expected, actual);
+        return actual;
+    }
+
+    private static void assertNotSilent(byte[] pcm) {
+        int loud = 0;
+        for(int i = 0; i < pcm.length; i += 2) {
+            if(Math.abs((short) (pcm[i] & 0xFF | pcm[i + 1] << 8)) > 1000) {
+                loud++;
+            }
+        }
+        assertTrue(loud > pcm.length / 2 / 20);     // 1 sample in 20
+    }
+
+    private static AudioInputStream decode(File song) throws Exception {
+        AudioInputStream encoded = AudioSystem.getAudioInputStream(song);
+        AudioFormat base = encoded.getFormat();
+        return Mp3ConversionProvider.decode(new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, base.getSampleRate(),
+                16, base.getChannels(), base.getChannels() * 2, base.getSampleRate(), false), encoded);
+    }
+
+    private static AudioInputStream decode(File song, boolean bigEndian,
+                                           javax.sound.sampled.spi.FormatConversionProvider provider) throws Exception {
+        AudioInputStream encoded = AudioSystem.getAudioInputStream(song);
+        AudioFormat base = encoded.getFormat();
+        return provider.getAudioInputStream(new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, base.getSampleRate(),
+                16, base.getChannels(), base.getChannels() * 2, base.getSampleRate(), bigEndian), encoded);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[5000];     // not a whole number of frames
+        int count;
+        while((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    /*
+     * Writes Layer III frames of random spectra
+     */
+    private static File layerThree(String name, int channels, int frequency, boolean crc, Random random)
+            throws IOException {
+        File song = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(song);
+        out.write(new Layer3Writer(random, channels, frequency, crc).write(FRAMES));
+        out.close();
+        return song;
+    }
+
+    /*
+     * Writes 384 kbps, 44.1 kHz Layer I frames: random allocations and
+     * scale factors in the lower 8 subbands, random samples
+     */
+    private static File layerOne(String name, int channels, Random random) throws IOException {
+        File song = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(song);
+        for(int i = 0; i < FRAMES; i++) {
+            BitWriter frame = new BitWriter(416);
+            frame.write(0xFFFF, 16);                // sync, MPEG-1, Layer I, no CRC
+            frame.write(0xC0, 8);                   // 384 kbps, 44.1 kHz, no padding
+            frame.write(channels == 1 ? 0xC0 : 0x00, 8);
+            int[][] allocation = new int[32][channels];
+            for(int subband = 0; subband < 32; subband++) {
+                for(int channel = 0; channel < channels; channel++) {
+                    allocation[subband][channel] = subband < 8 ? random.nextInt(8) : 0;
+                    frame.write(allocation[subband][channel], 4);
+                }
+            }
+            for(int subband = 0; subband < 32; subband++) {
+                for(int channel = 0; channel < channels; channel++) {
+                    if(allocation[subband][channel] != 0) {
+                        frame.write(random.nextInt(40), 6);     // the loudest clip
+                    }
+                }
+            }
+            for(int sample = 0; sample < 12; sample++) {
+                for(int subband = 0; subband < 32; subband++) {
+                    for(int channel = 0; channel < channels; channel++) {
+                        int bits = allocation[subband][channel];
+                        if(bits != 0) {
+                            frame.write(random.nextInt(1 << (bits + 1)), bits + 1);
+                        }
+                    }
+                }
+            }
+            out.write(frame.bytes);
+        }
+        out.close();
+        return song;
+    }
+
+    private static class BitWriter {
+        final byte[] bytes;
+        int bit;
+
+        BitWriter(int length) {
+            bytes = new byte[length];
+        }
+
+        void write(int value, int count) {
+            for(int i = count - 1; i >= 0; i--, bit++) {
+                if(((value >> i) & 1) != 0) {
+                    bytes[bit >> 3] |= 0x80 >> (bit & 7);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+import org.junit.Test;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Suite of tests for the DspChain class and its stages
+ *
+ */
+public class DspChainTests {
+
+    private static final float SAMPLE_RATE = 44100;
+    private static final int FRAMES = 882;      // 20 ms, as played by the PipelinePlayer
+    private static final int BYTES = FRAMES * 4;
+
+    @Test
+    public void testGain() {
+        GainStage gain = new GainStage();
+        DspChain chain = chain(gain);
+        byte[] pcm = new byte[BYTES];
+
+        gain.setGain(0.5f);
+        chain.process(sine(pcm, 1000, 0.5, 0), 0, BYTES);       // ramps down to the new gain
+        chain.process(sine(pcm, 1000, 0.5, FRAMES), 0, BYTES);
+
+        assertEquals(0.25, peak(pcm), 0.01);
+        // half volume is -3 dB, as with BasicPlayer
+        gain.setVolume(0.5);
+        assertEquals(-3.0, 20 * Math.log10(gain.getGain()), 0.05);
+    }
+
+    @Test
+    public void testEqualizer() {
+        EqualizerStage equalizer = new EqualizerStage();
+        DspChain chain = chain(equalizer);
+        byte[] pcm = new byte[BYTES];
+
+        // a flat equalizer leaves the samples unchanged
+        sine(pcm, 1000, 0.25, 0);
+        byte[] original = pcm.clone();
+        chain.process(pcm, 0, BYTES);
+        assertTrue(Arrays.equals(original, pcm));
+
+        // +6 dB at 1 kHz doubles a 1 kHz tone and leaves a 62 Hz tone about the same
+        equalizer.setBandGain(5, 6);
+        for(int i = 0; i < 10; i++) {
+            chain.process(sine(pcm, 1000, 0.25, i * FRAMES), 0, BYTES);
+        }
+        assertEquals(0.5, peak(pcm), 0.02);
+        for(int i = 0; i < 20; i++) {
+            chain.process(sine(pcm, 62, 0.25, i * FRAMES), 0, BYTES);
+        }
+        assertEquals(0.25, peak(pcm), 0.02);
+    }
+
+    @Test
+    public void testLimiter() {
+        GainStage gain = new GainStage();
+        DspChain chain = chain(gain, new LimiterStage());
+        byte[] pcm = new byte[BYTES];
+
+        // a full scale tone at +6 dB is held below the threshold instead of clipping
+        gain.setGain(2.0f);
+        for(int i = 0; i < 10; i++) {
+            chain.process(sine(pcm, 440, 1.0, i * FRAMES), 0, BYTES);
+            assertTrue(peak(pcm) <= LimiterStage.DEFAULT_THRESHOLD + 0.001);
+        }
+        assertTrue(peak(pcm) > LimiterStage.DEFAULT_THRESHOLD - 0.05);
+    }
+
+    @Test
+    public void testNoGarbage() {
+        EqualizerStage equalizer = new EqualizerStage();
+        GainStage gain = new GainStage();
+        DspChain chain = DspChain.create(equalizer, gain, new LimiterStage());
+        chain.configure(SAMPLE_RATE, 2, BYTES);
+        for(int band = 0; band < equalizer.getBandCount(); band++) {
+            equalizer.setBandGain(band, band % 2 == 0 ? 6 : -6);
+        }
+        gain.setVolume(0.8);
+        byte[] pcm = sine(new byte[BYTES], 440, 0.9, 0);
+
+        // warm up, so the measured loop runs compiled code
+        for(int i = 0; i < 20000; i++) {
+            chain.process(pcm, 0, BYTES);
+        }
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for(int i = 0; i < 10000; i++) {
+            if(i % 1000 == 0) {
+                gain.setVolume(i % 2000 == 0 ? 0.7 : 0.8);  // volume and equalizer changes don't allocate either
+                equalizer.setBandGain(3, i % 2000 == 0 ? 3 : -3);
+            }
+            chain.process(pcm, 0, BYTES);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertEquals("bytes allocated", 0, allocated);
+    }
+
+    @Test
+    public void testBasicPlayerVolume() throws Exception {
+        // the volume is set in software, without a line or its gain control
+        BufferedBasicPlayer player = new BufferedBasicPlayer();
+        player.setGain(0.5);
+        AudioInputStream decoded = new AudioInputStream(new ByteArrayInputStream(sine(new byte[BYTES], 1000, 0.5, 0)),
+                new AudioFormat(SAMPLE_RATE, 16, 2, true, false), FRAMES);
+        byte[] pcm = new byte[BYTES];
+        AudioInputStream played = player.process(decoded);
+        int count = 0;
+        for(int read; count < BYTES && (read = played.read(pcm, count, BYTES - count)) > 0; ) {
+            count += read;
+        }
+        assertEquals(BYTES, count);
+        assertEquals(0.5 * Math.pow(10, -3.0 / 20), peak(pcm), 0.01);
+    }
+
+    private static DspChain chain(DspStage... stages) {
+        DspChain chain = new DspChain();
+        for(DspStage stage : stages) {
+            chain.add(stage);
+        }
+        chain.configure(SAMPLE_RATE, 2, BYTES);
+        return chain;
+    }
+
+    /*
+     * Fills the buffer with a stereo sine, continuing from the given frame
+     */
+    private static byte[] sine(byte[] pcm, double frequency, double amplitude, int firstFrame) {
+        for(int frame = 0; frame < FRAMES; frame++) {
+            double t = (firstFrame + frame) / SAMPLE_RATE;
+            int value = (int) Math.round(Math.sin(2 * Math.PI * frequency * t) * amplitude * 32767);
+            for(int channel = 0; channel < 2; channel++) {
+                int b = frame * 4 + channel * 2;
+                pcm[b] = (byte) value;
+                pcm[b + 1] = (byte) (value >> 8);
+            }
+        }
+        return pcm;
+    }
+
+    private static double peak(byte[] pcm) {
+        int peak = 0;
+        for(int b = 0; b < pcm.length; b += 2) {
+            peak = Math.max(peak, Math.abs((short) ((pcm[b + 1] << 8) | (pcm[b] & 0xFF))));
+        }
+        return peak / 32768.0;
+    }
+}
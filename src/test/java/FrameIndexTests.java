@@ -0,0 +1,181 @@
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Suite of tests for the FrameIndex class
+ * <p>
+ * The songs are generated VBR files: an ID3v2 tag, MPEG 1 layer III
+ * frames of random bitrates with silent bodies, a little junk and an
+ * ID3v1 tag, so the offset of every frame is known exactly
+ *
+ */
+public class FrameIndexTests {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int SAMPLES_PER_FRAME = 1152;
+    private static final int[] BITRATES = {32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320};
+
+    private static File dir;
+    private static File song;
+    private static long[] offsets;
+
+    static {
+        // keep the index cache out of the working directory
+        dir = new File(System.getProperty("java.io.tmpdir"), "shiTunes-frameindex-" + System.nanoTime());
+        System.setProperty("shiTunes.cacheDir", new File(dir, "cache").getPath());
+    }
+
+    @BeforeClass
+    public static void writeSong() throws IOException {
+        dir.mkdirs();
+        song = new File(dir, "vbr.mp3");
+        offsets = writeVbrSong(song, 5000, 1, 14, 42);
+    }
+
+    @AfterClass
+    public static void deleteSongs() {
+        deleteRecursively(dir);
+    }
+
+    @Test
+    public void testFrameCountAndDuration() {
+        FrameIndex index = FrameIndex.get(song.getPath());
+
+        assertNotNull(index);
+        assertEquals(offsets.length, index.getFrameCount());
+        assertEquals(SAMPLE_RATE, index.getSampleRate());
+        assertEquals((long) offsets.length * SAMPLES_PER_FRAME * 1000 / SAMPLE_RATE, index.getDurationMillis());
+    }
+
+    @Test
+    public void testSeekAccuracy() throws IOException {
+        FrameIndex index = FrameIndex.get(song.getPath());
+
+        for(int frame = 0; frame < offsets.length; frame++) {
+            // every frame is found at its exact byte offset, from its exact start time
+            assertEquals(frame, index.getFrame(index.getTimeMillis(frame) + 1));
+            assertEquals(offsets[frame], index.getOffset(frame));
+        }
+
+        InputStream in = index.openAt(offsets.length / 2);
+        assertEquals(0xFF, in.read());
+        assertEquals(0xFB, in.read());
+        in.close();
+    }
+
+    @Test
+    public void testDiskCache() throws IOException {
+        FrameIndex built = FrameIndex.get(song.getPath());
+        FrameIndex.clearMemoryCache();
+        FrameIndex cached = FrameIndex.get(song.getPath());
+
+        assertEquals(built.getFrameCount(), cached.getFrameCount());
+        assertEquals(offsets[offsets.length - 1], cached.getOffset(offsets.length - 1));
+
+        // a changed song is indexed again
+        File changed = new File(dir, "changed.mp3");
+        writeVbrSong(changed, 100, 1, 14, 1);
+        assertEquals(100, FrameIndex.get(changed.getPath()).getFrameCount());
+        long[] changedOffsets = writeVbrSong(changed, 200, 1, 14, 2);
+        changed.setLastModified(changed.lastModified() + 2000);
+        FrameIndex.clearMemoryCache();
+        FrameIndex index = FrameIndex.get(changed.getPath());
+        assertEquals(200, index.getFrameCount());
+        assertEquals(changedOffsets[199], index.getOffset(199));
+    }
+
+    @Test
+    public void testSeekLatency() throws IOException {
+        // a 30 minute VBR song
+        File longSong = new File(dir, "long.mp3");
+        long[] longOffsets = writeVbrSong(longSong, 68900, 1, 5, 7);
+
+        long start = System.nanoTime();
+        FrameIndex index = FrameIndex.get(longSong.getPath());
+        long buildMillis = (System.nanoTime() - start) / 1000000;
+
+        Random random = new Random(3);
+        int seeks = 500;
+        start = System.nanoTime();
+        for(int i = 0; i < seeks; i++) {
+            int frame = index.getFrame(random.nextInt((int) index.getDurationMillis()));
+            assertEquals(longOffsets[frame], index.getOffset(frame));
+        }
+        long seekMicros = (System.nanoTime() - start) / 1000 / seeks;
+        System.out.println("FrameIndex: indexed " + longOffsets.length + " frames in " + buildMillis
+                + " ms, mean seek " + seekMicros + " us");
+
+        // a seek reads at most 16 frame headers whatever the position in the song
+        assertTrue("mean seek took " + seekMicros + " us", seekMicros < 5000);
+    }
+
+    /*
+     * Writes a VBR song of the given number of frames
+     *
+     * @return the byte offset of every frame
+     */
+    private static long[] writeVbrSong(File file, int frames, int minBitrateIndex, int maxBitrateIndex,
+                                       long seed) throws IOException {
+        Random random = new Random(seed);
+        long[] frameOffsets = new long[frames];
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            // ID3v2.3 tag of 1000 bytes (size is syncsafe)
+            int tagSize = 990;
+            out.write(new byte[] {'I', 'D', '3', 3, 0, 0, 0, 0, (byte) (tagSize >> 7), (byte) (tagSize & 0x7F)});
+            out.write(new byte[tagSize]);
+            long offset = 10 + tagSize;
+
+            for(int i = 0; i < frames; i++) {
+                if(i == frames / 3) {
+                    // junk between frames is skipped
+                    out.write(new byte[] {1, 2, 3});
+                    offset += 3;
+                }
+                int bitrateIndex = minBitrateIndex + random.nextInt(maxBitrateIndex - minBitrateIndex + 1);
+                int padding = random.nextInt(2);
+                int length = 144 * BITRATES[bitrateIndex - 1] * 1000 / SAMPLE_RATE + padding;
+                byte[] frame = new byte[length];
+                frame[0] = (byte) 0xFF;
+                frame[1] = (byte) 0xFB;
+                frame[2] = (byte) ((bitrateIndex << 4) | (padding << 1));
+                frame[3] = (byte) 0x64;
+                out.write(frame);
+                frameOffsets[i] = offset;
+                offset += length;
+            }
+
+            byte[] id3v1 = new byte[128];
+            id3v1[0] = 'T';
+            id3v1[1] = 'A';
+            id3v1[2] = 'G';
+            out.write(id3v1);
+        } finally {
+            out.close();
+        }
+        return frameOffsets;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,425 @@
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes MPEG-1 Layer III songs of random spectra, so the decoder tests
+ * and DecoderBenchmark need neither an encoder nor MP3 files
+ * <p>
+ * Every granule has random block types (long, start, short, mixed and
+ * stop), scale factors, gains, region boundaries and Huffman tables, big
+ * values up to the escape range and a count1 region. The frames borrow
+ * from the bit reservoir, and joint stereo frames switch mid/side and
+ * intensity stereo on and off. The Huffman codes are read from the code
+ * trees of jl1.0.1, the decoder the output is compared with.
+ */
+public class Layer3Writer {
+
+    private static final int[] FREQUENCIES = {44100, 48000, 32000};
+    private static final int[][] LONG_BANDS = {
+            {0, 4, 8, 12, 16, 20, 24, 30, 36, 44, 52, 62, 74, 90, 110, 134, 162, 196, 238, 288, 342, 418, 576},
+            {0, 4, 8, 12, 16, 20, 24, 30, 36, 42, 50, 60, 72, 88, 106, 128, 156, 190, 230, 276, 330, 384, 576},
+            {0, 4, 8, 12, 16, 20, 24, 30, 36, 44, 54, 66, 82, 102, 126, 156, 194, 240, 296, 364, 448, 550, 576}};
+    private static final int[][] SLEN = {
+            {0, 0, 0, 0, 3, 1, 1, 1, 2, 2, 2, 3, 3, 3, 4, 4},
+            {0, 1, 2, 3, 0, 1, 2, 3, 1, 2, 3, 1, 2, 3, 2, 3}};
+    private static final int[] LINBITS = {
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 2, 3, 4, 6, 8, 10, 13, 4, 5, 6, 7, 8, 9, 11, 13};
+    private static final int[] MAX_VALUE = {
+            0, 1, 2, 2, 0, 3, 3, 5, 5, 5, 7, 7, 7, 15, 0, 15};
+
+    private static final String[][][] CODES = codes();     // [table][x][y], [32/33][0][vwxy]
+
+    private final Random random;
+    private final int channels;
+    private final int frequency;
+    private final boolean crc;
+    private final int frameLength;
+    private final int slots;        // main data bytes of a frame
+
+    /**
+     * Creates a writer of 320 kbps frames
+     *
+     * @param random the source of the spectra
+     * @param channels 1 or 2
+     * @param frequency the MPEG-1 sample frequency index: 0 (44.1 kHz), 1 (48 kHz) or 2 (32 kHz)
+     * @param crc whether the frames are protected by a CRC
+     */
+    public Layer3Writer(Random random, int channels, int frequency, boolean crc) {
+        this.random = random;
+        this.channels = channels;
+        this.frequency = frequency;
+        this.crc = crc;
+        frameLength = 144 * 320000 / FREQUENCIES[frequency];
+        slots = frameLength - 4 - (crc ? 2 : 0) - (channels == 1 ? 17 : 32);
+    }
+
+    /**
+     * Returns the given number of frames
+     *
+     * @param frames the number of frames
+     * @return the song
+     */
+    public byte[] write(int frames) {
+        byte[] reservoir = new byte[frames * slots];     // the main data of all frames, end to end
+        Frame[] written = new Frame[frames];
+        int end = 0;        // the end of the last frame's main data in the reservoir
+        for(int i = 0; i < frames; i++) {
+            int start = i * slots;
+            int borrowed = random.nextInt(4) == 0 ? 0 : Math.min(511, start - end);
+            // room for the scale factors, then a share of the rest for each granule's spectrum
+            int budget = ((borrowed + slots) * 8 - 4 * 144) / (2 * channels);
+            Frame frame = new Frame(random.nextInt(8) == 0 ? 0 : budget * (30 + random.nextInt(71)) / 100);
+            frame.mainDataBegin = Math.min(borrowed, frame.main.bit / 8);
+            System.arraycopy(frame.main.bytes, 0, reservoir, start - frame.mainDataBegin, frame.main.length());
+            end = start - frame.mainDataBegin + frame.main.length();
+            written[i] = frame;
+        }
+        byte[] song = new byte[frames * frameLength];
+        for(int i = 0; i < frames; i++) {
+            BitWriter header = written[i].header();
+            System.arraycopy(header.bytes, 0, song, i * frameLength, header.length());
+            System.arraycopy(reservoir, i * slots, song, i * frameLength + header.length(), slots);
+        }
+        return song;
+    }
+
+    /*
+     * A frame: its side information and main data
+     */
+    private class Frame {
+        final int mode;
+        final int modeExtension;
+        final int[][] scfsi = new int[channels][4];
+        final Granule[][] granules = new Granule[2][channels];
+        final BitWriter main = new BitWriter(4096);
+        int mainDataBegin;
+
+        /*
+         * Creates a frame of at most the given number of bits of spectrum
+         * in each granule
+         */
+        Frame(int budget) {
+            mode = channels == 1 ? 3 : random.nextInt(3);      // stereo, joint stereo or dual channel
+            modeExtension = mode == 1 ? random.nextInt(4) : 0;
+            for(int channel = 0; channel < channels; channel++) {
+                for(int group = 0; group < 4; group++) {
+                    scfsi[channel][group] = random.nextInt(2);
+                }
+            }
+            for(int granule = 0; granule < 2; granule++) {
+                for(int channel = 0; channel < channels; channel++) {
+                    Granule g;
+                    int pairs = 288;
+                    do {
+                        g = new Granule(granule == 1 ? scfsi[channel] : null, budget == 0 ? 0 : pairs);
+                        pairs /= 2;
+                    } while(g.spectrumBits > budget || g.bits.bit > 4095);
+                    granules[granule][channel] = g;
+                    main.write(g.bits);
+                }
+            }
+        }
+
+        BitWriter header() {
+            BitWriter header = new BitWriter(40);
+            header.write(crc ? 0xFFFA : 0xFFFB, 16);
+            header.write(0xE0 | frequency << 2, 8);        // 320 kbps, no padding
+            header.write(mode << 6 | modeExtension << 4 | 0x4, 8);     // original
+            BitWriter side = new BitWriter(32);
+            side.write(mainDataBegin, 9);
+            side.write(0, channels == 1 ? 5 : 3);
+            for(int channel = 0; channel < channels; channel++) {
+                for(int group = 0; group < 4; group++) {
+                    side.write(scfsi[channel][group], 1);
+                }
+            }
+            for(int granule = 0; granule < 2; granule++) {
+                for(int channel = 0; channel < channels; channel++) {
+                    granules[granule][channel].writeSideInfo(side);
+                }
+            }
+            if(crc) {
+                int checksum = crc16(0xFFFF, header.bytes[2] << 8 | header.bytes[3] & 0xFF, 16);
+                for(int i = 0; i < side.length(); i++) {
+                    checksum = crc16(checksum, side.bytes[i], 8);
+                }
+                header.write(checksum, 16);
+            }
+            header.write(side);
+            return header;
+        }
+    }
+
+    /*
+     * A granule of a channel: its side information, and its scale
+     * factors and Huffman coded spectrum
+     */
+    private class Granule {
+        final int globalGain = 110 + random.nextInt(40);
+        final int scalefacCompress = random.nextInt(16);
+        final int blockType = random.nextInt(3) == 0 ? random.nextInt(4) : 0;
+        final int mixed = blockType == 2 ? random.nextInt(2) : 0;
+        final int[] tableSelect = new int[3];
+        final int[] subblockGain = {random.nextInt(3), random.nextInt(3), random.nextInt(3)};
+        final int region0 = random.nextInt(16);
+        final int region1 = random.nextInt(8);
+        final int preflag = random.nextInt(2);
+        final int scalefacScale = random.nextInt(2);
+        final int count1Table = random.nextInt(2);
+        final BitWriter bits = new BitWriter(1024);
+        int bigValues;
+        int spectrumBits;
+
+        /*
+         * Creates a granule of at most the given number of pairs of
+         * big values and as many values in the count1 region
+         *
+         * @param scfsi the channel's scale factor selection, null in the first granule
+         */
+        Granule(int[] scfsi, int pairs) {
+            writeScaleFactors(scfsi);
+            int start = bits.bit;
+            int[] values = new int[576];
+            bigValues = random.nextInt(pairs + 1);
+            int count1 = random.nextInt(Math.min(pairs, (576 - 2 * bigValues) / 4) + 1);
+            int loudest = new int[] {1, 2, 4, 8, 15, 30, 100, 1000, 8206}[random.nextInt(9)];
+            for(int i = 0; i < 2 * bigValues; i++) {
+                int magnitude = random.nextInt(3) == 0 ? 0 : random.nextInt(1 + loudest * (600 - i) / 600);
+                values[i] = random.nextBoolean() ? -magnitude : magnitude;
+            }
+            for(int i = 2 * bigValues; i < 2 * bigValues + 4 * count1; i++) {
+                values[i] = random.nextInt(3) - 1;
+            }
+            // the regions, each coded with a table its values fit
+            int region1Start;
+            int region2Start;
+            if(blockType != 0) {
+                region1Start = 36;
+                region2Start = 576;
+            } else {
+                region1Start = LONG_BANDS[frequency][region0 + 1];
+                region2Start = LONG_BANDS[frequency][Math.min(region0 + region1 + 2, 22)];
+            }
+            int[] starts = {0, region1Start, region2Start, 576};
+            for(int region = 0; region < 3; region++) {
+                int loudestInRegion = 0;
+                for(int i = starts[region]; i < Math.min(starts[region + 1], 2 * bigValues); i++) {
+                    loudestInRegion = Math.max(loudestInRegion, Math.abs(values[i]));
+                }
+                tableSelect[region] = table(loudestInRegion);
+            }
+            for(int i = 0; i < 2 * bigValues; i += 2) {
+                int region = i < region1Start ? 0 : i < region2Start ? 1 : 2;
+                writePair(tableSelect[region], values[i], values[i + 1]);
+            }
+            for(int i = 2 * bigValues; i < 2 * bigValues + 4 * count1; i += 4) {
+                writeQuad(values[i], values[i + 1], values[i + 2], values[i + 3]);
+            }
+            spectrumBits = bits.bit - start;
+        }
+
+        private void writeScaleFactors(int[] scfsi) {
+            int slen1 = SLEN[0][scalefacCompress];
+            int slen2 = SLEN[1][scalefacCompress];
+            if(blockType == 2) {
+                // mixed: 8 long bands and short bands 3 to 5, else short bands 0 to 5
+                int first = mixed != 0 ? 8 + 3 * 3 : 6 * 3;
+                for(int i = 0; i < first; i++) {
+                    bits.write(random.nextInt(1 << slen1), slen1);
+                }
+                for(int i = 0; i < 6 * 3; i++) {
+                    bits.write(random.nextInt(1 << slen2), slen2);
+                }
+            } else {
+                int[] bands = {6, 5, 5, 5};
+                for(int group = 0; group < 4; group++) {
+                    if(scfsi == null || scfsi[group] == 0) {
+                        int slen = group < 2 ? slen1 : slen2;
+                        for(int i = 0; i < bands[group]; i++) {
+                            bits.write(random.nextInt(1 << slen), slen);
+                        }
+                    }
+                }
+            }
+        }
+
+        /*
+         * Returns a random Huffman table the values up to the given one fit
+         */
+        private int table(int loudest) {
+            List<Integer> tables = new ArrayList<Integer>();
+            for(int table = 0; table < 32; table++) {
+                int max = table < 16 ? MAX_VALUE[table] : 15 + (1 << LINBITS[table]) - 1;
+                if(loudest <= max && (table != 0 || loudest == 0) && table != 4 && table != 14) {
+                    tables.add(table);
+                }
+            }
+            return tables.get(random.nextInt(tables.size()));
+        }
+
+        private void writePair(int table, int x, int y) {
+            if(table == 0) {
+                return;
+            }
+            int linbits = LINBITS[table];
+            int codeX = Math.min(Math.abs(x), 15);
+            int codeY = Math.min(Math.abs(y), 15);
+            bits.write(CODES[table][codeX][codeY]);
+            if(linbits != 0 && codeX == 15) {
+                bits.write(Math.abs(x) - 15, linbits);
+            }
+            if(x != 0) {
+                bits.write(x < 0 ? 1 : 0, 1);
+            }
+            if(linbits != 0 && codeY == 15) {
+                bits.write(Math.abs(y) - 15, linbits);
+            }
+            if(y != 0) {
+                bits.write(y < 0 ? 1 : 0, 1);
+            }
+        }
+
+        private void writeQuad(int v, int w, int x, int y) {
+            int quad = (v != 0 ? 8 : 0) | (w != 0 ? 4 : 0) | (x != 0 ? 2 : 0) | (y != 0 ? 1 : 0);
+            bits.write(CODES[32 + count1Table][0][quad]);
+            for(int value : new int[] {v, w, x, y}) {
+                if(value != 0) {
+                    bits.write(value < 0 ? 1 : 0, 1);
+                }
+            }
+        }
+
+        void writeSideInfo(BitWriter side) {
+            side.write(bits.bit, 12);
+            side.write(bigValues, 9);
+            side.write(globalGain, 8);
+            side.write(scalefacCompress, 4);
+            side.write(blockType != 0 ? 1 : 0, 1);
+            if(blockType != 0) {
+                side.write(blockType, 2);
+                side.write(mixed, 1);
+                side.write(tableSelect[0], 5);
+                side.write(tableSelect[1], 5);
+                for(int window = 0; window < 3; window++) {
+                    side.write(subblockGain[window], 3);
+                }
+            } else {
+                for(int region = 0; region < 3; region++) {
+                    side.write(tableSelect[region], 5);
+                }
+                side.write(region0, 4);
+                side.write(region1, 3);
+            }
+            side.write(preflag, 1);
+            side.write(scalefacScale, 1);
+            side.write(count1Table, 1);
+        }
+    }
+
+    /*
+     * The CRC-16 of MPEG audio, as jl1.0.1's Crc16 computes it
+     */
+    private static int crc16(int crc, int bits, int count) {
+        for(int mask = 1 << (count - 1); mask != 0; mask >>>= 1) {
+            boolean carry = (crc & 0x8000) != 0;
+            crc = (crc << 1) & 0xFFFF;
+            if(carry ^ ((bits & mask) != 0)) {
+                crc ^= 0x8005;
+            }
+        }
+        return crc;
+    }
+
+    /*
+     * Returns the codes of jl1.0.1's Huffman tables, read from its code
+     * trees: a leaf holds x << 4 | y, a node the offsets of its two
+     * children, skipping nodes whose offset is 250 or more
+     */
+    private static String[][][] codes() {
+        try {
+            Class<?> table = Class.forName("javazoom.jl.decoder.huffcodetab");
+            Method init = table.getDeclaredMethod("inithuff");
+            init.setAccessible(true);
+            init.invoke(null);
+            Field tables = table.getDeclaredField("ht");
+            Field tree = table.getDeclaredField("val");
+            Field length = table.getDeclaredField("treelen");
+            tables.setAccessible(true);
+            tree.setAccessible(true);
+            length.setAccessible(true);
+            Object[] ht = (Object[]) tables.get(null);
+            String[][][] codes = new String[ht.length][16][16];
+            for(int i = 0; i < ht.length; i++) {
+                if(length.getInt(ht[i]) > 0) {
+                    walk((int[][]) tree.get(ht[i]), 0, "", codes[i]);
+                }
+            }
+            return codes;
+        } catch(Exception e) {
+            throw new IllegalStateException("Cannot read jl1.0.1's Huffman tables", e);
+        }
+    }
+
+    private static void walk(int[][] tree, int node, String code, String[][] codes) {
+        if(tree[node][0] == 0) {
+            codes[tree[node][1] >>> 4][tree[node][1] & 0xF] = code;
+            return;
+        }
+        for(int bit = 0; bit < 2; bit++) {
+            int child = node;
+            while(tree[child][bit] >= 250) {
+                child += tree[child][bit];
+            }
+            walk(tree, child + tree[child][bit], code + bit, codes);
+        }
+    }
+
+    /*
+     * Bits written most significant first
+     */
+    private static class BitWriter {
+        byte[] bytes;
+        int bit;
+
+        BitWriter(int length) {
+            bytes = new byte[length];
+        }
+
+        void write(int value, int count) {
+            for(int i = count - 1; i >= 0; i--) {
+                writeBit((value >> i) & 1);
+            }
+        }
+
+        void write(String code) {
+            for(int i = 0; i < code.length(); i++) {
+                writeBit(code.charAt(i) - '0');
+            }
+        }
+
+        void write(BitWriter other) {
+            for(int i = 0; i < other.bit; i++) {
+                writeBit((other.bytes[i >> 3] >> (7 - (i & 7))) & 1);
+            }
+        }
+
+        private void writeBit(int value) {
+            if(bit >> 3 == bytes.length) {
+                byte[] grown = new byte[bytes.length * 2];
+                System.arraycopy(bytes, 0, grown, 0, bytes.length);
+                bytes = grown;
+            }
+            if(value != 0) {
+                bytes[bit >> 3] |= 0x80 >> (bit & 7);
+            }
+            bit++;
+        }
+
+        int length() {
+            return (bit + 7) >> 3;
+        }
+    }
+}
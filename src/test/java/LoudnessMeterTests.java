@@ -0,0 +1,72 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Suite of tests for the LoudnessMeter class
+ * <p>
+ * The expected values are those of the EBU Tech 3341 test signals:
+ * a 1 kHz stereo sine at -23 dBFS measures -23 LUFS
+ *
+ */
+public class LoudnessMeterTests {
+
+    @Test
+    public void testSineAtEachSampleRate() {
+        for(float sampleRate : new float[] {44100, 48000}) {
+            LoudnessMeter meter = new LoudnessMeter(sampleRate, 2);
+            feed(meter, sampleRate, 1000, -23, 20);
+
+            assertEquals(-23.0, meter.getIntegratedLoudness(), 0.1);
+            assertEquals(Math.pow(10, -23.0 / 20), meter.getPeak(), 0.001);
+        }
+    }
+
+    @Test
+    public void testGating() {
+        // silence and a passage 30 dB quieter are gated out, the loudness is that of the loud part
+        LoudnessMeter meter = new LoudnessMeter(48000, 2);
+        feed(meter, 48000, 1000, -23, 10);
+        feed(meter, 48000, 1000, -53, 10);
+        feed(meter, 48000, 1000, Double.NEGATIVE_INFINITY, 10);
+
+        assertEquals(-23.0, meter.getIntegratedLoudness(), 0.1);
+
+        // a silent song has no loudness, and no gain is applied to it
+        LoudnessMeter silent = new LoudnessMeter(48000, 2);
+        feed(silent, 48000, 1000, Double.NEGATIVE_INFINITY, 5);
+        assertTrue(Double.isNaN(silent.getIntegratedLoudness()));
+        assertEquals(0.0, LoudnessMeter.trackGainDb(silent.getIntegratedLoudness(), 0), 0.0);
+    }
+
+    @Test
+    public void testTrackGain() {
+        // brought to -18 LUFS
+        assertEquals(5.0, LoudnessMeter.trackGainDb(-23.0, 0.1), 0.001);
+        assertEquals(-4.0, LoudnessMeter.trackGainDb(-14.0, 1.0), 0.001);
+        // but no louder than the peak allows
+        assertEquals(-20 * Math.log10(0.9), LoudnessMeter.trackGainDb(-30.0, 0.9), 0.001);
+    }
+
+    /*
+     * Feeds the meter a stereo sine in 20 ms buffers
+     */
+    private static void feed(LoudnessMeter meter, float sampleRate, double frequency,
+                             double levelDb, int seconds) {
+        double amplitude = Math.pow(10, levelDb / 20) * 32768;
+        int frames = (int) (sampleRate / 50);
+        byte[] pcm = new byte[frames * 4];
+        for(int buffer = 0; buffer < seconds * 50; buffer++) {
+            for(int frame = 0; frame < frames; frame++) {
+                double t = (buffer * frames + frame) / sampleRate;
+                int value = (int) Math.round(Math.sin(2 * Math.PI * frequency * t) * amplitude);
+                for(int b = frame * 4; b < frame * 4 + 4; b += 2) {
+                    pcm[b] = (byte) value;
+                    pcm[b + 1] = (byte) (value >> 8);
+                }
+            }
+            meter.process(pcm, 0, pcm.length);
+        }
+    }
+}
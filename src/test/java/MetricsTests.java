@@ -0,0 +1,50 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Suite of tests for the Metrics class
+ *
+ */
+public class MetricsTests {
+
+    @Test
+    public void testHistogramPercentiles() {
+        Metrics.Histogram histogram = Metrics.histogram("test.percentiles", false);
+        histogram.reset();
+        for(long value = 1; value <= 100000; value++) {
+            histogram.record(value);
+        }
+
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100000, histogram.getMax());
+        assertEquals(50000, histogram.getMean());
+        // percentiles are accurate to about 3% of their value
+        assertEquals(50000, histogram.percentile(0.5), 50000 * 0.04);
+        assertEquals(99000, histogram.percentile(0.99), 99000 * 0.04);
+        assertEquals(100000, histogram.percentile(1.0));
+    }
+
+    @Test
+    public void testHistogramReset() {
+        Metrics.Histogram histogram = Metrics.histogram("test.reset");
+        histogram.record(1000000);
+        Metrics.resetHistograms();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.percentile(0.99));
+    }
+
+    @Test
+    public void testRegistry() {
+        Metrics.Counter counter = Metrics.counter("test.counter");
+        counter.increment();
+        counter.add(2);
+
+        assertSame(counter, Metrics.counter("test.counter"));
+        assertEquals(3, counter.get());
+        assertTrue(Metrics.getMetrics().contains(counter));
+    }
+}
@@ -0,0 +1,78 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Suite of tests for the PcmRingBuffer class
+ *
+ */
+public class PcmRingBufferTests {
+
+    @Test
+    public void testCapacity() {
+        assertEquals(1024, new PcmRingBuffer(1000).getCapacity());
+        assertEquals(1024, new PcmRingBuffer(1024).getCapacity());
+    }
+
+    @Test
+    public void testWrapAround() {
+        PcmRingBuffer ring = new PcmRingBuffer(8);
+        byte[] bytes = {1, 2, 3, 4, 5, 6};
+        byte[] read = new byte[8];
+
+        assertEquals(6, ring.write(bytes, 0, 6));
+        assertEquals(2, ring.write(bytes, 0, 6));      // only two bytes free
+        assertEquals(0, ring.write(bytes, 0, 6));
+        assertEquals(5, ring.read(read, 0, 5));
+        assertEquals(5, ring.write(bytes, 0, 5));      // wraps around the end of the array
+        assertEquals(8, ring.read(read, 0, 8));
+        assertEquals(6, read[0]);
+        assertEquals(1, read[1]);
+        assertEquals(2, read[2]);
+        assertEquals(5, read[7]);
+        assertEquals(0, ring.read(read, 0, 8));
+    }
+
+    @Test
+    public void testProducerConsumer() throws InterruptedException {
+        final PcmRingBuffer ring = new PcmRingBuffer(4096);
+        final int total = 16 * 1024 * 1024;
+
+        // the producer writes a counting sequence in chunks of varying size
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                byte[] chunk = new byte[1500];
+                int next = 0;
+                while(next < total) {
+                    int length = Math.min(total - next, 1 + next % chunk.length);
+                    for(int i = 0; i < length; i++) {
+                        chunk[i] = (byte) (next + i);
+                    }
+                    int offset = 0;
+                    while(offset < length) {
+                        offset += ring.write(chunk, offset, length - offset);
+                    }
+                    next += length;
+                }
+            }
+        });
+        producer.start();
+
+        byte[] chunk = new byte[999];
+        int received = 0;
+        int errors = 0;
+        while(received < total) {
+            int count = ring.read(chunk, 0, chunk.length);
+            for(int i = 0; i < count; i++) {
+                if(chunk[i] != (byte) (received + i)) {
+                    errors++;
+                }
+            }
+            received += count;
+        }
+        producer.join();
+
+        assertEquals(0, errors);
+        assertEquals(0, ring.available());
+    }
+}
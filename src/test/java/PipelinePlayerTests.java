@@ -0,0 +1,286 @@
+import javazoom.jlgui.basicplayer.BasicController;
+import javazoom.jlgui.basicplayer.BasicPlayerEvent;
+import javazoom.jlgui.basicplayer.BasicPlayerException;
+import javazoom.jlgui.basicplayer.BasicPlayerListener;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Suite of tests for the PipelinePlayer class
+ * <p>
+ * The songs are silent CBR files played to a NullSourceDataLine,
+ * so the tests need no audio device
+ *
+ */
+public class PipelinePlayerTests {
+
+    private static final int FRAMES = 200;
+
+    private static File dir;
+    private static File song44;
+    private static File otherSong44;
+    private static File song48;
+
+    @BeforeClass
+    public static void writeSongs() throws IOException {
+        dir = new File(System.getProperty("java.io.tmpdir"), "shiTunes-pipeline-" + System.nanoTime());
+        dir.mkdirs();
+        song44 = writeSilentSong(new File(dir, "a.mp3"), 0, FRAMES);
+        otherSong44 = writeSilentSong(new File(dir, "b.mp3"), 0, FRAMES);
+        song48 = writeSilentSong(new File(dir, "c.mp3"), 1, FRAMES);
+    }
+
+    @AfterClass
+    public static void deleteSongs() {
+        song44.delete();
+        otherSong44.delete();
+        song48.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testPlaysToEnd() throws Exception {
+        PipelinePlayer player = new PipelinePlayer(500, 100, Thread.NORM_PRIORITY, Thread.MAX_PRIORITY, true, true);
+        Listener listener = new Listener();
+        player.addBasicPlayerListener(listener);
+
+        player.open(song44);
+        player.play();
+
+        assertTrue(listener.stopped.await(10, TimeUnit.SECONDS));
+        assertTrue(listener.endOfMedia);
+        // every decoded sample reached the line, the decoder may drop a frame or two at the start
+        long songMicros = FRAMES * 1152 * 1000000L / 44100;
+        assertTrue(listener.lastMicros > songMicros - 100000 && listener.lastMicros <= songMicros);
+    }
+
+    @Test
+    public void testLineReuse() throws Exception {
+        PipelinePlayer player = new PipelinePlayer(500, 100, Thread.NORM_PRIORITY, Thread.MAX_PRIORITY, true, true);
+        Metrics.Counter opens = Metrics.counter("pipeline.line.opens");
+
+        long before = opens.get();
+        play(player, song44);
+        play(player, otherSong44);
+        assertEquals(1, opens.get() - before);   // same format, same line
+
+        play(player, song48);
+        assertEquals(2, opens.get() - before);   // another sample rate needs another line
+
+        player.closeLine();
+        play(player, song48);
+        assertEquals(3, opens.get() - before);
+    }
+
+    @Test
+    public void testCrossfade() throws Exception {
+        PipelinePlayer player = new PipelinePlayer(500, 100, Thread.NORM_PRIORITY, Thread.MAX_PRIORITY, true, true);
+        FrameCounter counter = new FrameCounter();
+        player.getDspChain().add(counter);
+        // the listeners play and stop the songs on their own thread: the line
+        // has to take its time, as a sound card does, for the fade to be heard
+        player.getDspChain().add(new RealTime());
+        Metrics.Counter crossfades = Metrics.counter("pipeline.crossfades");
+        long songFrames = FRAMES * 1152L;
+
+        // without a crossfade the second song follows the first, every frame is played
+        long before = crossfades.get();
+        long firstEnd = playTwo(player, counter);
+        assertEquals(0, crossfades.get() - before);
+        assertEquals(2 * songFrames, counter.frames, 2 * 1152);
+        assertEquals(songFrames * 1000000L / 44100, firstEnd, 100000);
+
+        // with a 1 s crossfade each song is reported ended 1 s early, the first
+        // overlaps the second for 1 s and the second's tail is cut by stop()
+        player.setCrossfadeMillis(1000);
+        before = crossfades.get();
+        firstEnd = playTwo(player, counter);
+        assertEquals(1, crossfades.get() - before);
+        assertEquals(2 * songFrames - 2 * 44100, counter.frames, 2 * 1152);
+        assertEquals(songFrames * 1000000L / 44100 - 1000000, firstEnd, 100000);
+    }
+
+    @Test
+    public void testEqualPowerMix() {
+        byte[] incoming = new byte[4];
+        byte[] outgoing = new byte[4];
+
+        // halfway through the fade both songs are at -3 dB
+        pcm(incoming, 10000);
+        pcm(outgoing, 10000);
+        CrossfadeMixer.mix(incoming, outgoing, 4, 2, 500, 1000);
+        assertEquals(2 * 10000 * Math.sqrt(0.5), sample(incoming), 20);
+
+        // at the start only the outgoing song is heard, after the fade only the incoming one
+        pcm(incoming, 10000);
+        pcm(outgoing, -5000);
+        CrossfadeMixer.mix(incoming, outgoing, 4, 2, 0, 1000);
+        assertEquals(-5000, sample(incoming));
+        pcm(incoming, 10000);
+        CrossfadeMixer.mix(incoming, outgoing, 4, 2, 1000, 1000);
+        assertEquals(10000, sample(incoming));
+    }
+
+    /*
+     * Plays song44 then otherSong44, the second opened by the listener
+     * told the first has ended, as Window does, and stopped when it ends
+     *
+     * @return the progress of the first song when it was reported ended, in microseconds
+     */
+    private static long playTwo(final PipelinePlayer player, FrameCounter counter) throws Exception {
+        final Listener second = new Listener() {
+            public void stateUpdated(BasicPlayerEvent event) {
+                if(event.getCode() == BasicPlayerEvent.STOPPED) {
+                    try {
+                        player.stop();      // cuts its tail
+                    } catch (BasicPlayerException e) {
+                        e.printStackTrace();
+                    }
+                }
+                super.stateUpdated(event);
+            }
+        };
+        Listener first = new Listener() {
+            public void stateUpdated(BasicPlayerEvent event) {
+                super.stateUpdated(event);
+                if(event.getCode() == BasicPlayerEvent.STOPPED) {
+                    player.removeBasicPlayerListener(this);
+                    player.addBasicPlayerListener(second);
+                    try {
+                        player.open(otherSong44);
+                        player.play();
+                    } catch (BasicPlayerException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        };
+        player.addBasicPlayerListener(first);
+        counter.frames = 0;
+        player.open(song44);
+        player.play();
+        assertTrue(second.stopped.await(30, TimeUnit.SECONDS));
+        player.removeBasicPlayerListener(second);
+        assertTrue(first.endOfMedia && second.endOfMedia);
+        return first.lastMicros;
+    }
+
+    /*
+     * Plays the song to the end
+     */
+    private static void play(PipelinePlayer player, File song) throws Exception {
+        Listener listener = new Listener();
+        player.addBasicPlayerListener(listener);
+        player.open(song);
+        player.play();
+        assertTrue(listener.stopped.await(10, TimeUnit.SECONDS));
+        player.removeBasicPlayerListener(listener);
+    }
+
+    /*
+     * Writes a silent MPEG 1 layer III song at 128 kbps
+     *
+     * @param sampleRateIndex 0 for 44100 Hz, 1 for 48000 Hz
+     */
+    private static File writeSilentSong(File file, int sampleRateIndex, int frames) throws IOException {
+        int sampleRate = sampleRateIndex == 0 ? 44100 : 48000;
+        byte[] frame = new byte[144 * 128000 / sampleRate];
+        frame[0] = (byte) 0xFF;
+        frame[1] = (byte) 0xFB;
+        frame[2] = (byte) (0x90 | (sampleRateIndex << 2));
+        frame[3] = (byte) 0x64;
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            for(int i = 0; i < frames; i++) {
+                out.write(frame);
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void pcm(byte[] stereoFrame, int value) {
+        for(int b = 0; b < 4; b += 2) {
+            stereoFrame[b] = (byte) value;
+            stereoFrame[b + 1] = (byte) (value >> 8);
+        }
+    }
+
+    private static int sample(byte[] stereoFrame) {
+        return (short) ((stereoFrame[1] << 8) | (stereoFrame[0] & 0xFF));
+    }
+
+    /*
+     * Counts the frames written to the line
+     */
+    private static class FrameCounter implements DspStage {
+        volatile long frames;
+
+        public void configure(float sampleRate, int channels) {
+        }
+
+        public void process(float[] samples, int frames, int channels) {
+            this.frames += frames;
+        }
+    }
+
+    /*
+     * Holds the output thread back to the pace the audio would play at
+     */
+    private static class RealTime implements DspStage {
+        private float sampleRate;
+        private long due;
+
+        public void configure(float sampleRate, int channels) {
+            this.sampleRate = sampleRate;
+        }
+
+        public void process(float[] samples, int frames, int channels) {
+            long now = System.nanoTime();
+            due = Math.max(due, now) + (long) (frames * 1000000000L / sampleRate);
+            long ahead = due - now;
+            if(ahead > 50000000L) {     // as much as a line buffer holds
+                LockSupport.parkNanos(ahead - 50000000L);
+            }
+        }
+    }
+
+    private static class Listener implements BasicPlayerListener {
+        final CountDownLatch stopped = new CountDownLatch(1);
+        volatile boolean endOfMedia;
+        volatile long lastMicros;
+
+        public void opened(Object stream, Map properties) {
+        }
+
+        public void progress(int bytesread, long microseconds, byte[] pcmdata, Map properties) {
+            lastMicros = microseconds;
+        }
+
+        public void stateUpdated(BasicPlayerEvent event) {
+            if(event.getCode() == BasicPlayerEvent.EOM) {
+                endOfMedia = true;
+            } else if(event.getCode() == BasicPlayerEvent.STOPPED) {
+                stopped.countDown();
+            }
+        }
+
+        public void setController(BasicController controller) {
+        }
+    }
+}
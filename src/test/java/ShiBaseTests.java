@@ -21,8 +21,8 @@ public class ShiBaseTests {
     }
 
     @Test
-    public void testB_InsertSong() {
-        assertEquals(true, db.insertSong(song));
+    public void testB_InsertSong() throws Exception {
+        assertEquals(true, db.insertSong(song).get() != -1);
     }
 
     @Test
@@ -37,13 +37,13 @@ public class ShiBaseTests {
     }
 
     @Test
-    public void testE_AddPlaylist() {
-        assertEquals(true, db.addPlaylist(playlist));
+    public void testE_AddPlaylist() throws Exception {
+        assertEquals(true, db.addPlaylist(playlist).get());
     }
 
     @Test
-    public void testF_AddSongToPlaylist() {
-        assertEquals(true, db.addSongToPlaylist(song.getFilePath(), playlist));
+    public void testF_AddSongToPlaylist() throws Exception {
+        assertEquals(true, db.addSongToPlaylist(song.getFilePath(), playlist).get());
     }
 
     @Test
@@ -53,13 +53,71 @@ public class ShiBaseTests {
     }
 
     @Test
-    public void testH_DeleteSong() {
-        assertEquals(true, db.deleteSong(db.getSongId(song.getFilePath())));
+    public void testGa_BulkPlaylistMutations() throws Exception {
+        int playlistId = db.getPlaylistId(playlist);
+        int[] songIds = {db.getSongId(song.getFilePath())};
+
+        assertEquals(true, db.deleteSongsFromPlaylist(playlistId, songIds).get());
+        assertEquals(0, db.getPlaylistSongs(playlist).length);
+        assertEquals(true, db.addSongsToPlaylist(playlistId, songIds).get());
+        assertEquals(1, db.getPlaylistSongs(playlist).length);
+    }
+
+    @Test
+    public void testGb_WriteQueue() {
+        boolean visible = db.getColumnVisible("Genre");
+
+        // a queued write is visible to reads before it commits
+        db.setColumnVisible("Genre", !visible);
+        assertEquals(!visible, db.getColumnVisible("Genre"));
+        db.setColumnVisible("Genre", visible);
+        db.flush();
+        assertEquals(visible, db.getColumnVisible("Genre"));
+        assertEquals(0, db.getWriter().getQueueDepth());
+        assertEquals(true, db.getWriter().getCommitCount() > 0);
+    }
+
+    @Test
+    public void testGc_PlaylistDuration() {
+        assertEquals(song.getDuration(), db.getPlaylistDuration(playlist));
+        assertEquals(true, db.getLibraryDuration() >= song.getDuration());
+    }
+
+    @Test
+    public void testGd_MoveSongInPlaylist() throws Exception {
+        Song other = new Song("/tmp/shiTunes-other.mp3", "Other", "Artist", "Album", "2015", "Rock", "");
+        String songId = String.valueOf(db.getSongId(song.getFilePath()));
+        String otherId = String.valueOf(db.insertSong(other).get());
+        // the song is in the playlist twice, then the other song
+        assertEquals(true, db.addSongToPlaylist(song.getFilePath(), playlist).get());
+        assertEquals(true, db.addSongToPlaylist(other.getFilePath(), playlist).get());
+
+        // only the copy at the row moved moves
+        assertEquals(true, db.moveSongInPlaylist(playlist, Integer.parseInt(otherId), 2, 1).get());
+        assertPlaylistOrder(songId, otherId, songId);
+        assertEquals(true, db.moveSongInPlaylist(playlist, Integer.parseInt(songId), 0, 2).get());
+        assertPlaylistOrder(otherId, songId, songId);
+        // not the song at that row
+        assertEquals(false, db.moveSongInPlaylist(playlist, Integer.parseInt(songId), 0, 1).get());
+        assertPlaylistOrder(otherId, songId, songId);
+    }
+
+    private void assertPlaylistOrder(String... songIds) {
+        Object[][] playlistSongs = db.getPlaylistSongs(playlist);
+        assertEquals(songIds.length, playlistSongs.length);
+        for(int i = 0; i < songIds.length; i++) {
+            assertEquals(songIds[i], playlistSongs[i][MusicTable.COL_ID].toString());
+        }
+    }
+
+    @Test
+    public void testH_DeleteSong() throws Exception {
+        assertEquals(true, db.deleteSong(db.getSongId(song.getFilePath())).get());
     }
 
     @Test
-    public void testI_DeletePlaylist() {
-        assertEquals(true, db.deletePlaylist(playlist));
+    public void testI_DeletePlaylist() throws Exception {
+        assertEquals(true, db.deletePlaylist(playlist).get());
     }
 
     @Test
@@ -0,0 +1,107 @@
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Suite of tests for the ShiBaseWriter class, checking that failing
+ * writes and callbacks never stop the writer thread, nor leave ShiBase
+ * showing a write that was rolled back
+ *
+ */
+public class ShiBaseWriterTests {
+
+    @Test
+    public void testFailingCallbacks() throws Exception {
+        Connection conn = DriverManager.getConnection("jdbc:derby:memory:writerTests;create=true");
+        ShiBaseWriter writer = new ShiBaseWriter(conn, new ShiBaseListener() {
+            public void tableChanged(String tableName) {
+                throw new IllegalStateException("listener failed");
+            }
+        });
+
+        Future<Integer> failingDone = writer.submit(new ShiBaseWriter.Write<Integer>("SONG") {
+            Integer execute(Connection conn) {
+                return 1;
+            }
+
+            @Override
+            void done(boolean committed) {
+                throw new IllegalStateException("done failed");
+            }
+        });
+        assertEquals(1, (int) failingDone.get(10, TimeUnit.SECONDS));
+
+        Future<Integer> failingWrite = writer.submit(new ShiBaseWriter.Write<Integer>(null) {
+            Integer execute(Connection conn) {
+                throw new AssertionError("write failed");
+            }
+        });
+        try {
+            failingWrite.get(10, TimeUnit.SECONDS);
+            fail("the write should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AssertionError);
+        }
+
+        // the writer still commits, flushes and closes
+        Future<Integer> next = writer.submit(new ShiBaseWriter.Write<Integer>("SONG") {
+            Integer execute(Connection conn) {
+                return 2;
+            }
+        });
+        assertEquals(2, (int) next.get(10, TimeUnit.SECONDS));
+        writer.flush();
+        writer.close();
+    }
+
+    @Test
+    public void testErrorClearsPendingWrite() throws Exception {
+        File dir = Files.createTempDirectory("shiTunes-writer").toFile();
+        ShiBase db = new ShiBase(new File(dir, "db").getPath());
+        try {
+            String filePath = new File(dir, "song.mp3").getPath();
+            Future<Integer> insert = db.insertSong(new Song(filePath, "Title", "Artist", "Album", "2015", "Rock", "") {
+                @Override
+                public String getTitle() {
+                    throw new AssertionError("insert failed");
+                }
+            });
+            try {
+                insert.get(10, TimeUnit.SECONDS);
+                fail("the insert should have failed");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof AssertionError);
+            }
+            assertFalse(db.songExists(filePath));
+
+            // the same song inserts fine afterwards
+            assertTrue(db.insertSong(new Song(filePath, "Title", "Artist", "Album", "2015", "Rock", ""))
+                    .get(10, TimeUnit.SECONDS) > 0);
+            assertTrue(db.songExists(filePath));
+        } finally {
+            db.close();
+            delete(dir);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,171 @@
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Suite of tests for the ShiHttpApi class, requesting the API of a
+ * daemon serving a library of three songs
+ *
+ */
+public class ShiHttpApiTests {
+
+    private static File dir;
+    private static ShiBase db;
+    private static ShiTunesDaemon daemon;
+    private static ShiHttpApi api;
+
+    @BeforeClass
+    public static void startApi() throws Exception {
+        dir = Files.createTempDirectory("shiTunes-http").toFile();
+        db = new ShiBase(new File(dir, "db").getPath());
+        int[] songIds = new int[3];
+        String[] titles = {"Charlie \"C\"", "Alpha", "Bravo"};
+        for(int i = 0; i < titles.length; i++) {
+            songIds[i] = db.insertSong(new Song("/music/" + i + ".mp3", titles[i], "Artist", "Album",
+                    "2015", "Rock", "")).get();
+        }
+        db.addPlaylist("Road Trip").get();
+        db.addSongsToPlaylist(db.getPlaylistId("Road Trip"), new int[] {songIds[0], songIds[2]}).get();
+        daemon = new ShiTunesDaemon(db, null, new File(dir, "shiTunes.sock").toPath());
+        api = new ShiHttpApi(db, daemon, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        api.start();
+    }
+
+    @AfterClass
+    public static void stopApi() {
+        api.stop();
+        daemon.close();
+        db.close();
+        delete(dir);
+    }
+
+    @Test
+    public void testSongPages() throws IOException {
+        HttpURLConnection connection = open("GET", "/api/songs?limit=2");
+        assertEquals(200, connection.getResponseCode());
+        String page = read(connection.getInputStream());
+        assertTrue(page.startsWith("{\"offset\":0,\"limit\":2,\"songs\":[{\"songId\":2,\"filePath\":\"/music/1.mp3\","
+                + "\"title\":\"Alpha\""));
+        assertTrue(page.contains("\"title\":\"Bravo\""));
+        assertTrue(page.endsWith("],\"next\":\"/api/songs?offset=2&limit=2\"}"));
+
+        page = read(open("GET", "/api/songs?offset=2&limit=2").getInputStream());
+        assertTrue(page.contains("\"title\":\"Charlie \\\"C\\\"\""));
+        assertTrue(page.endsWith("],\"next\":null}"));
+
+        assertEquals(400, open("GET", "/api/songs?limit=0").getResponseCode());
+        assertEquals(405, open("POST", "/api/songs").getResponseCode());
+    }
+
+    @Test
+    public void testPlaylists() throws IOException {
+        assertEquals("{\"playlists\":[\"Road Trip\"]}", read(open("GET", "/api/playlists").getInputStream()));
+        String page = read(open("GET", "/api/playlists/Road%20Trip/songs").getInputStream());
+        assertTrue(page.indexOf("Charlie") < page.indexOf("Bravo"));    // in playlist order
+        assertTrue(page.endsWith("],\"next\":null}"));
+        assertEquals(404, open("GET", "/api/playlists/Nothing/songs").getResponseCode());
+    }
+
+    @Test
+    public void testETag() throws Exception {
+        HttpURLConnection connection = open("GET", "/api/songs");
+        read(connection.getInputStream());
+        String etag = connection.getHeaderField("ETag");
+
+        connection = open("GET", "/api/songs");
+        connection.setRequestProperty("If-None-Match", etag);
+        assertEquals(304, connection.getResponseCode());
+
+        int songId = db.insertSong(new Song("/music/3.mp3", "Delta", "Artist", "Album", "2015", "Rock", "")).get();
+        db.flush();
+        connection = open("GET", "/api/songs");
+        connection.setRequestProperty("If-None-Match", etag);
+        assertEquals(200, connection.getResponseCode());
+        assertFalse(etag.equals(connection.getHeaderField("ETag")));
+        read(connection.getInputStream());
+        db.deleteSongs(new int[] {songId}).get();     // as the other tests expect
+    }
+
+    @Test
+    public void testPlayer() throws IOException {
+        HttpURLConnection connection = open("POST", "/api/player/play?song=12345");
+        assertEquals(404, connection.getResponseCode());
+        assertEquals("{\"error\":\"no song 12345\"}", read(connection.getErrorStream()));
+        assertEquals(405, open("GET", "/api/player/stop").getResponseCode());
+        assertEquals("{\"state\":\"stopped\",\"song\":null,\"queued\":0}",
+                read(open("POST", "/api/player/stop").getInputStream()));
+
+        connection = open("GET", "/api/player/events");
+        BufferedReader events = new BufferedReader(new InputStreamReader(connection.getInputStream(),
+                StandardCharsets.UTF_8));
+        assertEquals("text/event-stream; charset=utf-8", connection.getContentType());
+        assertEquals("event: status", events.readLine());
+        assertEquals("data: {\"state\":\"stopped\",\"song\":null,\"queued\":0}", events.readLine());
+        connection.disconnect();
+    }
+
+    @Test
+    public void testMalformedRequest() throws IOException {
+        String[] requests = {
+                "POST / HTTP/1.1\r\nContent-Length: -1\r\n\r\n",
+                "POST / HTTP/1.1\r\nContent-Length: 2147483647\r\n\r\n"};
+        String[] statuses = {" 400 Bad Request", " 413 Payload Too Large"};
+        for(int i = 0; i < requests.length; i++) {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), api.getPort());
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write(requests[i].getBytes(StandardCharsets.US_ASCII));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.ISO_8859_1));
+            assertTrue(in.readLine().endsWith(statuses[i]));
+            socket.close();
+        }
+        // the server still answers
+        assertEquals("{\"playlists\":[\"Road Trip\"]}", read(open("GET", "/api/playlists").getInputStream()));
+    }
+
+    private static HttpURLConnection open(String method, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)
+                new URL("http://127.0.0.1:" + api.getPort() + path).openConnection();
+        connection.setRequestMethod(method);
+        return connection;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while((count = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, count);
+        }
+        in.close();
+        return bytes.toString("UTF-8");
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
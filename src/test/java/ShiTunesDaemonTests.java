@@ -0,0 +1,114 @@
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Suite of tests for the ShiTunesDaemon class, sending commands over
+ * its socket to a daemon serving an empty library
+ *
+ */
+public class ShiTunesDaemonTests {
+
+    private static File dir;
+    private static Path socket;
+    private static ShiBase db;
+    private static ShiTunesDaemon daemon;
+
+    @BeforeClass
+    public static void startDaemon() throws Exception {
+        dir = Files.createTempDirectory("shiTunes-daemon").toFile();
+        socket = new File(dir, "shiTunes.sock").toPath();
+        Files.createFile(socket);   // left by a daemon that was killed
+        db = new ShiBase(new File(dir, "db").getPath());
+        daemon = new ShiTunesDaemon(db, null, socket);
+        daemon.bind();
+        Thread server = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    daemon.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+    }
+
+    @AfterClass
+    public static void stopDaemon() {
+        daemon.close();
+        db.close();
+        assertTrue(!Files.exists(socket));
+        delete(dir);
+    }
+
+    @Test
+    public void testReplies() throws IOException {
+        SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel),
+                StandardCharsets.UTF_8));
+        send(channel, "search anything\n");
+        assertEquals("OK 0", in.readLine());
+        send(channel, "status\n");
+        assertEquals("OK 5", in.readLine());
+        assertEquals("state stopped", in.readLine());
+        assertEquals("song -", in.readLine());
+        assertEquals("queued 0", in.readLine());
+        in.readLine();
+        in.readLine();
+        channel.close();
+    }
+
+    @Test
+    public void testBatchedCommands() throws IOException {
+        SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel),
+                StandardCharsets.UTF_8));
+        // several commands in one write, the last one split across writes
+        send(channel, "play 12345\nbogus\n\nqueue /no/such/song.mp3\nsto");
+        send(channel, "p\n");
+        assertEquals("ERR no song 12345", in.readLine());
+        assertEquals("ERR unknown command bogus", in.readLine());
+        assertEquals("ERR no song /no/such/song.mp3", in.readLine());
+        assertEquals("OK 0", in.readLine());
+        channel.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testOneDaemonPerSocket() throws IOException {
+        new ShiTunesDaemon(db, null, socket).bind();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void send(SocketChannel channel, String text) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
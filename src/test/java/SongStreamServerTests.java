@@ -0,0 +1,152 @@
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Suite of tests for the SongStreamServer class, requesting ranges of
+ * the file of a library of one song
+ *
+ */
+public class SongStreamServerTests {
+
+    private static File dir;
+    private static ShiBase db;
+    private static SongStreamServer server;
+    private static byte[] content = new byte[100000];
+    private static int songId;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        dir = Files.createTempDirectory("shiTunes-stream").toFile();
+        for(int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        File song = new File(dir, "song.mp3");
+        Files.write(song.toPath(), content);
+        db = new ShiBase(new File(dir, "db").getPath());
+        songId = db.insertSong(new Song(song.getPath(), "Title", "Artist", "Album", "2015", "Rock", "")).get();
+        server = new SongStreamServer(db, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.start();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop();
+        db.close();
+        delete(dir);
+    }
+
+    @Test
+    public void testParseRange() {
+        assertArrayEquals(new long[] {0, 499}, SongStreamServer.parseRange("bytes=0-499", 1000));
+        assertArrayEquals(new long[] {500, 999}, SongStreamServer.parseRange("bytes=500-", 1000));
+        assertArrayEquals(new long[] {900, 999}, SongStreamServer.parseRange("bytes=-100", 1000));
+        assertArrayEquals(new long[] {0, 999}, SongStreamServer.parseRange("bytes=-5000", 1000));
+        assertArrayEquals(new long[] {990, 999}, SongStreamServer.parseRange("bytes=990-5000", 1000));
+        assertEquals(0, SongStreamServer.parseRange("bytes=1000-", 1000).length);
+        assertEquals(0, SongStreamServer.parseRange("bytes=-0", 1000).length);
+        assertNull(SongStreamServer.parseRange(null, 1000));
+        assertNull(SongStreamServer.parseRange("bytes=5-2", 1000));
+        assertNull(SongStreamServer.parseRange("bytes=0-1,5-6", 1000));
+        assertNull(SongStreamServer.parseRange("items=0-1", 1000));
+    }
+
+    @Test
+    public void testRanges() throws IOException {
+        HttpURLConnection connection = open("/songs/" + songId, null);
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("audio/mpeg", connection.getContentType());
+        assertEquals("bytes", connection.getHeaderField("Accept-Ranges"));
+        assertArrayEquals(content, read(connection.getInputStream()));
+
+        connection = open("/songs/" + songId, "bytes=1000-1999");
+        assertEquals(206, connection.getResponseCode());
+        assertEquals("bytes 1000-1999/100000", connection.getHeaderField("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(content, 1000, 2000), read(connection.getInputStream()));
+
+        connection = open("/songs/" + songId, "bytes=-10");
+        assertEquals(206, connection.getResponseCode());
+        assertArrayEquals(Arrays.copyOfRange(content, 99990, 100000), read(connection.getInputStream()));
+
+        connection = open("/songs/" + songId, "bytes=100000-");
+        assertEquals(416, connection.getResponseCode());
+        assertEquals("bytes */100000", connection.getHeaderField("Content-Range"));
+
+        assertEquals(404, open("/songs/12345", null).getResponseCode());
+        assertEquals(404, open("/songs/bogus", null).getResponseCode());
+    }
+
+    @Test
+    public void testMalformedRequests() throws IOException {
+        String[] requests = {
+                "POST /songs/1 HTTP/1.1\r\nContent-Length: -1\r\n\r\n",
+                "GET /songs/1 HTTP/1.1\r\nContent-Length: x\r\n\r\n",
+                "GARBAGE\r\n\r\n",
+                "POST /songs/1 HTTP/1.1\r\nContent-Length: 2147483647\r\n\r\n"};
+        String[] statuses = {" 400 Bad Request", " 400 Bad Request", " 400 Bad Request", " 413 Payload Too Large"};
+        for(int i = 0; i < requests.length; i++) {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write(requests[i].getBytes(StandardCharsets.US_ASCII));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.ISO_8859_1));
+            assertTrue(in.readLine().endsWith(statuses[i]));
+            socket.close();
+        }
+        // the server still answers
+        HttpURLConnection connection = open("/songs/" + songId, "bytes=0-9");
+        connection.setReadTimeout(10000);
+        assertEquals(206, connection.getResponseCode());
+        assertArrayEquals(Arrays.copyOfRange(content, 0, 10), read(connection.getInputStream()));
+    }
+
+    private static HttpURLConnection open(String path, String range) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)
+                new URL("http://127.0.0.1:" + server.getPort() + path).openConnection();
+        if(range != null) {
+            connection.setRequestProperty("Range", range);
+        }
+        return connection;
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while((count = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, count);
+        }
+        in.close();
+        return bytes.toByteArray();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,74 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Suite of tests for the SpectrumAnalyzer class
+ *
+ */
+public class SpectrumAnalyzerTests {
+
+    @Test
+    public void testSineBand() throws Exception {
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer();
+        analyzer.setFormat(44100, 2);
+        analyzer.setActive(true);
+        try {
+            // a full scale 1 kHz sine on the left channel only
+            byte[] pcm = new byte[4410 * 4];
+            for(int frame = 0; frame < 4410; frame++) {
+                int value = (int) Math.round(Math.sin(2 * Math.PI * 1000 * frame / 44100.0) * 32767);
+                pcm[frame * 4] = (byte) value;
+                pcm[frame * 4 + 1] = (byte) (value >> 8);
+            }
+            analyzer.publish(pcm, pcm.length);
+            SpectrumAnalyzer.Frame frame = awaitFrame(analyzer);
+
+            // the loudest band is the one holding 1 kHz, on a log scale from 40 Hz to 16 kHz
+            int expected = (int) (Math.log(1000 / 40.0) / Math.log(16000 / 40.0) * SpectrumAnalyzer.BANDS);
+            int loudest = 0;
+            for(int band = 1; band < SpectrumAnalyzer.BANDS; band++) {
+                if(frame.bands[band] > frame.bands[loudest]) {
+                    loudest = band;
+                }
+            }
+            assertEquals(expected, loudest, 1);
+            assertTrue(frame.bands[loudest] > 0.9f);
+            assertTrue(frame.bands[SpectrumAnalyzer.BANDS - 1] < 0.5f);
+
+            // full scale peak on the left, nothing on the right
+            assertEquals(1.0, frame.peaks[0], 0.01);
+            assertEquals(0.0, frame.peaks[1], 0.0);
+            assertTrue(frame.levels[0] > frame.levels[1]);
+        } finally {
+            analyzer.dispose();
+        }
+    }
+
+    @Test
+    public void testHiddenIgnoresSamples() throws Exception {
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer();
+        byte[] pcm = new byte[SpectrumAnalyzer.FFT_SIZE * 4];
+        java.util.Arrays.fill(pcm, (byte) 0x40);
+        analyzer.publish(pcm, pcm.length);      // not active: dropped
+
+        analyzer.setActive(true);
+        Thread.sleep(3000 / SpectrumAnalyzer.FRAME_RATE);
+        analyzer.dispose();
+        SpectrumAnalyzer.Frame frame = analyzer.takeFrame();
+        assertEquals(0.0, frame.peaks[0], 0.0);
+    }
+
+    private static SpectrumAnalyzer.Frame awaitFrame(SpectrumAnalyzer analyzer) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(System.currentTimeMillis() < deadline) {
+            SpectrumAnalyzer.Frame frame = analyzer.takeFrame();
+            if(frame.peaks[0] > 0) {
+                return frame;
+            }
+            Thread.sleep(5);
+        }
+        throw new AssertionError("no frame computed");
+    }
+}
@@ -0,0 +1,54 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Suite of tests for the Waveform class
+ *
+ */
+public class WaveformTests {
+
+    @Test
+    public void testBuckets() {
+        // 1.05 s of stereo at 44.1 kHz: ten whole buckets and a part one
+        Waveform waveform = new Waveform(44100, 2);
+        int frames = 44100 + 2205;
+        byte[] pcm = new byte[frames * 4];
+        for(int frame = 0; frame < frames; frame++) {
+            // a square wave growing louder every bucket, the right channel at half the left
+            int bucket = frame / 4410;
+            int value = (frame % 2 == 0 ? 1 : -1) * bucket * 256 * 10;
+            setSample(pcm, frame * 4, value);
+            setSample(pcm, frame * 4 + 2, value / 2);
+        }
+        // in uneven buffers, splitting samples between calls
+        waveform.process(pcm, 0, 1000);
+        waveform.process(pcm, 1000, pcm.length - 1000);
+
+        byte[] peaks = waveform.getPeaks();
+        assertEquals(2 * 11, peaks.length);
+        for(int bucket = 0; bucket < 11; bucket++) {
+            assertEquals(-bucket * 10, peaks[2 * bucket]);
+            assertEquals(bucket * 10, peaks[2 * bucket + 1]);
+        }
+    }
+
+    @Test
+    public void testFullScale() {
+        Waveform waveform = new Waveform(48000, 1);
+        byte[] pcm = new byte[4];
+        setSample(pcm, 0, Short.MIN_VALUE);
+        setSample(pcm, 2, Short.MAX_VALUE);
+        waveform.process(pcm, 0, pcm.length);
+
+        byte[] peaks = waveform.getPeaks();
+        assertEquals(2, peaks.length);
+        assertEquals(Byte.MIN_VALUE, peaks[0]);
+        assertEquals(Byte.MAX_VALUE, peaks[1]);
+    }
+
+    private static void setSample(byte[] pcm, int offset, int value) {
+        pcm[offset] = (byte) value;
+        pcm[offset + 1] = (byte) (value >> 8);
+    }
+}